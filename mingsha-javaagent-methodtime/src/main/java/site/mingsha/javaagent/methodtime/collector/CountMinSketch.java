@@ -0,0 +1,65 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+/**
+ * Count-Min 频次估计：固定内存估计任意键的累计权重，只会高估不会低估。
+ * Count-Min frequency sketch: estimates the total weight of any key in fixed memory, never underestimating.
+ * 用于查询未进入 Top-K 摘要的方法的调用次数。非线程安全，由调用方加锁。
+ * Used to look up call counts of methods outside the top-K summary. Not thread-safe, callers synchronize.
+ *
+ * @author mingsha
+ */
+public class CountMinSketch {
+    private final int width;
+    private final long[][] rows;
+
+    /**
+     * @param depth 哈希行数 | number of hash rows
+     * @param width 每行计数器数（取2的幂）| counters per row (rounded to a power of two)
+     */
+    public CountMinSketch(int depth, int width) {
+        this.width = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.rows = new long[Math.max(1, depth)][this.width];
+    }
+
+    /**
+     * 累加键的权重。
+     * Add weight to a key.
+     * @param key 键 | key
+     * @param weight 权重 | weight
+     */
+    public void add(String key, long weight) {
+        int h = key.hashCode();
+        for (int i = 0; i < rows.length; i++) {
+            rows[i][index(h, i)] += weight;
+        }
+    }
+
+    /**
+     * 估计键的累计权重。
+     * Estimate the total weight of a key.
+     * @param key 键 | key
+     * @return 估计值 | estimate
+     */
+    public long estimate(String key) {
+        int h = key.hashCode();
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < rows.length; i++) {
+            min = Math.min(min, rows[i][index(h, i)]);
+        }
+        return min;
+    }
+
+    /**
+     * 清空计数。
+     * Clear all counters.
+     */
+    public void clear() {
+        for (long[] row : rows) java.util.Arrays.fill(row, 0);
+    }
+
+    private int index(int h, int row) {
+        // 每行使用不同的乘数打散 | a different multiplier per row
+        int x = (h ^ (h >>> 16)) * (0x9E3779B1 + 2 * row);
+        return (x ^ (x >>> 15)) & (width - 1);
+    }
+}
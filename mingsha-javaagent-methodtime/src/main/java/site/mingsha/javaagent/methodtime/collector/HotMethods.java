@@ -0,0 +1,289 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 热点方法滑动窗口统计：在采集层以固定内存跟踪调用次数、总耗时与 p99 的 Top-K 方法，不依赖 H2。
+ * Sliding-window hot method statistics: tracks the top-K methods by calls, total time and p99 in the collector in fixed memory, independent of H2.
+ * 维护两组时间槽：分钟槽（共15槽）供 agent hot 使用，10秒槽（共6槽）供 agent top 计算最近一分钟内的实时速率；
+ * 每槽包含按调用次数与按总耗时的两个 Space-Saving 摘要及一个 Count-Min 频次估计，查询时合并窗口内的槽，内存只与摘要容量有关，与方法总数无关。
+ * Two slot rings are kept: minute slots (15) for agent hot and 10-second slots (6) for the live rates of agent top within the last minute;
+ * each slot holds Space-Saving summaries by calls and by total time plus a Count-Min sketch, queries merge the slots in the window, memory depends only on the summary capacity, not on how many methods exist.
+ * 由写入线程在取批时更新，不在被增强方法中执行；统计的是采样后进入缓冲队列的记录。
+ * Updated by writer threads when they poll batches, never inside enhanced methods; counts cover records that passed sampling into the buffer.
+ *
+ * @author mingsha
+ */
+public class HotMethods {
+    static final int SLOTS = 15;
+    static final int SHORT_SLOTS = 6;
+    static final long SHORT_SLOT_MS = 10_000;
+    private static final long MINUTE_MS = 60_000;
+    private static final int CMS_DEPTH = 4;
+    private static final int CMS_WIDTH = 256;
+    private static final Ring minuteRing = new Ring(MINUTE_MS, SLOTS);
+    private static final Ring recentRing = new Ring(SHORT_SLOT_MS, SHORT_SLOTS);
+    private static volatile boolean enabled = AgentConfig.isHotMethodsEnabled();
+    private static int capacity = Math.max(8, AgentConfig.getHotMethodsCapacity());
+    private static volatile long since = System.currentTimeMillis();
+
+    // top 视图的排序方式 | sort keys of the top view
+    public static final String SORT_CALLS = "calls";
+    public static final String SORT_TIME = "time";
+    public static final String SORT_AVG = "avg";
+    public static final String SORT_P99 = "p99";
+
+    private static class Slot {
+        long index = -1;
+        final SpaceSaving byCalls = new SpaceSaving(capacity, true);
+        final SpaceSaving byTime = new SpaceSaving(capacity, false);
+        final CountMinSketch counts = new CountMinSketch(CMS_DEPTH, CMS_WIDTH);
+
+        void reset(long i) {
+            index = i;
+            byCalls.clear();
+            byTime.clear();
+            counts.clear();
+        }
+    }
+
+    /**
+     * 固定宽度时间槽环。
+     * Ring of fixed-width time slots.
+     */
+    private static class Ring {
+        final long slotMs;
+        final Slot[] slots;
+
+        Ring(long slotMs, int count) {
+            this.slotMs = slotMs;
+            this.slots = new Slot[count];
+        }
+
+        Slot slot(long nowMs) {
+            long index = nowMs / slotMs;
+            int i = (int) (index % slots.length);
+            Slot slot = slots[i];
+            if (slot == null) {
+                slot = slots[i] = new Slot();
+                slot.index = index;
+            } else if (slot.index != index) {
+                slot.reset(index);
+            }
+            return slot;
+        }
+
+        int window(int count) {
+            return Math.max(1, Math.min(slots.length, count));
+        }
+
+        boolean inWindow(Slot s, long nowMs, int count) {
+            return s != null && s.index > nowMs / slotMs - window(count);
+        }
+
+        void clear() {
+            java.util.Arrays.fill(slots, null);
+        }
+    }
+
+    /**
+     * 记录一批采集数据。
+     * Record a batch of method time records.
+     * @param batch 采集数据 | records
+     */
+    public static void record(List<MethodTimeRecord> batch) {
+        if (!enabled || batch.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        synchronized (minuteRing) {
+            Slot slot = minuteRing.slot(now);
+            Slot recent = recentRing.slot(now);
+            for (MethodTimeRecord r : batch) {
+                String key = r.className + "." + r.methodName;
+                slot.byCalls.offer(key, 1, r.durationNs);
+                slot.byTime.offer(key, r.durationNs, r.durationNs);
+                slot.counts.add(key, 1);
+                recent.byCalls.offer(key, 1, r.durationNs);
+                recent.byTime.offer(key, r.durationNs, r.durationNs);
+            }
+        }
+    }
+
+    private static Map<String, SpaceSaving.Entry> merge(Ring ring, int count, boolean byTime) {
+        long now = System.currentTimeMillis();
+        Map<String, SpaceSaving.Entry> merged = new HashMap<>();
+        synchronized (minuteRing) {
+            for (Slot s : ring.slots) {
+                if (ring.inWindow(s, now, count)) (byTime ? s.byTime : s.byCalls).mergeInto(merged);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 合并最近 N 分钟的摘要。
+     * Merge the summaries of the last N minutes.
+     * @param minutes 窗口分钟数（1~15）| window in minutes (1~15)
+     * @param byTime true-按总耗时摘要，false-按调用次数摘要 | true for the total-time summary, false for the calls summary
+     * @return 合并后的项 | merged entries
+     */
+    static List<SpaceSaving.Entry> merge(int minutes, boolean byTime) {
+        return new ArrayList<>(merge(minuteRing, minutes, byTime).values());
+    }
+
+    /**
+     * 按调用次数取 Top-K。
+     * Top-K by calls.
+     * @param minutes 窗口分钟数 | window in minutes
+     * @param k 条数 | count
+     * @return 摘要项，weight 为估计调用次数 | entries, weight is the estimated calls
+     */
+    public static List<SpaceSaving.Entry> topByCalls(int minutes, int k) {
+        return top(merge(minutes, false), Comparator.comparingLong((SpaceSaving.Entry e) -> e.weight), k);
+    }
+
+    /**
+     * 按总耗时取 Top-K。
+     * Top-K by total time.
+     * @param minutes 窗口分钟数 | window in minutes
+     * @param k 条数 | count
+     * @return 摘要项，weight 为估计总耗时（纳秒）| entries, weight is the estimated total time (ns)
+     */
+    public static List<SpaceSaving.Entry> topByTime(int minutes, int k) {
+        return top(merge(minutes, true), Comparator.comparingLong((SpaceSaving.Entry e) -> e.weight), k);
+    }
+
+    /**
+     * 按 p99 耗时取 Top-K，只在按调用次数跟踪的热点方法中排序。
+     * Top-K by p99, ranked among the methods tracked by calls.
+     * @param minutes 窗口分钟数 | window in minutes
+     * @param k 条数 | count
+     * @return 摘要项 | entries
+     */
+    public static List<SpaceSaving.Entry> topByP99(int minutes, int k) {
+        return top(merge(minutes, false), Comparator.comparingLong((SpaceSaving.Entry e) -> e.quantile(0.99)), k);
+    }
+
+    private static List<SpaceSaving.Entry> top(List<SpaceSaving.Entry> entries, Comparator<SpaceSaving.Entry> order, int k) {
+        entries.sort(order.reversed());
+        return entries.subList(0, Math.min(Math.max(0, k), entries.size()));
+    }
+
+    /**
+     * 按 Count-Min 估计任意方法在窗口内的调用次数（只高估不低估）。
+     * Estimate the calls of any method within the window using Count-Min (never underestimates).
+     * @param key 类名.方法名 | class.method
+     * @param minutes 窗口分钟数 | window in minutes
+     * @return 估计调用次数 | estimated calls
+     */
+    public static long estimateCalls(String key, int minutes) {
+        long now = System.currentTimeMillis();
+        long total = 0;
+        synchronized (minuteRing) {
+            for (Slot s : minuteRing.slots) {
+                if (minuteRing.inWindow(s, now, minutes)) total += s.counts.estimate(key);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 重新读取配置并清空统计（热加载后调用）。
+     * Re-read the config and clear statistics (after hot reload).
+     */
+    public static void refresh() {
+        synchronized (minuteRing) {
+            enabled = AgentConfig.isHotMethodsEnabled();
+            capacity = Math.max(8, AgentConfig.getHotMethodsCapacity());
+            minuteRing.clear();
+            recentRing.clear();
+            since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 获取窗口内的热点方法报告。
+     * Get the hot method report of a window.
+     * @param minutes 窗口分钟数 | window in minutes
+     * @param k 每个列表的条数 | entries per list
+     * @return 报告字符串 | report string
+     */
+    public static String report(int minutes, int k) {
+        int window = Math.max(1, Math.min(SLOTS, minutes));
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("=== 热点方法（最近 %d 分钟，摘要容量 %d）===\n", window, capacity));
+        if (!enabled) return sb.append("[未启用] collector.hot.enabled=false\n").toString();
+        sb.append("调用次数 Top ").append(k).append(":\n");
+        for (SpaceSaving.Entry e : topByCalls(window, k)) {
+            sb.append(String.format("  %s - %d 次 (误差≤%d)\n", e.key, e.weight, e.error));
+        }
+        sb.append("总耗时 Top ").append(k).append(":\n");
+        for (SpaceSaving.Entry e : topByTime(window, k)) {
+            sb.append(String.format("  %s - %d ms (误差≤%d ms)\n", e.key, e.weight / 1_000_000, e.error / 1_000_000));
+        }
+        sb.append("p99 耗时 Top ").append(k).append(":\n");
+        for (SpaceSaving.Entry e : topByP99(window, k)) {
+            sb.append(String.format("  %s - p99≤%.3f ms (%d 次采样)\n", e.key, e.quantile(0.99) / 1e6, e.calls));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 获取实时 top 视图：窗口不超过60秒时使用10秒槽，否则使用分钟槽，速率按窗口实际覆盖的时长计算。
+     * Get the live top view: windows up to 60 s use the 10-second slots, longer ones the minute slots, rates divide by the time the window actually covers.
+     * 按总耗时排序时从总耗时摘要取候选方法，其余排序从调用次数摘要取候选；包过滤在合并后进行，只能看到进入摘要的方法。
+     * Sorting by time takes candidates from the total-time summary, other sort keys from the calls summary; the package filter applies after merging, so only summarized methods show.
+     * @param windowSeconds 窗口秒数 | window in seconds
+     * @param sort 排序：calls、time、avg、p99 | sort key: calls, time, avg, p99
+     * @param prefix 类名前缀过滤，可为null | class name prefix filter, may be null
+     * @param k 条数 | count
+     * @return 视图字符串 | view string
+     */
+    public static String top(int windowSeconds, String sort, String prefix, int k) {
+        long now = System.currentTimeMillis();
+        Ring ring = windowSeconds <= SHORT_SLOTS * SHORT_SLOT_MS / 1000 ? recentRing : minuteRing;
+        int count = (int) Math.ceil(Math.max(1, windowSeconds) * 1000.0 / ring.slotMs);
+        count = ring.window(count);
+        Map<String, SpaceSaving.Entry> calls = merge(ring, count, false);
+        Map<String, SpaceSaving.Entry> times = SORT_TIME.equals(sort) ? merge(ring, count, true) : null;
+        long coveredMs = (count - 1) * ring.slotMs + now % ring.slotMs;
+        coveredMs = Math.max(1000, Math.min(coveredMs, now - since));
+        double secs = coveredMs / 1000.0;
+
+        List<SpaceSaving.Entry> rows = new ArrayList<>((times != null ? times : calls).values());
+        if (prefix != null && !prefix.isEmpty()) rows.removeIf(e -> !e.key.startsWith(prefix));
+        Comparator<SpaceSaving.Entry> order;
+        if (SORT_TIME.equals(sort)) {
+            order = Comparator.comparingLong(e -> e.weight);
+        } else if (SORT_AVG.equals(sort)) {
+            order = Comparator.comparingDouble(e -> e.calls == 0 ? 0 : (double) e.totalNs / e.calls);
+        } else if (SORT_P99.equals(sort)) {
+            order = Comparator.comparingLong(e -> e.quantile(0.99));
+        } else {
+            order = Comparator.comparingLong(e -> e.weight);
+        }
+        rows = top(rows, order, k);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("=== agent top  窗口 %.0f s  排序 %s%s  摘要容量 %d  %tT ===\n",
+                secs, sort, prefix == null || prefix.isEmpty() ? "" : "  过滤 " + prefix, capacity, now));
+        if (!enabled) return sb.append("[未启用] collector.hot.enabled=false\n").toString();
+        sb.append(String.format("%10s %12s %10s %10s  %s\n", "calls/s", "time ms/s", "avg ms", "p99 ms", "方法"));
+        for (SpaceSaving.Entry e : rows) {
+            SpaceSaving.Entry c = times != null ? calls.get(e.key) : e;
+            long n = c != null ? c.weight : e.calls;
+            long totalNs = times != null ? e.weight : c.totalNs;
+            long observed = c != null ? c.calls : e.calls;
+            long observedNs = c != null ? c.totalNs : e.totalNs;
+            sb.append(String.format("%10.1f %12.2f %10.3f %10s  %s\n",
+                    n / secs, totalNs / 1e6 / secs, observed == 0 ? 0.0 : observedNs / 1e6 / observed,
+                    c == null ? "-" : String.format("%.3f", c.quantile(0.99) / 1e6), e.key));
+        }
+        if (rows.isEmpty()) sb.append("[窗口内无数据]\n");
+        return sb.toString();
+    }
+}
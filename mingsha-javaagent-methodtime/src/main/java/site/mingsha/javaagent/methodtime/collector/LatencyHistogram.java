@@ -0,0 +1,199 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+/**
+ * 可合并的耗时直方图：与 {@link SpaceSaving} 相同的对数线性分桶（1μs 以下一桶，之后每个 2 的幂区间 4 个子桶），相对误差不超过 25%。
+ * Mergeable latency histogram using the same log-linear buckets as {@link SpaceSaving} (one below 1μs, then 4 per power of two), within 25% relative error.
+ * 按桶计数相加即可合并任意时间段或分片，分位数由合并后的桶估算，无需保留原始记录。
+ * Histograms of any time ranges or shards merge by adding bucket counts and percentiles are estimated from the merged buckets, so raw records are not needed.
+ * 非线程安全，由调用方加锁。
+ * Not thread-safe, callers synchronize.
+ *
+ * @author mingsha
+ */
+public class LatencyHistogram {
+    private static final int BAR_WIDTH = 40;
+    private final long[] counts = new long[SpaceSaving.BUCKETS];
+    private long calls;
+    private long totalNs;
+    private long maxNs;
+
+    /**
+     * 记录一次耗时。
+     * Record one duration.
+     * @param ns 纳秒 | nanoseconds
+     */
+    public void add(long ns) {
+        counts[SpaceSaving.bucket(Math.max(0, ns))]++;
+        calls++;
+        totalNs += ns;
+        if (ns > maxNs) maxNs = ns;
+    }
+
+    /**
+     * 合并另一个直方图。
+     * Merge another histogram into this one.
+     * @param other 直方图 | histogram
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        calls += other.calls;
+        totalNs += other.totalNs;
+        maxNs = Math.max(maxNs, other.maxNs);
+    }
+
+    /**
+     * 获取调用次数。
+     * Get the calls.
+     * @return 调用次数 | calls
+     */
+    public long calls() {
+        return calls;
+    }
+
+    /**
+     * 获取总耗时（纳秒）。
+     * Get the total duration (ns).
+     * @return 总耗时（纳秒） | total duration (ns)
+     */
+    public long totalNs() {
+        return totalNs;
+    }
+
+    /**
+     * 获取最大耗时（纳秒）。
+     * Get the max duration (ns).
+     * @return 最大耗时（纳秒） | max duration (ns)
+     */
+    public long maxNs() {
+        return maxNs;
+    }
+
+    /**
+     * 平均耗时。
+     * Mean duration.
+     * @return 纳秒，无数据为0 | nanoseconds, 0 without data
+     */
+    public long meanNs() {
+        return calls == 0 ? 0 : totalNs / calls;
+    }
+
+    /**
+     * 估算分位耗时（所在桶上界，不超过最大耗时）。
+     * Estimate a duration percentile (upper bound of its bucket, capped at the max).
+     * @param q 分位（0~1）| quantile (0~1)
+     * @return 纳秒，无数据为0 | nanoseconds, 0 without data
+     */
+    public long quantile(double q) {
+        if (calls == 0) return 0;
+        int i = bucketAtRank((long) Math.ceil(q * calls));
+        return i < 0 ? maxNs : Math.min(SpaceSaving.upperBound(i), maxNs);
+    }
+
+    /**
+     * 分位数的无分布置信区间（按二项分布取秩区间 nq ± z·√(nq(1-q))），以桶号表示。
+     * Distribution-free confidence interval of a quantile (rank interval nq ± z·√(nq(1-q)) from the binomial distribution), as bucket indexes.
+     * 两个直方图的区间不重叠即可认为该分位数有显著变化。
+     * Two histograms whose intervals do not overlap differ significantly at that quantile.
+     * @param q 分位（0~1）| quantile (0~1)
+     * @param z 置信水平对应的正态分位数，如 2.58 对应 99% | normal quantile of the confidence level, e.g. 2.58 for 99%
+     * @return {下界桶号, 上界桶号}，无数据为 null | {lower bucket, upper bucket}, null without data
+     */
+    public int[] quantileInterval(double q, double z) {
+        if (calls == 0) return null;
+        double center = q * calls;
+        double spread = z * Math.sqrt(calls * q * (1 - q));
+        return new int[] {
+                bucketAtRank((long) Math.floor(center - spread)),
+                bucketAtRank((long) Math.ceil(center + spread) + 1)
+        };
+    }
+
+    private int bucketAtRank(long rank) {
+        rank = Math.min(Math.max(1, rank), calls);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 编码为稀疏桶文本，格式为 桶号:次数,桶号:次数。
+     * Encode the buckets as sparse text in the form bucket:count,bucket:count.
+     * @return 编码文本 | encoded text
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(i).append(':').append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 从稀疏桶文本与汇总值还原直方图，忽略无法识别的桶。
+     * Restore a histogram from sparse bucket text and its totals, skipping unrecognized buckets.
+     * @param calls 调用次数 | calls
+     * @param totalNs 总耗时 | total duration
+     * @param maxNs 最大耗时 | max duration
+     * @param buckets 编码文本 | encoded text
+     * @return 直方图 | histogram
+     */
+    public static LatencyHistogram decode(long calls, long totalNs, long maxNs, String buckets) {
+        LatencyHistogram h = new LatencyHistogram();
+        h.calls = calls;
+        h.totalNs = totalNs;
+        h.maxNs = maxNs;
+        if (buckets == null || buckets.isEmpty()) return h;
+        for (String part : buckets.split(",")) {
+            int sep = part.indexOf(':');
+            if (sep <= 0) continue;
+            try {
+                int i = Integer.parseInt(part.substring(0, sep));
+                if (i >= 0 && i < h.counts.length) h.counts[i] += Long.parseLong(part.substring(sep + 1));
+            } catch (NumberFormatException ignore) {}
+        }
+        return h;
+    }
+
+    /**
+     * 输出分位数摘要行。
+     * Render the percentile summary lines.
+     * @return 文本 | text
+     */
+    public String percentiles() {
+        return String.format("调用: %d, 平均: %.3f ms, 最大: %.3f ms\np50: %.3f ms, p90: %.3f ms, p99: %.3f ms, p999: %.3f ms\n",
+                calls, meanNs() / 1e6, maxNs / 1e6, quantile(0.5) / 1e6, quantile(0.9) / 1e6, quantile(0.99) / 1e6, quantile(0.999) / 1e6);
+    }
+
+    /**
+     * 输出文本直方图：从最小到最大非空桶逐行显示区间、次数、占比与按最大桶缩放的条形。
+     * Render a text histogram: one line per bucket from the lowest to the highest non-empty one with its range, count, share and a bar scaled to the largest bucket.
+     * @return 文本 | text
+     */
+    public String render() {
+        int lo = -1;
+        int hi = -1;
+        long peak = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            if (lo < 0) lo = i;
+            hi = i;
+            peak = Math.max(peak, counts[i]);
+        }
+        if (lo < 0) return "[无数据]\n";
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%12s %12s %10s %7s\n", "≥ ms", "< ms", "次数", "占比"));
+        for (int i = lo; i <= hi; i++) {
+            long from = i == 0 ? 0 : SpaceSaving.upperBound(i - 1);
+            int bar = (int) Math.round(counts[i] * (double) BAR_WIDTH / peak);
+            sb.append(String.format("%12.3f %12.3f %10d %6.2f%% ", from / 1e6, SpaceSaving.upperBound(i) / 1e6, counts[i], counts[i] * 100.0 / Math.max(1, calls)));
+            for (int k = 0; k < bar; k++) sb.append('#');
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,318 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按方法的累计指标：调用次数、耗时总和、最大耗时与固定分桶的耗时直方图，供 HTTP 指标端点与二进制拉取协议导出。
+ * Cumulative per-method metrics: calls, total and max duration plus a fixed-bucket latency histogram, exported by the HTTP metrics endpoint and the binary pull protocol.
+ * 二进制拉取协议通过代数游标只取自上次拉取后有更新的序列：每个序列记录最近一次更新时的代数，拉取时先推进代数再扫描。
+ * The binary pull protocol uses a generation cursor to fetch only series updated since the previous pull: each series stamps the generation of its latest update and a pull advances the generation before scanning.
+ * 由写入线程在取批时更新（仅聚合级别下由开销调控线程并入探针累计的增量），不在被增强方法中执行；方法数超过 manage.http.maxSeries 后新方法合并到 _other_ 序列，避免序列数无限增长。
+ * Updated by writer threads when they poll batches (and by the overhead governor merging probe deltas at the aggregate-only level), never inside enhanced methods; once manage.http.maxSeries is reached new methods fold into the _other_ series so cardinality stays bounded.
+ * 每个序列缓存自身渲染好的文本片段并记录版本号，抓取时只重新渲染自上次抓取后有更新的序列。
+ * Each series caches its rendered text fragments with a version number, so a scrape only re-renders series updated since the previous scrape.
+ *
+ * @author mingsha
+ */
+public class MethodMetrics {
+    /** 直方图桶上界（纳秒）| histogram bucket upper bounds (ns) */
+    static final long[] BOUNDS_NS = {100_000L, 500_000L, 1_000_000L, 5_000_000L, 10_000_000L, 50_000_000L,
+            100_000_000L, 500_000_000L, 1_000_000_000L, 5_000_000_000L, 10_000_000_000L};
+    /** 桶上界的秒数文本，与 {@link #BOUNDS_NS} 一一对应 | bucket bounds in seconds, matching {@link #BOUNDS_NS} */
+    static final String[] LE = {"0.0001", "0.0005", "0.001", "0.005", "0.01", "0.05", "0.1", "0.5", "1", "5", "10"};
+    /** 超出序列上限后的合并序列 | series that absorbs methods beyond the cap */
+    public static final String OTHER = "_other_";
+    private static final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    private static final LongAdder overflowed = new LongAdder();
+    private static final AtomicLong generation = new AtomicLong(1);
+    private static final AtomicInteger ids = new AtomicInteger();
+    private static volatile boolean enabled = isExported();
+    // 序列集合的纪元，清空后变化，拉取方据此丢弃已缓存的字典 | epoch of the series set, changes when cleared so pullers drop their cached dictionary
+    private static volatile long epoch = newEpoch();
+
+    /**
+     * 单个方法的指标序列。
+     * Metric series of one method.
+     */
+    public static class Series {
+        public final int id;
+        public final String className;
+        public final String methodName;
+        private long count;
+        private long sumNs;
+        private long maxNs;
+        private final long[] buckets = new long[BOUNDS_NS.length + 1];
+        private long version;
+        private long renderedVersion = -1;
+        private long createdAt;
+        private long changedAt;
+        private final String labels;
+        private String calls;
+        private String max;
+        private String histogram;
+        private String json;
+
+        Series(String className, String methodName) {
+            this.id = ids.getAndIncrement();
+            this.className = className;
+            this.methodName = methodName;
+            this.labels = "{class=\"" + escapeLabel(className) + "\",method=\"" + escapeLabel(methodName) + "\"";
+        }
+
+        synchronized void add(long durationNs) {
+            count++;
+            sumNs += durationNs;
+            if (durationNs > maxNs) maxNs = durationNs;
+            int i = 0;
+            while (i < BOUNDS_NS.length && durationNs > BOUNDS_NS[i]) i++;
+            buckets[i]++;
+            version++;
+            // 在锁内读取代数，拉取扫描到本序列时要么看到本次更新，要么本次更新带有更大的代数 | read the generation under the lock so a pull either sees this update or it carries a later generation
+            changedAt = generation.get();
+            if (createdAt == 0) createdAt = changedAt;
+        }
+
+        /**
+         * 并入一段仅聚合期间的增量：次数、耗时总和、最大耗时、各桶计数。
+         * Merge a delta from the aggregate-only level: calls, total, max and per-bucket counts.
+         * @param d 增量 | delta
+         */
+        synchronized void addAll(long[] d) {
+            count += d[0];
+            sumNs += d[1];
+            if (d[2] > maxNs) maxNs = d[2];
+            for (int i = 0; i < buckets.length; i++) buckets[i] += d[3 + i];
+            version++;
+            changedAt = generation.get();
+            if (createdAt == 0) createdAt = changedAt;
+        }
+
+        /**
+         * 自给定代数后有更新时返回累计值的副本：次数、耗时总和、最大耗时、各桶计数（非累加）、首次更新的代数。
+         * Return a copy of the cumulative values when updated after the given generation: calls, total, max, per-bucket counts (not cumulative) and the generation of the first update.
+         * @param cursor 代数游标 | generation cursor
+         * @return 累计值，无更新为 null | values, null when unchanged
+         */
+        public synchronized long[] changedSince(long cursor) {
+            if (changedAt <= cursor) return null;
+            long[] v = new long[buckets.length + 4];
+            v[0] = count;
+            v[1] = sumNs;
+            v[2] = maxNs;
+            System.arraycopy(buckets, 0, v, 3, buckets.length);
+            v[v.length - 1] = createdAt;
+            return v;
+        }
+
+        /**
+         * 获取累计调用次数。
+         * Get the cumulative calls.
+         * @return 调用次数 | calls
+         */
+        public synchronized long count() {
+            return count;
+        }
+
+        /**
+         * 按需重新渲染：版本号未变化时复用上次的文本片段。
+         * Re-render on demand: the previous fragments are reused while the version is unchanged.
+         */
+        private void render() {
+            if (renderedVersion == version) return;
+            calls = "mingsha_method_calls_total" + labels + "} " + count + "\n";
+            max = "mingsha_method_duration_max_seconds" + labels + "} " + seconds(maxNs) + "\n";
+            StringBuilder h = new StringBuilder(64 * (buckets.length + 2));
+            StringBuilder j = new StringBuilder(32 * buckets.length);
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i];
+                String le = i < LE.length ? LE[i] : "+Inf";
+                h.append("mingsha_method_duration_seconds_bucket").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+                j.append(i == 0 ? "" : ",").append('"').append(le).append("\":").append(cumulative);
+            }
+            h.append("mingsha_method_duration_seconds_sum").append(labels).append("} ").append(seconds(sumNs)).append('\n');
+            h.append("mingsha_method_duration_seconds_count").append(labels).append("} ").append(count).append('\n');
+            histogram = h.toString();
+            json = "{\"class\":" + jsonString(className) + ",\"method\":" + jsonString(methodName) + ",\"calls\":" + count
+                    + ",\"sumNs\":" + sumNs + ",\"maxNs\":" + maxNs + ",\"buckets\":{" + j + "}}";
+            renderedVersion = version;
+        }
+
+        /**
+         * 获取调用次数计数器行。
+         * Get the calls counter line.
+         * @return Prometheus 文本 | Prometheus text
+         */
+        public synchronized String calls() {
+            render();
+            return calls;
+        }
+
+        /**
+         * 获取最大耗时行。
+         * Get the max duration line.
+         * @return Prometheus 文本 | Prometheus text
+         */
+        public synchronized String max() {
+            render();
+            return max;
+        }
+
+        /**
+         * 获取直方图各行（桶、总和、次数）。
+         * Get the histogram lines (buckets, sum, count).
+         * @return Prometheus 文本 | Prometheus text
+         */
+        public synchronized String histogram() {
+            render();
+            return histogram;
+        }
+
+        /**
+         * 获取 JSON 对象。
+         * Get the JSON object.
+         * @return JSON 文本 | JSON text
+         */
+        public synchronized String json() {
+            render();
+            return json;
+        }
+    }
+
+    /**
+     * 记录一批采集数据；HTTP 指标端点与拉取端口均未开启时直接返回。
+     * Record a batch of method time records; returns immediately when neither the HTTP metrics endpoint nor the pull port is on.
+     * @param batch 采集数据 | records
+     */
+    public static void record(List<MethodTimeRecord> batch) {
+        if (!enabled || batch.isEmpty()) return;
+        for (MethodTimeRecord r : batch) {
+            series(r.className, r.methodName).add(r.durationNs);
+        }
+    }
+
+    /**
+     * 记录探针仅聚合期间的一段增量；HTTP 指标端点与拉取端口均未开启时直接返回。
+     * Record a delta accumulated by probes at the aggregate-only level; returns immediately when neither the HTTP metrics endpoint nor the pull port is on.
+     * @param className 类名 | class name
+     * @param methodName 方法名 | method name
+     * @param delta 次数、耗时总和、最大耗时、各桶计数 | calls, total, max and per-bucket counts
+     */
+    public static void recordAggregate(String className, String methodName, long[] delta) {
+        if (!enabled) return;
+        series(className, methodName).addAll(delta);
+    }
+
+    private static Series series(String className, String methodName) {
+        String key = className + "." + methodName;
+        Series s = series.get(key);
+        if (s != null) return s;
+        if (series.size() >= Math.max(1, AgentConfig.getHttpMaxSeries())) {
+            overflowed.increment();
+            return series.computeIfAbsent(OTHER, k -> new Series(OTHER, OTHER));
+        }
+        return series.computeIfAbsent(key, k -> new Series(className, methodName));
+    }
+
+    /**
+     * 获取全部序列的快照列表。
+     * Get a snapshot list of all series.
+     * @return 序列列表 | series list
+     */
+    public static List<Series> all() {
+        return new ArrayList<>(series.values());
+    }
+
+    /**
+     * 推进代数，返回推进前的代数作为新的拉取游标；此后的更新都带有更大的代数。
+     * Advance the generation and return the previous one as the new pull cursor; every later update carries a larger generation.
+     * @return 新游标 | new cursor
+     */
+    public static long advance() {
+        return generation.getAndIncrement();
+    }
+
+    /**
+     * 获取序列集合的纪元。
+     * Get the epoch of the series set.
+     * @return 纪元 | epoch
+     */
+    public static long epoch() {
+        return epoch;
+    }
+
+    /**
+     * 获取桶上界（纳秒），最后一个桶为 +Inf。
+     * Get the bucket upper bounds (ns), the last bucket is +Inf.
+     * @return 桶上界副本 | copy of the bounds
+     */
+    public static long[] bounds() {
+        return BOUNDS_NS.clone();
+    }
+
+    /**
+     * 获取因超过序列上限而合并到 _other_ 的记录数。
+     * Get the records folded into _other_ because the series cap was reached.
+     * @return 记录数 | records
+     */
+    public static long overflowed() {
+        return overflowed.sum();
+    }
+
+    /**
+     * 重新读取配置并清空指标（热加载后调用）。
+     * Re-read the config and clear metrics (after hot reload).
+     */
+    public static void refresh() {
+        enabled = isExported();
+        series.clear();
+        overflowed.reset();
+        ids.set(0);
+        epoch = newEpoch();
+    }
+
+    private static boolean isExported() {
+        return AgentConfig.isHttpEnabled() || AgentConfig.isPullEnabled();
+    }
+
+    private static long newEpoch() {
+        return (System.currentTimeMillis() << 16) ^ (System.nanoTime() & 0xFFFF);
+    }
+
+    /**
+     * 纳秒转为秒数文本。
+     * Format nanoseconds as seconds.
+     * @param ns 纳秒 | nanoseconds
+     * @return 秒数文本 | seconds text
+     */
+    public static String seconds(long ns) {
+        return Double.toString(ns / 1e9);
+    }
+
+    /**
+     * 按 Prometheus 文本格式转义标签值。
+     * Escape a label value for the Prometheus text format.
+     * @param v 原值 | raw value
+     * @return 转义后的值 | escaped value
+     */
+    public static String escapeLabel(String v) {
+        return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String jsonString(String v) {
+        StringBuilder sb = new StringBuilder(v.length() + 2).append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -2,8 +2,10 @@
 
 import site.mingsha.javaagent.methodtime.config.AgentConfig;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 方法耗时数据内存缓冲队列。
@@ -14,38 +16,151 @@
  * @author mingsha
  */
 public class MethodTimeBuffer {
-    private static ArrayBlockingQueue<MethodTimeRecord> queue =
-            new ArrayBlockingQueue<>(AgentConfig.getQueueCapacity());
+    /**
+     * 分片队列列表，整体替换而不原地修改；volatile 保证采集线程看到的是完整的新列表。
+     * Shard queues, replaced as a whole and never modified in place; volatile so collecting threads always see a complete list.
+     */
+    private static volatile List<ArrayBlockingQueue<MethodTimeRecord>> queues =
+            Collections.singletonList(new ArrayBlockingQueue<>(AgentConfig.getQueueCapacity()));
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder polled = new LongAdder();
+
+    /**
+     * 按写入线程数将缓冲队列拆分为多个分片队列，总容量不变；需在字节码增强注册前调用。
+     * Split the buffer into one queue per writer thread keeping the total capacity; call before transformers are registered.
+     * 同一方法的记录始终进入同一分片，保证由同一写入线程处理。
+     * Records of one method always go to the same shard so one writer handles them.
+     * @param shards 分片数 | shard count
+     */
+    public static synchronized void configureShards(int shards) {
+        int n = Math.max(1, shards);
+        if (n == queues.size()) return;
+        int per = Math.max(1, AgentConfig.getQueueCapacity() / n);
+        List<ArrayBlockingQueue<MethodTimeRecord>> next = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) next.add(new ArrayBlockingQueue<>(per));
+        for (ArrayBlockingQueue<MethodTimeRecord> q : queues) {
+            MethodTimeRecord r;
+            while ((r = q.poll()) != null) {
+                if (!next.get(shardOf(r, n)).offer(r)) dropped.increment();
+            }
+        }
+        queues = Collections.unmodifiableList(next);
+    }
+
+    /**
+     * 计算记录所属分片。
+     * Compute the shard of a record.
+     * @param record 采集数据 | method time record
+     * @param shards 分片数 | shard count
+     * @return 分片号 | shard index
+     */
+    public static int shardOf(MethodTimeRecord record, int shards) {
+        if (shards <= 1) return 0;
+        int h = record.className.hashCode() * 31 + record.methodName.hashCode();
+        return (h & 0x7fffffff) % shards;
+    }
+
+    /**
+     * 获取分片数。
+     * Get the shard count.
+     * @return 分片数 | shard count
+     */
+    public static int shards() {
+        return queues.size();
+    }
 
     /**
      * 向缓冲队列中添加采集数据。
      * Offer a method time record to the buffer queue.
+     * 队列已满时丢弃并计数，供监控与背压控制使用。
+     * When the queue is full the record is dropped and counted for monitoring and backpressure control.
      * @param record 采集数据 | method time record
      * @return true-成功，false-队列已满 | true if success, false if queue is full
      */
     public static boolean offer(MethodTimeRecord record) {
-        return queue.offer(record);
+        List<ArrayBlockingQueue<MethodTimeRecord>> qs = queues;
+        if (qs.get(shardOf(record, qs.size())).offer(record)) return true;
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * 获取因队列已满而丢弃的累计条数。
+     * Get the total number of records dropped because the queue was full.
+     * @return 条数 | number of records
+     */
+    public static long droppedCount() {
+        return dropped.sum();
     }
 
     /**
-     * 批量获取并移除队列中的采集数据。
-     * Poll and remove a batch of records from the queue.
+     * 获取写入线程已取走的累计条数（在取批时累计，业务线程入队不额外计数）。
+     * Get the total number of records polled by writers (counted when a batch is taken, adding nothing to the enqueue on application threads).
+     * @return 条数 | number of records
+     */
+    public static long polledCount() {
+        return polled.sum();
+    }
+
+    /**
+     * 批量获取并移除队列中的采集数据（依次从各分片获取），同时计入热点方法统计与方法指标。
+     * Poll and remove a batch of records from the queue (shard by shard), also feeding hot method statistics and method metrics.
      * @param batchSize 批量大小 | batch size
      * @return 数据列表 | list of records
      */
     public static List<MethodTimeRecord> pollBatch(int batchSize) {
         List<MethodTimeRecord> batch = new ArrayList<>(batchSize);
-        queue.drainTo(batch, batchSize);
+        for (ArrayBlockingQueue<MethodTimeRecord> q : queues) {
+            q.drainTo(batch, batchSize - batch.size());
+            if (batch.size() >= batchSize) break;
+        }
+        polled.add(batch.size());
+        HotMethods.record(batch);
+        MethodMetrics.record(batch);
+        return batch;
+    }
+
+    /**
+     * 批量获取并移除指定分片中的采集数据，同时计入热点方法统计与方法指标。
+     * Poll and remove a batch of records from one shard, also feeding hot method statistics and method metrics.
+     * @param shard 分片号 | shard index
+     * @param batchSize 批量大小 | batch size
+     * @return 数据列表 | list of records
+     */
+    public static List<MethodTimeRecord> pollBatch(int shard, int batchSize) {
+        List<MethodTimeRecord> batch = new ArrayList<>(batchSize);
+        List<ArrayBlockingQueue<MethodTimeRecord>> qs = queues;
+        if (shard < qs.size()) qs.get(shard).drainTo(batch, batchSize);
+        polled.add(batch.size());
+        HotMethods.record(batch);
+        MethodMetrics.record(batch);
         return batch;
     }
 
+    /**
+     * 获取写入延迟：各分片队首（最早入队）记录自方法结束以来等待的最长时间，队列为空时为0。
+     * Get the writer lag: the longest time the head (oldest) record of any shard has waited since its method exited, 0 when empty.
+     * @return 纳秒 | nanoseconds
+     */
+    public static long oldestAgeNs() {
+        long now = System.nanoTime();
+        long max = 0;
+        for (ArrayBlockingQueue<MethodTimeRecord> q : queues) {
+            MethodTimeRecord head = q.peek();
+            if (head != null) max = Math.max(max, now - head.endTime);
+        }
+        return max;
+    }
+
     /**
      * 获取当前队列中数据条数。
      * Get current size of the buffer queue.
      * @return 条数 | number of records
      */
     public static int size() {
-        return queue.size();
+        int n = 0;
+        for (ArrayBlockingQueue<MethodTimeRecord> q : queues) n += q.size();
+        return n;
     }
 
     /**
@@ -54,7 +169,9 @@ public static int size() {
      * @return 容量 | total capacity
      */
     public static int capacity() {
-        return queue.remainingCapacity() + queue.size();
+        int n = 0;
+        for (ArrayBlockingQueue<MethodTimeRecord> q : queues) n += q.remainingCapacity() + q.size();
+        return n;
     }
 
     /**
@@ -63,6 +180,14 @@ public static int capacity() {
      * @param capacity 新容量 | new capacity
      */
     static void resetQueueForTest(int capacity) {
-        queue = new java.util.concurrent.ArrayBlockingQueue<>(capacity);
+        queues = Collections.singletonList(new ArrayBlockingQueue<>(capacity));
+    }
+
+    /**
+     * [仅测试用] 清空缓冲队列。
+     * [Test only] Clear the buffer queue.
+     */
+    static void clearForTest() {
+        for (ArrayBlockingQueue<MethodTimeRecord> q : queues) q.clear();
     }
-} 
\ No newline at end of file
+}
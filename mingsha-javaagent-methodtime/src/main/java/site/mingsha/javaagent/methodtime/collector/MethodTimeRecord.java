@@ -16,6 +16,7 @@ public class MethodTimeRecord {
     public final long durationNs;     // 耗时（纳秒）| duration (ns)
     public final String threadName;   // 线程名 | thread name
     public final String extraInfo;    // 额外信息 | extra info
+    public final long stackId;        // 慢调用栈ID，0表示未采集 | slow call stack id, 0 if not captured
 
     /**
      * 构造方法，初始化所有字段。
@@ -29,6 +30,22 @@ public class MethodTimeRecord {
      * @param extraInfo 额外信息 | extra info
      */
     public MethodTimeRecord(String className, String methodName, long startTime, long endTime, long durationNs, String threadName, String extraInfo) {
+        this(className, methodName, startTime, endTime, durationNs, threadName, extraInfo, 0L);
+    }
+
+    /**
+     * 构造方法，附带慢调用栈ID，见 {@link StackSampler}。
+     * Constructor with a slow call stack id, see {@link StackSampler}.
+     * @param className 类名 | class name
+     * @param methodName 方法名 | method name
+     * @param startTime 开始时间 | start time
+     * @param endTime 结束时间 | end time
+     * @param durationNs 耗时（纳秒）| duration (ns)
+     * @param threadName 线程名 | thread name
+     * @param extraInfo 额外信息 | extra info
+     * @param stackId 调用栈ID，0表示未采集 | stack id, 0 if not captured
+     */
+    public MethodTimeRecord(String className, String methodName, long startTime, long endTime, long durationNs, String threadName, String extraInfo, long stackId) {
         this.className = className;
         this.methodName = methodName;
         this.startTime = startTime;
@@ -36,5 +53,6 @@ public MethodTimeRecord(String className, String methodName, long startTime, lon
         this.durationNs = durationNs;
         this.threadName = threadName;
         this.extraInfo = extraInfo;
+        this.stackId = stackId;
     }
 } 
\ No newline at end of file
@@ -0,0 +1,149 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 探针保真度级别，由增强后的方法在入口与出口直接读取，开销调控器修改。
+ * Probe fidelity level, read directly by enhanced methods at entry and exit and changed by the overhead governor.
+ * 全量：按配置记录；降采样：采样系数降低；仅聚合：不构造记录、不入队，只在按方法ID的分段计数器上累计次数、耗时与分桶；关闭：入口不再取时间，出口直接返回（观察也随之停止）。
+ * Full records as configured; reduced lowers the sampling factor; aggregate-only builds no record and enqueues nothing, only adding calls, time and buckets to striped per-method-id counters; off skips the entry timestamp and returns at exit (watches stop too).
+ * 仅聚合期间的累计值由调控线程定期并入 {@link MethodMetrics}，HTTP 指标端点与拉取端口不断档；不进入存储、热点方法与慢调用栈。
+ * Aggregate-only totals are merged into {@link MethodMetrics} periodically by the governor thread so the HTTP endpoint and pull port keep flowing; they never reach storage, hot methods or slow stacks.
+ *
+ * @author mingsha
+ */
+public class ProbeGate {
+    public static final int FULL = 0;
+    public static final int REDUCED = 1;
+    public static final int AGGREGATE_ONLY = 2;
+    public static final int OFF = 3;
+    static final String[] NAMES = {"全量", "降采样", "仅聚合", "关闭探针"};
+    /**
+     * 当前级别，由增强代码直接读取。
+     * Current level, read directly by enhanced code.
+     */
+    public static volatile int level = FULL;
+    private static final Object LOCK = new Object();
+    private static volatile Cell[] cells = new Cell[256];
+
+    /**
+     * 单个方法的仅聚合累计值，各字段为分段计数器，多线程累加互不竞争。
+     * Aggregate-only totals of one method; every field is striped so concurrent adds never contend.
+     */
+    public static final class Cell {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder sumNs = new LongAdder();
+        private final LongAccumulator maxNs = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] buckets = new LongAdder[MethodMetrics.BOUNDS_NS.length + 1];
+        // 次数、总耗时、最大耗时三项之后依次为各桶计数 | calls, total and max followed by one slot per bucket
+        private final long[] merged = new long[3 + MethodMetrics.BOUNDS_NS.length + 1];
+
+        public Cell() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        /**
+         * 累计一次调用。
+         * Add one invocation.
+         * @param durationNs 耗时 | duration
+         */
+        public void add(long durationNs) {
+            calls.increment();
+            sumNs.add(durationNs);
+            maxNs.accumulate(durationNs);
+            int i = 0;
+            while (i < MethodMetrics.BOUNDS_NS.length && durationNs > MethodMetrics.BOUNDS_NS[i]) i++;
+            buckets[i].increment();
+        }
+
+        /**
+         * 取出自上次取出后的增量：次数、耗时总和、本区间最大耗时（取出后复位）、各桶计数；由单个调控线程调用。
+         * Take the delta since the previous take: calls, total, the interval's max (reset on take) and per-bucket counts; called by the single governor thread.
+         * @return 增量，无新调用为 null | delta, null when nothing new
+         */
+        long[] take() {
+            long c = calls.sum();
+            if (c == merged[0]) return null;
+            long[] d = new long[merged.length];
+            d[0] = c - merged[0];
+            long s = sumNs.sum();
+            d[1] = s - merged[1];
+            d[2] = maxNs.getThenReset();
+            merged[0] = c;
+            merged[1] = s;
+            for (int i = 0; i < buckets.length; i++) {
+                long b = buckets[i].sum();
+                d[3 + i] = b - merged[3 + i];
+                merged[3 + i] = b;
+            }
+            return d;
+        }
+    }
+
+    /**
+     * 仅聚合级别下由增强方法出口调用（已通过最小耗时过滤）。
+     * Called at the exit of enhanced methods at the aggregate-only level (after the min duration filter).
+     * @param id 方法ID | method id
+     * @param durationNs 本次调用耗时 | duration of this invocation
+     */
+    public static void aggregate(int id, long durationNs) {
+        Cell[] cs = cells;
+        Cell c = id < cs.length ? cs[id] : null;
+        if (c == null) c = cell(id);
+        c.add(durationNs);
+    }
+
+    private static Cell cell(int id) {
+        synchronized (LOCK) {
+            Cell[] cs = cells;
+            if (id >= cs.length) cs = Arrays.copyOf(cs, Math.max(id + 1, cs.length * 2));
+            if (cs[id] == null) cs[id] = new Cell();
+            cells = cs;
+            return cs[id];
+        }
+    }
+
+    /**
+     * 将仅聚合期间的增量并入按方法指标。
+     * Merge aggregate-only deltas into the per-method metrics.
+     * @return 并入的调用次数 | calls merged
+     */
+    public static long flush() {
+        long total = 0;
+        Cell[] cs = cells;
+        for (int id = 0; id < cs.length; id++) {
+            long[] d = cs[id] == null ? null : cs[id].take();
+            if (d == null) continue;
+            total += d[0];
+            String key = Watch.methodName(id);
+            int dot = key.lastIndexOf('.');
+            MethodMetrics.recordAggregate(key.substring(0, dot), key.substring(dot + 1), d);
+        }
+        return total;
+    }
+
+    /**
+     * 获取仅聚合级别下累计处理的调用次数。
+     * Get the total calls handled at the aggregate-only level.
+     * @return 次数 | calls
+     */
+    public static long aggregatedCount() {
+        long total = 0;
+        for (Cell c : cells) {
+            if (c != null) total += c.calls.sum();
+        }
+        return total;
+    }
+
+    /**
+     * 获取级别名称。
+     * Get the name of a level.
+     * @param level 级别 | level
+     * @return 名称 | name
+     */
+    public static String name(int level) {
+        return NAMES[Math.max(0, Math.min(NAMES.length - 1, level))];
+    }
+}
@@ -0,0 +1,78 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 运行时采样决策，由增强后的方法在出口处调用。
+ * Runtime sampling decision, called by enhanced methods at exit.
+ * 实际采样率 = 配置采样率 × 背压系数，背压系数由存储背压控制器调整，无需重新增强字节码。
+ * Effective rate = configured rate × backpressure factor; the factor is adjusted by the storage backpressure controller without re-transforming classes.
+ * 开销调控处于降采样级别时再乘以调控系数。
+ * At the governor's reduced level the governor factor is multiplied in as well.
+ *
+ * @author mingsha
+ */
+public class Sampler {
+    private static volatile double baseRate = AgentConfig.getSamplingRate();
+    private static volatile double factor = 1.0;
+    private static volatile double governorFactor = 1.0;
+    private static volatile double effectiveRate = baseRate;
+
+    /**
+     * 判断本次调用是否记录。
+     * Decide whether this invocation is recorded.
+     * @return true-记录 | true to record
+     */
+    public static boolean sample() {
+        double rate = effectiveRate;
+        return rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    /**
+     * 设置背压系数（0~1）。
+     * Set the backpressure factor (0~1).
+     * @param f 系数 | factor
+     */
+    public static void setFactor(double f) {
+        factor = Math.max(0.0, Math.min(1.0, f));
+        effectiveRate = baseRate * factor * governorFactor;
+    }
+
+    /**
+     * 设置开销调控系数（0~1）。
+     * Set the overhead governor factor (0~1).
+     * @param f 系数 | factor
+     */
+    public static void setGovernorFactor(double f) {
+        governorFactor = Math.max(0.0, Math.min(1.0, f));
+        effectiveRate = baseRate * factor * governorFactor;
+    }
+
+    /**
+     * 重新读取配置采样率（热加载后调用）。
+     * Re-read the configured sampling rate (after hot reload).
+     */
+    public static void refresh() {
+        baseRate = AgentConfig.getSamplingRate();
+        effectiveRate = baseRate * factor * governorFactor;
+    }
+
+    /**
+     * 获取背压系数。
+     * Get the backpressure factor.
+     * @return 系数 | factor
+     */
+    public static double getFactor() {
+        return factor;
+    }
+
+    /**
+     * 获取实际采样率。
+     * Get the effective sampling rate.
+     * @return 采样率 | sampling rate
+     */
+    public static double getEffectiveRate() {
+        return effectiveRate;
+    }
+}
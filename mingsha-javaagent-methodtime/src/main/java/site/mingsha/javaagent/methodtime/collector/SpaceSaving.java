@@ -0,0 +1,152 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 带权 Space-Saving 频繁项摘要：固定容量，任何权重不低于总权重 1/容量 的键一定被保留。
+ * Weighted Space-Saving heavy-hitter summary: fixed capacity, every key holding at least 1/capacity of the total weight is guaranteed to be kept.
+ * 摘要满时新键替换权重最小的项并继承其权重，继承部分记为误差上界；可选为每个键维护对数线性耗时直方图用于估算分位数。
+ * When full a new key replaces the lightest entry and inherits its weight as the error bound; each key can optionally keep a log-linear duration histogram for percentile estimates.
+ * 非线程安全，由调用方加锁。
+ * Not thread-safe, callers synchronize.
+ *
+ * @author mingsha
+ */
+public class SpaceSaving {
+    /**
+     * 直方图桶数：首桶为 1μs 以下，之后每个 2 的幂区间 4 个子桶，覆盖到约 36 分钟。
+     * Histogram buckets: the first one below 1μs, then 4 sub-buckets per power of two up to about 36 minutes.
+     */
+    static final int BUCKETS = 1 + 4 * 31;
+    private final int capacity;
+    private final boolean histograms;
+    private final Map<String, Entry> entries;
+
+    /**
+     * 摘要项。
+     * Summary entry.
+     */
+    public static class Entry {
+        public final String key;
+        public long weight;       // 估计权重（含误差）| estimated weight including the error
+        public long error;        // 误差上界 | error upper bound
+        public long calls;        // 进入摘要后的调用次数 | calls observed since the key entered
+        public long totalNs;      // 进入摘要后的总耗时 | total duration observed since the key entered
+        int[] histogram;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 按直方图估算分位耗时（桶上界），无直方图或无数据时为0。
+         * Estimate a duration percentile from the histogram (bucket upper bound), 0 without a histogram or data.
+         * @param q 分位（0~1）| quantile (0~1)
+         * @return 纳秒 | nanoseconds
+         */
+        public long quantile(double q) {
+            if (histogram == null || calls == 0) return 0;
+            long rank = (long) Math.ceil(q * calls);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+    }
+
+    /**
+     * @param capacity 容量 | capacity
+     * @param histograms 是否维护耗时直方图 | whether to keep duration histograms
+     */
+    public SpaceSaving(int capacity, boolean histograms) {
+        this.capacity = Math.max(1, capacity);
+        this.histograms = histograms;
+        this.entries = new HashMap<>(this.capacity * 2);
+    }
+
+    /**
+     * 记录一次调用。
+     * Record one invocation.
+     * @param key 键 | key
+     * @param weight 权重 | weight
+     * @param durationNs 本次耗时 | duration of the invocation
+     */
+    public void offer(String key, long weight, long durationNs) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            e = new Entry(key);
+            if (entries.size() >= capacity) {
+                Entry min = null;
+                for (Entry c : entries.values()) {
+                    if (min == null || c.weight < min.weight) min = c;
+                }
+                entries.remove(min.key);
+                e.weight = min.weight;
+                e.error = min.weight;
+            }
+            if (histograms) e.histogram = new int[BUCKETS];
+            entries.put(key, e);
+        }
+        e.weight += weight;
+        e.calls++;
+        e.totalNs += durationNs;
+        if (e.histogram != null) e.histogram[bucket(durationNs)]++;
+    }
+
+    /**
+     * 将本摘要的各项累加到合并结果中（用于跨时间窗口合并）。
+     * Add this summary's entries into a merged result (used to merge time slots).
+     * @param merged 合并结果 | merged result
+     */
+    void mergeInto(Map<String, Entry> merged) {
+        for (Entry e : entries.values()) {
+            Entry m = merged.computeIfAbsent(e.key, Entry::new);
+            m.weight += e.weight;
+            m.error += e.error;
+            m.calls += e.calls;
+            m.totalNs += e.totalNs;
+            if (e.histogram != null) {
+                if (m.histogram == null) m.histogram = new int[BUCKETS];
+                for (int i = 0; i < BUCKETS; i++) m.histogram[i] += e.histogram[i];
+            }
+        }
+    }
+
+    /**
+     * 清空摘要。
+     * Clear the summary.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 获取当前各项（按权重降序）。
+     * Get the current entries, heaviest first.
+     * @return 摘要项 | entries
+     */
+    public List<Entry> entries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort((a, b) -> Long.compare(b.weight, a.weight));
+        return list;
+    }
+
+    static int bucket(long ns) {
+        if (ns < 1024) return 0;
+        int octave = 63 - Long.numberOfLeadingZeros(ns);
+        int idx = 1 + (octave - 10) * 4 + (int) ((ns >>> (octave - 2)) & 3);
+        return Math.min(idx, BUCKETS - 1);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket == 0) return 1024;
+        int octave = (bucket - 1) / 4 + 10;
+        int sub = (bucket - 1) % 4;
+        return (1L << octave) + ((long) (sub + 1) << (octave - 2));
+    }
+}
@@ -0,0 +1,170 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 慢调用栈采集，由增强后的方法在出口处调用。
+ * Slow invocation stack capture, called by enhanced methods at exit.
+ * 仅对耗时超过慢查询阈值的调用采集截断后的调用栈；全局每秒预算限制采集次数，按栈哈希去重后驻留内存，
+ * 记录只携带栈ID，栈内容由存储层写入 stack_dict 字典表。
+ * Only invocations above the slow query threshold get a truncated stack; a global per-second budget bounds captures, stacks are deduplicated by hash and interned,
+ * records carry just the stack id and the storage layer writes the frames to the stack_dict table.
+ * 通过 collector.stack.enabled=true 启用，默认关闭。
+ * Enabled by collector.stack.enabled=true, off by default.
+ *
+ * @author mingsha
+ */
+public class StackSampler {
+    private static final StackWalker WALKER = StackWalker.getInstance();
+    private static final Map<Long, Stack> stacks = new ConcurrentHashMap<>();
+    private static final AtomicLong window = new AtomicLong();
+    private static final AtomicInteger used = new AtomicInteger();
+    private static final LongAdder captured = new LongAdder();
+    private static final LongAdder overBudget = new LongAdder();
+    private static final LongAdder overflow = new LongAdder();
+    private static volatile boolean enabled;
+    private static volatile long thresholdNs;
+    private static volatile int maxDepth;
+    private static volatile int budget;
+    private static volatile int maxStacks;
+
+    static {
+        refresh();
+    }
+
+    /**
+     * 驻留的调用栈。
+     * An interned call stack.
+     */
+    public static class Stack {
+        public final long id;         // 栈ID（栈帧哈希）| stack id (frame hash)
+        public final int depth;       // 栈帧数 | frame count
+        public final String frames;   // 栈帧，每行一帧，第一行为慢方法本身 | frames one per line, the slow method first
+        final LongAdder hits = new LongAdder();
+
+        Stack(long id, int depth, String frames) {
+            this.id = id;
+            this.depth = depth;
+            this.frames = frames;
+        }
+
+        /**
+         * 获取本进程内命中次数。
+         * Get the hit count in this process.
+         * @return 次数 | hits
+         */
+        public long hits() {
+            return hits.sum();
+        }
+    }
+
+    /**
+     * 为慢调用采集调用栈。
+     * Capture the call stack of a slow invocation.
+     * @param durationNs 本次调用耗时（纳秒）| duration of this invocation (ns)
+     * @return 栈ID，未启用、未超过阈值、超出预算或字典已满时为0 | stack id, 0 when disabled, below threshold, over budget or the dictionary is full
+     */
+    public static long capture(long durationNs) {
+        if (!enabled || durationNs < thresholdNs) return 0;
+        long second = System.nanoTime() / 1_000_000_000L;
+        long current = window.get();
+        if (current != second && window.compareAndSet(current, second)) used.set(0);
+        if (used.incrementAndGet() > budget) {
+            overBudget.increment();
+            return 0;
+        }
+        // 跳过本方法，第一帧为慢方法本身 | skip this frame, the slow method comes first
+        List<StackWalker.StackFrame> frames = WALKER.walk(s -> s.skip(1).limit(maxDepth).collect(Collectors.toList()));
+        long id = hash(frames);
+        Stack stack = stacks.get(id);
+        if (stack == null) {
+            if (stacks.size() >= maxStacks) {
+                overflow.increment();
+                return 0;
+            }
+            String text = frames.stream().map(f -> f.toStackTraceElement().toString()).collect(Collectors.joining("\n"));
+            stack = stacks.computeIfAbsent(id, k -> new Stack(k, frames.size(), text));
+        }
+        stack.hits.increment();
+        captured.increment();
+        return id;
+    }
+
+    /**
+     * 计算栈帧的64位哈希（FNV-1a），同一调用路径在重启后得到相同ID。
+     * 64-bit FNV-1a hash of the frames, the same call path gets the same id across restarts.
+     */
+    static long hash(List<StackWalker.StackFrame> frames) {
+        long h = 0xcbf29ce484222325L;
+        for (StackWalker.StackFrame f : frames) {
+            h = (h ^ f.getClassName().hashCode()) * 0x100000001b3L;
+            h = (h ^ f.getMethodName().hashCode()) * 0x100000001b3L;
+            h = (h ^ f.getLineNumber()) * 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * 按栈ID获取驻留的调用栈。
+     * Get an interned stack by id.
+     * @param id 栈ID | stack id
+     * @return 调用栈，不存在时为null | stack, null if unknown
+     */
+    public static Stack get(long id) {
+        return stacks.get(id);
+    }
+
+    /**
+     * 重新读取配置（热加载后调用）。
+     * Re-read the config (after hot reload).
+     */
+    public static void refresh() {
+        thresholdNs = AgentConfig.getSlowQueryThresholdNs();
+        maxDepth = Math.max(1, AgentConfig.getStackMaxDepth());
+        budget = Math.max(0, AgentConfig.getStackBudgetPerSecond());
+        maxStacks = Math.max(1, AgentConfig.getStackMaxStacks());
+        enabled = AgentConfig.isStackCaptureEnabled();
+    }
+
+    /**
+     * 清空驻留的调用栈与计数。
+     * Clear interned stacks and counters.
+     */
+    public static void reset() {
+        stacks.clear();
+        captured.reset();
+        overBudget.reset();
+        overflow.reset();
+        used.set(0);
+    }
+
+    /**
+     * 获取调用栈采集统计与命中最多的调用栈。
+     * Get stack capture statistics and the most frequent stacks.
+     * @param top 输出的调用栈数 | number of stacks to print
+     * @return 统计字符串 | statistics string
+     */
+    public static String info(int top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== 慢调用栈 ===\n");
+        sb.append("状态: ").append(enabled ? "已启用" : "未启用（collector.stack.enabled=false）").append('\n');
+        sb.append(String.format("阈值: %d ns, 截断深度: %d, 每秒预算: %d, 栈上限: %d\n", thresholdNs, maxDepth, budget, maxStacks));
+        sb.append(String.format("已采集: %d, 超出预算: %d, 栈字典已满: %d, 不同调用栈: %d\n",
+                captured.sum(), overBudget.sum(), overflow.sum(), stacks.size()));
+        List<Stack> sorted = new ArrayList<>(stacks.values());
+        sorted.sort((a, b) -> Long.compare(b.hits(), a.hits()));
+        for (Stack s : sorted.subList(0, Math.min(top, sorted.size()))) {
+            sb.append(String.format("\n[stack_id=%d] 命中 %d 次, %d 帧\n", s.id, s.hits(), s.depth));
+            for (String frame : s.frames.split("\n")) sb.append("  at ").append(frame).append('\n');
+        }
+        return sb.toString();
+    }
+}
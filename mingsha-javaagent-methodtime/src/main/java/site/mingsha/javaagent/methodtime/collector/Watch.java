@@ -0,0 +1,328 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+/**
+ * 单方法实时观察：增强时为每个方法分配ID，观察期间方法出口把每次调用写入订阅方的环形缓冲区，不经过缓冲队列与存储。
+ * Live watch of single methods: every enhanced method gets an id at transform time, while watched its exit writes each invocation into the subscribers' ring buffers, bypassing the buffer queue and storage.
+ * 方法出口先内联检查 {@link #active}[方法ID]，未被观察的方法只多一次数组读取与分支；耗时条件在探针内判断，不满足的调用不写入缓冲区。
+ * Method exits first check {@link #active}[method id] inline, so unwatched methods pay only one array load and branch; the duration predicate runs in the probe and non-matching calls never reach a buffer.
+ * 每个订阅的缓冲区容量固定，消费过慢时覆盖最旧事件并计入丢弃数；订阅到期或达到条数后自动注销。
+ * Each subscription's buffer has a fixed capacity, a slow consumer loses the oldest events which are counted as dropped; subscriptions unregister on expiry or after enough events.
+ *
+ * @author mingsha
+ */
+public class Watch {
+    /** 出口类型：正常返回 | exit kind: normal return */
+    public static final int EXIT_RETURN = 0;
+    /** 出口类型：抛出异常 | exit kind: throw */
+    public static final int EXIT_THROW = 1;
+    private static final StackWalker WALKER = StackWalker.getInstance();
+    /**
+     * 各方法是否被观察，由增强代码直接读取；只在持锁时替换或修改。
+     * Whether each method is watched, read directly by enhanced code; only replaced or modified under the lock.
+     * 扩容时整体替换为更长的副本，volatile 保证新增强的方法读到的数组已包含自己的ID。
+     * Growing replaces it with a longer copy; volatile guarantees a newly enhanced method reads an array that already covers its id.
+     */
+    public static volatile boolean[] active = new boolean[256];
+    private static final Object LOCK = new Object();
+    private static final List<String> methods = new ArrayList<>();
+    private static final Map<String, Integer> idsByKey = new HashMap<>();
+    private static final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private static final Subscription[][] NONE = new Subscription[0][];
+    private static volatile Subscription[][] byMethod = NONE;
+
+    /**
+     * 观察订阅，持有一个固定容量的事件环形缓冲区。
+     * A watch subscription holding a fixed-capacity event ring buffer.
+     */
+    public static class Subscription {
+        public final String pattern;
+        public final long minNs;
+        public final long maxNs;
+        public final boolean stacks;
+        final long deadlineMs;
+        private final int capacity;
+        private final long[] timeMs;
+        private final long[] durationNs;
+        private final int[] methodId;
+        private final int[] kind;
+        private final String[] thread;
+        private final String[] stack;
+        private final AtomicLongArray published;
+        private final AtomicLong seq = new AtomicLong();
+        private long read;
+        private long dropped;
+        private final List<Integer> ids = new ArrayList<>();
+
+        Subscription(String pattern, long minNs, long maxNs, boolean stacks, long deadlineMs, int capacity) {
+            this.pattern = pattern;
+            this.minNs = minNs;
+            this.maxNs = maxNs;
+            this.stacks = stacks;
+            this.deadlineMs = deadlineMs;
+            this.capacity = capacity;
+            this.timeMs = new long[capacity];
+            this.durationNs = new long[capacity];
+            this.methodId = new int[capacity];
+            this.kind = new int[capacity];
+            this.thread = new String[capacity];
+            this.stack = stacks ? new String[capacity] : null;
+            this.published = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) published.set(i, -1);
+        }
+
+        void offer(int id, long ns, int exit) {
+            long s = seq.getAndIncrement();
+            int i = (int) (s % capacity);
+            timeMs[i] = System.currentTimeMillis();
+            durationNs[i] = ns;
+            methodId[i] = id;
+            kind[i] = exit;
+            thread[i] = Thread.currentThread().getName();
+            if (stack != null) stack[i] = callers();
+            published.set(i, s);
+        }
+
+        /**
+         * 取出已发布的新事件，由单个消费线程调用。
+         * Drain newly published events, called by a single consumer thread.
+         * @param visitor 事件回调 | event callback
+         * @return 取出条数 | events drained
+         */
+        public int drain(EventVisitor visitor) {
+            long end = seq.get();
+            if (end - read > capacity) {
+                dropped += end - read - capacity;
+                read = end - capacity;
+            }
+            int n = 0;
+            while (read < end) {
+                int i = (int) (read % capacity);
+                if (published.get(i) != read) {
+                    // 写入尚未完成或已被覆盖 | not yet published or already overwritten
+                    if (published.get(i) > read) {
+                        dropped++;
+                        read++;
+                        continue;
+                    }
+                    break;
+                }
+                long t = timeMs[i];
+                long ns = durationNs[i];
+                int id = methodId[i];
+                int exit = kind[i];
+                String th = thread[i];
+                String st = stack != null ? stack[i] : null;
+                read++;
+                // 读取期间被覆盖则丢弃 | discard if overwritten while reading
+                if (published.get(i) != read - 1) {
+                    dropped++;
+                    continue;
+                }
+                visitor.visit(t, method(id), ns, exit, th, st);
+                n++;
+            }
+            return n;
+        }
+
+        /**
+         * 获取因消费过慢被覆盖的事件数。
+         * Get the number of events overwritten because the consumer fell behind.
+         * @return 丢弃数 | dropped
+         */
+        public long dropped() {
+            return dropped;
+        }
+
+        /**
+         * 获取匹配的方法数。
+         * Get the number of matched methods.
+         * @return 方法数 | methods
+         */
+        public int methods() {
+            synchronized (LOCK) {
+                return ids.size();
+            }
+        }
+
+        /**
+         * 是否已过期。
+         * Whether the subscription has expired.
+         * @return true-已过期 | true if expired
+         */
+        public boolean expired() {
+            return System.currentTimeMillis() >= deadlineMs;
+        }
+    }
+
+    /**
+     * 观察事件回调。
+     * Watch event callback.
+     */
+    public interface EventVisitor {
+        void visit(long timeMs, String method, long durationNs, int kind, String thread, String stack);
+    }
+
+    /**
+     * 注册增强方法并分配ID，在类增强时调用；已有订阅匹配时立即生效。
+     * Register an enhanced method and assign its id, called at transform time; matching subscriptions take effect immediately.
+     * 同一方法再次增强（重新加载配置、重复加载同名类）时返回原有ID，不重复占用。
+     * Enhancing the same method again (config reload, a class of the same name loaded again) returns its existing id instead of taking a new one.
+     * @param className 类名 | class name
+     * @param methodName 方法名 | method name
+     * @return 方法ID | method id
+     */
+    public static int register(String className, String methodName) {
+        String key = className + "." + methodName;
+        synchronized (LOCK) {
+            Integer existing = idsByKey.get(key);
+            if (existing != null) return existing;
+            int id = methods.size();
+            methods.add(key);
+            idsByKey.put(key, id);
+            if (id >= active.length) active = Arrays.copyOf(active, active.length * 2);
+            for (Subscription s : subscriptions) {
+                if (matches(s.pattern, key)) attach(s, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * 获取方法ID对应的"类名.方法名"。
+     * Get the "class.method" name of a method id.
+     * @param id 方法ID | method id
+     * @return 方法全名 | qualified method name
+     */
+    public static String methodName(int id) {
+        synchronized (LOCK) {
+            return methods.get(id);
+        }
+    }
+
+    /**
+     * 增强方法出口调用，仅当方法被观察时执行。
+     * Called at the exit of enhanced methods, only when the method is watched.
+     * @param id 方法ID | method id
+     * @param durationNs 本次调用耗时 | duration of this invocation
+     * @param kind 出口类型 | exit kind
+     */
+    public static void onExit(int id, long durationNs, int kind) {
+        Subscription[][] table = byMethod;
+        if (id >= table.length || table[id] == null) return;
+        for (Subscription s : table[id]) {
+            if (durationNs >= s.minNs && durationNs <= s.maxNs) s.offer(id, durationNs, kind);
+        }
+    }
+
+    /**
+     * 订阅方法调用。
+     * Subscribe to method invocations.
+     * @param pattern 类名.方法名，类名可省略包名前缀匹配（如 OrderService.create）| class.method, the class may omit its package (e.g. OrderService.create)
+     * @param minNs 最小耗时 | min duration
+     * @param maxNs 最大耗时 | max duration
+     * @param stacks 是否记录调用来源栈 | whether to record the caller stack
+     * @param seconds 持续秒数，到期自动注销 | duration in seconds before automatic expiry
+     * @return 订阅 | subscription
+     */
+    public static Subscription subscribe(String pattern, long minNs, long maxNs, boolean stacks, int seconds) {
+        int capacity = Math.max(16, AgentConfig.getWatchBufferSize());
+        int maxSeconds = Math.max(1, AgentConfig.getWatchMaxSeconds());
+        long deadline = System.currentTimeMillis() + Math.max(1, Math.min(seconds, maxSeconds)) * 1000L;
+        Subscription s = new Subscription(pattern, minNs, maxNs, stacks, deadline, capacity);
+        synchronized (LOCK) {
+            subscriptions.add(s);
+            for (int id = 0; id < methods.size(); id++) {
+                if (matches(pattern, methods.get(id))) attach(s, id);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * 注销订阅，不再被任何订阅观察的方法恢复为零开销。
+     * Unsubscribe; methods no longer watched by anyone go back to zero overhead.
+     * @param s 订阅 | subscription
+     */
+    public static void unsubscribe(Subscription s) {
+        synchronized (LOCK) {
+            if (!subscriptions.remove(s)) return;
+            Subscription[][] table = byMethod.clone();
+            for (int id : s.ids) {
+                Subscription[] list = table[id];
+                if (list == null) continue;
+                Subscription[] rest = Arrays.stream(list).filter(x -> x != s).toArray(Subscription[]::new);
+                table[id] = rest.length == 0 ? null : rest;
+                if (rest.length == 0) active[id] = false;
+            }
+            byMethod = table;
+        }
+    }
+
+    /**
+     * 注销所有已过期的订阅（兜底，防止消费方异常退出后方法一直被观察）。
+     * Unsubscribe every expired subscription, a safety net for consumers that went away.
+     */
+    public static void expire() {
+        for (Subscription s : subscriptions) {
+            if (s.expired()) unsubscribe(s);
+        }
+    }
+
+    /**
+     * 获取当前订阅概况。
+     * Get an overview of current subscriptions.
+     * @return 概况字符串 | overview string
+     */
+    public static String info() {
+        synchronized (LOCK) {
+            return "已注册方法=" + methods.size() + ", 订阅数=" + subscriptions.size() + (subscriptions.isEmpty() ? "" : ", 订阅: "
+                    + subscriptions.stream().map(s -> s.pattern + "(" + s.ids.size() + ")").collect(Collectors.joining(", ")));
+        }
+    }
+
+    static String method(int id) {
+        synchronized (LOCK) {
+            return id < methods.size() ? methods.get(id) : "#" + id;
+        }
+    }
+
+    static boolean matches(String pattern, String key) {
+        return key.equals(pattern) || key.endsWith("." + pattern) || key.endsWith("$" + pattern);
+    }
+
+    private static void attach(Subscription s, int id) {
+        Subscription[][] table = byMethod;
+        if (id >= table.length) table = Arrays.copyOf(table, Math.max(active.length, id + 1));
+        else table = table.clone();
+        Subscription[] list = table[id];
+        table[id] = list == null ? new Subscription[]{s} : appended(list, s);
+        byMethod = table;
+        s.ids.add(id);
+        active[id] = true;
+    }
+
+    private static Subscription[] appended(Subscription[] list, Subscription s) {
+        Subscription[] copy = Arrays.copyOf(list, list.length + 1);
+        copy[list.length] = s;
+        return copy;
+    }
+
+    private static String callers() {
+        int depth = Math.max(1, AgentConfig.getStackMaxDepth());
+        // 跳过 callers/offer/onExit 三帧，首帧为被观察方法本身 | skip callers/offer/onExit, the first frame is the watched method
+        return WALKER.walk(frames -> frames.skip(3).limit(depth)
+                .map(f -> f.getClassName() + "." + f.getMethodName() + ":" + f.getLineNumber())
+                .collect(Collectors.joining("\n")));
+    }
+}
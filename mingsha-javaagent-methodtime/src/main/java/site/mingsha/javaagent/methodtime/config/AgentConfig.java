@@ -129,6 +129,78 @@ public static int getQueueCapacity() {
         return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
     }
     
+    /**
+     * 读取是否为慢调用采集调用栈（耗时超过慢查询阈值的调用）。
+     * Get whether call stacks are captured for slow invocations (above the slow query threshold).
+     * 支持通过 -Dmingsha.agent.config.collector.stack.enabled=true 覆盖
+     * Support override via -Dmingsha.agent.config.collector.stack.enabled=true
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isStackCaptureEnabled() {
+        Object v = get("collector.stack.enabled", false);
+        return v instanceof Boolean ? (Boolean) v : Boolean.parseBoolean(v.toString());
+    }
+
+    /**
+     * 读取调用栈截断深度（栈帧数）。
+     * Get the stack truncation depth (frames).
+     * 支持通过 -Dmingsha.agent.config.collector.stack.maxDepth=16 覆盖
+     * Support override via -Dmingsha.agent.config.collector.stack.maxDepth=16
+     * @return 栈帧数 | frames
+     */
+    public static int getStackMaxDepth() {
+        Object v = get("collector.stack.maxDepth", 16);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取全局每秒调用栈采集预算，超出的慢调用不采集调用栈。
+     * Get the global per-second stack capture budget, slow calls beyond it are recorded without a stack.
+     * 支持通过 -Dmingsha.agent.config.collector.stack.budgetPerSecond=50 覆盖
+     * Support override via -Dmingsha.agent.config.collector.stack.budgetPerSecond=50
+     * @return 次/秒 | captures per second
+     */
+    public static int getStackBudgetPerSecond() {
+        Object v = get("collector.stack.budgetPerSecond", 50);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取内存中保留的不同调用栈数量上限，达到上限后新的调用栈不再记录。
+     * Get the cap on distinct stacks kept in memory, new stacks are not recorded once it is reached.
+     * 支持通过 -Dmingsha.agent.config.collector.stack.maxStacks=4096 覆盖
+     * Support override via -Dmingsha.agent.config.collector.stack.maxStacks=4096
+     * @return 个数 | number of stacks
+     */
+    public static int getStackMaxStacks() {
+        Object v = get("collector.stack.maxStacks", 4096);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取是否启用热点方法滑动窗口统计（Space-Saving/Count-Min，不依赖 H2）。
+     * Get whether sliding-window hot method statistics are enabled (Space-Saving/Count-Min, independent of H2).
+     * 支持通过 -Dmingsha.agent.config.collector.hot.enabled=false 覆盖
+     * Support override via -Dmingsha.agent.config.collector.hot.enabled=false
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isHotMethodsEnabled() {
+        Object v = get("collector.hot.enabled", true);
+        return v instanceof Boolean ? (Boolean) v : Boolean.parseBoolean(v.toString());
+    }
+
+    /**
+     * 读取热点方法摘要容量（每分钟槽跟踪的方法数）。
+     * Get the hot method summary capacity (methods tracked per one-minute slot).
+     * 支持通过 -Dmingsha.agent.config.collector.hot.capacity=64 覆盖
+     * Support override via -Dmingsha.agent.config.collector.hot.capacity=64
+     * @return 个数 | number of methods
+     */
+    public static int getHotMethodsCapacity() {
+        Object v = get("collector.hot.capacity", 64);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
     /**
      * 读取批量写入条数。
      * Get batch insert size config.
@@ -164,6 +236,18 @@ public static int getRetentionDays() {
         Object v = get("storage.retentionDays", 7);
         return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
     }
+
+    /**
+     * 是否启用分钟耗时直方图汇总（agent percentiles/histogram 的数据来源），与原始数据按同一留存天数清理。
+     * Whether per-minute latency histogram rollups (the source of agent percentiles/histogram) are enabled, purged with the same retention days as raw data.
+     * 支持通过 -Dmingsha.agent.config.storage.histogram.enabled=true 覆盖
+     * Support override via -Dmingsha.agent.config.storage.histogram.enabled=true
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isHistogramEnabled() {
+        Object v = get("storage.histogram.enabled", true);
+        return v instanceof Boolean ? (Boolean) v : Boolean.parseBoolean(v.toString());
+    }
     
     /**
      * 读取数据留存最大条数。
@@ -177,6 +261,91 @@ public static int getRetentionRows() {
         return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
     }
     
+    /**
+     * 读取留存清理单块删除条数（初始值，运行时根据写入积压自适应调整）。
+     * Get retention chunk size in rows (initial value, adapted at runtime to ingest backlog).
+     * 支持通过 -Dmingsha.agent.config.storage.retention.chunkRows=2000 覆盖
+     * Support override via -Dmingsha.agent.config.storage.retention.chunkRows=2000
+     * @return 条数 | rows
+     */
+    public static int getRetentionChunkRows() {
+        Object v = get("storage.retention.chunkRows", 2000);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取留存清理块间基础间隔（毫秒），写入积压时按比例延长。
+     * Get base pause between retention chunks (ms), stretched proportionally under ingest backlog.
+     * 支持通过 -Dmingsha.agent.config.storage.retention.pauseMs=50 覆盖
+     * Support override via -Dmingsha.agent.config.storage.retention.pauseMs=50
+     * @return 毫秒 | milliseconds
+     */
+    public static long getRetentionPauseMs() {
+        Object v = get("storage.retention.pauseMs", 50);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取转存补偿每秒最大回放条数，0表示不限速。
+     * Get max replayed records per second for spill compensation, 0 means unlimited.
+     * 支持通过 -Dmingsha.agent.config.storage.compensate.rateLimit=5000 覆盖
+     * Support override via -Dmingsha.agent.config.storage.compensate.rateLimit=5000
+     * @return 条数/秒 | records per second
+     */
+    public static long getCompensateRateLimit() {
+        Object v = get("storage.compensate.rateLimit", 5000);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取转存补偿扫描间隔（毫秒）。
+     * Get spill compensation scan interval (ms).
+     * 支持通过 -Dmingsha.agent.config.storage.compensate.intervalMs=60000 覆盖
+     * Support override via -Dmingsha.agent.config.storage.compensate.intervalMs=60000
+     * @return 毫秒 | milliseconds
+     */
+    public static long getCompensateIntervalMs() {
+        Object v = get("storage.compensate.intervalMs", 60000);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取是否启用存储背压控制（写入变慢时自动降低采样率并加大批量）。
+     * Get whether storage backpressure control is enabled (lower sampling and larger batches when writes slow down).
+     * 支持通过 -Dmingsha.agent.config.storage.backpressure.enabled=true 覆盖
+     * Support override via -Dmingsha.agent.config.storage.backpressure.enabled=true
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isBackpressureEnabled() {
+        Object v = get("storage.backpressure.enabled", true);
+        return v instanceof Boolean ? (Boolean) v : Boolean.parseBoolean(v.toString());
+    }
+
+    /**
+     * 读取背压判定的单批写入延迟上限（毫秒），超过即降级，低于一半才允许恢复。
+     * Get the per-batch writer latency limit (ms) for backpressure: above it degrades, below half of it may recover.
+     * 支持通过 -Dmingsha.agent.config.storage.backpressure.latencyMs=500 覆盖
+     * Support override via -Dmingsha.agent.config.storage.backpressure.latencyMs=500
+     * @return 毫秒 | milliseconds
+     */
+    public static long getBackpressureLatencyMs() {
+        Object v = get("storage.backpressure.latencyMs", 500);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取写入线程数，大于1时按方法分片并行写入（与分区模式、段存储互斥）。
+     * Get writer thread count, values above 1 shard records by method across parallel writers (exclusive with partitioning and the segment engine).
+     * 支持通过 -Dmingsha.agent.config.storage.writers=4 覆盖
+     * Support override via -Dmingsha.agent.config.storage.writers=4
+     * @return 写入线程数 | writer count
+     */
+    public static int getWriters() {
+        Object v = get("storage.writers", 1);
+        int n = v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+        return Math.max(1, n);
+    }
+
     /**
      * 读取 H2 数据库文件路径。
      * Get H2 database file path config.
@@ -190,6 +359,104 @@ public static String getH2Path() {
         return v.toString().trim();
     }
     
+    /**
+     * 读取 H2 原始表索引档位。
+     * Get the H2 raw table index profile.
+     * query 为写入时维护全部二级索引（默认），ingest 为只保留主键、二级索引在分区封存后或查询需要时再建。
+     * query maintains every secondary index on insert (default), ingest keeps only the primary key and builds secondary indexes after partitions seal or when a query needs them.
+     * 支持通过 -Dmingsha.agent.config.storage.h2.profile=ingest 覆盖
+     * Support override via -Dmingsha.agent.config.storage.h2.profile=ingest
+     * @return 索引档位 | index profile
+     */
+    public static String getH2Profile() {
+        return String.valueOf(get("storage.h2.profile", "query")).trim();
+    }
+
+    /**
+     * 读取原始记录存储引擎。
+     * Get raw record storage engine config.
+     * h2 为写入 H2 主表（默认），segment 为写入列式内存映射段文件，mvstore 为绕过 SQL 直接写入 MVStore。
+     * h2 writes the H2 main table (default), segment appends to columnar memory-mapped segment files, mvstore writes straight into an MVStore bypassing SQL.
+     * 支持通过 -Dmingsha.agent.config.storage.engine=segment 覆盖
+     * Support override via -Dmingsha.agent.config.storage.engine=segment
+     * @return 引擎名称 | engine name
+     */
+    public static String getStorageEngine() {
+        return String.valueOf(get("storage.engine", "h2")).trim();
+    }
+
+    /**
+     * 读取表结构模式。
+     * Get the table schema mode.
+     * legacy 为 1.0 单表（默认），normalized 为字典规范化表结构（2.0），仅 h2 引擎单表模式生效。
+     * legacy keeps the 1.0 tables (default), normalized uses the dictionary-normalized 2.0 schema, only for the h2 engine in single-table mode.
+     * 支持通过 -Dmingsha.agent.config.storage.schema=normalized 覆盖
+     * Support override via -Dmingsha.agent.config.storage.schema=normalized
+     * @return 表结构模式 | schema mode
+     */
+    public static String getStorageSchema() {
+        return String.valueOf(get("storage.schema", "legacy")).trim();
+    }
+
+    /**
+     * 读取段存储目录。
+     * Get segment storage directory config.
+     * 支持通过 -Dmingsha.agent.config.storage.segment.path=./segments 覆盖
+     * Support override via -Dmingsha.agent.config.storage.segment.path=./segments
+     * @return 目录路径 | directory path
+     */
+    public static String getSegmentPath() {
+        return String.valueOf(get("storage.segment.path", "./mingsha_javaagent_method_time_segments")).trim();
+    }
+
+    /**
+     * 读取单个段文件大小。
+     * Get single segment file size config.
+     * 支持通过 -Dmingsha.agent.config.storage.segment.sizeBytes=8388608 覆盖
+     * Support override via -Dmingsha.agent.config.storage.segment.sizeBytes=8388608
+     * @return 字节数 | bytes
+     */
+    public static int getSegmentSizeBytes() {
+        Object v = get("storage.segment.sizeBytes", 8 * 1024 * 1024);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取 MVStore 直写存储文件路径，H2 为内存模式时忽略。
+     * Get the MVStore direct-write store file path, ignored when H2 runs in memory.
+     * 支持通过 -Dmingsha.agent.config.storage.mvstore.path=./raw.mv 覆盖
+     * Support override via -Dmingsha.agent.config.storage.mvstore.path=./raw.mv
+     * @return 文件路径 | file path
+     */
+    public static String getMVStorePath() {
+        return String.valueOf(get("storage.mvstore.path", "./mingsha_javaagent_method_time_raw.mv")).trim();
+    }
+
+    /**
+     * 读取主表分区方式。
+     * Get main table partition mode config.
+     * none 为单表（默认），day/hour 按天/小时分区，size 按条数分区。
+     * none keeps a single table (default), day/hour partition by day/hour, size partitions by row count.
+     * 支持通过 -Dmingsha.agent.config.storage.partition.mode=day 覆盖
+     * Support override via -Dmingsha.agent.config.storage.partition.mode=day
+     * @return 分区方式 | partition mode
+     */
+    public static String getPartitionMode() {
+        return String.valueOf(get("storage.partition.mode", "none")).trim();
+    }
+
+    /**
+     * 读取按条数分区时单个分区的最大条数。
+     * Get max rows per partition for size-based partitioning.
+     * 支持通过 -Dmingsha.agent.config.storage.partition.maxRows=500000 覆盖
+     * Support override via -Dmingsha.agent.config.storage.partition.maxRows=500000
+     * @return 条数 | rows
+     */
+    public static long getPartitionMaxRows() {
+        Object v = get("storage.partition.maxRows", 500000L);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
     /**
      * 读取慢查询阈值配置。
      * Get slow query threshold config.
@@ -215,20 +482,296 @@ public static int getTelnetPort() {
     }
     
     /**
-     * 读取 Telnet 最大线程数。
-     * Get Telnet max threads config.
-     * 支持通过 -Dmingsha.agent.config.manage.telnet.maxThreads=1 覆盖
-     * Support override via -Dmingsha.agent.config.manage.telnet.maxThreads=1
-     * @return 线程数 | max threads
+     * 读取 Telnet 最大并发会话数，超出的连接收到提示后立即关闭。
+     * Get the max concurrent Telnet sessions, extra connections are told so and closed immediately.
+     * 支持通过 -Dmingsha.agent.config.manage.telnet.maxThreads=16 覆盖
+     * Support override via -Dmingsha.agent.config.manage.telnet.maxThreads=16
+     * @return 会话数 | max sessions
      */
     public static int getTelnetMaxThreads() {
-        Object v = get("manage.telnet.maxThreads", 1);
+        Object v = get("manage.telnet.maxThreads", 16);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取 Telnet 端口被占用时向后尝试的端口数。
+     * Get how many following ports are tried when the Telnet port is taken.
+     * 支持通过 -Dmingsha.agent.config.manage.telnet.portRetries=10 覆盖
+     * Support override via -Dmingsha.agent.config.manage.telnet.portRetries=10
+     * @return 尝试次数 | attempts
+     */
+    public static int getTelnetPortRetries() {
+        Object v = get("manage.telnet.portRetries", 10);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取 Telnet 会话空闲超时（毫秒），无输入且无命令执行时关闭会话。
+     * Get the Telnet session idle timeout (ms), sessions without input or a running command are closed.
+     * 支持通过 -Dmingsha.agent.config.manage.telnet.idleTimeoutMs=600000 覆盖
+     * Support override via -Dmingsha.agent.config.manage.telnet.idleTimeoutMs=600000
+     * @return 毫秒 | milliseconds
+     */
+    public static long getTelnetIdleTimeoutMs() {
+        Object v = get("manage.telnet.idleTimeoutMs", 600000L);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取 Telnet 输出阻塞超时（毫秒），客户端长时间不读取输出时关闭会话，释放命令占用的资源。
+     * Get the Telnet write stall timeout (ms), sessions whose client stops reading output are closed to free the command's resources.
+     * 支持通过 -Dmingsha.agent.config.manage.telnet.writeTimeoutMs=30000 覆盖
+     * Support override via -Dmingsha.agent.config.manage.telnet.writeTimeoutMs=30000
+     * @return 毫秒 | milliseconds
+     */
+    public static long getTelnetWriteTimeoutMs() {
+        Object v = get("manage.telnet.writeTimeoutMs", 30000L);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取管理查询只读连接池大小。
+     * Get the size of the read-only connection pool for management queries.
+     * 支持通过 -Dmingsha.agent.config.manage.query.poolSize=4 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.poolSize=4
+     * @return 连接数 | connections
+     */
+    public static int getQueryPoolSize() {
+        Object v = get("manage.query.poolSize", 4);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取获取查询连接的最长等待时间（毫秒），连接池耗尽时超时返回错误。
+     * Get the max wait for a query connection (ms), an error is returned when the pool stays exhausted.
+     * 支持通过 -Dmingsha.agent.config.manage.query.acquireTimeoutMs=5000 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.acquireTimeoutMs=5000
+     * @return 毫秒 | milliseconds
+     */
+    public static long getQueryAcquireTimeoutMs() {
+        Object v = get("manage.query.acquireTimeoutMs", 5000L);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取管理查询超时（秒），由数据库在超时后取消语句，0 表示不限制。
+     * Get the management query timeout (seconds), the database cancels the statement when exceeded, 0 means unlimited.
+     * 支持通过 -Dmingsha.agent.config.manage.query.timeoutSeconds=30 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.timeoutSeconds=30
+     * @return 秒 | seconds
+     */
+    public static int getQueryTimeoutSeconds() {
+        Object v = get("manage.query.timeoutSeconds", 30);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取管理查询每页最大行数，由数据库限制结果集大小，其余结果通过 next/prev 翻页。
+     * Get the max rows per page of a management query, enforced by the database, further rows are paged with next/prev.
+     * 支持通过 -Dmingsha.agent.config.manage.query.maxRows=100 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.maxRows=100
+     * @return 行数 | rows
+     */
+    public static int getQueryMaxRows() {
+        Object v = get("manage.query.maxRows", 100);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取查询结果缓存的最长有效期（毫秒），存储写入纪元未变时在此期限内复用结果，0 表示关闭缓存。
+     * Get the max lifetime of cached query results (ms), results are reused within it while the storage write epoch is unchanged, 0 disables caching.
+     * 支持通过 -Dmingsha.agent.config.manage.query.cacheTtlMs=60000 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.cacheTtlMs=60000
+     * @return 毫秒 | milliseconds
+     */
+    public static long getQueryCacheTtlMs() {
+        Object v = get("manage.query.cacheTtlMs", 60000);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取查询结果缓存的宽限期（毫秒），期间即使有新写入也复用结果，限制持续写入时的最大陈旧时间。
+     * Get the grace period of cached query results (ms), within which results are reused even after new writes, bounding staleness under continuous ingestion.
+     * 支持通过 -Dmingsha.agent.config.manage.query.cacheGraceMs=1000 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.cacheGraceMs=1000
+     * @return 毫秒 | milliseconds
+     */
+    public static long getQueryCacheGraceMs() {
+        Object v = get("manage.query.cacheGraceMs", 1000);
+        return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(v.toString());
+    }
+
+    /**
+     * 读取查询结果缓存的最大条目数。
+     * Get the max number of cached query results.
+     * 支持通过 -Dmingsha.agent.config.manage.query.cacheEntries=64 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.cacheEntries=64
+     * @return 条目数 | entries
+     */
+    public static int getQueryCacheEntries() {
+        Object v = get("manage.query.cacheEntries", 64);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取管理查询每次从数据库抓取的行数。
+     * Get the number of rows a management query fetches from the database at a time.
+     * 支持通过 -Dmingsha.agent.config.manage.query.fetchSize=100 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.fetchSize=100
+     * @return 行数 | rows
+     */
+    public static int getQueryFetchSize() {
+        Object v = get("manage.query.fetchSize", 100);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取每个查询连接缓存的预编译语句数。
+     * Get the number of prepared statements cached per query connection.
+     * 支持通过 -Dmingsha.agent.config.manage.query.statementCache=32 覆盖
+     * Support override via -Dmingsha.agent.config.manage.query.statementCache=32
+     * @return 语句数 | statements
+     */
+    public static int getQueryStatementCache() {
+        Object v = get("manage.query.statementCache", 32);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取 agent watch/trace 每个订阅的事件缓冲区容量，消费过慢时覆盖最旧事件。
+     * Get the event buffer capacity of each agent watch/trace subscription, a slow consumer loses the oldest events.
+     * 支持通过 -Dmingsha.agent.config.manage.watch.bufferSize=1024 覆盖
+     * Support override via -Dmingsha.agent.config.manage.watch.bufferSize=1024
+     * @return 事件数 | events
+     */
+    public static int getWatchBufferSize() {
+        Object v = get("manage.watch.bufferSize", 1024);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取 agent watch/trace 最长持续秒数，到期自动注销。
+     * Get the max duration of agent watch/trace in seconds, subscriptions expire automatically.
+     * 支持通过 -Dmingsha.agent.config.manage.watch.maxSeconds=300 覆盖
+     * Support override via -Dmingsha.agent.config.manage.watch.maxSeconds=300
+     * @return 秒 | seconds
+     */
+    public static int getWatchMaxSeconds() {
+        Object v = get("manage.watch.maxSeconds", 300);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 是否开启 HTTP 指标端点（Prometheus 文本与 JSON）。
+     * Whether the HTTP metrics endpoint (Prometheus text and JSON) is enabled.
+     * 支持通过 -Dmingsha.agent.config.manage.http.enabled=true 覆盖
+     * Support override via -Dmingsha.agent.config.manage.http.enabled=true
+     * @return true-开启 | true if enabled
+     */
+    public static boolean isHttpEnabled() {
+        Object v = get("manage.http.enabled", false);
+        return v instanceof Boolean ? (Boolean) v : Boolean.parseBoolean(v.toString());
+    }
+
+    /**
+     * 读取 HTTP 指标端口，被占用时与 Telnet 相同向后尝试。
+     * Get the HTTP metrics port, falling back to following ports like Telnet when taken.
+     * 支持通过 -Dmingsha.agent.config.manage.http.port=9405 覆盖
+     * Support override via -Dmingsha.agent.config.manage.http.port=9405
+     * @return 端口 | port
+     */
+    public static int getHttpPort() {
+        Object v = get("manage.http.port", 9405);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取 HTTP 指标端口被占用时向后尝试的端口数。
+     * Get how many following ports to try when the HTTP metrics port is taken.
+     * 支持通过 -Dmingsha.agent.config.manage.http.portRetries=10 覆盖
+     * Support override via -Dmingsha.agent.config.manage.http.portRetries=10
+     * @return 重试端口数 | port retries
+     */
+    public static int getHttpPortRetries() {
+        Object v = get("manage.http.portRetries", 10);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取按方法导出的最大序列数，超出后新方法合并到 _other_ 序列。
+     * Get the max number of per-method series, further methods fold into the _other_ series.
+     * 支持通过 -Dmingsha.agent.config.manage.http.maxSeries=2000 覆盖
+     * Support override via -Dmingsha.agent.config.manage.http.maxSeries=2000
+     * @return 序列数 | series
+     */
+    public static int getHttpMaxSeries() {
+        Object v = get("manage.http.maxSeries", 2000);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 是否开启二进制拉取端口，供集中采集端按游标增量拉取按方法汇总与直方图。
+     * Whether the binary pull port is enabled, letting central collectors pull per-method aggregates and histograms incrementally by cursor.
+     * 支持通过 -Dmingsha.agent.config.manage.pull.enabled=true 覆盖
+     * Support override via -Dmingsha.agent.config.manage.pull.enabled=true
+     * @return true-开启 | true if enabled
+     */
+    public static boolean isPullEnabled() {
+        Object v = get("manage.pull.enabled", false);
+        return v instanceof Boolean ? (Boolean) v : Boolean.parseBoolean(v.toString());
+    }
+
+    /**
+     * 读取二进制拉取端口。
+     * Get the binary pull port.
+     * 支持通过 -Dmingsha.agent.config.manage.pull.port=9406 覆盖
+     * Support override via -Dmingsha.agent.config.manage.pull.port=9406
+     * @return 端口 | port
+     */
+    public static int getPullPort() {
+        Object v = get("manage.pull.port", 9406);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取二进制拉取端口被占用时向后尝试的端口数。
+     * Get how many following ports to try when the binary pull port is taken.
+     * 支持通过 -Dmingsha.agent.config.manage.pull.portRetries=10 覆盖
+     * Support override via -Dmingsha.agent.config.manage.pull.portRetries=10
+     * @return 重试端口数 | port retries
+     */
+    public static int getPullPortRetries() {
+        Object v = get("manage.pull.portRetries", 10);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取二进制拉取端口的最大并发连接数，超出的连接立即关闭。
+     * Get the max concurrent connections of the binary pull port, further connections are closed at once.
+     * 支持通过 -Dmingsha.agent.config.manage.pull.maxConnections=4 覆盖
+     * Support override via -Dmingsha.agent.config.manage.pull.maxConnections=4
+     * @return 连接数 | connections
+     */
+    public static int getPullMaxConnections() {
+        Object v = get("manage.pull.maxConnections", 4);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
+    /**
+     * 读取火焰图调用树的最大节点数，超出后新路径在已有的最深节点处截断。
+     * Get the max nodes of the flame graph call tree, further paths are cut at their deepest existing node.
+     * 支持通过 -Dmingsha.agent.config.manage.flamegraph.maxNodes=100000 覆盖
+     * Support override via -Dmingsha.agent.config.manage.flamegraph.maxNodes=100000
+     * @return 节点数 | nodes
+     */
+    public static int getFlameGraphMaxNodes() {
+        Object v = get("manage.flamegraph.maxNodes", 100000);
         return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
     }
     
     /**
-     * 读取 CPU 熔断阈值。
-     * Get CPU fuse threshold config.
+     * 读取 CPU 熔断阈值，进程 CPU 达到该值时开销调控升一级，低于该值-10%才允许恢复。
+     * Get CPU fuse threshold config; process CPU at this value raises the overhead governor one level, recovery needs 10% below it.
      * 支持通过 -Dmingsha.agent.config.monitor.cpu.fuseThreshold=80 覆盖
      * Support override via -Dmingsha.agent.config.monitor.cpu.fuseThreshold=80
      * @return 百分比 | percent
@@ -238,6 +781,54 @@ public static int getCpuFuseThreshold() {
         return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
     }
     
+    /**
+     * 读取是否启用开销调控：按 agent 开销与进程 CPU 在全量、降采样、仅聚合、关闭探针之间分级切换。
+     * Get whether the overhead governor is enabled: steps between full, reduced sampling, aggregate-only and probes off by agent overhead and process CPU.
+     * 支持通过 -Dmingsha.agent.config.monitor.governor.enabled=true 覆盖
+     * Support override via -Dmingsha.agent.config.monitor.governor.enabled=true
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isGovernorEnabled() {
+        Object v = get("monitor.governor.enabled", true);
+        return v instanceof Boolean ? (Boolean) v : Boolean.parseBoolean(v.toString());
+    }
+
+    /**
+     * 读取 agent 开销上限：探针与 agent 线程耗时占进程 CPU 时间的百分比，超过即升一级，低于一半才允许恢复。
+     * Get the agent overhead limit: probe and agent thread time as a percent of process CPU time; above it raises one level, recovery needs less than half.
+     * 支持通过 -Dmingsha.agent.config.monitor.governor.overheadPercent=3 覆盖
+     * Support override via -Dmingsha.agent.config.monitor.governor.overheadPercent=3
+     * @return 百分比 | percent
+     */
+    public static double getGovernorOverheadPercent() {
+        Object v = get("monitor.governor.overheadPercent", 3.0);
+        return v instanceof Number ? ((Number) v).doubleValue() : Double.parseDouble(v.toString());
+    }
+
+    /**
+     * 读取降采样级别的采样系数（0~1），与配置采样率、背压系数相乘。
+     * Get the sampling factor of the reduced level (0~1), multiplied with the configured rate and the backpressure factor.
+     * 支持通过 -Dmingsha.agent.config.monitor.governor.reducedSamplingRate=0.1 覆盖
+     * Support override via -Dmingsha.agent.config.monitor.governor.reducedSamplingRate=0.1
+     * @return 系数 | factor
+     */
+    public static double getGovernorReducedSamplingRate() {
+        Object v = get("monitor.governor.reducedSamplingRate", 0.1);
+        return v instanceof Number ? ((Number) v).doubleValue() : Double.parseDouble(v.toString());
+    }
+
+    /**
+     * 读取恢复所需的连续平稳秒数（迟滞），期间开销与 CPU 都需低于恢复线才降一级。
+     * Get the consecutive calm seconds required to recover (hysteresis); overhead and CPU must both stay under the recovery line to drop one level.
+     * 支持通过 -Dmingsha.agent.config.monitor.governor.calmSeconds=10 覆盖
+     * Support override via -Dmingsha.agent.config.monitor.governor.calmSeconds=10
+     * @return 秒 | seconds
+     */
+    public static int getGovernorCalmSeconds() {
+        Object v = get("monitor.governor.calmSeconds", 10);
+        return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString());
+    }
+
     /**
      * 读取健康检查间隔。
      * Get health check interval config.
@@ -290,10 +881,20 @@ public static void printConfig() {
         System.out.println("  Sampling Rate: " + getSamplingRate());
         System.out.println("  Min Duration (ns): " + getMinDurationNs());
         System.out.println("  Queue Capacity: " + getQueueCapacity());
+        System.out.println("  Hot Methods: " + isHotMethodsEnabled() + " (capacity " + getHotMethodsCapacity() + ")");
+        System.out.println("  Stack Capture: " + isStackCaptureEnabled() + " (depth " + getStackMaxDepth() + ", budget " + getStackBudgetPerSecond() + "/s)");
         System.out.println("  Batch Size: " + getBatchSize());
         System.out.println("  Slow Query Threshold (ns): " + getSlowQueryThresholdNs());
         System.out.println("  H2 Path: " + getH2Path());
+        System.out.println("  Storage Engine: " + getStorageEngine());
+        System.out.println("  H2 Profile: " + getH2Profile());
+        System.out.println("  Storage Schema: " + getStorageSchema());
+        System.out.println("  Partition Mode: " + getPartitionMode());
+        System.out.println("  Writers: " + getWriters());
         System.out.println("  Telnet Port: " + getTelnetPort());
+        System.out.println("  HTTP Metrics: " + isHttpEnabled() + " (port " + getHttpPort() + ", max series " + getHttpMaxSeries() + ")");
+        System.out.println("  Pull Port: " + isPullEnabled() + " (port " + getPullPort() + ")");
+        System.out.println("  Query Pool: " + getQueryPoolSize() + " (timeout " + getQueryTimeoutSeconds() + "s, max rows " + getQueryMaxRows() + ")");
         System.out.println("  CPU Fuse Threshold: " + getCpuFuseThreshold() + "%");
         System.out.println("  Log Level: " + getLogLevel());
     }
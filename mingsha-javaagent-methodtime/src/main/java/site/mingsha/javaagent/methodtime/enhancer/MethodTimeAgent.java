@@ -2,10 +2,15 @@
 
 import java.lang.instrument.Instrumentation;
 import site.mingsha.javaagent.methodtime.util.AgentExceptionHandler;
+import site.mingsha.javaagent.methodtime.storage.Compensator;
 import site.mingsha.javaagent.methodtime.storage.H2Storage;
+import site.mingsha.javaagent.methodtime.storage.ShardManager;
 import site.mingsha.javaagent.methodtime.telnet.TelnetServer;
 import site.mingsha.javaagent.methodtime.util.ShutdownManager;
-import site.mingsha.javaagent.methodtime.monitor.AgentMonitor;
+import site.mingsha.javaagent.methodtime.monitor.AgentOverhead;
+import site.mingsha.javaagent.methodtime.monitor.BackpressureController;
+import site.mingsha.javaagent.methodtime.monitor.MetricsHttpServer;
+import site.mingsha.javaagent.methodtime.monitor.PullServer;
 import site.mingsha.javaagent.methodtime.telnet.TelnetSession;
 import site.mingsha.javaagent.methodtime.util.health.ThreadGuardian;
 import site.mingsha.javaagent.methodtime.storage.H2Storage;
@@ -72,46 +77,73 @@ private static void install(String agentArgs, Instrumentation inst) {
         // 5. 注册监控线程，采集 CPU、内存、丢失率、熔断等信息 | register monitor thread, collect CPU/memory/loss/fuse info
         final site.mingsha.javaagent.methodtime.monitor.AgentMonitor monitor = new site.mingsha.javaagent.methodtime.monitor.AgentMonitor();
         H2Storage.setMonitor(monitor);
-        // 6. 注册写入线程，批量写入采集数据到 H2，支持 CPU 熔断暂停 | register storage thread, batch write to H2, support CPU fuse pause
-        guardian.register("storage", () -> new Thread(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    if (monitor.isFuseActive()) {
-                        Thread.sleep(1000); // 熔断时暂停采集 | pause on fuse
-                        continue;
-                    }
-                    java.util.List<site.mingsha.javaagent.methodtime.collector.MethodTimeRecord> batch = site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer.pollBatch(site.mingsha.javaagent.methodtime.config.AgentConfig.getBatchSize());
-                    if (!batch.isEmpty()) {
-                        H2Storage.batchInsert(batch);
-                    }
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
-        }, "mingsha-agent-storage"));
-        // 7. 注册 H2 数据库定期清理线程，自动清理历史数据 | register H2 cleanup thread, auto clean history
+        // 注册自身开销指标（线程 CPU、分配量、归因 GC） | register self-overhead metrics (thread CPU, allocation, attributed GC)
+        AgentOverhead.install();
+        // 启动监控线程：先校准探针开销，再每秒执行开销调控，按 agent 开销与进程 CPU 在探针处分级降级与恢复 | start the monitor thread: it calibrates the probe cost first, then runs the overhead governor every second, degrading and recovering at the probe by agent overhead and process CPU
+        guardian.register("monitor", () -> new Thread(monitor, "mingsha-agent-monitor"));
+        // 6. 注册存储背压控制线程，按写入延迟与队列深度调整实际采样率和批量 | register backpressure thread, adjusts effective sampling and batch size from writer latency and queue depth
+        final BackpressureController backpressure = new BackpressureController();
+        guardian.register("backpressure", () -> new Thread(backpressure, "mingsha-agent-backpressure"));
+        // 7. 注册写入线程，批量写入采集数据到 H2；多写入线程时每个线程负责一个分片 | register storage threads, batch write to H2; with multiple writers each thread owns one shard
+        final int writers = ShardManager.writers();
+        site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer.configureShards(writers);
+        Thread[] storageThreads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            final int shard = i;
+            String suffix = i == 0 ? "" : "-" + i;
+            guardian.register("storage" + suffix, () -> new Thread(() -> storageLoop(shard, backpressure), "mingsha-agent-storage" + suffix));
+            storageThreads[i] = guardian.getThread("storage" + suffix);
+        }
+        // 8. 注册 H2 数据库定期清理线程，自动清理历史数据 | register H2 cleanup thread, auto clean history
         guardian.register("h2cleaner", () -> H2Storage.createCleanerThread(60 * 60 * 1000));
         TelnetSession.setMonitorInstance(monitor);
-        // 8. 注册 Telnet 服务线程，提供远程管理与查询 | register Telnet server thread for remote management/query
+        TelnetSession.setBackpressureInstance(backpressure);
+        // 9. 注册 Telnet 服务线程，提供远程管理与查询 | register Telnet server thread for remote management/query
         TelnetServer telnetServer = new TelnetServer();
         new Thread(telnetServer, "mingsha-agent-telnet").start();
-        // 9. 注册无损卸载钩子，优雅关闭所有资源 | register graceful unload hook for all resources
-        ShutdownManager.register(telnetServer, guardian.getThread("storage"));
-        // 10. 启动时自动补偿本地转存数据，保证数据最终一致性 | auto-compensate local backup data on startup for data consistency
-        H2Storage.compensateLocalFiles();
-        // 11. 注册定期补偿线程，定时补偿本地转存数据 | register scheduled compensation thread for local backup
-        guardian.register("compensate", () -> new Thread(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    H2Storage.compensateLocalFiles();
-                    Thread.sleep(10 * 60 * 1000);
-                } catch (InterruptedException e) {
-                    break;
-                }
+        // 10. 注册无损卸载钩子，优雅关闭所有资源 | register graceful unload hook for all resources
+        ShutdownManager.register(telnetServer, storageThreads);
+        if (site.mingsha.javaagent.methodtime.config.AgentConfig.isHttpEnabled()) {
+            MetricsHttpServer metricsServer = new MetricsHttpServer(backpressure);
+            if (metricsServer.start()) ShutdownManager.registerHttp(metricsServer);
+        }
+        if (site.mingsha.javaagent.methodtime.config.AgentConfig.isPullEnabled()) {
+            PullServer pullServer = new PullServer();
+            if (pullServer.bind()) {
+                new Thread(pullServer, "mingsha-agent-pull").start();
+                TelnetSession.setPullInstance(pullServer);
+                ShutdownManager.registerPull(pullServer);
             }
-        }, "mingsha-agent-compensate"));
+        }
+        // 11. 注册后台补偿线程，限速流式回放本地转存数据，启动流程不等待补偿 | register background compensation thread, rate-limited replay of spilled data, startup never waits for it
+        guardian.register("compensate", () -> Compensator.createThread(site.mingsha.javaagent.methodtime.config.AgentConfig.getCompensateIntervalMs()));
         // 12. 注册字节码增强，采集方法耗时 | register bytecode enhancement for method time profiling
         inst.addTransformer(new MethodTimeTransformer(), true);
     }
-} 
\ No newline at end of file
+
+    /**
+     * 写入线程主循环：从所属分片批量取数写入 H2，满批时不休眠以尽快消化积压。
+     * Writer loop: polls batches from its shard and writes them to H2, skipping the sleep after a full batch to drain backlog.
+     * CPU 熔断不再暂停写入：由开销调控在探针处停止产生记录，已入队的记录照常写完。
+     * The CPU fuse no longer pauses writers: the overhead governor stops producing records at the probe and queued records are still written.
+     * @param shard 写入分片号 | writer shard index
+     * @param backpressure 背压控制器 | backpressure controller
+     */
+    private static void storageLoop(int shard, BackpressureController backpressure) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                int batchSize = backpressure.getBatchSize();
+                java.util.List<site.mingsha.javaagent.methodtime.collector.MethodTimeRecord> batch = site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer.pollBatch(shard, batchSize);
+                if (!batch.isEmpty()) {
+                    long start = System.nanoTime();
+                    H2Storage.batchInsert(shard, batch);
+                    backpressure.recordWrite(System.nanoTime() - start);
+                }
+                // 满批说明仍有积压，立即处理下一批 | a full batch means backlog remains, process the next one immediately
+                if (batch.size() < batchSize) Thread.sleep(100);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+}
@@ -2,23 +2,28 @@
 
 import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
 import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.collector.Watch;
 import site.mingsha.javaagent.methodtime.config.AgentConfig;
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.AdviceAdapter;
-import java.util.Random;
 
 /**
  * 字节码增强：方法耗时采集，包范围过滤。
  * Bytecode transformer for method time profiling and package filtering.
  * 支持采样率、最小耗时过滤，增强指定包下所有非抽象/非native方法。
  * Supports sampling rate, min duration filter, and enhances all non-abstract/non-native methods in specified packages.
+ * 采样在方法出口由 {@link site.mingsha.javaagent.methodtime.collector.Sampler} 运行时决策，可随存储背压动态调整。
+ * Sampling is decided at method exit by {@link site.mingsha.javaagent.methodtime.collector.Sampler} at runtime and follows storage backpressure.
+ * 探针在入口与出口读取 {@link site.mingsha.javaagent.methodtime.collector.ProbeGate#level}，开销调控的仅聚合与关闭级别在探针内生效，无需重新增强。
+ * Probes read {@link site.mingsha.javaagent.methodtime.collector.ProbeGate#level} at entry and exit, so the governor's aggregate-only and off levels apply inside the probe without re-transforming.
  *
  * @author mingsha
  */
 public class MethodTimeTransformer implements ClassFileTransformer {
-    private static final Random random = new Random();
+    private static final String PROBE_GATE = "site/mingsha/javaagent/methodtime/collector/ProbeGate";
+
     /**
      * 字节码增强入口，实现方法耗时采集和包范围过滤。
      * Entry for bytecode transformation, implements method time profiling and package filtering.
@@ -62,45 +67,43 @@ public MethodVisitor visitMethod(int access, String name, String desc, String si
                 if ((access & Opcodes.ACC_ABSTRACT) != 0 || (access & Opcodes.ACC_NATIVE) != 0) {
                     return mv;
                 }
+                // 方法ID供 agent watch/trace 按方法开启观察 | method id lets agent watch/trace switch on per method
+                final int methodId = Watch.register(dotName, name);
                 return new AdviceAdapter(Opcodes.ASM9, mv, access, name, desc) {
                     private int startTimeVarIdx;
-                    private Label skipLabel;
-                    private Label skipRecordLabel;
+                    private int probedVarIdx;
                     
                     @Override
                     protected void onMethodEnter() {
-                        // 采样率控制 | sampling rate
-                        double rate = AgentConfig.getSamplingRate();
-                        if (rate < 1.0) {
-                            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "random", "()D", false);
-                            mv.visitLdcInsn(rate);
-                            mv.visitInsn(DCMPG);
-                            skipLabel = new Label();
-                            mv.visitJumpInsn(IFGT, skipLabel);
-                        }
-                        
-                        // long start = System.nanoTime();
+                        // long start = 0; boolean probed = false;
+                        // if (ProbeGate.level < OFF) { start = System.nanoTime(); probed = true; }
+                        // 以独立的布尔局部变量标记入口是否计时，nanoTime 可能合法地返回0，不能作为哨兵
+                        // A separate boolean local marks whether entry was timed; nanoTime may legitimately return 0, so it cannot be the sentinel
                         startTimeVarIdx = newLocal(Type.LONG_TYPE);
+                        probedVarIdx = newLocal(Type.BOOLEAN_TYPE);
+                        mv.visitInsn(LCONST_0);
+                        mv.visitVarInsn(LSTORE, startTimeVarIdx);
+                        mv.visitInsn(ICONST_0);
+                        mv.visitVarInsn(ISTORE, probedVarIdx);
+                        Label off = new Label();
+                        mv.visitFieldInsn(GETSTATIC, PROBE_GATE, "level", "I");
+                        mv.visitInsn(ICONST_3);
+                        mv.visitJumpInsn(IF_ICMPGE, off);
                         mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
                         mv.visitVarInsn(LSTORE, startTimeVarIdx);
-                        
-                        if (rate < 1.0) {
-                            mv.visitLabel(skipLabel);
-                        }
+                        mv.visitInsn(ICONST_1);
+                        mv.visitVarInsn(ISTORE, probedVarIdx);
+                        mv.visitLabel(off);
                     }
                     
                     @Override
                     protected void onMethodExit(int opcode) {
-                        // 如果采样率小于1.0，检查是否需要跳过记录
-                        double rate = AgentConfig.getSamplingRate();
-                        if (rate < 1.0) {
-                            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "random", "()D", false);
-                            mv.visitLdcInsn(rate);
-                            mv.visitInsn(DCMPG);
-                            skipRecordLabel = new Label();
-                            mv.visitJumpInsn(IFGT, skipRecordLabel);
-                        }
-                        
+                        // 入口时探针已关闭则直接返回：if (!probed) return
+                        // Return at once when probes were off at entry: if (!probed) return
+                        Label skipAll = new Label();
+                        mv.visitVarInsn(ILOAD, probedVarIdx);
+                        mv.visitJumpInsn(IFEQ, skipAll);
+
                         // long end = System.nanoTime();
                         int endTimeVarIdx = newLocal(Type.LONG_TYPE);
                         mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
@@ -112,6 +115,19 @@ protected void onMethodExit(int opcode) {
                         mv.visitVarInsn(LLOAD, startTimeVarIdx);
                         mv.visitInsn(LSUB);
                         mv.visitVarInsn(LSTORE, durationVarIdx);
+
+                        // 被观察时不受最小耗时与采样影响：if (Watch.active[id]) Watch.onExit(id, duration, kind)
+                        // Watched methods bypass min duration and sampling: if (Watch.active[id]) Watch.onExit(id, duration, kind)
+                        Label skipWatch = new Label();
+                        mv.visitFieldInsn(GETSTATIC, "site/mingsha/javaagent/methodtime/collector/Watch", "active", "[Z");
+                        mv.visitLdcInsn(methodId);
+                        mv.visitInsn(BALOAD);
+                        mv.visitJumpInsn(IFEQ, skipWatch);
+                        mv.visitLdcInsn(methodId);
+                        mv.visitVarInsn(LLOAD, durationVarIdx);
+                        mv.visitInsn(opcode == ATHROW ? ICONST_1 : ICONST_0);
+                        mv.visitMethodInsn(INVOKESTATIC, "site/mingsha/javaagent/methodtime/collector/Watch", "onExit", "(IJI)V", false);
+                        mv.visitLabel(skipWatch);
                         
                         // 最小耗时过滤 | min duration filter
                         mv.visitVarInsn(LLOAD, durationVarIdx);
@@ -119,6 +135,22 @@ protected void onMethodExit(int opcode) {
                         Label skipMinDuration = new Label();
                         mv.visitInsn(LCMP);
                         mv.visitJumpInsn(IFLT, skipMinDuration);
+
+                        // 仅聚合级别：if (ProbeGate.level >= AGGREGATE_ONLY) { ProbeGate.aggregate(id, duration); return }
+                        // Aggregate-only level: if (ProbeGate.level >= AGGREGATE_ONLY) { ProbeGate.aggregate(id, duration); return }
+                        Label record = new Label();
+                        mv.visitFieldInsn(GETSTATIC, PROBE_GATE, "level", "I");
+                        mv.visitInsn(ICONST_2);
+                        mv.visitJumpInsn(IF_ICMPLT, record);
+                        mv.visitLdcInsn(methodId);
+                        mv.visitVarInsn(LLOAD, durationVarIdx);
+                        mv.visitMethodInsn(INVOKESTATIC, PROBE_GATE, "aggregate", "(IJ)V", false);
+                        mv.visitJumpInsn(GOTO, skipMinDuration);
+                        mv.visitLabel(record);
+                        
+                        // 运行时采样（配置采样率 × 背压系数），每次调用只决策一次 | runtime sampling (configured rate × backpressure factor), decided once per call
+                        mv.visitMethodInsn(INVOKESTATIC, "site/mingsha/javaagent/methodtime/collector/Sampler", "sample", "()Z", false);
+                        mv.visitJumpInsn(IFEQ, skipMinDuration);
                         
                         // MethodTimeBuffer.offer(new MethodTimeRecord(...))
                         mv.visitTypeInsn(NEW, "site/mingsha/javaagent/methodtime/collector/MethodTimeRecord");
@@ -131,14 +163,14 @@ protected void onMethodExit(int opcode) {
                         mv.visitMethodInsn(INVOKESTATIC, "java/lang/Thread", "currentThread", "()Ljava/lang/Thread;", false);
                         mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Thread", "getName", "()Ljava/lang/String;", false);
                         mv.visitLdcInsn(""); // extraInfo
-                        mv.visitMethodInsn(INVOKESPECIAL, "site/mingsha/javaagent/methodtime/collector/MethodTimeRecord", "<init>", "(Ljava/lang/String;Ljava/lang/String;JJJLjava/lang/String;Ljava/lang/String;)V", false);
+                        // 慢调用栈ID（受每秒预算限制，未采集时为0）| slow call stack id (budgeted, 0 when not captured)
+                        mv.visitVarInsn(LLOAD, durationVarIdx);
+                        mv.visitMethodInsn(INVOKESTATIC, "site/mingsha/javaagent/methodtime/collector/StackSampler", "capture", "(J)J", false);
+                        mv.visitMethodInsn(INVOKESPECIAL, "site/mingsha/javaagent/methodtime/collector/MethodTimeRecord", "<init>", "(Ljava/lang/String;Ljava/lang/String;JJJLjava/lang/String;Ljava/lang/String;J)V", false);
                         mv.visitMethodInsn(INVOKESTATIC, "site/mingsha/javaagent/methodtime/collector/MethodTimeBuffer", "offer", "(Lsite/mingsha/javaagent/methodtime/collector/MethodTimeRecord;)Z", false);
                         mv.visitInsn(POP);
                         mv.visitLabel(skipMinDuration);
-                        
-                        if (rate < 1.0) {
-                            mv.visitLabel(skipRecordLabel);
-                        }
+                        mv.visitLabel(skipAll);
                     }
                 };
             }
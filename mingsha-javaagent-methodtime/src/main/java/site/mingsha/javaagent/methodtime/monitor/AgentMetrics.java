@@ -0,0 +1,200 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Agent 自身指标注册表：计数器基于分段累加（LongAdder），多线程递增互不竞争；仪表在读取时由回调计算。
+ * Registry of the agent's own metrics: counters are striped (LongAdder) so concurrent increments never contend, gauges are computed by a callback when read.
+ * 注册表按名称排序，由 HTTP 指标端点与 Telnet {@code agent overhead} 统一输出；读取只汇总分段，不阻塞递增方。
+ * The registry is sorted by name and rendered by both the HTTP metrics endpoint and Telnet {@code agent overhead}; reading only sums the stripes and never blocks incrementers.
+ *
+ * @author mingsha
+ */
+public class AgentMetrics {
+    static final String COUNTER = "counter";
+    static final String GAUGE = "gauge";
+    private static final Map<String, Entry> registry = new ConcurrentSkipListMap<>();
+
+    /**
+     * 分段计数器：递增落在线程各自的分段上，读取时求和。
+     * Striped counter: increments land on per-thread stripes and are summed when read.
+     */
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        /**
+         * 加一。
+         * Add one.
+         */
+        public void increment() {
+            adder.increment();
+        }
+
+        /**
+         * 增加指定值。
+         * Add the given amount.
+         * @param n 增量 | amount
+         */
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        /**
+         * 获取累计值。
+         * Get the accumulated value.
+         * @return 累计值 | sum
+         */
+        public long sum() {
+            return adder.sum();
+        }
+    }
+
+    static final class Entry {
+        final String name;
+        final String help;
+        final String type;
+        final DoubleSupplier value;
+
+        Entry(String name, String help, String type, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    /**
+     * 获取或创建全局计数器，同名重复调用返回同一实例。
+     * Get or create a global counter; repeated calls with the same name return the same instance.
+     * @param name 指标名 | metric name
+     * @param help 说明 | help text
+     * @return 计数器 | counter
+     */
+    public static Counter counter(String name, String help) {
+        Entry e = registry.get(name);
+        if (e != null && e.value instanceof CounterValue) return ((CounterValue) e.value).counter;
+        Counter c = new Counter();
+        register(name, help, c);
+        return c;
+    }
+
+    /**
+     * 注册实例持有的计数器，同名时替换旧的（组件重建后以新实例为准）。
+     * Register a counter held by an instance, replacing any previous one with the same name (a rebuilt component wins).
+     * @param name 指标名 | metric name
+     * @param help 说明 | help text
+     * @param counter 计数器 | counter
+     */
+    public static void register(String name, String help, Counter counter) {
+        registry.put(name, new Entry(name, help, COUNTER, new CounterValue(counter)));
+    }
+
+    /**
+     * 注册由外部累计的单调递增值（如线程 CPU 时间），按计数器类型输出，同名时替换。
+     * Register a monotonically increasing value accumulated elsewhere (such as thread CPU time), exposed with the counter type, replacing any previous one with the same name.
+     * @param name 指标名 | metric name
+     * @param help 说明 | help text
+     * @param value 读取回调 | value callback
+     */
+    public static void counter(String name, String help, DoubleSupplier value) {
+        registry.put(name, new Entry(name, help, COUNTER, value));
+    }
+
+    /**
+     * 注册仪表，同名时替换。
+     * Register a gauge, replacing any previous one with the same name.
+     * @param name 指标名 | metric name
+     * @param help 说明 | help text
+     * @param value 读取回调 | value callback
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        registry.put(name, new Entry(name, help, GAUGE, value));
+    }
+
+    /**
+     * 读取指标当前值，未注册时返回 NaN。
+     * Read the current value of a metric, NaN when not registered.
+     * @param name 指标名 | metric name
+     * @return 值 | value
+     */
+    public static double value(String name) {
+        Entry e = registry.get(name);
+        return e == null ? Double.NaN : read(e);
+    }
+
+    /**
+     * 以 Prometheus 文本格式追加全部指标。
+     * Append every metric in the Prometheus text format.
+     * @param sb 输出 | output
+     */
+    public static void prometheus(StringBuilder sb) {
+        for (Entry e : registry.values()) {
+            sb.append("# HELP ").append(e.name).append(' ').append(e.help).append('\n');
+            sb.append("# TYPE ").append(e.name).append(' ').append(e.type).append('\n');
+            sb.append(e.name).append(' ').append(format(read(e))).append('\n');
+        }
+    }
+
+    /**
+     * 以 JSON 对象追加全部指标（名称到值）。
+     * Append every metric as a JSON object of name to value.
+     * @param sb 输出 | output
+     */
+    public static void json(StringBuilder sb) {
+        sb.append('{');
+        boolean first = true;
+        for (Entry e : registry.values()) {
+            if (!first) sb.append(',');
+            first = false;
+            double v = read(e);
+            sb.append('"').append(e.name).append("\":").append(Double.isFinite(v) ? format(v) : "null");
+        }
+        sb.append('}');
+    }
+
+    /**
+     * 渲染供 Telnet 查看的文本，每行一个指标。
+     * Render text for Telnet, one metric per line.
+     * @return 文本 | text
+     */
+    public static String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry e : registry.values()) {
+            sb.append(String.format("%-48s %16s  %s%n", e.name, format(read(e)), e.help));
+        }
+        return sb.toString();
+    }
+
+    private static double read(Entry e) {
+        try {
+            return e.value.getAsDouble();
+        } catch (RuntimeException ex) {
+            return Double.NaN;
+        }
+    }
+
+    static String format(double v) {
+        // Prometheus 文本格式的非有限值写法 | non-finite spellings of the Prometheus text format
+        if (Double.isNaN(v)) return "NaN";
+        if (v == Double.POSITIVE_INFINITY) return "+Inf";
+        if (v == Double.NEGATIVE_INFINITY) return "-Inf";
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        return Double.toString(v);
+    }
+
+    private static final class CounterValue implements DoubleSupplier {
+        final Counter counter;
+
+        CounterValue(Counter counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public double getAsDouble() {
+            return counter.sum();
+        }
+    }
+}
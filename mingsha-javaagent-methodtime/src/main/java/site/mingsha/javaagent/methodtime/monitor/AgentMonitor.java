@@ -1,26 +1,34 @@
 package site.mingsha.javaagent.methodtime.monitor;
 
 import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
-import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import site.mingsha.javaagent.methodtime.collector.ProbeGate;
 
 /**
  * agent自监控：拦截延迟、CPU/内存占用、数据丢失率。
  * Agent self-monitoring: intercept latency, CPU/memory usage, data loss rate.
- * 支持CPU熔断、线程健康、异常统计等高可用特性。
- * Supports CPU fuse, thread health, error statistics and other HA features.
+ * 支持CPU熔断（由 {@link OverheadGovernor} 在探针处分级执行）、线程健康、异常统计等高可用特性。
+ * Supports CPU fuse (enforced in graded steps at the probe by {@link OverheadGovernor}), thread health, error statistics and other HA features.
+ * 丢失与异常计数为分段计数器，由多个写入线程并发递增，并注册到 {@link AgentMetrics}。
+ * Loss and error counts are striped counters incremented concurrently by several writer threads and registered in {@link AgentMetrics}.
  *
  * @author mingsha
  */
 public class AgentMonitor implements Runnable {
+    private static final int LOG_EVERY_TICKS = 5;
     private volatile boolean running = true;
     private long lastTotalLost = 0;
-    private long totalLost = 0;
-    private long lastCheckTime = System.currentTimeMillis();
-    private volatile boolean fuseActive = false;
-    private volatile long lastFuseTime = 0;
-    private long collectErrorCount = 0;
-    private long writeErrorCount = 0;
-    private long failoverErrorCount = 0;
+    private final AgentMetrics.Counter totalLost = new AgentMetrics.Counter();
+    private final AgentMetrics.Counter collectErrorCount = new AgentMetrics.Counter();
+    private final AgentMetrics.Counter writeErrorCount = new AgentMetrics.Counter();
+    private final AgentMetrics.Counter failoverErrorCount = new AgentMetrics.Counter();
+    private final OverheadGovernor governor = new OverheadGovernor();
+
+    public AgentMonitor() {
+        AgentMetrics.register("mingsha_agent_lost_total", "Records lost outside the buffer queue", totalLost);
+        AgentMetrics.register("mingsha_agent_collect_errors_total", "Collect errors", collectErrorCount);
+        AgentMetrics.register("mingsha_agent_write_errors_total", "Batch write errors", writeErrorCount);
+        AgentMetrics.register("mingsha_agent_failover_errors_total", "Failover spill errors", failoverErrorCount);
+    }
 
     /**
      * 停止监控线程。
@@ -29,44 +37,47 @@ public class AgentMonitor implements Runnable {
     public void stop() { running = false; }
 
     /**
-     * 判断当前是否处于CPU熔断状态。
-     * Check if CPU fuse is active.
+     * 判断探针是否已被开销调控关闭（CPU 熔断或开销超限的最高级别）。
+     * Check whether probes are switched off by the overhead governor (the top level, reached on CPU fuse or excess overhead).
      * @return true-熔断，false-未熔断 | true if fuse active, false otherwise
      */
-    public boolean isFuseActive() { return fuseActive; }
+    public boolean isFuseActive() { return governor.getLevel() == ProbeGate.OFF; }
+
+    /**
+     * 获取开销调控器。
+     * Get the overhead governor.
+     * @return 调控器 | governor
+     */
+    public OverheadGovernor getGovernor() { return governor; }
 
     /**
-     * 监控主循环，定期采集CPU、内存、丢失率、熔断等信息，并输出日志。
-     * Main monitor loop, periodically collects CPU, memory, loss rate, fuse status, and logs.
-     * 若CPU超阈值则触发熔断，低于阈值-10%自动恢复。
-     * If CPU exceeds threshold, triggers fuse; recovers automatically when below threshold-10%.
+     * 监控主循环：每秒执行一次开销调控，每5秒输出 CPU、内存、丢失数与探针级别日志。
+     * Main monitor loop: runs the overhead governor every second and logs CPU, memory, losses and the probe level every 5 seconds.
+     * CPU 超阈值或 agent 开销超限时由调控器在探针处逐级降低保真度，低于阈值-10%且开销回落并保持平稳后逐级恢复。
+     * CPU over the threshold or excess agent overhead makes the governor lower fidelity at the probe step by step; it recovers step by step once CPU is 10% under the threshold and overhead stays calm.
      */
     @Override
     public void run() {
+        // 在首次调控前校准探针开销，校准耗时不计入 premain | calibrate the probe cost before the first governor tick, keeping it out of premain
+        AgentOverhead.ensureCalibrated();
+        int tick = 0;
         while (running) {
             try {
-                Thread.sleep(5000);
+                Thread.sleep(1000);
             } catch (InterruptedException e) {
                 break;
             }
+            governor.tick();
+            if (++tick % LOG_EVERY_TICKS != 0) continue;
             double cpuLoad = getProcessCpuLoad();
-            int fuseThreshold = AgentConfig.getCpuFuseThreshold();
-            if (cpuLoad >= fuseThreshold / 100.0) {
-                fuseActive = true;
-                lastFuseTime = System.currentTimeMillis();
-                System.err.printf("[mingsha-agent][熔断] CPU占用 %.2f%% 超阈值 %d%%，暂停采集...\n", cpuLoad * 100, fuseThreshold);
-            } else if (fuseActive && cpuLoad < (fuseThreshold - 10) / 100.0) {
-                // 低于阈值-10%自动恢复
-                fuseActive = false;
-                System.out.println("[mingsha-agent][熔断] CPU恢复，采集线程恢复工作");
-            }
             // 采集数据丢失率（队列满时丢弃）
-            long lost = totalLost - lastTotalLost;
-            lastTotalLost = totalLost;
+            long allLost = totalLost.sum() + MethodTimeBuffer.droppedCount();
+            long lost = allLost - lastTotalLost;
+            lastTotalLost = allLost;
             // CPU/内存占用
             long usedMem = getUsedMemory();
-            // TODO: 统计拦截延迟（需在字节码增强处埋点）
-            System.out.printf("[mingsha-agent][监控] CPU: %.2f%%, 内存: %d MB, 5s丢失: %d 条\n", cpuLoad * 100, usedMem / 1024 / 1024, lost);
+            System.out.printf("[mingsha-agent][监控] CPU: %.2f%%, 内存: %d MB, 5s丢失: %d 条, 开销: %.2f%%, 探针: %s\n",
+                    cpuLoad * 100, usedMem / 1024 / 1024, lost, governor.getOverheadPct(), ProbeGate.name(governor.getLevel()));
         }
     }
 
@@ -74,7 +85,7 @@ public void run() {
      * 记录采集数据丢失事件。
      * Record a data loss event.
      */
-    public void recordLost() { totalLost++; }
+    public void recordLost() { totalLost.increment(); }
 
     /**
      * 获取当前监控状态字符串（CPU、内存、丢失总数）。
@@ -84,7 +95,8 @@ public void run() {
     public String getStatus() {
         double cpuLoad = getProcessCpuLoad();
         long usedMem = getUsedMemory();
-        return String.format("CPU: %.2f%%, 内存: %d MB, 总丢失: %d 条", cpuLoad * 100, usedMem / 1024 / 1024, totalLost);
+        return String.format("CPU: %.2f%%, 内存: %d MB, 总丢失: %d 条, 开销: %.2f%%, 探针: %s", cpuLoad * 100, usedMem / 1024 / 1024,
+                totalLost.sum() + MethodTimeBuffer.droppedCount(), governor.getOverheadPct(), ProbeGate.name(governor.getLevel()));
     }
 
     /**
@@ -115,17 +127,17 @@ private long getUsedMemory() {
      * 记录采集异常次数。
      * Record collect error count.
      */
-    public void recordCollectError() { collectErrorCount++; }
+    public void recordCollectError() { collectErrorCount.increment(); }
     /**
      * 记录写入异常次数。
      * Record write error count.
      */
-    public void recordWriteError() { writeErrorCount++; }
+    public void recordWriteError() { writeErrorCount.increment(); }
     /**
      * 记录转存异常次数。
      * Record failover error count.
      */
-    public void recordFailoverError() { failoverErrorCount++; }
+    public void recordFailoverError() { failoverErrorCount.increment(); }
 
     /**
      * 获取各环节异常统计信息。
@@ -133,6 +145,6 @@ private long getUsedMemory() {
      * @return 异常统计字符串 | error statistics string
      */
     public String getErrorStats() {
-        return String.format("采集异常: %d, 写入异常: %d, 转存异常: %d", collectErrorCount, writeErrorCount, failoverErrorCount);
+        return String.format("采集异常: %d, 写入异常: %d, 转存异常: %d", collectErrorCount.sum(), writeErrorCount.sum(), failoverErrorCount.sum());
     }
 } 
\ No newline at end of file
@@ -0,0 +1,246 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.collector.ProbeGate;
+import site.mingsha.javaagent.methodtime.collector.Sampler;
+import site.mingsha.javaagent.methodtime.collector.Watch;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Agent 自身开销核算：探针单次耗时（启动时校准）、agent 线程 CPU 时间、agent 线程分配字节数与归因于 agent 的 GC 时间。
+ * Accounting of the agent's own cost: probe ns per call (calibrated at startup), agent thread CPU time, bytes allocated by agent threads and GC time attributable to the agent.
+ * 探针开销按"记录条数 × 校准的单次耗时"估算，业务线程上不增加任何计数；未通过最小耗时或采样的调用不计数，因此是下限。
+ * Probe cost is estimated as records × calibrated ns per call, adding no counting on application threads; calls filtered by min duration or sampling are not counted, so it is a lower bound.
+ * 仅聚合级别下的调用按其校准的聚合耗时计入。
+ * Calls handled at the aggregate-only level are counted with their own calibrated aggregate cost.
+ * 线程 CPU 与分配量按线程名前缀 mingsha-agent 识别，已退出线程保留最后一次读数；GC 时间按 agent 分配量（含探针在业务线程上的分配）占全部线程分配量的比例归因。
+ * Thread CPU and allocation are attributed by the mingsha-agent thread name prefix, exited threads keep their last reading; GC time is attributed by the agent's share (including probe allocations on application threads) of all thread allocation.
+ *
+ * @author mingsha
+ */
+public class AgentOverhead {
+    static final String AGENT_THREAD_PREFIX = "mingsha-agent";
+    static final String STORAGE_THREAD_PREFIX = "mingsha-agent-storage";
+    private static final int CALIBRATION_CALLS = 100_000;
+    private static final long SCAN_INTERVAL_MS = 500;
+    private static final int STORAGE_CPU = 0, AGENT_CPU = 1, AGENT_ALLOC = 2, ALL_ALLOC = 3;
+    private static volatile double filteredNs = Double.NaN;
+    private static volatile double recordedNs = Double.NaN;
+    private static volatile double recordedBytes = Double.NaN;
+    private static volatile double aggregateNs = Double.NaN;
+    // 防止校准循环被 JIT 消除 | keeps the JIT from eliminating the calibration loops
+    static volatile long sink;
+    private static Map<Long, long[]> lastSeen = new HashMap<>();
+    private static final long[] retired = new long[4];
+    private static long[] totals = new long[4];
+    private static long scannedAt;
+
+    /**
+     * 注册自身开销指标；校准不在此执行，由监控线程在首次调控前调用 {@link #ensureCalibrated()}，不拖慢 premain。
+     * Register the self-overhead metrics; calibration is not run here but by the monitor thread via {@link #ensureCalibrated()} before its first governor tick, keeping premain fast.
+     */
+    public static void install() {
+        AgentMetrics.gauge("mingsha_agent_probe_filtered_ns", "Calibrated probe ns per call filtered by min duration or sampling", () -> filteredNs);
+        AgentMetrics.gauge("mingsha_agent_probe_recorded_ns", "Calibrated probe ns per recorded call", () -> recordedNs);
+        AgentMetrics.gauge("mingsha_agent_probe_recorded_bytes", "Calibrated bytes allocated per recorded call", () -> recordedBytes);
+        AgentMetrics.gauge("mingsha_agent_probe_aggregate_ns", "Calibrated probe ns per call at the aggregate-only level", () -> aggregateNs);
+        AgentMetrics.counter("mingsha_agent_probe_records_total", "Calls recorded by probes", () -> records());
+        AgentMetrics.counter("mingsha_agent_probe_aggregated_total", "Calls aggregated by probes at the aggregate-only level", () -> ProbeGate.aggregatedCount());
+        AgentMetrics.counter("mingsha_agent_probe_seconds_total", "Estimated probe time on application threads, lower bound", () -> probeSeconds());
+        AgentMetrics.counter("mingsha_agent_storage_cpu_seconds_total", "CPU time of storage writer threads", () -> scan()[STORAGE_CPU] / 1e9);
+        AgentMetrics.counter("mingsha_agent_threads_cpu_seconds_total", "CPU time of all agent threads", () -> scan()[AGENT_CPU] / 1e9);
+        AgentMetrics.counter("mingsha_agent_allocated_bytes_total", "Bytes allocated by agent threads", () -> scan()[AGENT_ALLOC]);
+        AgentMetrics.counter("mingsha_agent_gc_seconds_total", "Estimated GC time attributable to agent allocation", () -> gcSeconds());
+    }
+
+    /**
+     * 尚未校准时执行一次校准，已校准则直接返回（监控线程被守护重建时不会重复校准）；校准前各校准值为 NaN，探针耗时估算按0计。
+     * Calibrate once if not done yet, returning at once otherwise (a monitor thread rebuilt by the guardian does not calibrate again); before calibration the values are NaN and probe time counts as 0.
+     */
+    public static synchronized void ensureCalibrated() {
+        if (!Double.isNaN(recordedNs)) return;
+        calibrate();
+        System.out.printf("[mingsha-agent] 探针开销校准: 过滤 %.1f ns/次, 记录 %.1f ns/次, %.0f 字节/次%n", filteredNs, recordedNs, recordedBytes);
+    }
+
+    /**
+     * 在当前线程上循环执行探针出口的同等操作，测得单次耗时与分配字节数。
+     * Time the probe's exit-path operations in a loop on the current thread, measuring ns and bytes per call.
+     * 过滤路径为两次 nanoTime、观察位检查与最小耗时比较；记录路径另加采样决策、线程名读取、记录对象构造与入队（写入临时队列，不影响真实缓冲）。
+     * The filtered path is two nanoTime calls, the watch flag check and the min duration compare; the recorded path adds the sampling decision, thread name read, record construction and a queue offer (into a scratch queue, never the real buffer).
+     * 仅聚合路径为过滤路径加一次分段计数器累加（使用独立的计数单元，不影响真实数据）。
+     * The aggregate-only path is the filtered path plus one striped counter add (on a detached cell, never the real data).
+     */
+    static synchronized void calibrate() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        ArrayBlockingQueue<MethodTimeRecord> scratch = new ArrayBlockingQueue<>(4096);
+        long acc = 0;
+        ProbeGate.Cell cell = new ProbeGate.Cell();
+        double filtered = 0, recorded = 0, aggregate = 0, bytes = Double.NaN;
+        // 第一轮预热，第二轮计时 | the first round warms up, the second is timed
+        for (int round = 0; round < 2; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < CALIBRATION_CALLS; i++) {
+                long start = System.nanoTime();
+                long d = System.nanoTime() - start;
+                if (Watch.active[0]) acc++;
+                if (d >= Long.MAX_VALUE) acc++;
+                acc += d;
+            }
+            filtered = (double) (System.nanoTime() - t0) / CALIBRATION_CALLS;
+            long a0 = allocated(mx);
+            t0 = System.nanoTime();
+            for (int i = 0; i < CALIBRATION_CALLS; i++) {
+                long start = System.nanoTime();
+                long end = System.nanoTime();
+                long d = end - start;
+                if (Watch.active[0]) acc++;
+                if (d >= Long.MAX_VALUE) acc++;
+                // 无论采样结果如何都构造记录，使计时不受当前采样率影响 | always build the record so timing does not depend on the current sampling rate
+                if (Sampler.sample()) acc++;
+                MethodTimeRecord r = new MethodTimeRecord("calibration", "probe", start, end, d, Thread.currentThread().getName(), "", 0L);
+                if (!scratch.offer(r)) scratch.clear();
+            }
+            recorded = (double) (System.nanoTime() - t0) / CALIBRATION_CALLS;
+            long a1 = allocated(mx);
+            if (a0 >= 0 && a1 >= 0) bytes = (double) (a1 - a0) / CALIBRATION_CALLS;
+            t0 = System.nanoTime();
+            for (int i = 0; i < CALIBRATION_CALLS; i++) {
+                long start = System.nanoTime();
+                long d = System.nanoTime() - start;
+                if (Watch.active[0]) acc++;
+                if (d >= Long.MAX_VALUE) acc++;
+                cell.add(d);
+            }
+            aggregate = (double) (System.nanoTime() - t0) / CALIBRATION_CALLS;
+        }
+        sink = acc + scratch.size();
+        filteredNs = filtered;
+        recordedNs = recorded;
+        recordedBytes = bytes;
+        aggregateNs = aggregate;
+    }
+
+    /**
+     * 获取校准的每条记录探针耗时（纳秒），未校准时为 NaN。
+     * Get the calibrated probe ns per recorded call, NaN before calibration.
+     * @return 纳秒 | nanoseconds
+     */
+    public static double recordedNs() {
+        return recordedNs;
+    }
+
+    /**
+     * 获取探针记录的调用条数：已取走、已丢弃与仍在队列中的记录之和。
+     * Get the number of calls recorded by probes: records polled, dropped and still queued.
+     * @return 条数 | number of records
+     */
+    public static long records() {
+        return MethodTimeBuffer.polledCount() + MethodTimeBuffer.droppedCount() + MethodTimeBuffer.size();
+    }
+
+    /**
+     * 估算探针在业务线程上累计花费的时间（秒），含仅聚合级别下的调用。
+     * Estimate the accumulated probe time on application threads in seconds, including calls at the aggregate-only level.
+     * @return 秒 | seconds
+     */
+    public static double probeSeconds() {
+        double ns = recordedNs;
+        double agg = aggregateNs;
+        return (Double.isNaN(ns) ? 0 : records() * ns / 1e9) + (Double.isNaN(agg) ? 0 : ProbeGate.aggregatedCount() * agg / 1e9);
+    }
+
+    /**
+     * 获取全部 agent 线程累计 CPU 时间（秒）。
+     * Get the accumulated CPU time of all agent threads in seconds.
+     * @return 秒 | seconds
+     */
+    public static double agentCpuSeconds() {
+        return scan()[AGENT_CPU] / 1e9;
+    }
+
+    /**
+     * 估算归因于 agent 的 GC 时间（秒）：全部 GC 时间 × agent 分配量占比。
+     * Estimate GC seconds attributable to the agent: total GC time × the agent's share of allocation.
+     * @return 秒 | seconds
+     */
+    public static double gcSeconds() {
+        long[] t = scan();
+        if (t[ALL_ALLOC] <= 0) return 0;
+        double probeBytes = Double.isNaN(recordedBytes) ? 0 : records() * recordedBytes;
+        double share = Math.min(1.0, (t[AGENT_ALLOC] + probeBytes) / t[ALL_ALLOC]);
+        long gcMs = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcMs += Math.max(0, gc.getCollectionTime());
+        }
+        return gcMs / 1000.0 * share;
+    }
+
+    /**
+     * 扫描全部线程，累计 agent 线程 CPU 与各线程分配量；半秒内重复读取直接返回上次结果。
+     * Scan all threads, accumulating agent thread CPU and per-thread allocation; repeated reads within half a second return the previous result.
+     * @return [存储线程CPU纳秒, agent线程CPU纳秒, agent线程分配字节, 全部线程分配字节] | [storage CPU ns, agent CPU ns, agent allocated bytes, all allocated bytes]
+     */
+    static synchronized long[] scan() {
+        long now = System.currentTimeMillis();
+        if (scannedAt != 0 && now - scannedAt < SCAN_INTERVAL_MS) return totals;
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long[] ids = mx.getAllThreadIds();
+        ThreadInfo[] infos = mx.getThreadInfo(ids);
+        long[] alloc = allocated(mx, ids);
+        boolean cpu = mx.isThreadCpuTimeSupported() && mx.isThreadCpuTimeEnabled();
+        Map<Long, long[]> seen = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] == null) continue;
+            String name = infos[i].getThreadName();
+            long kind = name.startsWith(STORAGE_THREAD_PREFIX) ? 2 : name.startsWith(AGENT_THREAD_PREFIX) ? 1 : 0;
+            long c = kind > 0 && cpu ? Math.max(0, mx.getThreadCpuTime(ids[i])) : 0;
+            long a = alloc == null ? 0 : Math.max(0, alloc[i]);
+            seen.put(ids[i], new long[] {kind, c, a});
+        }
+        for (Map.Entry<Long, long[]> e : lastSeen.entrySet()) {
+            if (!seen.containsKey(e.getKey())) add(retired, e.getValue());
+        }
+        lastSeen = seen;
+        long[] t = retired.clone();
+        for (long[] v : seen.values()) add(t, v);
+        totals = t;
+        scannedAt = now;
+        return t;
+    }
+
+    private static void add(long[] t, long[] v) {
+        if (v[0] == 2) t[STORAGE_CPU] += v[1];
+        if (v[0] > 0) {
+            t[AGENT_CPU] += v[1];
+            t[AGENT_ALLOC] += v[2];
+        }
+        t[ALL_ALLOC] += v[2];
+    }
+
+    private static long allocated(ThreadMXBean mx) {
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) return -1;
+        try {
+            return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    private static long[] allocated(ThreadMXBean mx, long[] ids) {
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) return null;
+        try {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) mx;
+            return sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled() ? sun.getThreadAllocatedBytes(ids) : null;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
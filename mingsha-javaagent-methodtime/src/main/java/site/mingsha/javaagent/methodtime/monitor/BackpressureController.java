@@ -0,0 +1,179 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
+import site.mingsha.javaagent.methodtime.collector.Sampler;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import site.mingsha.javaagent.methodtime.storage.H2Storage;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 存储背压控制器：根据写入延迟与缓冲队列深度调整实际采样率和批量大小，带迟滞的分级控制。
+ * Storage backpressure controller: adjusts the effective sampling rate and batch size from writer latency and queue depth, as a leveled controller with hysteresis.
+ * 队列使用率超过高水位、出现丢弃或写入延迟超限时每秒升一级（采样率减半、批量加大）；
+ * 队列低于低水位、无丢弃且延迟低于上限一半并连续保持若干秒后才降一级，避免来回抖动。
+ * Each second under pressure (queue above high water, drops, or latency over the limit) raises one level (half sampling, larger batches);
+ * a level is only released after the queue stays below low water with no drops and latency under half the limit for several seconds, avoiding flapping.
+ * 每次调整写入日志与 agent_fidelity_log 表，降级区间可查询。
+ * Every adjustment is logged and stored in agent_fidelity_log so reduced-fidelity periods stay visible.
+ *
+ * @author mingsha
+ */
+public class BackpressureController implements Runnable {
+    static final int MAX_LEVEL = 6;
+    private static final double HIGH_WATER = 0.7;
+    private static final double LOW_WATER = 0.3;
+    private static final int CALM_TICKS = 5;
+    private static final int MAX_BATCH_MULTIPLIER = 8;
+    private static final int HISTORY_SIZE = 50;
+
+    private volatile boolean running = true;
+    private volatile int level;
+    private volatile double latencyMs;
+    private volatile double queueUsage;
+    private final Object latencyLock = new Object();
+    private final LongAdder writes = new LongAdder();
+    private long lastWrites;
+    private int calmTicks;
+    private long lastDropped = MethodTimeBuffer.droppedCount();
+    private final Deque<String> history = new ArrayDeque<>();
+
+    /**
+     * 停止控制线程。
+     * Stop the controller thread.
+     */
+    public void stop() { running = false; }
+
+    /**
+     * 控制主循环，每秒评估一次。
+     * Main control loop, evaluates once per second.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                break;
+            }
+            tick();
+        }
+    }
+
+    /**
+     * 记录一次批量写入耗时（由写入线程调用），按指数加权平均平滑。
+     * Record one batch write latency (called by the storage thread), smoothed by exponential weighted moving average.
+     * 各分片写入线程并发调用，平滑值的读改写在锁内完成，每批只进一次锁。
+     * Called concurrently by every shard writer; the smoothed value is read-modified-written under a lock taken once per batch.
+     * @param nanos 耗时纳秒 | elapsed nanoseconds
+     */
+    public void recordWrite(long nanos) {
+        double ms = nanos / 1_000_000.0;
+        synchronized (latencyLock) {
+            latencyMs = latencyMs == 0 ? ms : latencyMs * 0.8 + ms * 0.2;
+        }
+        writes.increment();
+    }
+
+    /**
+     * 获取当前实际批量大小：每升一级增加一倍基础批量，以摊薄单批事务开销，最多为基础值的8倍。
+     * Get the effective batch size: each level adds one base batch to amortize per-transaction cost, up to 8x the base.
+     * @return 批量大小 | batch size
+     */
+    public int getBatchSize() {
+        int base = AgentConfig.getBatchSize();
+        return base * Math.min(1 + level, MAX_BATCH_MULTIPLIER);
+    }
+
+    /**
+     * 获取当前降级级别，0为全量采集。
+     * Get the current degrade level, 0 means full fidelity.
+     * @return 级别 | level
+     */
+    public int getLevel() { return level; }
+
+    /**
+     * 获取平滑后的批量写入延迟。
+     * Get the smoothed batch write latency.
+     * @return 毫秒 | milliseconds
+     */
+    public double getLatencyMs() { return latencyMs; }
+
+    /**
+     * 执行一次评估。
+     * Run one evaluation.
+     */
+    void tick() {
+        Sampler.refresh();
+        if (!AgentConfig.isBackpressureEnabled()) {
+            if (level != 0) change(0, "背压控制已关闭");
+            return;
+        }
+        int capacity = Math.max(1, MethodTimeBuffer.capacity());
+        queueUsage = MethodTimeBuffer.size() / (double) capacity;
+        long dropped = MethodTimeBuffer.droppedCount();
+        long newDrops = dropped - lastDropped;
+        lastDropped = dropped;
+        // 本秒无写入时延迟读数逐步衰减，避免空闲时旧的高延迟阻止恢复
+        // Decay the latency reading when nothing was written this second, so a stale high value cannot block recovery
+        long w = writes.sum();
+        if (w == lastWrites) {
+            synchronized (latencyLock) {
+                latencyMs = latencyMs * 0.5;
+            }
+        }
+        lastWrites = w;
+        long latencyLimit = AgentConfig.getBackpressureLatencyMs();
+        boolean pressure = queueUsage >= HIGH_WATER || newDrops > 0 || latencyMs >= latencyLimit;
+        boolean calm = queueUsage <= LOW_WATER && newDrops == 0 && latencyMs < latencyLimit / 2.0;
+        String state = String.format("队列 %.0f%%, 写入延迟 %.1f ms, 丢弃 %d 条", queueUsage * 100, latencyMs, newDrops);
+        if (pressure) {
+            calmTicks = 0;
+            if (level < MAX_LEVEL) change(level + 1, "降级: " + state);
+        } else if (calm && level > 0) {
+            if (++calmTicks >= CALM_TICKS) {
+                calmTicks = 0;
+                change(level - 1, "恢复: " + state);
+            }
+        } else {
+            calmTicks = 0;
+        }
+    }
+
+    private void change(int newLevel, String reason) {
+        level = newLevel;
+        Sampler.setFactor(1.0 / (1 << newLevel));
+        int batchSize = getBatchSize();
+        String entry = String.format("%s 级别=%d 采样率=%.4f 批量=%d %s",
+                new Timestamp(System.currentTimeMillis()), newLevel, Sampler.getEffectiveRate(), batchSize, reason);
+        synchronized (history) {
+            if (history.size() >= HISTORY_SIZE) history.removeFirst();
+            history.addLast(entry);
+        }
+        System.out.println("[mingsha-agent][背压] " + entry);
+        H2Storage.recordFidelityChange(newLevel, Sampler.getEffectiveRate(), batchSize, queueUsage, latencyMs, reason);
+    }
+
+    /**
+     * 获取背压状态与最近调整记录。
+     * Get backpressure state and recent adjustments.
+     * @return 状态字符串 | status string
+     */
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== 存储背压 ===\n");
+        sb.append(String.format("级别: %d/%d, 实际采样率: %.4f (系数 %.4f), 批量: %d\n", level, MAX_LEVEL, Sampler.getEffectiveRate(), Sampler.getFactor(), getBatchSize()));
+        sb.append(String.format("队列使用率: %.1f%%, 写入延迟: %.1f ms, 累计丢弃: %d 条\n", queueUsage * 100, latencyMs, MethodTimeBuffer.droppedCount()));
+        List<String> recent;
+        synchronized (history) {
+            recent = new ArrayList<>(history);
+        }
+        sb.append("最近调整 (").append(recent.size()).append("):\n");
+        for (String e : recent) sb.append("  ").append(e).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import site.mingsha.javaagent.methodtime.collector.MethodMetrics;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
+import site.mingsha.javaagent.methodtime.collector.Sampler;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP 指标端点：基于 JDK 内置 com.sun.net.httpserver，/metrics 输出 Prometheus 文本格式，/metrics.json 输出 JSON。
+ * HTTP metrics endpoint on the JDK's built-in com.sun.net.httpserver: /metrics serves the Prometheus text format and /metrics.json serves JSON.
+ * 导出按方法的调用次数、耗时直方图与最大耗时，以及缓冲队列深度、丢弃数、写入延迟与背压级别。
+ * Exports per-method calls, latency histograms and max duration, plus buffer queue depth, drops, writer lag and backpressure level.
+ * 另附 {@link AgentMetrics} 中注册的 agent 自身计数器与开销指标。
+ * Also appends the agent's own counters and overhead metrics registered in {@link AgentMetrics}.
+ * 按方法的文本片段由 {@link MethodMetrics} 增量缓存，抓取只拼接片段并重新渲染有变化的序列；端口冲突时与 Telnet 相同向后尝试有限个端口。
+ * Per-method fragments are cached incrementally by {@link MethodMetrics}, a scrape only concatenates them and re-renders changed series; port conflicts fall back to a bounded number of following ports like Telnet.
+ *
+ * @author mingsha
+ */
+public class MetricsHttpServer {
+    static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    static final String JSON_TYPE = "application/json; charset=utf-8";
+    private final BackpressureController backpressure;
+    private HttpServer server;
+    private ExecutorService executor;
+    private int port;
+    // 上次输出的长度，作为下次拼接的初始容量 | length of the previous output, used as the next initial capacity
+    private volatile int sizeHint = 4096;
+
+    /**
+     * @param backpressure 背压控制器，可为 null | backpressure controller, nullable
+     */
+    public MetricsHttpServer(BackpressureController backpressure) {
+        this.backpressure = backpressure;
+        this.port = AgentConfig.getHttpPort();
+    }
+
+    /**
+     * 启动指标端点：端口被占用时向后尝试有限个端口。
+     * Start the metrics endpoint, trying a bounded number of following ports when taken.
+     * @return true-启动成功 | true if started
+     */
+    public boolean start() {
+        int retries = Math.max(0, AgentConfig.getHttpPortRetries());
+        for (int attempt = 0; attempt <= retries && server == null; attempt++) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(port), 0);
+            } catch (IOException e) {
+                port++;
+            }
+        }
+        if (server == null) {
+            System.err.println("[mingsha-agent] HTTP 指标端口启动失败: " + AgentConfig.getHttpPort() + " 起 " + (retries + 1) + " 个端口均被占用");
+            return false;
+        }
+        server.createContext("/metrics", this::handle);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "mingsha-agent-http");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("[mingsha-agent] HTTP 指标端口: " + port + " (/metrics, /metrics.json)");
+        return true;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            boolean json = path.equals("/metrics.json");
+            if (!json && !path.equals("/metrics")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = (json ? json() : prometheus()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", json ? JSON_TYPE : PROMETHEUS_TYPE);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 渲染 Prometheus 文本格式。
+     * Render the Prometheus text format.
+     * @return 文本 | text
+     */
+    String prometheus() {
+        List<MethodMetrics.Series> all = MethodMetrics.all();
+        StringBuilder sb = new StringBuilder(sizeHint);
+        family(sb, "mingsha_method_calls_total", "counter", "Sampled calls per method");
+        for (MethodMetrics.Series s : all) sb.append(s.calls());
+        family(sb, "mingsha_method_duration_seconds", "histogram", "Method duration per method");
+        for (MethodMetrics.Series s : all) sb.append(s.histogram());
+        family(sb, "mingsha_method_duration_max_seconds", "gauge", "Max method duration per method");
+        for (MethodMetrics.Series s : all) sb.append(s.max());
+        metric(sb, "mingsha_buffer_queue_depth", "gauge", "Records waiting in the buffer queue", Integer.toString(MethodTimeBuffer.size()));
+        metric(sb, "mingsha_buffer_queue_capacity", "gauge", "Buffer queue capacity", Integer.toString(MethodTimeBuffer.capacity()));
+        metric(sb, "mingsha_buffer_dropped_total", "counter", "Records dropped because the buffer was full", Long.toString(MethodTimeBuffer.droppedCount()));
+        metric(sb, "mingsha_writer_lag_seconds", "gauge", "Age of the oldest record waiting for a writer", MethodMetrics.seconds(MethodTimeBuffer.oldestAgeNs()));
+        if (backpressure != null) {
+            metric(sb, "mingsha_writer_latency_seconds", "gauge", "Smoothed batch write latency", Double.toString(backpressure.getLatencyMs() / 1000));
+            metric(sb, "mingsha_backpressure_level", "gauge", "Backpressure level, 0 is full fidelity", Integer.toString(backpressure.getLevel()));
+        }
+        metric(sb, "mingsha_sampling_rate", "gauge", "Effective sampling rate", Double.toString(Sampler.getEffectiveRate()));
+        metric(sb, "mingsha_metrics_series", "gauge", "Exported per-method series", Integer.toString(all.size()));
+        metric(sb, "mingsha_metrics_overflow_total", "counter", "Records folded into the _other_ series", Long.toString(MethodMetrics.overflowed()));
+        AgentMetrics.prometheus(sb);
+        sizeHint = sb.length() + 256;
+        return sb.toString();
+    }
+
+    /**
+     * 渲染 JSON。
+     * Render JSON.
+     * @return JSON 文本 | JSON text
+     */
+    String json() {
+        List<MethodMetrics.Series> all = MethodMetrics.all();
+        StringBuilder sb = new StringBuilder(sizeHint);
+        sb.append("{\"queue\":{\"depth\":").append(MethodTimeBuffer.size())
+                .append(",\"capacity\":").append(MethodTimeBuffer.capacity())
+                .append(",\"dropped\":").append(MethodTimeBuffer.droppedCount())
+                .append("},\"writer\":{\"lagNs\":").append(MethodTimeBuffer.oldestAgeNs());
+        if (backpressure != null) {
+            sb.append(",\"latencyMs\":").append(backpressure.getLatencyMs())
+                    .append(",\"backpressureLevel\":").append(backpressure.getLevel());
+        }
+        sb.append("},\"samplingRate\":").append(Sampler.getEffectiveRate())
+                .append(",\"series\":").append(all.size())
+                .append(",\"overflowed\":").append(MethodMetrics.overflowed())
+                .append(",\"agent\":");
+        AgentMetrics.json(sb);
+        sb.append(",\"methods\":[");
+        for (int i = 0; i < all.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(all.get(i).json());
+        }
+        sb.append("]}");
+        sizeHint = sb.length() + 256;
+        return sb.toString();
+    }
+
+    private static void family(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void metric(StringBuilder sb, String name, String type, String help, String value) {
+        family(sb, name, type, help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * 获取实际监听端口。
+     * Get the actual listening port.
+     * @return 端口 | port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 关闭指标端点，释放端口和线程。
+     * Shut down the metrics endpoint, releasing the port and thread.
+     */
+    public void shutdown() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+    }
+}
@@ -0,0 +1,183 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import site.mingsha.javaagent.methodtime.collector.ProbeGate;
+import site.mingsha.javaagent.methodtime.collector.Sampler;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import site.mingsha.javaagent.methodtime.storage.H2Storage;
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 开销调控器：每秒测量 agent 开销（探针估算耗时 + agent 线程 CPU，占进程 CPU 时间的比例）与进程 CPU，在全量、降采样、仅聚合、关闭探针四级间切换。
+ * Overhead governor: measures agent overhead (estimated probe time plus agent thread CPU as a share of process CPU time) and process CPU every second, stepping between full, reduced sampling, aggregate-only and probes off.
+ * 级别写入 {@link ProbeGate#level} 由探针直接读取，无需重新增强；开销超过上限或 CPU 达到熔断阈值时每秒升一级，
+ * 开销低于上限一半且 CPU 低于阈值-10% 连续保持 calmSeconds 秒才降一级；刚切换后的一个测量窗口跨越两个级别，不据此再次升级。
+ * The level goes to {@link ProbeGate#level} read directly by probes, no re-transform needed; overhead above the limit or CPU at the fuse threshold raises one level per second,
+ * a level is only released after overhead stays under half the limit and CPU 10% under the threshold for calmSeconds; the window right after a change spans two levels and never triggers another raise.
+ * 恢复后很快又因开销回升而升级视为反复，下次恢复所需平稳时间加倍（最多16倍），回到全量后复位。每次切换写入日志、agent_governor_log 表与最近记录。
+ * Raising again soon after a recovery counts as a relapse and doubles the calm time needed next time (up to 16x), reset once back at full. Every transition is logged, stored in agent_governor_log and kept in the recent history.
+ *
+ * @author mingsha
+ */
+public class OverheadGovernor {
+    private static final int HISTORY_SIZE = 50;
+    private static final int MAX_BACKOFF = 16;
+
+    private volatile double overheadPct;
+    private volatile double cpuPct;
+    private double lastAgentSeconds = -1;
+    private double lastProcessSeconds = -1;
+    private int calmTicks;
+    private int backoff = 1;
+    private long ticks;
+    private long lastRecoveryTick = Long.MIN_VALUE / 2;
+    private boolean settling;
+    private final Deque<String> history = new ArrayDeque<>();
+    private final AgentMetrics.Counter transitions = new AgentMetrics.Counter();
+
+    public OverheadGovernor() {
+        AgentMetrics.register("mingsha_agent_governor_transitions_total", "Overhead governor level transitions", transitions);
+        AgentMetrics.gauge("mingsha_agent_governor_level", "Probe level: 0 full, 1 reduced, 2 aggregate-only, 3 off", () -> ProbeGate.level);
+        AgentMetrics.gauge("mingsha_agent_overhead_percent", "Agent overhead as a percent of process CPU time", () -> overheadPct);
+    }
+
+    /**
+     * 执行一次测量与评估，由监控线程每秒调用；同时把仅聚合期间的增量并入按方法指标。
+     * Measure and evaluate once, called every second by the monitor thread; also merges aggregate-only deltas into per-method metrics.
+     */
+    public void tick() {
+        ProbeGate.flush();
+        double agent = AgentOverhead.probeSeconds() + AgentOverhead.agentCpuSeconds();
+        double process = processCpuSeconds();
+        double overhead = overheadPct;
+        if (lastProcessSeconds >= 0 && process > lastProcessSeconds) {
+            overhead = Math.max(0, (agent - lastAgentSeconds) / (process - lastProcessSeconds) * 100);
+        }
+        lastAgentSeconds = agent;
+        lastProcessSeconds = process;
+        evaluate(overhead, processCpuLoad() * 100);
+    }
+
+    /**
+     * 按给定的开销与 CPU 读数评估一次。
+     * Evaluate once with the given overhead and CPU readings.
+     * @param overhead agent 开销占进程 CPU 的百分比 | agent overhead as a percent of process CPU
+     * @param cpu 进程 CPU 百分比，未知时为负数 | process CPU percent, negative when unknown
+     */
+    void evaluate(double overhead, double cpu) {
+        ticks++;
+        overheadPct = overhead;
+        cpuPct = cpu;
+        int level = ProbeGate.level;
+        if (!AgentConfig.isGovernorEnabled()) {
+            if (level != ProbeGate.FULL) change(level, ProbeGate.FULL, "开销调控已关闭");
+            return;
+        }
+        if (settling) {
+            settling = false;
+            return;
+        }
+        double limit = AgentConfig.getGovernorOverheadPercent();
+        int fuse = AgentConfig.getCpuFuseThreshold();
+        boolean hot = cpu >= fuse;
+        boolean calm = overhead < limit / 2 && cpu < fuse - 10;
+        String state = String.format("开销 %.2f%%, CPU %.1f%%", overhead, cpu);
+        if (overhead > limit || hot) {
+            calmTicks = 0;
+            if (level < ProbeGate.OFF) {
+                if (ticks - lastRecoveryTick <= (long) calmSeconds() * 2) backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                change(level, level + 1, (hot ? "CPU 达到熔断阈值: " : "开销超上限: ") + state);
+            }
+        } else if (calm && level > ProbeGate.FULL) {
+            if (++calmTicks >= calmSeconds()) {
+                calmTicks = 0;
+                lastRecoveryTick = ticks;
+                if (level - 1 == ProbeGate.FULL) backoff = 1;
+                change(level, level - 1, "恢复: " + state);
+            }
+        } else {
+            calmTicks = 0;
+        }
+    }
+
+    private int calmSeconds() {
+        return Math.max(1, AgentConfig.getGovernorCalmSeconds()) * backoff;
+    }
+
+    private void change(int from, int to, String reason) {
+        if (from == ProbeGate.AGGREGATE_ONLY) ProbeGate.flush();
+        ProbeGate.level = to;
+        Sampler.setGovernorFactor(to >= ProbeGate.REDUCED ? AgentConfig.getGovernorReducedSamplingRate() : 1.0);
+        settling = true;
+        transitions.increment();
+        String entry = String.format("%s %s -> %s 采样率=%.4f %s",
+                new Timestamp(System.currentTimeMillis()), ProbeGate.name(from), ProbeGate.name(to), Sampler.getEffectiveRate(), reason);
+        synchronized (history) {
+            if (history.size() >= HISTORY_SIZE) history.removeFirst();
+            history.addLast(entry);
+        }
+        System.out.println("[mingsha-agent][调控] " + entry);
+        H2Storage.recordGovernorChange(from, to, overheadPct, cpuPct, Sampler.getEffectiveRate(), reason);
+    }
+
+    /**
+     * 获取当前探针级别。
+     * Get the current probe level.
+     * @return 级别 | level
+     */
+    public int getLevel() { return ProbeGate.level; }
+
+    /**
+     * 获取最近一次测得的 agent 开销百分比。
+     * Get the latest measured agent overhead percent.
+     * @return 百分比 | percent
+     */
+    public double getOverheadPct() { return overheadPct; }
+
+    /**
+     * 获取调控状态与最近切换记录。
+     * Get governor state and recent transitions.
+     * @return 状态字符串 | status string
+     */
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        int level = ProbeGate.level;
+        sb.append("=== 开销调控 ===\n");
+        sb.append(String.format("级别: %d/%d (%s)%s, 实际采样率: %.4f\n", level, ProbeGate.OFF, ProbeGate.name(level),
+                AgentConfig.isGovernorEnabled() ? "" : " [已关闭]", Sampler.getEffectiveRate()));
+        sb.append(String.format("agent 开销: %.2f%% (上限 %.2f%%), 进程 CPU: %.1f%% (熔断 %d%%)\n",
+                overheadPct, AgentConfig.getGovernorOverheadPercent(), cpuPct, AgentConfig.getCpuFuseThreshold()));
+        sb.append(String.format("恢复需平稳: %d 秒 (已平稳 %d 秒), 仅聚合累计调用: %d\n", calmSeconds(), calmTicks, ProbeGate.aggregatedCount()));
+        List<String> recent;
+        synchronized (history) {
+            recent = new ArrayList<>(history);
+        }
+        sb.append("最近切换 (").append(recent.size()).append("):\n");
+        for (String e : recent) sb.append("  ").append(e).append('\n');
+        return sb.toString();
+    }
+
+    private static double processCpuSeconds() {
+        try {
+            com.sun.management.OperatingSystemMXBean os =
+                    (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            return os.getProcessCpuTime() / 1e9;
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    private static double processCpuLoad() {
+        try {
+            com.sun.management.OperatingSystemMXBean os =
+                    (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            return os.getProcessCpuLoad();
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+}
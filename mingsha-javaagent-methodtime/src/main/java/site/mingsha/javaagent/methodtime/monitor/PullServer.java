@@ -0,0 +1,285 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import site.mingsha.javaagent.methodtime.collector.MethodMetrics;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 二进制拉取端口：长度前缀帧的请求/响应协议，供集中采集端按游标增量拉取按方法的累计汇总与直方图桶。
+ * Binary pull port: a length-prefixed request/response protocol letting central collectors pull per-method cumulative aggregates and histogram buckets incrementally by cursor.
+ * 响应只包含自游标后有更新的方法，方法名字典只在方法首次出现时下发，数值使用变长整数编码；纪元不一致或游标为0时返回全量。
+ * Responses carry only methods updated since the cursor, the name dictionary is sent only when a method first appears and numbers are varint-encoded; a mismatched epoch or a zero cursor returns everything.
+ * 数值为单调递增的累计值，采集端与上次拉取的值相减得到增量，丢失一次响应不影响正确性。
+ * Values are monotonic cumulative counters, collectors subtract the previous pull to get deltas, so a lost response never corrupts totals.
+ * 连接可保持并连续发送多个请求；数据来自 {@link MethodMetrics}，与 HTTP 指标端点共用序列上限。
+ * Connections may stay open for many requests; data comes from {@link MethodMetrics} and shares the series cap with the HTTP metrics endpoint.
+ *
+ * @author mingsha
+ */
+public class PullServer implements Runnable {
+    /** 帧魔数 "MSP1" | frame magic "MSP1" */
+    static final int MAGIC = 0x4D535031;
+    static final byte OP_PULL = 1;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_BAD_REQUEST = 1;
+    static final byte FLAG_FULL = 1;
+    /** 请求帧负载长度：魔数、操作码、纪元、游标 | request payload length: magic, op, epoch, cursor */
+    static final int REQUEST_LENGTH = 4 + 1 + 8 + 8;
+    private static final int IDLE_TIMEOUT_MS = 120_000;
+    private final ExecutorService pool;
+    private final Semaphore connections;
+    private final LongAdder pulls = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private ServerSocket serverSocket;
+    private volatile boolean running = true;
+    private int port;
+
+    public PullServer() {
+        this.port = AgentConfig.getPullPort();
+        this.connections = new Semaphore(Math.max(1, AgentConfig.getPullMaxConnections()));
+        AtomicInteger seq = new AtomicInteger();
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "mingsha-agent-pull-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 绑定端口：被占用时向后尝试有限个端口。
+     * Bind the port, trying a bounded number of following ports when taken.
+     * @return true-绑定成功 | true if bound
+     */
+    public boolean bind() {
+        int retries = Math.max(0, AgentConfig.getPullPortRetries());
+        for (int attempt = 0; attempt <= retries && serverSocket == null; attempt++) {
+            try {
+                serverSocket = new ServerSocket(port);
+            } catch (IOException e) {
+                port++;
+            }
+        }
+        if (serverSocket == null) {
+            System.err.println("[mingsha-agent] 拉取端口启动失败: " + AgentConfig.getPullPort() + " 起 " + (retries + 1) + " 个端口均被占用");
+            return false;
+        }
+        System.out.println("[mingsha-agent] 拉取端口: " + port);
+        return true;
+    }
+
+    /**
+     * 接受连接，超过连接上限的连接立即关闭。
+     * Accept connections, closing those beyond the connection cap at once.
+     */
+    @Override
+    public void run() {
+        if (serverSocket == null && !bind()) return;
+        while (running) {
+            try {
+                Socket client = serverSocket.accept();
+                if (!connections.tryAcquire()) {
+                    try { client.close(); } catch (IOException ignore) {}
+                    continue;
+                }
+                pool.execute(() -> {
+                    try {
+                        serve(client);
+                    } finally {
+                        connections.release();
+                    }
+                });
+            } catch (IOException | RuntimeException ignore) {}
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket c = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(c.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(c.getOutputStream()))) {
+            c.setSoTimeout(IDLE_TIMEOUT_MS);
+            c.setTcpNoDelay(true);
+            while (running) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length != REQUEST_LENGTH || in.readInt() != MAGIC || in.readByte() != OP_PULL) {
+                    // 无法继续对齐帧边界，回复错误后关闭连接 | frame boundaries are lost, reply with an error and close
+                    write(out, badRequest());
+                    return;
+                }
+                long epoch = in.readLong();
+                long cursor = in.readLong();
+                write(out, pull(epoch, cursor));
+            }
+        } catch (IOException | RuntimeException ignore) {}
+    }
+
+    private void write(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+        bytesSent.add(payload.length + 4);
+    }
+
+    /**
+     * 编码一次拉取的响应负载。
+     * Encode the response payload of one pull.
+     * 格式：魔数 int32、状态 byte、纪元 int64、新游标 int64、时间戳毫秒 int64、标志 byte（1 为全量），
+     * 全量时附桶上界 [varint n, n-1 个 varlong 纳秒]，然后字典 [varint n, (varint id, str 类名, str 方法名)*]，
+     * 序列 [varint n, (varint id, varlong 次数, varlong 耗时总和, varlong 最大耗时, varint 非零桶数, (varint 桶号, varlong 计数)*)*]，
+     * 最后为 varlong 队列深度、队列容量、丢弃数、最旧记录等待纳秒与合并到 _other_ 的记录数；str 为 varint 字节长度加 UTF-8。
+     * Layout: magic int32, status byte, epoch int64, new cursor int64, timestamp ms int64, flags byte (1 for full),
+     * bucket bounds when full [varint n, n-1 varlong ns], then the dictionary [varint n, (varint id, str class, str method)*],
+     * series [varint n, (varint id, varlong calls, varlong total ns, varlong max ns, varint non-zero buckets, (varint bucket, varlong count)*)*],
+     * and finally varlong queue depth, queue capacity, dropped, oldest record age ns and records folded into _other_; str is a varint byte length plus UTF-8.
+     * @param epoch 采集端持有的纪元 | epoch held by the collector
+     * @param cursor 采集端持有的游标 | cursor held by the collector
+     * @return 响应负载 | response payload
+     */
+    byte[] pull(long epoch, long cursor) {
+        pulls.increment();
+        long currentEpoch = MethodMetrics.epoch();
+        boolean full = cursor <= 0 || epoch != currentEpoch;
+        long since = full ? 0 : cursor;
+        long next = MethodMetrics.advance();
+        List<MethodMetrics.Series> changed = new ArrayList<>();
+        List<long[]> values = new ArrayList<>();
+        for (MethodMetrics.Series s : MethodMetrics.all()) {
+            long[] v = s.changedSince(since);
+            if (v == null) continue;
+            changed.add(s);
+            values.add(v);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + changed.size() * 32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(STATUS_OK);
+            out.writeLong(currentEpoch);
+            out.writeLong(next);
+            out.writeLong(System.currentTimeMillis());
+            out.writeByte(full ? FLAG_FULL : 0);
+            if (full) {
+                long[] bounds = MethodMetrics.bounds();
+                writeVarLong(out, bounds.length + 1);
+                for (long b : bounds) writeVarLong(out, b);
+            }
+            int dict = 0;
+            for (long[] v : values) {
+                if (v[v.length - 1] > since) dict++;
+            }
+            writeVarLong(out, dict);
+            for (int i = 0; i < changed.size(); i++) {
+                long[] v = values.get(i);
+                if (v[v.length - 1] <= since) continue;
+                MethodMetrics.Series s = changed.get(i);
+                writeVarLong(out, s.id);
+                writeString(out, s.className);
+                writeString(out, s.methodName);
+            }
+            writeVarLong(out, changed.size());
+            for (int i = 0; i < changed.size(); i++) {
+                long[] v = values.get(i);
+                writeVarLong(out, changed.get(i).id);
+                writeVarLong(out, v[0]);
+                writeVarLong(out, v[1]);
+                writeVarLong(out, v[2]);
+                int nonZero = 0;
+                for (int b = 3; b < v.length - 1; b++) {
+                    if (v[b] != 0) nonZero++;
+                }
+                writeVarLong(out, nonZero);
+                for (int b = 3; b < v.length - 1; b++) {
+                    if (v[b] == 0) continue;
+                    writeVarLong(out, b - 3);
+                    writeVarLong(out, v[b]);
+                }
+            }
+            writeVarLong(out, MethodTimeBuffer.size());
+            writeVarLong(out, MethodTimeBuffer.capacity());
+            writeVarLong(out, MethodTimeBuffer.droppedCount());
+            writeVarLong(out, MethodTimeBuffer.oldestAgeNs());
+            writeVarLong(out, MethodMetrics.overflowed());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] badRequest() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(5);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(STATUS_BAD_REQUEST);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 写入无符号变长整数（LEB128，每字节7位，负数按64位无符号处理）。
+     * Write an unsigned varint (LEB128, 7 bits per byte, negatives are treated as unsigned 64-bit).
+     */
+    static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, b.length);
+        out.write(b);
+    }
+
+    /**
+     * 获取拉取统计。
+     * Get pull statistics.
+     * @return 统计文本 | statistics text
+     */
+    public String getStats() {
+        return "端口: " + port + ", 连接: " + (Math.max(1, AgentConfig.getPullMaxConnections()) - connections.availablePermits())
+                + ", 拉取次数: " + pulls.sum() + ", 发送字节: " + bytesSent.sum();
+    }
+
+    /**
+     * 获取实际监听端口。
+     * Get the actual listening port.
+     * @return 端口 | port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 关闭拉取端口，释放端口和连接线程。
+     * Shut down the pull port, releasing the port and connection threads.
+     */
+    public void shutdown() {
+        running = false;
+        try { if (serverSocket != null) serverSocket.close(); } catch (IOException ignore) {}
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,206 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 定长、内存映射、按列存储的原始记录段文件。
+ * Fixed-size, memory-mapped, column-oriented segment file of raw records.
+ * 文件布局：64字节段头（含 min/max 索引）后依次为时间偏移、方法编号、线程编号、开始时间、耗时五列。
+ * Layout: a 64-byte header (with the min/max index) followed by time offset, method id, thread id, start time and duration columns.
+ * 时间戳以相对段基准时间的毫秒偏移（int，非逐条差分）存储，任意下标可直接定位；方法与线程以字典编号存储。
+ * Timestamps are stored as int millisecond offsets from the segment base time (not record-to-record deltas) so any index is addressable directly; methods and threads as dictionary ids.
+ *
+ * @author mingsha
+ */
+class ColumnSegment {
+    static final int MAGIC = 0x4D534731; // "MSG1"
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 4 + 4 + 4 + 8 + 8;
+
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_CAPACITY = 8;
+    private static final int OFF_COUNT = 12;
+    private static final int OFF_BASE_TIME = 16;
+    private static final int OFF_MIN_TIME = 24;
+    private static final int OFF_MAX_TIME = 32;
+    private static final int OFF_MIN_METHOD = 40;
+    private static final int OFF_MAX_METHOD = 44;
+    private static final int OFF_MIN_DURATION = 48;
+    private static final int OFF_MAX_DURATION = 56;
+
+    final File file;
+    final int capacity;
+    final long baseTimeMs;
+    private volatile int count;
+    private long minTimeMs = Long.MAX_VALUE;
+    private long maxTimeMs = Long.MIN_VALUE;
+    private int minMethodId = Integer.MAX_VALUE;
+    private int maxMethodId = Integer.MIN_VALUE;
+    private long minDurationNs = Long.MAX_VALUE;
+    private long maxDurationNs = Long.MIN_VALUE;
+    private MappedByteBuffer buf;
+
+    private ColumnSegment(File file, int capacity, long baseTimeMs) {
+        this.file = file;
+        this.capacity = capacity;
+        this.baseTimeMs = baseTimeMs;
+    }
+
+    /**
+     * 创建新的可写段文件，并预分配固定大小。
+     * Create a new writable segment file with a fixed preallocated size.
+     * @param file 段文件 | segment file
+     * @param sizeBytes 段文件大小 | segment size in bytes
+     * @param baseTimeMs 段基准时间 | segment base time (ms)
+     * @return 段 | segment
+     * @throws IOException IO异常 | IO exception
+     */
+    static ColumnSegment create(File file, int sizeBytes, long baseTimeMs) throws IOException {
+        int capacity = (sizeBytes - HEADER_BYTES) / RECORD_BYTES;
+        if (capacity <= 0) throw new IOException("segment size too small: " + sizeBytes);
+        ColumnSegment seg = new ColumnSegment(file, capacity, baseTimeMs);
+        seg.buf = map(file, HEADER_BYTES + (long) capacity * RECORD_BYTES, FileChannel.MapMode.READ_WRITE);
+        seg.buf.putInt(OFF_MAGIC, MAGIC);
+        seg.buf.putInt(4, 1);
+        seg.buf.putInt(OFF_CAPACITY, capacity);
+        seg.buf.putLong(OFF_BASE_TIME, baseTimeMs);
+        seg.writeHeader();
+        return seg;
+    }
+
+    /**
+     * 打开已有段文件，仅读取段头；需要扫描时再映射数据区。
+     * Open an existing segment, reading only the header; the data area is mapped on demand.
+     * @param file 段文件 | segment file
+     * @return 段 | segment
+     * @throws IOException 文件损坏或IO异常 | corrupted file or IO exception
+     */
+    static ColumnSegment open(File file) throws IOException {
+        MappedByteBuffer header = map(file, HEADER_BYTES, FileChannel.MapMode.READ_ONLY);
+        if (header.getInt(OFF_MAGIC) != MAGIC) throw new IOException("bad segment magic: " + file.getName());
+        ColumnSegment seg = new ColumnSegment(file, header.getInt(OFF_CAPACITY), header.getLong(OFF_BASE_TIME));
+        seg.count = Math.min(header.getInt(OFF_COUNT), seg.capacity);
+        seg.minTimeMs = header.getLong(OFF_MIN_TIME);
+        seg.maxTimeMs = header.getLong(OFF_MAX_TIME);
+        seg.minMethodId = header.getInt(OFF_MIN_METHOD);
+        seg.maxMethodId = header.getInt(OFF_MAX_METHOD);
+        seg.minDurationNs = header.getLong(OFF_MIN_DURATION);
+        seg.maxDurationNs = header.getLong(OFF_MAX_DURATION);
+        return seg;
+    }
+
+    /**
+     * 以读写方式重新打开段，用于重启后继续追加。
+     * Reopen the segment read-write to continue appending after restart.
+     * @throws IOException IO异常 | IO exception
+     */
+    void reopenForAppend() throws IOException {
+        buf = map(file, HEADER_BYTES + (long) capacity * RECORD_BYTES, FileChannel.MapMode.READ_WRITE);
+    }
+
+    /**
+     * 追加一条记录；段已满或时间偏移溢出时返回false，由调用方滚动新段。
+     * Append a record; returns false when full or the time offset overflows, the caller then rolls a new segment.
+     * @return true-成功，false-需要新段 | true if appended, false if a new segment is needed
+     */
+    boolean append(long timeMs, int methodId, int threadId, long startTime, long durationNs) {
+        int i = count;
+        long offset = timeMs - baseTimeMs;
+        if (i >= capacity || offset < 0 || offset > Integer.MAX_VALUE) return false;
+        buf.putInt(timeOffset(i), (int) offset);
+        buf.putInt(methodOffset(i), methodId);
+        buf.putInt(threadOffset(i), threadId);
+        buf.putLong(startOffset(i), startTime);
+        buf.putLong(durationOffset(i), durationNs);
+        if (timeMs < minTimeMs) minTimeMs = timeMs;
+        if (timeMs > maxTimeMs) maxTimeMs = timeMs;
+        if (methodId < minMethodId) minMethodId = methodId;
+        if (methodId > maxMethodId) maxMethodId = methodId;
+        if (durationNs < minDurationNs) minDurationNs = durationNs;
+        if (durationNs > maxDurationNs) maxDurationNs = durationNs;
+        count = i + 1;
+        return true;
+    }
+
+    /**
+     * 写回段头（条数与 min/max 索引），在每批追加后调用。
+     * Write back the header (count and min/max index), called after each appended batch.
+     */
+    void writeHeader() {
+        buf.putLong(OFF_MIN_TIME, minTimeMs);
+        buf.putLong(OFF_MAX_TIME, maxTimeMs);
+        buf.putInt(OFF_MIN_METHOD, minMethodId);
+        buf.putInt(OFF_MAX_METHOD, maxMethodId);
+        buf.putLong(OFF_MIN_DURATION, minDurationNs);
+        buf.putLong(OFF_MAX_DURATION, maxDurationNs);
+        // 条数最后写入，崩溃时最多丢失未提交的尾部记录 | count is written last, a crash loses at most the uncommitted tail
+        buf.putInt(OFF_COUNT, count);
+    }
+
+    /**
+     * 封存段：刷盘并释放写映射。
+     * Seal the segment: flush to disk and drop the writable mapping.
+     */
+    void seal() {
+        if (buf != null) {
+            writeHeader();
+            buf.force();
+            buf = null;
+        }
+    }
+
+    /**
+     * 获取只读视图用于扫描；可写段直接复用当前映射。
+     * Get a read view for scanning; a writable segment reuses its current mapping.
+     * @return 只读缓冲 | read buffer
+     * @throws IOException IO异常 | IO exception
+     */
+    java.nio.ByteBuffer readView() throws IOException {
+        MappedByteBuffer b = buf;
+        if (b != null) return b.duplicate();
+        return map(file, HEADER_BYTES + (long) capacity * RECORD_BYTES, FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * 判断段的 min/max 索引是否可能包含满足条件的记录。
+     * Check whether the min/max index may contain matching records.
+     * @param fromMs 起始时间 | from time (ms)
+     * @param toMs 结束时间 | to time (ms)
+     * @param methodId 方法编号，-1表示不限 | method id, -1 for any
+     * @return true-可能命中 | true if the segment may match
+     */
+    boolean mayContain(long fromMs, long toMs, int methodId) {
+        if (count == 0 || maxTimeMs < fromMs || minTimeMs > toMs) return false;
+        return methodId < 0 || (methodId >= minMethodId && methodId <= maxMethodId);
+    }
+
+    int count() { return count; }
+    boolean isFull() { return count >= capacity; }
+    long minTimeMs() { return minTimeMs; }
+    long maxTimeMs() { return maxTimeMs; }
+    long maxDurationNs() { return maxDurationNs; }
+
+    long timeAt(java.nio.ByteBuffer b, int i) { return baseTimeMs + (b.getInt(timeOffset(i)) & 0xFFFFFFFFL); }
+    int methodAt(java.nio.ByteBuffer b, int i) { return b.getInt(methodOffset(i)); }
+    int threadAt(java.nio.ByteBuffer b, int i) { return b.getInt(threadOffset(i)); }
+    long startAt(java.nio.ByteBuffer b, int i) { return b.getLong(startOffset(i)); }
+    long durationAt(java.nio.ByteBuffer b, int i) { return b.getLong(durationOffset(i)); }
+
+    private int timeOffset(int i) { return HEADER_BYTES + i * 4; }
+    private int methodOffset(int i) { return HEADER_BYTES + capacity * 4 + i * 4; }
+    private int threadOffset(int i) { return HEADER_BYTES + capacity * 8 + i * 4; }
+    private int startOffset(int i) { return HEADER_BYTES + capacity * 12 + i * 8; }
+    private int durationOffset(int i) { return HEADER_BYTES + capacity * 20 + i * 8; }
+
+    private static MappedByteBuffer map(File file, long size, FileChannel.MapMode mode) throws IOException {
+        String rw = mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw";
+        try (RandomAccessFile raf = new RandomAccessFile(file, rw);
+             FileChannel ch = raf.getChannel()) {
+            return ch.map(mode, 0, size);
+        }
+    }
+}
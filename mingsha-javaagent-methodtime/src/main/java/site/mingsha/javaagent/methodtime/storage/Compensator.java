@@ -0,0 +1,288 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地转存文件补偿：后台限速流式回放 method_time_backup_*.csv，保证恰好一次入库。
+ * Spill file compensation: replays method_time_backup_*.csv in the background as a rate-limited stream, exactly once.
+ * 文件内数据行号作为记录序号，每个小批次与其检查点（已回放的最大序号）在同一事务内提交，
+ * 崩溃重启后从检查点继续，已入库的序号直接跳过，不产生重复数据。
+ * The data line number inside a file is the record sequence; each small batch commits together with its checkpoint
+ * (highest replayed sequence), so after a crash replay resumes from the checkpoint and already stored sequences are skipped.
+ * 恰好一次仅覆盖 JDBC 事务内的数据（主表、汇总、慢查询、直方图）；段存储与 MVStore 的原始记录在事务提交后追加，
+ * 回滚重试不会重复写入，但提交与追加之间崩溃时这一批原始记录会缺失（至多一次）。
+ * Exactly-once only covers data inside the JDBC transaction (main table, summary, slow queries, histograms); raw records of the
+ * segment and MVStore engines are appended after the commit, so a rolled-back retry never duplicates them, but a crash between
+ * commit and append loses that batch's raw records (at most once).
+ * 回放失败时回滚并保留文件待下轮重试，不再二次转存；缓冲队列剩余容量低于转存阈值时暂停回放，避免挤占实时写入。
+ * A failed replay rolls back and keeps the file for the next round instead of spilling again; replay pauses while the
+ * buffer queue's free capacity is below the failover threshold so live ingestion is never starved.
+ *
+ * @author mingsha
+ */
+public class Compensator {
+    static final String CHECKPOINT_TABLE = "compensation_checkpoint";
+    static final String FILE_PREFIX = "method_time_backup_";
+    static final String FILE_SUFFIX = ".csv";
+    /**
+     * 文件最后修改后的静默时间，避免回放仍在写入的转存文件。
+     * Quiet period after a file's last modification, so files still being spilled are not replayed.
+     */
+    private static final long SETTLE_MS = 2000;
+    /**
+     * 等待队列腾出容量的最长时间，超时后记录日志并继续回放，避免持续高负载下补偿永久停滞。
+     * Longest wait for queue capacity; after it a log line is written and replay continues, so compensation never stalls forever under sustained load.
+     */
+    private static final long MAX_CAPACITY_WAIT_MS = 30_000;
+
+    private static final AtomicLong replayedRows = new AtomicLong();
+    private static final AtomicLong skippedRows = new AtomicLong();
+    private static final AtomicLong completedFiles = new AtomicLong();
+    private static final AtomicLong failedBatches = new AtomicLong();
+    private static final AtomicLong lostRawRows = new AtomicLong();
+
+    /**
+     * 创建检查点表。
+     * Create the checkpoint table.
+     * @param stmt 语句 | statement
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void createTable(Statement stmt) throws SQLException {
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + CHECKPOINT_TABLE + " (" +
+                "file_name VARCHAR(255) PRIMARY KEY, " +
+                "last_seq BIGINT NOT NULL, " +
+                "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+    }
+
+    /**
+     * 创建后台补偿线程（建议由健康守护线程注册）。
+     * Create the background compensation thread (recommended to be registered by thread guardian).
+     * @param intervalMs 两轮扫描间隔（毫秒）| interval between rounds (ms)
+     * @return 补偿线程 | compensation thread
+     */
+    public static Thread createThread(long intervalMs) {
+        return new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    runOnce();
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "mingsha-agent-compensate");
+    }
+
+    /**
+     * 执行一轮补偿：按文件名顺序回放目录下所有已落盘的转存文件。
+     * Run one compensation round: replay all settled spill files in name order.
+     * @throws InterruptedException 线程中断 | thread interrupted
+     */
+    public static void runOnce() throws InterruptedException {
+        File dir = new File(".");
+        long settled = System.currentTimeMillis() - SETTLE_MS;
+        File[] files = dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files == null || files.length == 0) return;
+        Arrays.sort(files);
+        try (Connection c = H2Storage.openConnection()) {
+            for (File file : files) {
+                if (file.lastModified() > settled) continue;
+                if (!replayFile(c, file)) break;
+            }
+        } catch (SQLException e) {
+            System.err.println("[mingsha-agent][补偿] 补偿连接异常: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 流式回放单个文件，返回false表示本轮应停止（数据库不可用）。
+     * Stream-replay one file, returns false when this round should stop (database unavailable).
+     */
+    static boolean replayFile(Connection c, File file) throws InterruptedException {
+        String name = file.getName();
+        long spillMs = spillTime(file);
+        int batchSize = Math.max(1, AgentConfig.getBatchSize());
+        long rateLimit = AgentConfig.getCompensateRateLimit();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            long done = loadCheckpoint(c, name);
+            long seq = 0;
+            long windowStart = System.nanoTime();
+            long windowRows = 0;
+            List<MethodTimeRecord> batch = new ArrayList<>();
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                seq++;
+                if (seq <= done) {
+                    skippedRows.incrementAndGet();
+                    continue;
+                }
+                MethodTimeRecord r = parse(line);
+                if (r != null) batch.add(r);
+                if (batch.size() >= batchSize) {
+                    awaitCapacity();
+                    commit(c, name, spillMs, batch, seq);
+                    windowRows += batch.size();
+                    batch.clear();
+                    // 限速：按每秒最大回放条数计算应耗时间，提前完成则休眠补齐
+                    // Rate limit: sleep until the elapsed time matches the allowed records per second
+                    if (rateLimit > 0) {
+                        long dueNs = windowRows * 1_000_000_000L / rateLimit;
+                        long sleepMs = (dueNs - (System.nanoTime() - windowStart)) / 1_000_000;
+                        if (sleepMs > 0) Thread.sleep(sleepMs);
+                    }
+                }
+            }
+            if (seq > done) {
+                awaitCapacity();
+                commit(c, name, spillMs, batch, seq);
+            }
+        } catch (SQLException e) {
+            failedBatches.incrementAndGet();
+            System.err.println("[mingsha-agent][补偿] 回放文件 " + name + " 失败，保留待下轮重试: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            System.err.println("[mingsha-agent][补偿] 读取文件 " + name + " 失败: " + e.getMessage());
+            return true;
+        }
+        if (file.delete()) {
+            try {
+                deleteCheckpoint(c, name);
+            } catch (SQLException e) {
+                System.err.println("[mingsha-agent][补偿] 清除检查点失败: " + e.getMessage());
+            }
+            completedFiles.incrementAndGet();
+            System.out.println("[mingsha-agent][补偿] 已成功补偿并删除 " + name);
+        }
+        return true;
+    }
+
+    /**
+     * 将一批记录与检查点在同一事务中提交，提交后再把原始记录追加到非 JDBC 引擎；持有写锁，与实时写入及留存清理互斥。
+     * Commit a batch together with its checkpoint in one transaction, then append raw records to the non-JDBC engine;
+     * holds the write lock shared with ingestion and retention.
+     */
+    private static void commit(Connection c, String name, long spillMs, List<MethodTimeRecord> batch, long lastSeq) throws SQLException {
+        H2Storage.STORAGE_LOCK.writeLock().lock();
+        try {
+            c.setAutoCommit(false);
+            try {
+                HistogramStore.Replayed replayed = batch.isEmpty() ? null : H2Storage.writeRecords(c, spillMs, batch);
+                saveCheckpoint(c, name, lastSeq);
+                c.commit();
+                // 提交后才把直方图增量并入写入线程的内存状态 | fold histogram deltas into writer memory state only after the commit
+                HistogramStore.applyReplayed(replayed);
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            // 检查点已越过本批，追加失败不再重试，只记录缺失条数
+            // The checkpoint already covers this batch, a failed append is not retried, only the lost rows are counted
+            try {
+                if (!batch.isEmpty()) H2Storage.appendExternal(batch);
+            } catch (IOException e) {
+                lostRawRows.addAndGet(batch.size());
+                System.err.println("[mingsha-agent][补偿] 原始记录追加失败，缺失 " + batch.size() + " 条: " + e.getMessage());
+            }
+        } finally {
+            H2Storage.STORAGE_LOCK.writeLock().unlock();
+            H2Storage.markWritten();
+        }
+        replayedRows.addAndGet(batch.size());
+    }
+
+    /**
+     * 转存时刻：取自文件名 method_time_backup_&lt;毫秒&gt;_&lt;序号&gt;.csv，无法解析时用文件修改时间；记录自身只带 nanoTime，不能用作墙钟。
+     * Spill time: taken from the file name method_time_backup_&lt;ms&gt;_&lt;seq&gt;.csv, falling back to the modification time; records only carry nanoTime, which is not wall-clock time.
+     */
+    static long spillTime(File file) {
+        String name = file.getName();
+        int end = name.indexOf('_', FILE_PREFIX.length());
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), end < 0 ? name.length() - FILE_SUFFIX.length() : end));
+        } catch (RuntimeException e) {
+            return file.lastModified();
+        }
+    }
+
+    /**
+     * 缓冲队列剩余容量低于转存阈值时等待，优先保障实时采集。
+     * Wait while the buffer queue's free capacity is below the failover threshold, live ingestion goes first.
+     */
+    private static void awaitCapacity() throws InterruptedException {
+        // 阈值不超过队列容量的一半，否则即使队列接近清空也永远达不到
+        // Cap the threshold at half the queue capacity, otherwise it could never be met even with a nearly empty queue
+        int capacity = MethodTimeBuffer.capacity();
+        int threshold = Math.min(AgentConfig.getFailoverThreshold(), capacity / 2);
+        long deadline = System.currentTimeMillis() + MAX_CAPACITY_WAIT_MS;
+        while (capacity - MethodTimeBuffer.size() < threshold) {
+            if (System.currentTimeMillis() >= deadline) {
+                System.err.println("[mingsha-agent][补偿] 等待队列容量超过 " + MAX_CAPACITY_WAIT_MS / 1000 + " 秒（剩余 "
+                        + (capacity - MethodTimeBuffer.size()) + "，阈值 " + threshold + "），继续回放");
+                return;
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    /**
+     * 解析一行转存记录，格式错误返回null（该行序号仍计入检查点，不会反复重试）。
+     * Parse one spilled line, returns null if malformed (its sequence still counts toward the checkpoint so it is not retried forever).
+     */
+    static MethodTimeRecord parse(String line) {
+        String[] arr = line.split(",", 7);
+        if (arr.length != 7) return null;
+        try {
+            return new MethodTimeRecord(arr[0], arr[1], Long.parseLong(arr[2]), Long.parseLong(arr[3]), Long.parseLong(arr[4]), arr[5], arr[6]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long loadCheckpoint(Connection c, String name) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT last_seq FROM " + CHECKPOINT_TABLE + " WHERE file_name = ?")) {
+            ps.setString(1, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static void saveCheckpoint(Connection c, String name, long lastSeq) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("MERGE INTO " + CHECKPOINT_TABLE + " (file_name, last_seq, updated_at) KEY(file_name) VALUES (?, ?, CURRENT_TIMESTAMP)")) {
+            ps.setString(1, name);
+            ps.setLong(2, lastSeq);
+            ps.executeUpdate();
+        }
+    }
+
+    private static void deleteCheckpoint(Connection c, String name) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM " + CHECKPOINT_TABLE + " WHERE file_name = ?")) {
+            ps.setString(1, name);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * 获取补偿统计。
+     * Get compensation statistics.
+     * @return 统计字符串 | statistics string
+     */
+    public static String getStats() {
+        return String.format("已回放: %d 条, 去重跳过: %d 条, 完成文件: %d 个, 失败批次: %d, 原始记录缺失: %d 条",
+                replayedRows.get(), skippedRows.get(), completedFiles.get(), failedBatches.get(), lostRawRows.get());
+    }
+}
@@ -0,0 +1,475 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 流式导出原始记录：按时间范围与方法过滤，分批读取，缓冲写出 CSV、NDJSON 或紧凑二进制列式文件，可选 gzip 压缩。
+ * Streaming export of raw records: filtered by time range and method, read in fetch-size batches and written buffered as CSV, NDJSON or a compact binary columnar file, optionally gzip-compressed.
+ * H2 引擎使用惰性查询逐批读取，段存储与 MVStore 引擎直接流式扫描，导出过程不在内存中累积结果。
+ * The H2 engines read lazily batch by batch, the segment and MVStore engines are scanned directly, results never accumulate in memory.
+ * 可在后台线程中执行，通过 {@link #status()} 查看进度，{@link #cancel()} 取消；取消标记与进度只属于该后台任务，不影响同步导出。
+ * Can run on a background thread, with progress from {@link #status()} and cancellation through {@link #cancel()}; the cancel flag and progress belong to that job only and never touch synchronous exports.
+ *
+ * @author mingsha
+ */
+public class Exporter {
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String FORMAT_BINARY = "bin";
+    static final int BINARY_MAGIC = 0x4D534558; // "MSEX"
+    static final int BINARY_BLOCK_ROWS = 4096;
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final long PROGRESS_STEP = 100_000;
+    private static final String[] COLUMNS = {"id", "class_name", "method_name", "start_time", "end_time", "duration_ns", "thread_name", "extra_info", "create_time"};
+
+    private static final AtomicLong progressRows = new AtomicLong();
+    private static volatile Thread worker;
+    private static volatile AtomicBoolean cancelled;
+    private static volatile String lastResult = "[无导出任务]";
+    private static volatile String running;
+    private static volatile long startedAt;
+
+    /**
+     * 导出参数。
+     * Export options.
+     */
+    public static class Options {
+        public String file;
+        public String format = FORMAT_CSV;
+        public long fromMs = 0;
+        public long toMs = Long.MAX_VALUE;
+        public String className;
+        public String methodName;
+        public boolean gzip;
+        public int fetchSize = DEFAULT_FETCH_SIZE;
+
+        public Options(String file) {
+            this.file = file;
+            this.gzip = file.endsWith(".gz");
+        }
+    }
+
+    /**
+     * 导出回调，返回false时停止导出。
+     * Export callback, return false to stop.
+     */
+    interface RowSink {
+        boolean accept(long id, MethodTimeRecord r, long createMs) throws IOException;
+    }
+
+    /**
+     * 从 telnet 参数解析导出参数：&lt;文件&gt; [--minutes N] [--method 类名.方法名] [--format csv|ndjson|bin] [--gzip] [--fetch N]。
+     * Parse export options from telnet arguments: &lt;file&gt; [--minutes N] [--method class.method] [--format csv|ndjson|bin] [--gzip] [--fetch N].
+     * @param args 参数 | arguments
+     * @return 导出参数 | options
+     * @throws IllegalArgumentException 参数错误 | invalid arguments
+     */
+    public static Options parse(String[] args) {
+        if (args.length == 0 || args[0].startsWith("--")) throw new IllegalArgumentException("missing file");
+        Options o = new Options(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--gzip")) {
+                o.gzip = true;
+            } else if (a.equals("--bg")) {
+                continue;
+            } else if (i + 1 < args.length && a.equals("--minutes")) {
+                o.toMs = System.currentTimeMillis();
+                o.fromMs = o.toMs - Long.parseLong(args[++i]) * 60 * 1000;
+            } else if (i + 1 < args.length && a.equals("--method")) {
+                String m = args[++i];
+                int dot = m.lastIndexOf('.');
+                if (dot <= 0) throw new IllegalArgumentException(m);
+                o.className = m.substring(0, dot);
+                o.methodName = m.substring(dot + 1);
+            } else if (i + 1 < args.length && a.equals("--format")) {
+                o.format = args[++i].toLowerCase();
+                if (o.format.equals("json")) o.format = FORMAT_NDJSON;
+                if (!o.format.equals(FORMAT_CSV) && !o.format.equals(FORMAT_NDJSON) && !o.format.equals(FORMAT_BINARY)) {
+                    throw new IllegalArgumentException(o.format);
+                }
+            } else if (i + 1 < args.length && a.equals("--fetch")) {
+                o.fetchSize = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                throw new IllegalArgumentException(a);
+            }
+        }
+        return o;
+    }
+
+    /**
+     * 同步导出。
+     * Export synchronously.
+     * @param o 导出参数 | options
+     * @param progress 进度回调（每10万条调用一次），可为null | progress callback every 100k rows, may be null
+     * @return 导出结果 | export result
+     */
+    public static String export(Options o, LongConsumer progress) {
+        return export(o, progress, new AtomicBoolean(), new AtomicLong());
+    }
+
+    private static String export(Options o, LongConsumer progress, AtomicBoolean stop, AtomicLong counter) {
+        long t0 = System.currentTimeMillis();
+        long[] rows = {0};
+        try (OutputStream os = open(o)) {
+            RowWriter w = FORMAT_NDJSON.equals(o.format) ? new JsonWriter(os)
+                    : FORMAT_BINARY.equals(o.format) ? new BinaryWriter(os) : new CsvWriter(os);
+            read(o, (id, r, createMs) -> {
+                if (stop.get()) return false;
+                w.write(id, r, createMs);
+                rows[0]++;
+                counter.set(rows[0]);
+                if (progress != null && rows[0] % PROGRESS_STEP == 0) progress.accept(rows[0]);
+                return true;
+            });
+            w.finish();
+        } catch (IOException | SQLException | RuntimeException e) {
+            return "[导出失败] " + e.getMessage();
+        }
+        String summary = String.format("%s (%s%s, %d 条, %d ms)", o.file, o.format, o.gzip ? "+gzip" : "", rows[0], System.currentTimeMillis() - t0);
+        return stop.get() ? "[导出已取消] " + summary : "[导出成功] " + summary;
+    }
+
+    /**
+     * 在后台线程中导出，同一时间只允许一个后台导出。
+     * Export on a background thread, only one background export may run at a time.
+     * @param o 导出参数 | options
+     * @return 提交结果 | submission result
+     */
+    public static synchronized String exportInBackground(Options o) {
+        if (worker != null && worker.isAlive()) return "[导出进行中] " + running + "，请稍后或使用 agent export cancel";
+        AtomicBoolean flag = new AtomicBoolean();
+        cancelled = flag;
+        progressRows.set(0);
+        running = o.file;
+        startedAt = System.currentTimeMillis();
+        worker = new Thread(() -> {
+            lastResult = export(o, null, flag, progressRows);
+            running = null;
+            System.out.println("[mingsha-agent][导出] " + lastResult);
+        }, "mingsha-agent-export");
+        worker.setDaemon(true);
+        worker.start();
+        return "[后台导出已开始] " + o.file + "，使用 agent export status 查看进度";
+    }
+
+    /**
+     * 获取后台导出进度或最近一次结果。
+     * Get background export progress or the last result.
+     * @return 状态字符串 | status string
+     */
+    public static String status() {
+        String file = running;
+        if (file == null) return lastResult;
+        long elapsed = Math.max(1, System.currentTimeMillis() - startedAt);
+        long rows = progressRows.get();
+        return String.format("[导出进行中] %s 已导出 %d 条, 耗时 %d ms, %.0f 条/秒", file, rows, elapsed, rows * 1000.0 / elapsed);
+    }
+
+    /**
+     * 取消正在执行的后台导出，已写出的部分保留。
+     * Cancel the running background export, rows already written are kept.
+     * @return 结果 | result
+     */
+    public static String cancel() {
+        AtomicBoolean flag = cancelled;
+        String file = running;
+        if (file == null || flag == null) return "[无进行中的导出]";
+        flag.set(true);
+        return "[已请求取消导出] " + file;
+    }
+
+    /**
+     * 按 RFC 4180 转义 CSV 字段。
+     * Escape a CSV field per RFC 4180.
+     * @param v 字段值，null 输出为空 | field value, null becomes empty
+     * @return 转义后的字段 | escaped field
+     */
+    public static String csvEscape(String v) {
+        return CsvWriter.escape(v);
+    }
+
+    /**
+     * 转为 JSON 字符串字面量。
+     * Quote a value as a JSON string literal.
+     * @param v 值，null 输出为 null | value, null becomes null
+     * @return JSON 字面量 | JSON literal
+     */
+    public static String jsonQuote(String v) {
+        return JsonWriter.quote(v);
+    }
+
+    private static OutputStream open(Options o) throws IOException {
+        File f = new File(o.file);
+        File parent = f.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory()) parent.mkdirs();
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(f), BUFFER_BYTES);
+        return o.gzip ? new GZIPOutputStream(os, BUFFER_BYTES) : os;
+    }
+
+    /**
+     * 按引擎流式读取符合条件的原始记录。
+     * Stream matching raw records from the active engine.
+     */
+    static void read(Options o, RowSink sink) throws IOException, SQLException {
+        if (SegmentStorage.isEnabled() || MVStoreStorage.isEnabled()) {
+            long[] seq = {0};
+            IOException[] failure = {null};
+            SegmentStorage.RecordVisitor visitor = (timeMs, r) -> {
+                try {
+                    return sink.accept(++seq[0], r, timeMs);
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return false;
+                }
+            };
+            if (MVStoreStorage.isEnabled()) {
+                MVStoreStorage.scan(o.fromMs, o.toMs, o.className, o.methodName, visitor);
+            } else {
+                SegmentStorage.scan(o.fromMs, o.toMs, o.className, o.methodName, visitor);
+            }
+            if (failure[0] != null) throw failure[0];
+            return;
+        }
+        StringBuilder sql = new StringBuilder("SELECT ").append(String.join(", ", COLUMNS)).append(" FROM ").append(H2Storage.TABLE)
+                .append(" WHERE create_time BETWEEN ? AND ?");
+        if (o.className != null) sql.append(" AND class_name = ? AND method_name = ?");
+        sql.append(" ORDER BY id");
+        try (Connection c = H2Storage.openConnection()) {
+            // 惰性执行：结果按批读取，不在服务端一次性物化
+            // Lazy execution: rows are produced batch by batch instead of materializing the whole result
+            try (Statement stmt = c.createStatement()) {
+                stmt.execute("SET LAZY_QUERY_EXECUTION TRUE");
+            }
+            c.setAutoCommit(false);
+            try (PreparedStatement ps = c.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                ps.setFetchSize(o.fetchSize);
+                ps.setTimestamp(1, new Timestamp(o.fromMs));
+                ps.setTimestamp(2, new Timestamp(Math.min(o.toMs, 253402300799000L)));
+                if (o.className != null) {
+                    ps.setString(3, o.className);
+                    ps.setString(4, o.methodName);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        MethodTimeRecord r = new MethodTimeRecord(rs.getString(2), rs.getString(3), rs.getLong(4), rs.getLong(5),
+                                rs.getLong(6), rs.getString(7), rs.getString(8));
+                        Timestamp created = rs.getTimestamp(9);
+                        if (!sink.accept(rs.getLong(1), r, created == null ? 0 : created.getTime())) break;
+                    }
+                }
+            } finally {
+                c.rollback();
+            }
+        }
+    }
+
+    private interface RowWriter {
+        void write(long id, MethodTimeRecord r, long createMs) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    /**
+     * CSV 写出，按 RFC 4180 对含逗号、引号或换行的字段加引号转义。
+     * CSV writer, fields containing commas, quotes or line breaks are quoted per RFC 4180.
+     */
+    private static class CsvWriter implements RowWriter {
+        private final Writer w;
+
+        CsvWriter(OutputStream os) throws IOException {
+            w = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+            w.write(String.join(",", COLUMNS));
+            w.write('\n');
+        }
+
+        @Override
+        public void write(long id, MethodTimeRecord r, long createMs) throws IOException {
+            w.write(Long.toString(id));
+            w.write(',');
+            w.write(escape(r.className));
+            w.write(',');
+            w.write(escape(r.methodName));
+            w.write(',' + Long.toString(r.startTime) + ',' + r.endTime + ',' + r.durationNs + ',');
+            w.write(escape(r.threadName));
+            w.write(',');
+            w.write(escape(r.extraInfo));
+            w.write(',');
+            w.write(new Timestamp(createMs).toString());
+            w.write('\n');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            w.flush();
+        }
+
+        static String escape(String v) {
+            if (v == null) return "";
+            if (v.indexOf(',') < 0 && v.indexOf('"') < 0 && v.indexOf('\n') < 0 && v.indexOf('\r') < 0) return v;
+            return '"' + v.replace("\"", "\"\"") + '"';
+        }
+    }
+
+    /**
+     * 换行分隔 JSON 写出，每行一条记录。
+     * Newline-delimited JSON writer, one record per line.
+     */
+    private static class JsonWriter implements RowWriter {
+        private final Writer w;
+
+        JsonWriter(OutputStream os) {
+            w = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(long id, MethodTimeRecord r, long createMs) throws IOException {
+            w.write("{\"id\":" + id + ",\"class_name\":" + quote(r.className) + ",\"method_name\":" + quote(r.methodName)
+                    + ",\"start_time\":" + r.startTime + ",\"end_time\":" + r.endTime + ",\"duration_ns\":" + r.durationNs
+                    + ",\"thread_name\":" + quote(r.threadName) + ",\"extra_info\":" + quote(r.extraInfo)
+                    + ",\"create_time\":" + createMs + "}\n");
+        }
+
+        @Override
+        public void finish() throws IOException {
+            w.flush();
+        }
+
+        static String quote(String v) {
+            if (v == null) return "null";
+            StringBuilder sb = new StringBuilder(v.length() + 2).append('"');
+            for (int i = 0; i < v.length(); i++) {
+                char ch = v.charAt(i);
+                switch (ch) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+                        else sb.append(ch);
+                }
+            }
+            return sb.append('"').toString();
+        }
+    }
+
+    /**
+     * 紧凑二进制列式写出：文件头为魔数与版本，之后每 4096 行一个块。
+     * Compact binary columnar writer: a magic and version header, then one block per 4096 rows.
+     * 块布局：行数、本块新增字典项（UTF 字符串），随后依次为 id、create_time、start_time、duration_ns（long 列）
+     * 与类名、方法名、线程名、附加信息（字典编号 int 列）；以行数为0的块结束。
+     * Block layout: row count, dictionary entries added in this block (UTF strings), then id, create_time, start_time, duration_ns (long columns)
+     * and class, method, thread and extra info (dictionary id int columns); a block with zero rows ends the file.
+     */
+    private static class BinaryWriter implements RowWriter {
+        private final DataOutputStream out;
+        private final Map<String, Integer> dict = new HashMap<>();
+        private final java.util.List<String> pending = new java.util.ArrayList<>();
+        private final long[][] longs = new long[4][BINARY_BLOCK_ROWS];
+        private final int[][] ints = new int[4][BINARY_BLOCK_ROWS];
+        private int n;
+
+        BinaryWriter(OutputStream os) throws IOException {
+            out = new DataOutputStream(os);
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(1);
+        }
+
+        private int code(String v) {
+            String s = v == null ? "" : v;
+            Integer id = dict.get(s);
+            if (id == null) {
+                id = dict.size();
+                dict.put(s, id);
+                pending.add(s);
+            }
+            return id;
+        }
+
+        @Override
+        public void write(long id, MethodTimeRecord r, long createMs) throws IOException {
+            longs[0][n] = id;
+            longs[1][n] = createMs;
+            longs[2][n] = r.startTime;
+            longs[3][n] = r.durationNs;
+            ints[0][n] = code(r.className);
+            ints[1][n] = code(r.methodName);
+            ints[2][n] = code(r.threadName);
+            ints[3][n] = code(r.extraInfo);
+            if (++n == BINARY_BLOCK_ROWS) flushBlock();
+        }
+
+        private void flushBlock() throws IOException {
+            out.writeInt(n);
+            out.writeInt(pending.size());
+            for (String s : pending) out.writeUTF(s);
+            pending.clear();
+            for (long[] col : longs) {
+                for (int i = 0; i < n; i++) out.writeLong(col[i]);
+            }
+            for (int[] col : ints) {
+                for (int i = 0; i < n; i++) out.writeInt(col[i]);
+            }
+            n = 0;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (n > 0) flushBlock();
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+
+    /**
+     * 读取二进制列式导出文件（自动识别 gzip）。
+     * Read a binary columnar export file (gzip is detected automatically).
+     * @param file 导出文件 | export file
+     * @param visitor 回调，时间参数为 create_time | callback, the time argument is create_time
+     * @throws IOException IO异常或格式错误 | IO exception or bad format
+     */
+    public static void readBinary(File file, SegmentStorage.RecordVisitor visitor) throws IOException {
+        try (InputStream raw = new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES)) {
+            raw.mark(2);
+            boolean gz = raw.read() == 0x1f && raw.read() == 0x8b;
+            raw.reset();
+            DataInputStream in = new DataInputStream(gz ? new GZIPInputStream(raw, BUFFER_BYTES) : raw);
+            if (in.readInt() != BINARY_MAGIC) throw new IOException("not a mingsha binary export: " + file);
+            in.readInt();
+            java.util.List<String> dict = new java.util.ArrayList<>();
+            int n;
+            while ((n = in.readInt()) > 0) {
+                int added = in.readInt();
+                for (int i = 0; i < added; i++) dict.add(in.readUTF());
+                long[][] longs = new long[4][n];
+                int[][] ints = new int[4][n];
+                for (long[] col : longs) {
+                    for (int i = 0; i < n; i++) col[i] = in.readLong();
+                }
+                for (int[] col : ints) {
+                    for (int i = 0; i < n; i++) col[i] = in.readInt();
+                }
+                for (int i = 0; i < n; i++) {
+                    long start = longs[2][i];
+                    long duration = longs[3][i];
+                    MethodTimeRecord r = new MethodTimeRecord(dict.get(ints[0][i]), dict.get(ints[1][i]), start, start + duration,
+                            duration, dict.get(ints[2][i]), dict.get(ints[3][i]));
+                    if (!visitor.visit(longs[1][i], r)) return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 火焰图生成：把调用路径聚合成有界调用树，流式输出折叠栈文本（collapsed stacks），或输出自包含的 SVG/HTML 火焰图。
+ * Flame graph generation: call paths are aggregated into a bounded call tree and streamed as collapsed-stack text, or rendered as a self-contained SVG/HTML flame graph.
+ * 数据来源有两种：慢查询表中带调用栈的插桩调用（按耗时加权，嵌套的慢调用不重复计算），或对运行中线程的实时栈采样（按样本数加权）。
+ * Two sources: instrumented slow calls with captured stacks from the slow table (weighted by duration, nested slow calls are not double counted), or live stack samples of running threads (weighted by sample count).
+ * 调用树节点数受 manage.flamegraph.maxNodes 限制，超出后路径在已有的最深节点处截断，内存与不同路径数无关。
+ * The tree is capped at manage.flamegraph.maxNodes nodes, further paths are cut at their deepest existing node, so memory does not grow with the number of distinct paths.
+ *
+ * @author mingsha
+ */
+public class FlameGraph {
+    public static final String FORMAT_COLLAPSED = "collapsed";
+    public static final String FORMAT_SVG = "svg";
+    public static final String FORMAT_HTML = "html";
+    static final int WIDTH = 1200;
+    static final int FRAME_HEIGHT = 16;
+    /** 窄于该像素的帧不绘制 | frames narrower than this many pixels are not drawn */
+    static final double MIN_FRAME_PX = 0.1;
+    /** 采样栈保留的最大帧数（保留根一侧）| max frames kept per sample (root side) */
+    static final int MAX_SAMPLE_DEPTH = 512;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * 生成参数。
+     * Generation options.
+     */
+    public static class Options {
+        public final String file;
+        public String format;
+        public int minutes = 60;
+        public int sampleSeconds;
+        public int intervalMs = 20;
+        public boolean count;
+
+        public Options(String file) {
+            this.file = file;
+            String lower = file.toLowerCase();
+            this.format = lower.endsWith(".svg") ? FORMAT_SVG : lower.endsWith(".html") || lower.endsWith(".htm") ? FORMAT_HTML : FORMAT_COLLAPSED;
+        }
+    }
+
+    /**
+     * 从 telnet 参数解析生成参数：&lt;文件&gt; [--minutes N] [--sample 秒] [--interval 毫秒] [--count] [--format collapsed|svg|html]。
+     * Parse options from telnet arguments: &lt;file&gt; [--minutes N] [--sample seconds] [--interval ms] [--count] [--format collapsed|svg|html].
+     * @param args 参数 | arguments
+     * @return 生成参数 | options
+     * @throws IllegalArgumentException 参数错误 | invalid arguments
+     */
+    public static Options parse(String[] args) {
+        if (args.length == 0 || args[0].isEmpty() || args[0].startsWith("--")) throw new IllegalArgumentException("missing file");
+        Options o = new Options(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--count")) {
+                o.count = true;
+            } else if (i + 1 < args.length && a.equals("--minutes")) {
+                o.minutes = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (i + 1 < args.length && a.equals("--sample")) {
+                o.sampleSeconds = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (i + 1 < args.length && a.equals("--interval")) {
+                o.intervalMs = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (i + 1 < args.length && a.equals("--format")) {
+                o.format = args[++i].toLowerCase();
+                if (!o.format.equals(FORMAT_COLLAPSED) && !o.format.equals(FORMAT_SVG) && !o.format.equals(FORMAT_HTML)) {
+                    throw new IllegalArgumentException(o.format);
+                }
+            } else {
+                throw new IllegalArgumentException(a);
+            }
+        }
+        return o;
+    }
+
+    /**
+     * 有界调用树，节点按帧名区分子节点。
+     * Bounded call tree, children keyed by frame name.
+     * inclusive 模式下记录值为包含子调用的耗时，节点总值取 max(自身记录, 子节点之和)；否则记录值为自身值，总值为两者之和。
+     * In inclusive mode recorded values include callees and a node's total is max(recorded, sum of children); otherwise values are self values and the total is their sum.
+     */
+    static class CallTree {
+        final Node root = new Node("all");
+        final boolean inclusive;
+        final int maxNodes;
+        int nodes = 1;
+        long paths;
+        long truncated;
+        private final Map<String, String> names = new HashMap<>();
+
+        CallTree(boolean inclusive, int maxNodes) {
+            this.inclusive = inclusive;
+            this.maxNodes = Math.max(1, maxNodes);
+        }
+
+        /**
+         * 累加一条调用路径。
+         * Add one call path.
+         * @param frames 从根到叶的帧名 | frame names from root to leaf
+         * @param value 值 | value
+         */
+        void add(List<String> frames, long value) {
+            if (value <= 0) return;
+            Node n = root;
+            boolean cut = false;
+            for (String frame : frames) {
+                Node child = n.children == null ? null : n.children.get(frame);
+                if (child == null) {
+                    if (nodes >= maxNodes) {
+                        cut = true;
+                        break;
+                    }
+                    // 帧名在树内共享，同名帧只保留一个字符串 | frame names are shared so each name is stored once
+                    String name = names.computeIfAbsent(frame, k -> k);
+                    child = new Node(name);
+                    if (n.children == null) n.children = new TreeMap<>();
+                    n.children.put(name, child);
+                    nodes++;
+                }
+                n = child;
+            }
+            // 截断的路径不属于该节点已有子树，计为自身值 | a cut path is not part of the node's existing subtree, count it as self
+            if (cut) {
+                n.cut += value;
+                truncated++;
+            } else {
+                n.recorded += value;
+            }
+            paths++;
+        }
+
+        /**
+         * 自底向上计算各节点总值，返回根节点总值。
+         * Compute node totals bottom-up and return the root total.
+         */
+        long finish() {
+            return total(root);
+        }
+
+        private long total(Node n) {
+            long children = 0;
+            if (n.children != null) {
+                for (Node c : n.children.values()) children += total(c);
+            }
+            n.total = (inclusive ? Math.max(n.recorded, children) : n.recorded + children) + n.cut;
+            n.self = n.total - children;
+            return n.total;
+        }
+
+        /**
+         * 流式输出折叠栈文本：每个自身值大于0的路径一行，格式为 帧;帧;帧 值。
+         * Stream collapsed-stack text: one line per path with a positive self value, formatted as frame;frame;frame value.
+         * @param w 输出 | writer
+         * @return 输出行数 | lines written
+         * @throws IOException 写入异常 | write exception
+         */
+        long writeCollapsed(Writer w) throws IOException {
+            long[] lines = {0};
+            if (root.children != null) {
+                StringBuilder path = new StringBuilder();
+                for (Node c : root.children.values()) writeCollapsed(w, c, path, lines);
+            }
+            return lines[0];
+        }
+
+        private void writeCollapsed(Writer w, Node n, StringBuilder path, long[] lines) throws IOException {
+            int mark = path.length();
+            if (mark > 0) path.append(';');
+            path.append(n.name);
+            if (n.self > 0) {
+                w.append(path).append(' ').append(Long.toString(n.self)).append('\n');
+                lines[0]++;
+            }
+            if (n.children != null) {
+                for (Node c : n.children.values()) writeCollapsed(w, c, path, lines);
+            }
+            path.setLength(mark);
+        }
+
+        /**
+         * 输出自包含的 SVG 火焰图，根在底部，窄于 0.1 像素的帧及其子帧不绘制。
+         * Write a self-contained SVG flame graph with the root at the bottom, frames narrower than 0.1 px are skipped with their children.
+         * @param w 输出 | writer
+         * @param title 标题 | title
+         * @param unit 值单位 | value unit
+         * @throws IOException 写入异常 | write exception
+         */
+        void writeSvg(Writer w, String title, String unit) throws IOException {
+            double scale = root.total == 0 ? 0 : WIDTH / (double) root.total;
+            int depth = depth(root, scale);
+            int height = (depth + 1) * FRAME_HEIGHT + 40;
+            w.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(Integer.toString(WIDTH))
+                    .append("\" height=\"").append(Integer.toString(height)).append("\" font-family=\"Verdana, sans-serif\" font-size=\"11\">\n");
+            w.append("<rect width=\"100%\" height=\"100%\" fill=\"#f8f8f8\"/>\n");
+            w.append("<text x=\"").append(Integer.toString(WIDTH / 2)).append("\" y=\"20\" text-anchor=\"middle\" font-size=\"15\">")
+                    .append(escape(title)).append("</text>\n");
+            writeFrame(w, root, 0, 0, scale, height - FRAME_HEIGHT - 4, unit);
+            w.append("</svg>\n");
+        }
+
+        private int depth(Node n, double scale) {
+            int d = 0;
+            if (n.children != null) {
+                for (Node c : n.children.values()) {
+                    if (c.total * scale >= MIN_FRAME_PX) d = Math.max(d, 1 + depth(c, scale));
+                }
+            }
+            return d;
+        }
+
+        private void writeFrame(Writer w, Node n, double x, int level, double scale, int bottom, String unit) throws IOException {
+            double width = n.total * scale;
+            if (width < MIN_FRAME_PX) return;
+            int y = bottom - level * FRAME_HEIGHT;
+            String tip = String.format("%s (%d %s, %.2f%%)", n.name, n.total, unit, n.total * 100.0 / Math.max(1, root.total));
+            w.append("<g><title>").append(escape(tip)).append("</title><rect x=\"").append(String.format("%.2f", x))
+                    .append("\" y=\"").append(Integer.toString(y)).append("\" width=\"").append(String.format("%.2f", width))
+                    .append("\" height=\"").append(Integer.toString(FRAME_HEIGHT - 1)).append("\" fill=\"").append(color(n.name))
+                    .append("\" rx=\"2\"/>");
+            int chars = (int) ((width - 6) / 7);
+            if (chars >= 3) {
+                String label = n.name.length() <= chars ? n.name : n.name.substring(0, chars - 2) + "..";
+                w.append("<text x=\"").append(String.format("%.2f", x + 3)).append("\" y=\"").append(Integer.toString(y + FRAME_HEIGHT - 4))
+                        .append("\">").append(escape(label)).append("</text>");
+            }
+            w.append("</g>\n");
+            if (n.children == null) return;
+            double cx = x;
+            for (Node c : n.children.values()) {
+                writeFrame(w, c, cx, level + 1, scale, bottom, unit);
+                cx += c.total * scale;
+            }
+        }
+    }
+
+    static final class Node {
+        final String name;
+        long recorded;
+        long cut;
+        long total;
+        long self;
+        Map<String, Node> children;
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * 同步生成火焰图。
+     * Generate a flame graph synchronously.
+     * @param o 生成参数 | options
+     * @return 结果描述 | result
+     * @throws InterruptedException 采样期间被中断 | interrupted while sampling
+     */
+    public static String generate(Options o) throws InterruptedException {
+        long t0 = System.currentTimeMillis();
+        CallTree tree;
+        String source;
+        String unit;
+        try {
+            if (o.sampleSeconds > 0) {
+                tree = sample(o.sampleSeconds, o.intervalMs);
+                source = "实时采样 " + o.sampleSeconds + " 秒";
+                unit = "samples";
+            } else {
+                tree = fromSlowCalls(o.minutes, o.count);
+                source = "最近 " + o.minutes + " 分钟慢调用栈";
+                unit = o.count ? "calls" : "us";
+            }
+        } catch (SQLException e) {
+            return "[火焰图生成失败] " + e.getMessage();
+        }
+        if (tree.paths == 0) {
+            return "[无数据] " + source + "为空" + (o.sampleSeconds > 0 ? "" : "，需开启 collector.stack.enabled 采集慢调用栈，或使用 --sample 实时采样");
+        }
+        long total = tree.finish();
+        long lines = 0;
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(o.file), StandardCharsets.UTF_8), BUFFER_BYTES)) {
+            String title = "mingsha-agent " + source;
+            if (o.format.equals(FORMAT_HTML)) {
+                w.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>").append(escape(title)).append("</title></head><body>\n");
+                tree.writeSvg(w, title, unit);
+                w.append("</body></html>\n");
+            } else if (o.format.equals(FORMAT_SVG)) {
+                tree.writeSvg(w, title, unit);
+            } else {
+                lines = tree.writeCollapsed(w);
+            }
+        } catch (IOException e) {
+            return "[火焰图写入失败] " + e.getMessage();
+        }
+        return String.format("[火焰图完成] %s -> %s（%s）, 路径 %d, 节点 %d, 截断 %d, 总计 %d %s%s, 耗时 %d ms",
+                source, o.file, o.format, tree.paths, tree.nodes, tree.truncated, total, unit,
+                o.format.equals(FORMAT_COLLAPSED) ? ", 行数 " + lines : "", System.currentTimeMillis() - t0);
+    }
+
+    /**
+     * 从慢查询表与调用栈字典构建调用树，同一调用栈的慢调用在数据库中聚合后逐行流式读取。
+     * Build the tree from the slow table and the stack dictionary, slow calls of the same stack are aggregated by the database and streamed row by row.
+     * @param minutes 最近分钟数 | recent minutes
+     * @param count 按调用次数而非耗时加权 | weight by calls instead of duration
+     * @return 调用树 | call tree
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static CallTree fromSlowCalls(int minutes, boolean count) throws SQLException {
+        CallTree tree = new CallTree(true, AgentConfig.getFlameGraphMaxNodes());
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            PreparedStatement ps = lease.prepare("SELECT d.frames, SUM(s.duration_ns), COUNT(*) FROM " + H2Storage.TABLE + "_slow s JOIN "
+                    + H2Storage.STACK_TABLE + " d ON d.id = s.stack_id WHERE s.create_time >= ? GROUP BY d.id, d.frames", 0);
+            ps.setTimestamp(1, new Timestamp(System.currentTimeMillis() - minutes * 60_000L));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String[] lines = rs.getString(1).split("\n");
+                    List<String> frames = new ArrayList<>(lines.length);
+                    // 字典中第一帧为慢方法本身，反转为从根到叶 | the dictionary lists the slow method first, reverse to root-to-leaf
+                    for (int i = lines.length - 1; i >= 0; i--) {
+                        if (!lines[i].isEmpty()) frames.add(frameName(lines[i]));
+                    }
+                    tree.add(frames, count ? rs.getLong(3) : rs.getLong(2) / 1000);
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * 对处于运行状态的应用线程做实时栈采样，跳过 Agent 自身线程。
+     * Sample the stacks of runnable application threads, skipping the agent's own threads.
+     * @param seconds 采样秒数 | sampling seconds
+     * @param intervalMs 采样间隔（毫秒）| sampling interval (ms)
+     * @return 调用树 | call tree
+     * @throws InterruptedException 被中断 | interrupted
+     */
+    static CallTree sample(int seconds, int intervalMs) throws InterruptedException {
+        CallTree tree = new CallTree(false, AgentConfig.getFlameGraphMaxNodes());
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread self = Thread.currentThread();
+        while (System.currentTimeMillis() < deadline) {
+            for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+                Thread t = e.getKey();
+                StackTraceElement[] stack = e.getValue();
+                if (t == self || stack.length == 0 || t.getState() != Thread.State.RUNNABLE || t.getName().startsWith("mingsha-agent")) continue;
+                int from = Math.min(stack.length, MAX_SAMPLE_DEPTH) - 1;
+                List<String> frames = new ArrayList<>(from + 1);
+                for (int i = stack.length - 1; i >= stack.length - 1 - from; i--) {
+                    frames.add(stack[i].getClassName() + "." + stack[i].getMethodName());
+                }
+                tree.add(frames, 1);
+            }
+            Thread.sleep(intervalMs);
+        }
+        return tree;
+    }
+
+    /**
+     * 将 StackTraceElement 文本转换为帧名：去掉类加载器/模块前缀与源文件行号。
+     * Turn StackTraceElement text into a frame name: drop the class loader/module prefix and the source line.
+     * @param element 栈帧文本，如 app//com.demo.Foo.bar(Foo.java:12) | frame text, e.g. app//com.demo.Foo.bar(Foo.java:12)
+     * @return 帧名，如 com.demo.Foo.bar | frame name, e.g. com.demo.Foo.bar
+     */
+    static String frameName(String element) {
+        int paren = element.indexOf('(');
+        String name = paren < 0 ? element : element.substring(0, paren);
+        int slash = name.lastIndexOf('/');
+        name = slash < 0 ? name : name.substring(slash + 1);
+        // 折叠栈以 ; 分隔帧、以空格分隔值 | collapsed stacks separate frames with ; and the value with a space
+        return name.trim().replace(';', ':').replace(' ', '_');
+    }
+
+    static String color(String name) {
+        int h = name.hashCode();
+        int r = 205 + Math.floorMod(h, 50);
+        int g = 80 + Math.floorMod(h >> 8, 150);
+        int b = Math.floorMod(h >> 16, 55);
+        return "rgb(" + r + "," + g + "," + b + ")";
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                case '"': sb.append("&quot;"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
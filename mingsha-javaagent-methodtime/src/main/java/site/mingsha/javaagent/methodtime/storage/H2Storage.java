@@ -1,6 +1,7 @@
 package site.mingsha.javaagent.methodtime.storage;
 
 import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.collector.StackSampler;
 import site.mingsha.javaagent.methodtime.config.AgentConfig;
 import site.mingsha.javaagent.methodtime.monitor.AgentMonitor;
 import java.sql.*;
@@ -9,6 +10,8 @@
 import java.io.IOException;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * H2 数据库存储，支持批量写入和失败转存本地文件。
@@ -19,12 +22,51 @@
  * @author mingsha
  */
 public class H2Storage {
-    private static final String USER = "sa";
-    private static final String PASSWORD = "";
-    private static final String TABLE = "method_time_stat";
+    static final String USER = "sa";
+    static final String PASSWORD = "";
+    static final String TABLE = "method_time_stat";
     private static Connection conn;
     private static AgentMonitor monitor;
     private static boolean isMemoryMode;
+    private static boolean partitioned;
+    private static boolean sharded;
+    private static boolean normalized;
+    private static Connection[] writerConns = new Connection[0];
+    /**
+     * 存储锁：采集写入线程共享读锁，可并行写入各自分片；留存清理的每个小块与补偿批次持有写锁，与采集写入互斥。
+     * Storage lock: ingest writers share the read lock and write their shards in parallel; each retention chunk and compensation batch holds the write lock, exclusive with ingestion.
+     * 公平锁保证写入不会被连续的清理块饿死。
+     * Fairness keeps ingestion from being starved by consecutive chunks.
+     */
+    static final ReentrantReadWriteLock STORAGE_LOCK = new ReentrantReadWriteLock(true);
+    private static final AtomicLong SPILL_SEQ = new AtomicLong();
+    /**
+     * 存储写入纪元：每次采集写入、补偿批次或留存清理块结束后递增，供 {@link QueryCache} 判断缓存结果是否过期。
+     * Storage write epoch: bumped after every ingest batch, compensation batch or retention chunk, so {@link QueryCache} can tell whether a cached result is stale.
+     */
+    private static final AtomicLong WRITE_EPOCH = new AtomicLong();
+    private static final String FIDELITY_TABLE = "agent_fidelity_log";
+    private static final String GOVERNOR_TABLE = "agent_governor_log";
+    static final String STACK_TABLE = "stack_dict";
+    private static final String MAIN_TABLE_DDL = "CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+            "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+            "class_name VARCHAR(255) NOT NULL, " +
+            "method_name VARCHAR(255) NOT NULL, " +
+            "start_time BIGINT NOT NULL, " +
+            "end_time BIGINT NOT NULL, " +
+            "duration_ns BIGINT NOT NULL, " +
+            "thread_name VARCHAR(128), " +
+            "extra_info VARCHAR(512), " +
+            "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
+    private static final String SLOW_TABLE_DDL = "CREATE TABLE IF NOT EXISTS " + TABLE + "_slow (" +
+            "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+            "class_name VARCHAR(255) NOT NULL, " +
+            "method_name VARCHAR(255) NOT NULL, " +
+            "duration_ns BIGINT NOT NULL, " +
+            "thread_name VARCHAR(128), " +
+            "extra_info VARCHAR(512), " +
+            "stack_id BIGINT, " +
+            "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
     public static void setMonitor(AgentMonitor m) { monitor = m; }
 
     /**
@@ -32,7 +74,7 @@ public class H2Storage {
      * Dynamically build database URL, support memory mode and file mode
      * @return 数据库连接URL | database connection URL
      */
-    private static String getDbUrl() {
+    static String getDbUrl() {
         String path = AgentConfig.getH2Path();
         if (path.startsWith("mem:")) {
             isMemoryMode = true;
@@ -56,27 +98,50 @@ private static String getDbUrl() {
      */
     public static void init() throws SQLException {
         conn = DriverManager.getConnection(getDbUrl(), USER, PASSWORD);
+        partitioned = !SegmentStorage.isEnabled() && !MVStoreStorage.isEnabled() && PartitionManager.isEnabled();
+        sharded = ShardManager.isEnabled();
+        normalized = NormalizedSchema.isEnabled();
+        // 切离 mvstore 引擎时撤销其兼容视图，恢复原物理主表
+        // When leaving the mvstore engine, drop its compatibility view and restore the original physical main table
+        if (!MVStoreStorage.isEnabled()) MVStoreStorage.dropView(conn);
         try (Statement stmt = conn.createStatement()) {
-            // 1. 创建主表（如果不存在）
-            // Create main table (if not exists)
-            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
-                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
-                    "class_name VARCHAR(255) NOT NULL, " +
-                    "method_name VARCHAR(255) NOT NULL, " +
-                    "start_time BIGINT NOT NULL, " +
-                    "end_time BIGINT NOT NULL, " +
-                    "duration_ns BIGINT NOT NULL, " +
-                    "thread_name VARCHAR(128), " +
-                    "extra_info VARCHAR(512), " +
-                    "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
-            
-            // 创建主表索引
-            // Create main table indexes
-            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_class_method ON " + TABLE + " (class_name, method_name)");
-            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_duration ON " + TABLE + " (duration_ns)");
-            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_create_time ON " + TABLE + " (create_time)");
-            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_thread ON " + TABLE + " (thread_name)");
-            
+            // 0. 未启用规范化表结构时，若之前为规范化布局则先合并回 1.0 单表
+            // Without the normalized schema, merge a previous normalized layout back into the 1.0 tables first
+            if (!normalized) NormalizedSchema.denormalize(conn, MAIN_TABLE_DDL, SLOW_TABLE_DDL);
+            if (partitioned) {
+                // 1. 分区模式：主表名为各分区的 UNION ALL 视图
+                // Partition mode: the main table name is a UNION ALL view over partitions
+                ShardManager.mergeBack(conn, MAIN_TABLE_DDL);
+                PartitionManager.init(conn);
+            } else if (sharded) {
+                // 1. 多写入线程模式：主表名为各写入分片的 UNION ALL 视图
+                // Multi-writer mode: the main table name is a UNION ALL view over writer shards
+                PartitionManager.mergeBack(conn, MAIN_TABLE_DDL);
+                ShardManager.init(conn, ShardManager.writers());
+            } else if (normalized) {
+                // 1. 规范化表结构：字典 + 整型事实表，主表与慢查询表名为兼容视图
+                // Normalized schema: dictionaries plus int-keyed facts, main and slow table names become compatibility views
+                ShardManager.mergeBack(conn, MAIN_TABLE_DDL);
+                PartitionManager.mergeBack(conn, MAIN_TABLE_DDL);
+                NormalizedSchema.init(conn);
+            } else if (MVStoreStorage.isEnabled()) {
+                // 1. MVStore 直写引擎：主表名留给表函数兼容视图（见第14步），不再建物理主表
+                // MVStore engine: the main table name goes to the table function view (see step 14), no physical main table
+                ShardManager.mergeBack(conn, MAIN_TABLE_DDL);
+                PartitionManager.mergeBack(conn, MAIN_TABLE_DDL);
+                MVStoreStorage.retireMainTable(conn);
+            } else {
+                // 1. 创建主表（如果不存在），若之前为分区或分片布局则先合并回单表
+                // Create main table (if not exists), merging partitions or shards back first if previously used
+                ShardManager.mergeBack(conn, MAIN_TABLE_DDL);
+                PartitionManager.mergeBack(conn, MAIN_TABLE_DDL);
+                stmt.executeUpdate(MAIN_TABLE_DDL);
+
+                // 按索引档位整理主表索引：query 建全部二级索引，ingest 只保留主键
+                // Align main table indexes with the profile: query creates every secondary index, ingest keeps only the primary key
+                IndexManager.applyToMainTable(stmt);
+            }
+
             // 2. 创建统计汇总表（如果不存在）
             // Create statistics summary table (if not exists)
             stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + "_summary (" +
@@ -96,22 +161,27 @@ public static void init() throws SQLException {
             stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_avg_duration ON " + TABLE + "_summary (avg_duration_ns)");
             stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_total_calls ON " + TABLE + "_summary (total_calls)");
             
-            // 3. 创建慢查询表（如果不存在）
-            // Create slow query table (if not exists)
-            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + "_slow (" +
-                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
-                    "class_name VARCHAR(255) NOT NULL, " +
-                    "method_name VARCHAR(255) NOT NULL, " +
-                    "duration_ns BIGINT NOT NULL, " +
-                    "thread_name VARCHAR(128), " +
-                    "extra_info VARCHAR(512), " +
+            // 3. 创建慢查询表（如果不存在），规范化表结构下为兼容视图
+            // Create slow query table (if not exists), a compatibility view under the normalized schema
+            if (!normalized) {
+                stmt.executeUpdate(SLOW_TABLE_DDL);
+
+                // 创建慢查询表索引
+                // Create slow query table indexes
+                stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_duration_slow ON " + TABLE + "_slow (duration_ns)");
+                stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_create_time_slow ON " + TABLE + "_slow (create_time)");
+                // 旧库补充调用栈ID列 | add the stack id column to older databases
+                stmt.executeUpdate("ALTER TABLE " + TABLE + "_slow ADD COLUMN IF NOT EXISTS stack_id BIGINT");
+                stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_stack_slow ON " + TABLE + "_slow (stack_id)");
+            }
+            // 慢调用栈字典表，慢查询表通过 stack_id 引用
+            // Slow call stack dictionary, referenced by stack_id of the slow table
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + STACK_TABLE + " (" +
+                    "id BIGINT PRIMARY KEY, " +
+                    "depth INT NOT NULL, " +
+                    "frames VARCHAR(16384) NOT NULL, " +
                     "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
             
-            // 创建慢查询表索引
-            // Create slow query table indexes
-            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_duration_slow ON " + TABLE + "_slow (duration_ns)");
-            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_create_time_slow ON " + TABLE + "_slow (create_time)");
-            
             // 4. 创建数据库版本表（如果不存在）
             // Create database version table (if not exists)
             stmt.executeUpdate("CREATE TABLE IF NOT EXISTS db_version (" +
@@ -122,10 +192,76 @@ public static void init() throws SQLException {
             // 5. 插入或更新数据库版本信息
             // Insert or update database version info
             stmt.executeUpdate("MERGE INTO db_version (version, description) VALUES ('1.0', 'Initial schema with main table, summary table, slow query table')");
+            if (normalized) NormalizedSchema.recordVersion(stmt);
+
+            // 6. 创建留存清理检查点表
+            // Create retention checkpoint table
+            RetentionWorker.createTable(stmt);
+
+            // 7. 创建转存补偿检查点表
+            // Create spill compensation checkpoint table
+            Compensator.createTable(stmt);
+
+            // 8. 创建采集保真度调整日志表，记录背压降级/恢复区间
+            // Create fidelity log table recording backpressure degrade/recover periods
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + FIDELITY_TABLE + " (" +
+                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "level INT NOT NULL, " +
+                    "sampling_rate DOUBLE NOT NULL, " +
+                    "batch_size INT NOT NULL, " +
+                    "queue_usage DOUBLE, " +
+                    "writer_latency_ms DOUBLE, " +
+                    "reason VARCHAR(255), " +
+                    "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            
+            // 9. 创建分钟耗时直方图汇总表，供分位数查询
+            // Create the per-minute latency histogram rollup table for percentile queries
+            HistogramStore.createTable(stmt);
+
+            // 10. 创建基线快照表，供发布前后对比耗时回归
+            // Create the baseline snapshot tables for comparing latency regressions across deploys
+            SnapshotStore.createTable(stmt);
+
+            // 11. 创建开销调控日志表，审计探针级别切换
+            // Create the governor log table auditing probe level transitions
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + GOVERNOR_TABLE + " (" +
+                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "from_level INT NOT NULL, " +
+                    "to_level INT NOT NULL, " +
+                    "overhead_pct DOUBLE, " +
+                    "cpu_pct DOUBLE, " +
+                    "sampling_rate DOUBLE, " +
+                    "reason VARCHAR(255), " +
+                    "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
             
             System.out.println("[mingsha-agent][数据库] 数据库初始化完成，已创建主表、汇总表、慢查询表");
             System.out.println("[mingsha-agent][数据库] Database initialization completed, created main table, summary table, slow query table");
         }
+        // 12. 每个写入线程一个独立连接，分片0沿用主连接
+        // One connection per writer thread, shard 0 reuses the main connection
+        int writers = ShardManager.writers();
+        writerConns = new Connection[writers];
+        writerConns[0] = conn;
+        for (int i = 1; i < writers; i++) {
+            writerConns[i] = DriverManager.getConnection(getDbUrl(), USER, PASSWORD);
+        }
+        // 13. 段存储引擎：原始记录改写入列式段文件，汇总表与慢查询表仍在 H2
+        // Segment engine: raw records go to columnar segment files, summary and slow tables stay in H2
+        if (SegmentStorage.isEnabled()) {
+            try {
+                SegmentStorage.init();
+            } catch (IOException e) {
+                throw new SQLException("segment storage init failed: " + e.getMessage(), e);
+            }
+        }
+        // 14. MVStore 直写引擎：原始记录绕过 SQL 直接写入 MVStore，通过表函数视图提供 SQL 查询
+        // MVStore engine: raw records bypass SQL into the MVStore, SQL queries go through a table function view
+        if (MVStoreStorage.isEnabled()) {
+            MVStoreStorage.init();
+            try (Statement stmt = conn.createStatement()) {
+                MVStoreStorage.createView(stmt);
+            }
+        }
     }
 
     /**
@@ -136,24 +272,46 @@ public static void init() throws SQLException {
      * @param records 采集数据批量 | batch of method time records
      */
     public static void batchInsert(List<MethodTimeRecord> records) {
+        batchInsert(0, records);
+    }
+
+    /**
+     * 由指定写入线程批量写入其分片的数据，各写入线程使用独立连接并行写入。
+     * Batch insert records of one writer shard; writers use their own connections and run in parallel.
+     * @param shard 写入分片号 | writer shard index
+     * @param records 采集数据批量 | batch of method time records
+     */
+    public static void batchInsert(int shard, List<MethodTimeRecord> records) {
         if (records == null || records.isEmpty()) return;
-        
-        // 1. 写入主表
-        // Write to main table
-        String sql = "INSERT INTO " + TABLE + " (class_name, method_name, start_time, end_time, duration_ns, thread_name, extra_info) VALUES (?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            for (MethodTimeRecord r : records) {
-                ps.setString(1, r.className);
-                ps.setString(2, r.methodName);
-                ps.setLong(3, r.startTime);
-                ps.setLong(4, r.endTime);
-                ps.setLong(5, r.durationNs);
-                ps.setString(6, r.threadName);
-                ps.setString(7, r.extraInfo);
-                ps.addBatch();
+        Connection c = shard < writerConns.length ? writerConns[shard] : conn;
+        // 留存清理持有写锁时等待其当前小块提交，并计入写入等待时间
+        // If retention holds the write lock, wait for its current chunk to commit and account the wait
+        ReentrantReadWriteLock.ReadLock lock = STORAGE_LOCK.readLock();
+        if (!lock.tryLock()) {
+            long waitStart = System.nanoTime();
+            lock.lock();
+            RetentionWorker.recordIngestWait(System.nanoTime() - waitStart);
+        }
+        try {
+            doBatchInsert(c, shard, records);
+        } finally {
+            lock.unlock();
+            markWritten();
+        }
+    }
+
+    private static void doBatchInsert(Connection c, int shard, List<MethodTimeRecord> records) {
+        // 1. 写入原始记录（主表、段存储或 MVStore）
+        // Write raw records (main table, segment storage or MVStore)
+        try {
+            if (SegmentStorage.isEnabled()) {
+                SegmentStorage.append(records);
+            } else if (MVStoreStorage.isEnabled()) {
+                MVStoreStorage.append(records);
+            } else {
+                insertMainTable(c, shard, records);
             }
-            ps.executeBatch();
-        } catch (SQLException e) {
+        } catch (SQLException | IOException | RuntimeException e) {
             // 写入失败，转存本地文件 | failover to local file on error
             if (monitor != null) monitor.recordWriteError();
             saveToLocal(records);
@@ -163,7 +321,7 @@ public static void batchInsert(List<MethodTimeRecord> records) {
         // 2. 自动汇总统计
         // Auto summary statistics
         try {
-            updateSummaryStatistics(records);
+            updateSummaryStatistics(c, records);
         } catch (SQLException e) {
             System.err.println("[mingsha-agent][汇总] 汇总统计失败: " + e.getMessage());
         }
@@ -171,10 +329,144 @@ public static void batchInsert(List<MethodTimeRecord> records) {
         // 3. 识别并记录慢查询
         // Identify and record slow queries
         try {
-            recordSlowQueries(records);
+            recordSlowQueries(c, records);
         } catch (SQLException e) {
             System.err.println("[mingsha-agent][慢查询] 慢查询记录失败: " + e.getMessage());
         }
+
+        // 4. 累计分钟耗时直方图
+        // Accumulate per-minute latency histograms
+        try {
+            HistogramStore.record(c, shard, records);
+        } catch (SQLException e) {
+            System.err.println("[mingsha-agent][直方图] 分钟直方图写入失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 在调用方给定的连接上写入主表原始记录、汇总统计、慢查询与回放直方图，任一步失败即抛出，由调用方决定回滚。
+     * Write main-table raw records, summary, slow queries and replayed histograms on the caller's connection, throwing on any failure so the caller can roll back.
+     * 直方图按转存时刻分钟累计，调用方提交后须将返回值交给 {@link HistogramStore#applyReplayed}。
+     * Histograms accumulate into the spill minute; after committing the caller must hand the result to {@link HistogramStore#applyReplayed}.
+     * 段存储与 MVStore 引擎不在 JDBC 事务内，原始记录改由调用方提交后经 {@link #appendExternal} 写入。
+     * Segment and MVStore engines sit outside the JDBC transaction, their raw records are written by the caller via {@link #appendExternal} after commit.
+     * @param c 数据库连接 | database connection
+     * @param timeMs 转存时刻 | spill time (ms)
+     * @param records 采集数据批量 | batch of method time records
+     * @return 待并入内存的直方图增量 | histogram deltas to fold into memory
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static HistogramStore.Replayed writeRecords(Connection c, long timeMs, List<MethodTimeRecord> records) throws SQLException {
+        if (!SegmentStorage.isEnabled() && !MVStoreStorage.isEnabled()) {
+            insertMainTable(c, 0, records);
+        }
+        updateSummaryStatistics(c, records);
+        recordSlowQueries(c, records);
+        return HistogramStore.replay(c, timeMs, records);
+    }
+
+    /**
+     * 将原始记录写入非 JDBC 引擎（段存储或 MVStore），使用主表时不做任何事。
+     * Write raw records into the non-JDBC engine (segment storage or MVStore), a no-op when the main table is used.
+     * @param records 采集数据批量 | batch of method time records
+     * @throws IOException 段存储IO异常 | segment storage IO exception
+     */
+    static void appendExternal(List<MethodTimeRecord> records) throws IOException {
+        if (SegmentStorage.isEnabled()) {
+            SegmentStorage.append(records);
+        } else if (MVStoreStorage.isEnabled()) {
+            MVStoreStorage.append(records);
+        }
+    }
+
+    /**
+     * 写入主表。
+     * Insert records into the main table.
+     * @param c 数据库连接 | database connection
+     * @param shard 写入分片号 | writer shard index
+     * @param records 采集数据批量 | batch of method time records
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    private static void insertMainTable(Connection c, int shard, List<MethodTimeRecord> records) throws SQLException {
+        if (normalized) {
+            NormalizedSchema.insertFacts(c, records);
+            return;
+        }
+        String table = partitioned ? PartitionManager.currentTable(c, System.currentTimeMillis())
+                : sharded ? ShardManager.tableOf(shard) : TABLE;
+        String sql = "INSERT INTO " + table + " (class_name, method_name, start_time, end_time, duration_ns, thread_name, extra_info) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            for (MethodTimeRecord r : records) {
+                ps.setString(1, r.className);
+                ps.setString(2, r.methodName);
+                ps.setLong(3, r.startTime);
+                ps.setLong(4, r.endTime);
+                ps.setLong(5, r.durationNs);
+                ps.setString(6, r.threadName);
+                ps.setString(7, r.extraInfo);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        if (partitioned) PartitionManager.addRows(records.size());
+    }
+
+    /**
+     * 记录一次采集保真度调整（背压降级或恢复）。
+     * Record one collection fidelity adjustment (backpressure degrade or recover).
+     * @param level 降级级别，0为全量 | degrade level, 0 means full fidelity
+     * @param samplingRate 实际采样率 | effective sampling rate
+     * @param batchSize 实际批量大小 | effective batch size
+     * @param queueUsage 队列使用率（0~1）| queue usage (0~1)
+     * @param writerLatencyMs 写入延迟（毫秒）| writer latency (ms)
+     * @param reason 原因 | reason
+     */
+    public static void recordFidelityChange(int level, double samplingRate, int batchSize, double queueUsage, double writerLatencyMs, String reason) {
+        if (conn == null) return;
+        STORAGE_LOCK.readLock().lock();
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + FIDELITY_TABLE +
+                " (level, sampling_rate, batch_size, queue_usage, writer_latency_ms, reason) VALUES (?, ?, ?, ?, ?, ?)")) {
+            ps.setInt(1, level);
+            ps.setDouble(2, samplingRate);
+            ps.setInt(3, batchSize);
+            ps.setDouble(4, queueUsage);
+            ps.setDouble(5, writerLatencyMs);
+            ps.setString(6, reason);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("[mingsha-agent][背压] 保真度日志写入失败: " + e.getMessage());
+        } finally {
+            STORAGE_LOCK.readLock().unlock();
+        }
+    }
+
+    /**
+     * 记录一次开销调控级别切换。
+     * Record one overhead governor level transition.
+     * @param from 原级别 | previous level
+     * @param to 新级别 | new level
+     * @param overheadPct agent 开销占进程 CPU 的百分比 | agent overhead as a percent of process CPU
+     * @param cpuPct 进程 CPU 百分比 | process CPU percent
+     * @param samplingRate 切换后的实际采样率 | effective sampling rate after the transition
+     * @param reason 原因 | reason
+     */
+    public static void recordGovernorChange(int from, int to, double overheadPct, double cpuPct, double samplingRate, String reason) {
+        if (conn == null) return;
+        STORAGE_LOCK.readLock().lock();
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + GOVERNOR_TABLE +
+                " (from_level, to_level, overhead_pct, cpu_pct, sampling_rate, reason) VALUES (?, ?, ?, ?, ?, ?)")) {
+            ps.setInt(1, from);
+            ps.setInt(2, to);
+            ps.setDouble(3, overheadPct);
+            ps.setDouble(4, cpuPct);
+            ps.setDouble(5, samplingRate);
+            ps.setString(6, reason);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("[mingsha-agent][调控] 调控日志写入失败: " + e.getMessage());
+        } finally {
+            STORAGE_LOCK.readLock().unlock();
+        }
     }
 
     /**
@@ -183,11 +475,13 @@ public static void batchInsert(List<MethodTimeRecord> records) {
      * @param records 采集数据批量 | batch of method time records
      */
     private static void saveToLocal(List<MethodTimeRecord> records) {
-        String file = "method_time_backup_" + System.currentTimeMillis() + ".csv";
-        try (FileWriter fw = new FileWriter(file, true)) {
+        // 每批独立文件名，补偿以文件内行号作为记录序号，追加写入会破坏已记录的检查点
+        // One file per batch: compensation uses the line number as record sequence, appending would invalidate checkpoints
+        String file = Compensator.FILE_PREFIX + System.currentTimeMillis() + "_" + SPILL_SEQ.incrementAndGet() + Compensator.FILE_SUFFIX;
+        try (FileWriter fw = new FileWriter(file)) {
             for (MethodTimeRecord r : records) {
                 fw.write(String.format("%s,%s,%d,%d,%d,%s,%s\n",
-                        r.className, r.methodName, r.startTime, r.endTime, r.durationNs, r.threadName, r.extraInfo));
+                        r.className, r.methodName, r.startTime, r.endTime, r.durationNs, sanitize(r.threadName).replace(',', ' '), sanitize(r.extraInfo)));
             }
         } catch (IOException ignore) { if (monitor != null) monitor.recordFailoverError(); }
     }
@@ -195,10 +489,12 @@ private static void saveToLocal(List<MethodTimeRecord> records) {
     /**
      * 更新汇总统计表，自动计算各方法的调用次数、总耗时、平均耗时等。
      * Update summary statistics table, auto-calculate call count, total duration, avg duration, etc.
+     * 本批统计累加到已有行上（次数、总耗时相加，最小/最大取极值，平均值重算），留存清理据此扣减已删除的记录。
+     * Batch statistics accumulate onto the existing row (calls and total added, min/max widened, average recomputed) so retention can subtract deleted rows from it.
      * @param records 采集数据批量 | batch of method time records
      * @throws SQLException 数据库异常 | SQL exception
      */
-    private static void updateSummaryStatistics(List<MethodTimeRecord> records) throws SQLException {
+    private static void updateSummaryStatistics(Connection c, List<MethodTimeRecord> records) throws SQLException {
         // 按类名+方法名分组统计
         // Group by class_name + method_name
         java.util.Map<String, java.util.List<MethodTimeRecord>> groupedRecords = new java.util.HashMap<>();
@@ -209,11 +505,16 @@ private static void updateSummaryStatistics(List<MethodTimeRecord> records) thro
         
         // 批量更新汇总表
         // Batch update summary table
-        String upsertSql = "MERGE INTO " + TABLE + "_summary (class_name, method_name, total_calls, total_duration_ns, avg_duration_ns, min_duration_ns, max_duration_ns, last_update) " +
-                "KEY(class_name, method_name) " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)";
+        String upsertSql = "MERGE INTO " + TABLE + "_summary s USING (SELECT CAST(? AS VARCHAR(255)) AS class_name, CAST(? AS VARCHAR(255)) AS method_name, " +
+                "CAST(? AS BIGINT) AS c, CAST(? AS BIGINT) AS d, CAST(? AS BIGINT) AS a, CAST(? AS BIGINT) AS mn, CAST(? AS BIGINT) AS mx) b " +
+                "ON s.class_name = b.class_name AND s.method_name = b.method_name " +
+                "WHEN MATCHED THEN UPDATE SET total_calls = s.total_calls + b.c, total_duration_ns = s.total_duration_ns + b.d, " +
+                "avg_duration_ns = (s.total_duration_ns + b.d) / (s.total_calls + b.c), " +
+                "min_duration_ns = LEAST(s.min_duration_ns, b.mn), max_duration_ns = GREATEST(s.max_duration_ns, b.mx), last_update = CURRENT_TIMESTAMP " +
+                "WHEN NOT MATCHED THEN INSERT (class_name, method_name, total_calls, total_duration_ns, avg_duration_ns, min_duration_ns, max_duration_ns, last_update) " +
+                "VALUES (b.class_name, b.method_name, b.c, b.d, b.a, b.mn, b.mx, CURRENT_TIMESTAMP)";
         
-        try (PreparedStatement ps = conn.prepareStatement(upsertSql)) {
+        try (PreparedStatement ps = c.prepareStatement(upsertSql)) {
             for (java.util.Map.Entry<String, java.util.List<MethodTimeRecord>> entry : groupedRecords.entrySet()) {
                 String[] parts = entry.getKey().split("\\|");
                 String className = parts[0];
@@ -247,7 +548,7 @@ private static void updateSummaryStatistics(List<MethodTimeRecord> records) thro
      * @param records 采集数据批量 | batch of method time records
      * @throws SQLException 数据库异常 | SQL exception
      */
-    private static void recordSlowQueries(List<MethodTimeRecord> records) throws SQLException {
+    private static void recordSlowQueries(Connection c, List<MethodTimeRecord> records) throws SQLException {
         // 获取慢查询阈值（默认1ms）
         // Get slow query threshold (default 1ms)
         long slowThresholdNs = AgentConfig.getSlowQueryThresholdNs();
@@ -259,169 +560,117 @@ private static void recordSlowQueries(List<MethodTimeRecord> records) throws SQL
                 .collect(java.util.stream.Collectors.toList());
         
         if (slowRecords.isEmpty()) return;
+        if (normalized) {
+            NormalizedSchema.insertSlow(c, slowRecords);
+            recordStacks(c, slowRecords);
+            return;
+        }
         
         // 批量插入慢查询表
         // Batch insert to slow query table
-        String insertSql = "INSERT INTO " + TABLE + "_slow (class_name, method_name, duration_ns, thread_name, extra_info) VALUES (?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(insertSql)) {
+        String insertSql = "INSERT INTO " + TABLE + "_slow (class_name, method_name, duration_ns, thread_name, extra_info, stack_id) VALUES (?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement ps = c.prepareStatement(insertSql)) {
             for (MethodTimeRecord record : slowRecords) {
                 ps.setString(1, record.className);
                 ps.setString(2, record.methodName);
                 ps.setLong(3, record.durationNs);
                 ps.setString(4, record.threadName);
                 ps.setString(5, record.extraInfo);
+                setStackId(ps, 6, record.stackId);
                 ps.addBatch();
             }
             ps.executeBatch();
         }
+        recordStacks(c, slowRecords);
     }
 
-    /**
-     * 自动补偿本地转存数据入库（启动和定时调用）。
-     * Auto-compensate local backup files into DB (on startup and scheduled).
-     */
-    public static void compensateLocalFiles() {
-        File dir = new File(".");
-        File[] files = dir.listFiles((d, name) -> name.startsWith("method_time_backup_") && name.endsWith(".csv"));
-        if (files == null) return;
-        for (File file : files) {
-            try (java.io.BufferedReader br = new java.io.BufferedReader(new java.io.FileReader(file))) {
-                String line;
-                ArrayList<MethodTimeRecord> batch = new ArrayList<>();
-                while ((line = br.readLine()) != null) {
-                    String[] arr = line.split(",", 7);
-                    if (arr.length == 7) {
-                        batch.add(new MethodTimeRecord(arr[0], arr[1], Long.parseLong(arr[2]), Long.parseLong(arr[3]), Long.parseLong(arr[4]), arr[5], arr[6]));
-                    }
-                    if (batch.size() >= AgentConfig.getBatchSize()) {
-                        batchInsert(batch);
-                        batch.clear();
-                    }
-                }
-                if (!batch.isEmpty()) batchInsert(batch);
-                br.close();
-                if (file.delete()) {
-                    System.out.println("[mingsha-agent][补偿] 已成功补偿并删除 " + file.getName());
-                }
-            } catch (Exception e) {
-                System.err.println("[mingsha-agent][补偿] 补偿文件 " + file.getName() + " 失败: " + e.getMessage());
-            }
+    static void setStackId(PreparedStatement ps, int index, long stackId) throws SQLException {
+        if (stackId == 0) {
+            ps.setNull(index, Types.BIGINT);
+        } else {
+            ps.setLong(index, stackId);
         }
     }
 
     /**
-     * 导出全部采集数据为CSV文件。
-     * Export all method time records to CSV file.
-     * @param outFile 导出文件名 | output file name
-     * @return 导出结果 | export result
+     * 将慢查询引用的调用栈写入字典表，同一批次内按栈ID去重。
+     * Write the stacks referenced by slow records to the dictionary, deduplicated by id within the batch.
+     * @param c 数据库连接 | database connection
+     * @param slowRecords 慢查询记录 | slow records
+     * @throws SQLException 数据库异常 | SQL exception
      */
-    public static String exportAllToCsv(String outFile) {
-        try (Connection c = DriverManager.getConnection(getDbUrl(), USER, PASSWORD);
-             Statement s = c.createStatement();
-             ResultSet rs = s.executeQuery("SELECT * FROM " + TABLE);
-             FileWriter fw = new FileWriter(outFile)) {
-            int colCount = rs.getMetaData().getColumnCount();
-            // 写表头 | write header
-            for (int i = 1; i <= colCount; i++) {
-                fw.write(rs.getMetaData().getColumnName(i));
-                if (i < colCount) fw.write(",");
-            }
-            fw.write("\n");
-            // 写数据 | write data
-            while (rs.next()) {
-                for (int i = 1; i <= colCount; i++) {
-                    fw.write(rs.getString(i));
-                    if (i < colCount) fw.write(",");
-                }
-                fw.write("\n");
+    static void recordStacks(Connection c, List<MethodTimeRecord> slowRecords) throws SQLException {
+        java.util.Set<Long> ids = new java.util.HashSet<>();
+        for (MethodTimeRecord r : slowRecords) {
+            if (r.stackId != 0) ids.add(r.stackId);
+        }
+        if (ids.isEmpty()) return;
+        try (PreparedStatement ps = c.prepareStatement("MERGE INTO " + STACK_TABLE + " (id, depth, frames) KEY (id) VALUES (?, ?, ?)")) {
+            for (long id : ids) {
+                StackSampler.Stack stack = StackSampler.get(id);
+                if (stack == null) continue;
+                ps.setLong(1, id);
+                ps.setInt(2, stack.depth);
+                ps.setString(3, stack.frames.length() > 16384 ? stack.frames.substring(0, 16384) : stack.frames);
+                ps.addBatch();
             }
-            return "[导出成功] " + outFile;
-        } catch (Exception e) {
-            return "[导出失败] " + e.getMessage();
+            ps.executeBatch();
         }
     }
 
+    private static String sanitize(String v) {
+        return v == null ? "" : v.replace('\n', ' ').replace('\r', ' ');
+    }
+
     /**
-     * 定期清理历史数据，根据内存模式和文件模式采用不同的驱逐策略。
-     * Periodically clean up old records, use different eviction strategies for memory mode and file mode.
-     * 内存模式：优先按条数清理，防止内存溢出。
-     * Memory mode: prioritize cleaning by row count to prevent memory overflow.
-     * 文件模式：优先按时间清理，保证数据持久性。
-     * File mode: prioritize cleaning by time to ensure data persistence.
+     * 同步执行一轮本地转存数据补偿，后台定时补偿见 {@link Compensator#createThread(long)}。
+     * Run one synchronous compensation round of local spill files, see {@link Compensator#createThread(long)} for the background stream.
      */
-    public static void cleanHistory() {
-        try (Statement stmt = conn.createStatement()) {
-            int days = AgentConfig.getRetentionDays();
-            int rows = AgentConfig.getRetentionRows();
-            
-            if (isMemoryMode) {
-                // 内存模式：优先按条数清理，防止内存溢出
-                // Memory mode: prioritize cleaning by row count to prevent memory overflow
-                cleanHistoryForMemoryMode(stmt, rows, days);
-            } else {
-                // 文件模式：优先按时间清理，保证数据持久性
-                // File mode: prioritize cleaning by time to ensure data persistence
-                cleanHistoryForFileMode(stmt, days, rows);
-            }
-            
-            // 重新计算汇总表（基于清理后的主表数据）
-            // Recalculate summary table (based on cleaned main table)
-            recalculateSummaryTable(stmt);
-            
-            String mode = isMemoryMode ? "内存模式" : "文件模式";
-            System.out.println("[mingsha-agent][清理] " + mode + "历史数据清理完成，已清理主表和慢查询表，重新计算汇总表");
-        } catch (SQLException e) {
-            System.err.println("[mingsha-agent][清理] H2历史数据清理异常: " + e.getMessage());
+    public static void compensateLocalFiles() {
+        try {
+            Compensator.runOnce();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * 内存模式数据清理策略：优先按条数清理，防止内存溢出
-     * Memory mode data cleanup strategy: prioritize cleaning by row count to prevent memory overflow
+     * 导出全部采集数据为CSV文件，流式读取并缓冲写出，详见 {@link Exporter}。
+     * Export all method time records to CSV file, streamed and buffered, see {@link Exporter}.
+     * @param outFile 导出文件名 | output file name
+     * @return 导出结果 | export result
      */
-    private static void cleanHistoryForMemoryMode(Statement stmt, int maxRows, int maxDays) throws SQLException {
-        // 1. 优先按条数清理主表（保留最新的maxRows条）
-        // Prioritize cleaning main table by row count (keep latest maxRows)
-        stmt.executeUpdate("DELETE FROM " + TABLE + " WHERE id NOT IN (SELECT id FROM " + TABLE + " ORDER BY id DESC LIMIT " + maxRows + ")");
-        
-        // 2. 如果条数清理后仍有超过maxDays的数据，再按时间清理
-        // If there are still records older than maxDays after row count cleaning, clean by time
-        stmt.executeUpdate("DELETE FROM " + TABLE + " WHERE create_time < DATEADD('DAY', -" + maxDays + ", CURRENT_TIMESTAMP)");
-        
-        // 3. 慢查询表也按条数优先清理
-        // Clean slow query table by row count first
-        stmt.executeUpdate("DELETE FROM " + TABLE + "_slow WHERE id NOT IN (SELECT id FROM " + TABLE + "_slow ORDER BY id DESC LIMIT " + (maxRows / 10) + ")");
-        stmt.executeUpdate("DELETE FROM " + TABLE + "_slow WHERE create_time < DATEADD('DAY', -" + maxDays + ", CURRENT_TIMESTAMP)");
+    public static String exportAllToCsv(String outFile) {
+        return Exporter.export(new Exporter.Options(outFile), null);
     }
 
     /**
-     * 文件模式数据清理策略：优先按时间清理，保证数据持久性
-     * File mode data cleanup strategy: prioritize cleaning by time to ensure data persistence
+     * 执行一轮历史数据清理，按ID范围分块删除，不阻塞采集写入。
+     * Run one history cleanup pass, deleting in id-range chunks without blocking ingestion.
+     * 内存模式慢查询表额外按条数上限清理，防止内存溢出；详见 {@link RetentionWorker}。
+     * In memory mode the slow table is additionally capped by rows to prevent memory overflow; see {@link RetentionWorker}.
      */
-    private static void cleanHistoryForFileMode(Statement stmt, int maxDays, int maxRows) throws SQLException {
-        // 1. 优先按时间清理主表
-        // Prioritize cleaning main table by time
-        stmt.executeUpdate("DELETE FROM " + TABLE + " WHERE create_time < DATEADD('DAY', -" + maxDays + ", CURRENT_TIMESTAMP)");
-        
-        // 2. 如果时间清理后仍有超过maxRows的数据，再按条数清理
-        // If there are still more than maxRows records after time cleaning, clean by row count
-        stmt.executeUpdate("DELETE FROM " + TABLE + " WHERE id NOT IN (SELECT id FROM " + TABLE + " ORDER BY id DESC LIMIT " + maxRows + ")");
-        
-        // 3. 慢查询表也按时间优先清理
-        // Clean slow query table by time first
-        stmt.executeUpdate("DELETE FROM " + TABLE + "_slow WHERE create_time < DATEADD('DAY', -" + maxDays + ", CURRENT_TIMESTAMP)");
+    public static void cleanHistory() {
+        RetentionWorker.runOnce();
     }
 
     /**
-     * 重新计算汇总表
-     * Recalculate summary table
+     * 从汇总表中扣减即将删除的记录的调用次数与总耗时，调用次数归零的方法从汇总表移除。
+     * Subtract calls and total duration of rows about to be deleted from the summary, removing methods whose calls drop to zero.
+     * 最小/最大耗时保留为历史极值，不随删除回退。
+     * Min/max durations stay as historical extremes and are not rolled back.
+     * @param stmt 语句 | statement
+     * @param source 待删除记录的来源（表名，可带 WHERE 条件）| source of rows to delete (table name, optionally with WHERE)
+     * @throws SQLException 数据库异常 | SQL exception
      */
-    private static void recalculateSummaryTable(Statement stmt) throws SQLException {
-        stmt.executeUpdate("DELETE FROM " + TABLE + "_summary");
-        stmt.executeUpdate("INSERT INTO " + TABLE + "_summary (class_name, method_name, total_calls, total_duration_ns, avg_duration_ns, min_duration_ns, max_duration_ns) " +
-                "SELECT class_name, method_name, COUNT(*) as total_calls, SUM(duration_ns) as total_duration_ns, " +
-                "AVG(duration_ns) as avg_duration_ns, MIN(duration_ns) as min_duration_ns, MAX(duration_ns) as max_duration_ns " +
-                "FROM " + TABLE + " GROUP BY class_name, method_name");
+    static void subtractFromSummary(Statement stmt, String source) throws SQLException {
+        stmt.executeUpdate("MERGE INTO " + TABLE + "_summary s USING (" +
+                "SELECT class_name, method_name, COUNT(*) AS c, SUM(duration_ns) AS d FROM " + source + " GROUP BY class_name, method_name) p " +
+                "ON s.class_name = p.class_name AND s.method_name = p.method_name " +
+                "WHEN MATCHED THEN UPDATE SET total_calls = GREATEST(s.total_calls - p.c, 0), " +
+                "total_duration_ns = GREATEST(s.total_duration_ns - p.d, 0), " +
+                "avg_duration_ns = CASE WHEN s.total_calls - p.c > 0 THEN (s.total_duration_ns - p.d) / (s.total_calls - p.c) ELSE 0 END");
+        stmt.executeUpdate("DELETE FROM " + TABLE + "_summary WHERE total_calls = 0");
     }
 
     /**
@@ -431,16 +680,54 @@ private static void recalculateSummaryTable(Statement stmt) throws SQLException
      * @return 清理线程 | cleanup thread
      */
     public static Thread createCleanerThread(long intervalMs) {
-        return new Thread(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    cleanHistory();
-                    Thread.sleep(intervalMs);
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
-        }, "mingsha-agent-h2cleaner");
+        return RetentionWorker.createThread(intervalMs);
+    }
+
+    /**
+     * 打开一个独立的数据库连接，供后台任务使用，避免与写入线程共享事务。
+     * Open a separate database connection for background tasks so they do not share transactions with the writer.
+     * @return 数据库连接 | database connection
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(getDbUrl(), USER, PASSWORD);
+    }
+
+    static Connection sharedConnection() {
+        return conn;
+    }
+
+    /**
+     * 递增存储写入纪元，由各写入路径在释放存储锁后调用。
+     * Bump the storage write epoch, called by every write path after releasing the storage lock.
+     */
+    static void markWritten() {
+        WRITE_EPOCH.incrementAndGet();
+    }
+
+    /**
+     * 获取当前存储写入纪元。
+     * Get the current storage write epoch.
+     * @return 纪元 | epoch
+     */
+    public static long writeEpoch() {
+        return WRITE_EPOCH.get();
+    }
+
+    static boolean isMemoryMode() {
+        return isMemoryMode;
+    }
+
+    static boolean isPartitioned() {
+        return partitioned;
+    }
+
+    static boolean isSharded() {
+        return sharded;
+    }
+
+    static boolean isNormalized() {
+        return normalized;
     }
 
     /**
@@ -448,6 +735,16 @@ public static Thread createCleanerThread(long intervalMs) {
      * Close the database connection.
      */
     public static void close() {
+        for (int i = 1; i < writerConns.length; i++) {
+            try { if (writerConns[i] != null) writerConns[i].close(); } catch (SQLException ignore) {}
+        }
+        writerConns = new Connection[0];
+        QueryPool.close();
+        QueryCache.clear();
+        HistogramStore.reset();
+        NormalizedSchema.close();
         try { if (conn != null) conn.close(); } catch (SQLException ignore) {}
+        SegmentStorage.close();
+        MVStoreStorage.close();
     }
 } 
\ No newline at end of file
@@ -0,0 +1,295 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.LatencyHistogram;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 分钟级耗时直方图汇总存储：每个方法每分钟一行，保存调用次数、总耗时、最大耗时与稀疏编码的 {@link LatencyHistogram} 桶。
+ * Per-minute latency histogram rollups: one row per method per minute holding calls, total and max duration plus the sparse-encoded {@link LatencyHistogram} buckets.
+ * 写入线程在内存中累计当前分钟的直方图，每批覆盖写入对应行，不需要先读后写；分位数查询只合并窗口内的分钟行，不排序原始记录。
+ * Writers accumulate the current minute in memory and overwrite its row with every batch, so there is no read-modify-write; percentile queries merge the minute rows in the window instead of sorting raw records.
+ * 同一方法始终由同一写入线程处理，各写入线程的当前分钟状态互不共享；进程重启后首次写入某方法时先载入已有的当前分钟行再累计。
+ * A method is always handled by the same writer so writers keep separate current-minute state; after a restart the existing row of the current minute is loaded before accumulating.
+ * 内存状态只在汇总行写入成功后更新。补偿回放按转存时刻所在分钟在调用方事务内累加到已有行，提交后再并入持有该分钟的写入线程状态，
+ * 回滚重试不会重复计数，写入线程下一批的覆盖写也不会冲掉回放的计数。
+ * Memory state only changes after the rollup rows were written. Compensation replays add onto the existing rows of the spill minute inside the caller's transaction
+ * and are folded into the writer state holding that minute after commit, so a rolled-back retry never double counts and the writer's next overwrite keeps the replayed counts.
+ *
+ * @author mingsha
+ */
+public class HistogramStore {
+    static final String TABLE = "method_time_hist";
+    static final long MINUTE_MS = 60_000;
+    private static final String MERGE_SQL = "MERGE INTO " + TABLE +
+            " (class_name, method_name, minute_ts, calls, total_ns, max_ns, buckets) KEY(class_name, method_name, minute_ts) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final Map<Integer, Shard> shards = new ConcurrentHashMap<>();
+
+    private static class Shard {
+        long minute = -1;
+        final Map<String, LatencyHistogram> current = new HashMap<>();
+    }
+
+    /**
+     * 已写入但尚未并入内存状态的回放增量，由 {@link #replay} 返回，调用方提交后交给 {@link #applyReplayed}。
+     * Replayed deltas written but not yet folded into memory state, returned by {@link #replay} and handed to {@link #applyReplayed} after the caller commits.
+     */
+    static class Replayed {
+        final long minute;
+        final Map<String, LatencyHistogram> deltas;
+
+        Replayed(long minute, Map<String, LatencyHistogram> deltas) {
+            this.minute = minute;
+            this.deltas = deltas;
+        }
+    }
+
+    /**
+     * 创建直方图汇总表。
+     * Create the histogram rollup table.
+     * @param stmt 语句 | statement
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void createTable(Statement stmt) throws SQLException {
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                "class_name VARCHAR(255) NOT NULL, " +
+                "method_name VARCHAR(255) NOT NULL, " +
+                "minute_ts BIGINT NOT NULL, " +
+                "calls BIGINT NOT NULL, " +
+                "total_ns BIGINT NOT NULL, " +
+                "max_ns BIGINT NOT NULL, " +
+                "buckets VARCHAR(4096) NOT NULL, " +
+                "PRIMARY KEY (class_name, method_name, minute_ts))");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_hist_minute ON " + TABLE + " (minute_ts)");
+    }
+
+    /**
+     * 是否启用分钟直方图汇总。
+     * Whether per-minute histogram rollups are enabled.
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isEnabled() {
+        return AgentConfig.isHistogramEnabled();
+    }
+
+    /**
+     * 将一批记录累计到当前分钟并写入汇总行。
+     * Accumulate a batch into the current minute and write the rollup rows.
+     * @param c 数据库连接 | database connection
+     * @param shard 写入分片号 | writer shard index
+     * @param records 采集数据批量 | batch of method time records
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void record(Connection c, int shard, List<MethodTimeRecord> records) throws SQLException {
+        if (!isEnabled() || records.isEmpty()) return;
+        long minute = System.currentTimeMillis() / MINUTE_MS;
+        Shard s = shards.computeIfAbsent(shard, k -> new Shard());
+        synchronized (s) {
+            if (s.minute != minute) {
+                s.current.clear();
+                s.minute = minute;
+            }
+            // 在副本上累计，写入成功后才替换内存状态 | accumulate on copies, memory state is only replaced once the rows are written
+            Map<String, LatencyHistogram> touched = new LinkedHashMap<>();
+            for (MethodTimeRecord r : records) {
+                String key = r.className + " " + r.methodName;
+                LatencyHistogram h = touched.get(key);
+                if (h == null) {
+                    LatencyHistogram current = s.current.get(key);
+                    if (current == null) {
+                        h = load(c, r.className, r.methodName, minute);
+                    } else {
+                        h = new LatencyHistogram();
+                        h.merge(current);
+                    }
+                    touched.put(key, h);
+                }
+                h.add(r.durationNs);
+            }
+            write(c, minute, touched);
+            s.current.putAll(touched);
+        }
+    }
+
+    /**
+     * 补偿回放：把一批记录累加到转存时刻所在分钟的汇总行（读出已有行、合并、写回），在调用方事务内执行且不修改内存状态。
+     * Compensation replay: add a batch onto the rollup rows of the spill minute (read the existing row, merge, write back) inside the caller's transaction without touching memory state.
+     * 须在存储写锁内调用，提交后以返回值调用 {@link #applyReplayed}；回滚时直接丢弃返回值。
+     * Must be called under the storage write lock; pass the result to {@link #applyReplayed} after commit, or simply drop it on rollback.
+     * @param c 数据库连接 | database connection
+     * @param timeMs 转存时刻 | spill time (ms)
+     * @param records 采集数据批量 | batch of method time records
+     * @return 待并入内存的增量，未启用时为null | deltas to fold into memory, null when disabled
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static Replayed replay(Connection c, long timeMs, List<MethodTimeRecord> records) throws SQLException {
+        if (!isEnabled() || records.isEmpty()) return null;
+        long minute = timeMs / MINUTE_MS;
+        Map<String, LatencyHistogram> deltas = new LinkedHashMap<>();
+        for (MethodTimeRecord r : records) {
+            deltas.computeIfAbsent(r.className + " " + r.methodName, k -> new LatencyHistogram()).add(r.durationNs);
+        }
+        Map<String, LatencyHistogram> rows = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram> e : deltas.entrySet()) {
+            int sep = e.getKey().indexOf(' ');
+            LatencyHistogram h = load(c, e.getKey().substring(0, sep), e.getKey().substring(sep + 1), minute);
+            h.merge(e.getValue());
+            rows.put(e.getKey(), h);
+        }
+        write(c, minute, rows);
+        return new Replayed(minute, deltas);
+    }
+
+    /**
+     * 回放事务提交后，将增量并入持有该分钟该方法的写入线程状态，使其下一批覆盖写包含回放的计数。
+     * After the replay transaction commits, fold the deltas into the writer state holding that method's minute so its next overwrite includes the replayed counts.
+     * 方法只归属一个写入线程，未载入该方法的状态会在下次写入时从已提交的行载入，无需处理。
+     * A method belongs to one writer, and state that has not loaded the method will read the committed row on its next write, so it needs nothing.
+     * @param replayed {@link #replay} 的返回值，可为null | result of {@link #replay}, may be null
+     */
+    static void applyReplayed(Replayed replayed) {
+        if (replayed == null) return;
+        for (Shard s : shards.values()) {
+            synchronized (s) {
+                if (s.minute != replayed.minute) continue;
+                for (Map.Entry<String, LatencyHistogram> e : replayed.deltas.entrySet()) {
+                    LatencyHistogram h = s.current.get(e.getKey());
+                    if (h != null) h.merge(e.getValue());
+                }
+            }
+        }
+    }
+
+    private static void write(Connection c, long minute, Map<String, LatencyHistogram> rows) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement(MERGE_SQL)) {
+            for (Map.Entry<String, LatencyHistogram> e : rows.entrySet()) {
+                int sep = e.getKey().indexOf(' ');
+                LatencyHistogram h = e.getValue();
+                ps.setString(1, e.getKey().substring(0, sep));
+                ps.setString(2, e.getKey().substring(sep + 1));
+                ps.setLong(3, minute);
+                ps.setLong(4, h.calls());
+                ps.setLong(5, h.totalNs());
+                ps.setLong(6, h.maxNs());
+                ps.setString(7, h.encode());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static LatencyHistogram load(Connection c, String className, String methodName, long minute) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT calls, total_ns, max_ns, buckets FROM " + TABLE + " WHERE class_name = ? AND method_name = ? AND minute_ts = ?")) {
+            ps.setString(1, className);
+            ps.setString(2, methodName);
+            ps.setLong(3, minute);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? LatencyHistogram.decode(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getString(4)) : new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * 合并最近 N 分钟内匹配方法的直方图。
+     * Merge the histograms of matching methods over the last N minutes.
+     * @param pattern 类名.方法名，类名可省略包名前缀（如 OrderService.create）| class.method, the class may omit its package (e.g. OrderService.create)
+     * @param minutes 窗口分钟数 | window in minutes
+     * @return 类名.方法名 到合并直方图，按调用次数降序 | class.method to merged histogram, most calls first
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    public static Map<String, LatencyHistogram> query(String pattern, int minutes) throws SQLException {
+        int dot = pattern.lastIndexOf('.');
+        if (dot <= 0 || dot == pattern.length() - 1) throw new IllegalArgumentException("需要 类名.方法名: " + pattern);
+        String cls = pattern.substring(0, dot);
+        String method = pattern.substring(dot + 1);
+        Map<String, LatencyHistogram> merged = new HashMap<>();
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            PreparedStatement ps = lease.prepare("SELECT class_name, calls, total_ns, max_ns, buckets FROM " + TABLE +
+                    " WHERE method_name = ? AND (class_name = ? OR class_name LIKE ? OR class_name LIKE ?) AND minute_ts >= ?", 0);
+            ps.setString(1, method);
+            ps.setString(2, cls);
+            ps.setString(3, "%." + cls);
+            ps.setString(4, "%$" + cls);
+            ps.setLong(5, fromMinute(minutes));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString(1);
+                    // LIKE 中的 _ 为通配符，按类名后缀再确认一次 | _ is a LIKE wildcard, so confirm the class suffix again
+                    if (!name.equals(cls) && !name.endsWith("." + cls) && !name.endsWith("$" + cls)) continue;
+                    merged.computeIfAbsent(name + "." + method, k -> new LatencyHistogram())
+                            .merge(LatencyHistogram.decode(rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getString(5)));
+                }
+            }
+        }
+        return sortByCalls(merged);
+    }
+
+    /**
+     * 合并最近 N 分钟内所有方法的直方图。
+     * Merge the histograms of every method over the last N minutes.
+     * @param minutes 窗口分钟数 | window in minutes
+     * @return 类名.方法名 到合并直方图，按调用次数降序 | class.method to merged histogram, most calls first
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    public static Map<String, LatencyHistogram> queryAll(int minutes) throws SQLException {
+        Map<String, LatencyHistogram> merged = new HashMap<>();
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            PreparedStatement ps = lease.prepare("SELECT class_name, method_name, calls, total_ns, max_ns, buckets FROM " + TABLE +
+                    " WHERE minute_ts >= ?", 0);
+            ps.setLong(1, fromMinute(minutes));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    merged.computeIfAbsent(rs.getString(1) + "." + rs.getString(2), k -> new LatencyHistogram())
+                            .merge(LatencyHistogram.decode(rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getString(6)));
+                }
+            }
+        }
+        return sortByCalls(merged);
+    }
+
+    private static long fromMinute(int minutes) {
+        return System.currentTimeMillis() / MINUTE_MS - Math.max(1, minutes) + 1;
+    }
+
+    private static Map<String, LatencyHistogram> sortByCalls(Map<String, LatencyHistogram> merged) {
+        Map<String, LatencyHistogram> sorted = new LinkedHashMap<>();
+        merged.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().calls(), a.getValue().calls()))
+                .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+        return sorted;
+    }
+
+    /**
+     * 删除超过留存天数的分钟直方图。
+     * Delete minute histograms older than the retention days.
+     * @param c 数据库连接 | database connection
+     * @param days 留存天数 | retention days
+     * @return 删除行数 | deleted rows
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static int purge(Connection c, int days) throws SQLException {
+        long cutoff = (System.currentTimeMillis() - days * 24L * 60 * 60 * 1000) / MINUTE_MS;
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM " + TABLE + " WHERE minute_ts < ?")) {
+            ps.setLong(1, cutoff);
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * 清空内存中的当前分钟状态（关闭存储时调用）。
+     * Clear the in-memory current-minute state (called when storage closes).
+     */
+    static void reset() {
+        shards.clear();
+    }
+}
@@ -0,0 +1,211 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * 原始记录表的二级索引管理：query 档位写入时维护全部二级索引，ingest 档位延迟建索引以提高写入吞吐。
+ * Secondary index manager for raw record tables: the query profile maintains every secondary index on insert, the ingest profile defers them for write throughput.
+ * ingest 档位下原始表只保留自增主键（与写入时间同序的聚簇键）；分区模式下已封存（不再写入）的分区在留存清理轮次中补建索引，
+ * 单表与分片模式下当查询用到相应列时按需建索引，闲置超过 10 分钟后由留存清理轮次删除。
+ * Under the ingest profile raw tables only keep the identity primary key (a clustered key in write-time order); sealed partitions get their indexes during retention passes,
+ * while single-table and sharded modes build an index on demand when a query needs its columns and drop it again after 10 idle minutes.
+ * 通过 storage.h2.profile=ingest 启用，默认 query 与原有行为一致。
+ * Enabled by storage.h2.profile=ingest, the default query profile keeps the original behavior.
+ *
+ * @author mingsha
+ */
+public class IndexManager {
+    public static final String PROFILE_QUERY = "query";
+    public static final String PROFILE_INGEST = "ingest";
+    static final long ON_DEMAND_TTL_MS = 10 * 60 * 1000L;
+    /**
+     * 索引名前缀与列，顺序即为 query 档位的建索引顺序。
+     * Index name prefixes and columns, in the order the query profile creates them.
+     */
+    private static final String[][] INDEXES = {
+            {"idx_class_method", "class_name, method_name"},
+            {"idx_duration", "duration_ns"},
+            {"idx_create_time", "create_time"},
+            {"idx_thread", "thread_name"}
+    };
+    private static final Pattern MAIN_TABLE = Pattern.compile("\\b" + H2Storage.TABLE + "\\b", Pattern.CASE_INSENSITIVE);
+    private static final Map<String, Long> onDemand = new ConcurrentHashMap<>();
+    private static final Map<String, Boolean> sealed = new ConcurrentHashMap<>();
+    private static final AtomicLong builtIndexes = new AtomicLong();
+    private static final AtomicLong droppedIndexes = new AtomicLong();
+
+    /**
+     * 判断是否为 ingest 写入优先档位。
+     * Check whether the write-first ingest profile is active.
+     * @return true-ingest 档位 | true for the ingest profile
+     */
+    public static boolean isIngest() {
+        return PROFILE_INGEST.equalsIgnoreCase(AgentConfig.getH2Profile());
+    }
+
+    /**
+     * 获取表上某个索引的名称，主表沿用原有名称，分区与分片表追加表名后缀。
+     * Get an index name for a table, the main table keeps the original names while partitions and shards append the table name.
+     */
+    private static String indexName(String prefix, String table) {
+        return H2Storage.TABLE.equals(table) ? prefix : prefix + "_" + table;
+    }
+
+    /**
+     * 为表创建全部二级索引（已存在则跳过）。
+     * Create every secondary index on a table (existing ones are skipped).
+     * @param stmt 语句 | statement
+     * @param table 表名 | table name
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void createIndexes(Statement stmt, String table) throws SQLException {
+        for (String[] idx : INDEXES) {
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + indexName(idx[0], table) + " ON " + table + " (" + idx[1] + ")");
+        }
+    }
+
+    /**
+     * 按档位整理单表模式的主表索引：query 档位补建全部索引，ingest 档位删除全部二级索引。
+     * Align the single-table main table with the profile: the query profile creates every index, the ingest profile drops every secondary index.
+     * @param stmt 语句 | statement
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void applyToMainTable(Statement stmt) throws SQLException {
+        onDemand.clear();
+        if (!isIngest()) {
+            createIndexes(stmt, H2Storage.TABLE);
+            return;
+        }
+        dropIndexes(stmt, H2Storage.TABLE);
+        System.out.println("[mingsha-agent][索引] ingest 档位：主表仅保留主键，二级索引按需创建");
+    }
+
+    /**
+     * 删除表上的全部二级索引。
+     * Drop every secondary index of a table.
+     * @param stmt 语句 | statement
+     * @param table 表名 | table name
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void dropIndexes(Statement stmt, String table) throws SQLException {
+        for (String[] idx : INDEXES) {
+            stmt.executeUpdate("DROP INDEX IF EXISTS " + indexName(idx[0], table));
+        }
+    }
+
+    /**
+     * 为已封存的分区补建索引；query 档位下当前写入分区同样补建。
+     * Build indexes on sealed partitions; under the query profile the current partition is indexed as well.
+     * @param conn 数据库连接 | database connection
+     * @param partitions 分区表名（从旧到新，最后一个为当前写入分区）| partition tables, oldest first, the last one is being written
+     * @return 本轮补建索引的分区数 | partitions indexed in this pass
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static int indexSealed(Connection conn, List<String> partitions) throws SQLException {
+        int n = isIngest() ? partitions.size() - 1 : partitions.size();
+        int indexed = 0;
+        try (Statement stmt = conn.createStatement()) {
+            for (int i = 0; i < n; i++) {
+                String name = partitions.get(i);
+                if (sealed.containsKey(name)) continue;
+                long t0 = System.currentTimeMillis();
+                createIndexes(stmt, name);
+                sealed.put(name, Boolean.TRUE);
+                builtIndexes.addAndGet(INDEXES.length);
+                indexed++;
+                System.out.println("[mingsha-agent][索引] 已为封存分区 " + name + " 建索引，耗时 " + (System.currentTimeMillis() - t0) + " ms");
+            }
+        }
+        sealed.keySet().retainAll(partitions);
+        return indexed;
+    }
+
+    /**
+     * 查询前按需建索引：ingest 档位下查询主表且用到未建索引的列时，在对应原始表上创建该索引。
+     * Build indexes on demand before a query: under the ingest profile, a query on the main table that uses unindexed columns creates those indexes on the raw tables.
+     * 分区模式依赖封存分区的索引，不按需建索引。
+     * Partitioned mode relies on sealed partition indexes and never builds on demand.
+     * @param sql 查询语句 | query SQL
+     * @return 新建索引说明，无新建时为null | description of new indexes, null when none was built
+     */
+    public static String prepareForQuery(String sql) {
+        if (!isIngest() || sql == null || H2Storage.isPartitioned() || H2Storage.isNormalized()) return null;
+        if (SegmentStorage.isEnabled() || MVStoreStorage.isEnabled()) return null;
+        String lower = sql.toLowerCase(Locale.ROOT);
+        int from = lower.indexOf(" from ");
+        if (from < 0 || !MAIN_TABLE.matcher(lower).find()) return null;
+        String tail = lower.substring(from);
+        List<String> tables = H2Storage.isSharded() ? ShardManager.tableNames() : Collections.singletonList(H2Storage.TABLE);
+        List<String> built = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement()) {
+            for (String[] idx : INDEXES) {
+                String column = idx[1].split(",")[0].trim();
+                if (!tail.contains(column) && !(column.equals("class_name") && tail.contains("method_name"))) continue;
+                for (String table : tables) {
+                    String name = indexName(idx[0], table);
+                    if (onDemand.put(name, now) == null) {
+                        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + name + " ON " + table + " (" + idx[1] + ")");
+                        builtIndexes.incrementAndGet();
+                        built.add(name);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("[mingsha-agent][索引] 按需建索引失败: " + e.getMessage());
+            return null;
+        }
+        return built.isEmpty() ? null : "已按需创建索引 " + String.join(", ", built);
+    }
+
+    /**
+     * 删除闲置超过 10 分钟的按需索引，恢复写入吞吐。
+     * Drop on-demand indexes idle for more than 10 minutes to restore write throughput.
+     * @param conn 数据库连接 | database connection
+     * @return 删除的索引数 | number of dropped indexes
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static int expireOnDemand(Connection conn) throws SQLException {
+        long deadline = System.currentTimeMillis() - ON_DEMAND_TTL_MS;
+        int dropped = 0;
+        try (Statement stmt = conn.createStatement()) {
+            for (Map.Entry<String, Long> e : onDemand.entrySet()) {
+                if (e.getValue() >= deadline) continue;
+                stmt.executeUpdate("DROP INDEX IF EXISTS " + e.getKey());
+                onDemand.remove(e.getKey());
+                droppedIndexes.incrementAndGet();
+                dropped++;
+                System.out.println("[mingsha-agent][索引] 已删除闲置的按需索引 " + e.getKey());
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * 获取索引档位与按需索引概况。
+     * Get the index profile and on-demand index overview.
+     * @return 概况字符串 | overview string
+     */
+    public static String info() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== 索引档位 ===\n");
+        sb.append("档位: ").append(isIngest() ? PROFILE_INGEST + "（写入优先，二级索引延迟创建）" : PROFILE_QUERY + "（写入时维护全部二级索引）").append('\n');
+        sb.append(String.format("累计建索引: %d, 累计删除按需索引: %d, 已封存并建索引的分区: %d\n",
+                builtIndexes.get(), droppedIndexes.get(), sealed.size()));
+        long now = System.currentTimeMillis();
+        sb.append("按需索引 (").append(onDemand.size()).append("):\n");
+        for (Map.Entry<String, Long> e : onDemand.entrySet()) {
+            sb.append("  ").append(e.getKey()).append(" 闲置 ").append((now - e.getValue()) / 1000).append(" s\n");
+        }
+        return sb.toString();
+    }
+}
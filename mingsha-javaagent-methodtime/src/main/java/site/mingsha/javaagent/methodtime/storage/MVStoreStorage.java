@@ -0,0 +1,371 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.tools.SimpleResultSet;
+import org.h2.tools.SimpleRowSource;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MVStore 直写引擎：原始记录不经 SQL 解析与参数绑定，直接以紧凑二进制值追加写入 H2 的 MVStore。
+ * MVStore direct-write engine: raw records skip SQL parsing and parameter binding and are appended to H2's MVStore as compact binary values.
+ * 主键为（毫秒时间桶 &lt;&lt; 20 | 桶内序号），值为 24 字节（方法ID、线程ID、开始时间、耗时）；桶内序号用尽时等待下一毫秒，记录不会落入未来的时间桶。
+ * 每个方法ID另有一个轻量二级映射（主键 → 耗时），按方法扫描时无需遍历全部记录。
+ * Keys are (millisecond bucket &lt;&lt; 20 | sequence in bucket), values are 24 bytes (method id, thread id, start time, duration); when a bucket's sequences
+ * run out the writer waits for the next millisecond, so no record lands in a future bucket.
+ * Each method id has a lightweight secondary map (key → duration) so per-method scans do not walk every record.
+ * 类名/方法名与线程名经字典编码保存在同一 MVStore 中；SQL 查询通过沿用主表名 method_time_stat 的表函数视图按需流式读取。
+ * Class/method and thread names are dictionary-encoded in the same MVStore; SQL queries read on demand through a table function view under the main table name method_time_stat.
+ * 通过 storage.engine=mvstore 启用，存储文件由 storage.mvstore.path 指定，H2 为内存模式时 MVStore 同样使用内存。
+ * Enabled by storage.engine=mvstore, the store file is given by storage.mvstore.path; an in-memory H2 also keeps the MVStore in memory.
+ *
+ * @author mingsha
+ */
+public class MVStoreStorage {
+    public static final String ENGINE = "mvstore";
+    static final String VIEW = H2Storage.TABLE;
+    static final String FUNCTION = "MINGSHA_RAW_RECORDS";
+    private static final String RETIRED = H2Storage.TABLE + "_h2";
+    private static final int SEQ_BITS = 20;
+    private static final int LEGACY_SEQ_BITS = 12;
+    private static final int VALUE_BYTES = 24;
+    private static final Map<Integer, MVMap<Long, Long>> byMethod = new ConcurrentHashMap<>();
+    private static volatile MVStore store;
+    private static MVMap<Long, byte[]> raw;
+    private static MVMap<String, Integer> methodIds;
+    private static MVMap<Integer, String> methodNames;
+    private static MVMap<String, Integer> threadIds;
+    private static MVMap<Integer, String> threadNames;
+    private static long lastKey;
+    private static int seqBits = SEQ_BITS;
+    private static String location;
+
+    /**
+     * 判断是否配置为 MVStore 直写引擎。
+     * Check whether the MVStore direct-write engine is configured.
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isEnabled() {
+        return ENGINE.equalsIgnoreCase(AgentConfig.getStorageEngine());
+    }
+
+    /**
+     * 按配置打开 MVStore 并恢复字典与写入位置。
+     * Open the MVStore from config and recover dictionaries and the write position.
+     */
+    public static void init() {
+        String path = AgentConfig.getH2Path().startsWith("mem:") ? null : AgentConfig.getMVStorePath();
+        init(path);
+    }
+
+    static synchronized void init(String fileName) {
+        close();
+        if (fileName != null) {
+            File parent = new File(fileName).getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory()) parent.mkdirs();
+        }
+        MVStore.Builder builder = new MVStore.Builder();
+        if (fileName != null) builder.fileName(fileName);
+        MVStore s = builder.open();
+        raw = s.openMap("raw");
+        methodIds = s.openMap("dict.method");
+        methodNames = s.openMap("dict.method.name");
+        threadIds = s.openMap("dict.thread");
+        threadNames = s.openMap("dict.thread.name");
+        // 早期存储以 12 位桶内序号编码主键，沿用原位宽以保持已有主键的时间含义
+        // Early stores encoded keys with a 12-bit sequence, keep that width so existing keys keep their time meaning
+        MVMap<String, Integer> meta = s.openMap("meta");
+        Integer bits = meta.get("seqBits");
+        if (bits == null) {
+            bits = raw.isEmpty() ? SEQ_BITS : LEGACY_SEQ_BITS;
+            meta.put("seqBits", bits);
+            s.commit();
+        }
+        seqBits = bits;
+        Long last = raw.lastKey();
+        lastKey = last == null ? 0 : last;
+        location = fileName == null ? "内存" : new File(fileName).getAbsolutePath();
+        store = s;
+        System.out.println("[mingsha-agent][MVStore] 直写存储初始化完成，位置: " + location + "，已有记录: " + raw.sizeAsLong());
+    }
+
+    /**
+     * 批量追加原始记录并提交，同一毫秒内的记录按序号递增；序号用尽时等待时钟进入下一毫秒。
+     * Append a batch of raw records and commit, records within one millisecond get increasing sequences; when they run out the writer waits for the next millisecond.
+     * @param records 采集数据批量 | batch of method time records
+     */
+    public static synchronized void append(List<MethodTimeRecord> records) {
+        if (store == null) throw new IllegalStateException("mvstore storage not initialized");
+        long now = System.currentTimeMillis();
+        for (MethodTimeRecord r : records) {
+            long key = Math.max(lastKey + 1, now << seqBits);
+            if ((key & ((1L << seqBits) - 1)) == 0 && (key >>> seqBits) > now) {
+                // 当前毫秒的序号已用尽，不把记录挤进未来的时间桶 | sequences of this millisecond are used up, do not spill into a future bucket
+                while ((now = System.currentTimeMillis()) < (key >>> seqBits)) Thread.yield();
+                key = Math.max(lastKey + 1, now << seqBits);
+            }
+            lastKey = key;
+            int methodId = idOf(methodIds, methodNames, r.className + "#" + r.methodName);
+            int threadId = idOf(threadIds, threadNames, r.threadName);
+            raw.put(key, ByteBuffer.allocate(VALUE_BYTES)
+                    .putInt(methodId).putInt(threadId).putLong(r.startTime).putLong(r.durationNs).array());
+            methodMap(methodId).put(key, r.durationNs);
+        }
+        store.commit();
+    }
+
+    private static int idOf(MVMap<String, Integer> ids, MVMap<Integer, String> names, String value) {
+        String v = value == null ? "" : value;
+        Integer id = ids.get(v);
+        if (id == null) {
+            id = names.size();
+            names.put(id, v);
+            ids.put(v, id);
+        }
+        return id;
+    }
+
+    private static MVMap<Long, Long> methodMap(int methodId) {
+        return byMethod.computeIfAbsent(methodId, id -> store.openMap("m." + id));
+    }
+
+    /**
+     * 按时间范围和方法流式扫描原始记录，指定方法时只遍历该方法的二级映射。
+     * Stream raw records by time range and method, a method filter only walks that method's secondary map.
+     * @param fromMs 起始时间（含）| from time inclusive (ms)
+     * @param toMs 结束时间（含）| to time inclusive (ms)
+     * @param className 类名，为null不限 | class name, null for any
+     * @param methodName 方法名，为null不限 | method name, null for any
+     * @param visitor 回调 | callback
+     */
+    public static void scan(long fromMs, long toMs, String className, String methodName, SegmentStorage.RecordVisitor visitor) {
+        if (store == null) return;
+        long fromKey = fromMs << seqBits;
+        long toKey = ((toMs + 1) << seqBits) - 1;
+        if (className != null && methodName != null) {
+            Integer methodId = methodIds.get(className + "#" + methodName);
+            if (methodId == null) return;
+            Cursor<Long, Long> c = methodMap(methodId).cursor(fromKey, toKey, false);
+            while (c.hasNext()) {
+                long key = c.next();
+                byte[] v = raw.get(key);
+                if (v == null) continue;
+                if (!visitor.visit(key >>> seqBits, decode(v))) return;
+            }
+            return;
+        }
+        Cursor<Long, byte[]> c = raw.cursor(fromKey, toKey, false);
+        while (c.hasNext()) {
+            long key = c.next();
+            if (!visitor.visit(key >>> seqBits, decode(c.getValue()))) return;
+        }
+    }
+
+    private static MethodTimeRecord decode(byte[] v) {
+        ByteBuffer b = ByteBuffer.wrap(v);
+        String key = methodNames.get(b.getInt());
+        String thread = threadNames.get(b.getInt());
+        long start = b.getLong();
+        long duration = b.getLong();
+        int sep = key == null ? -1 : key.lastIndexOf('#');
+        return new MethodTimeRecord(
+                sep < 0 ? String.valueOf(key) : key.substring(0, sep),
+                sep < 0 ? "" : key.substring(sep + 1),
+                start, start + duration, duration, thread, "");
+    }
+
+    /**
+     * 从最旧的记录开始删除一块：早于截止时间或超出保留条数的记录，最多 limit 条。
+     * Remove one chunk from the oldest records: those before the cutoff or beyond the kept row count, at most limit records.
+     * 返回按方法（类名#方法名）统计的删除条数与耗时总和，用于扣减汇总表；返回空表示已无可删记录。
+     * Returns deleted counts and duration sums per method (class#method) for the summary subtraction; an empty map means nothing is left to delete.
+     * @param cutoffMs 截止时间 | cutoff time (ms)
+     * @param keepRows 保留条数 | rows to keep
+     * @param limit 单块最大条数 | max records per chunk
+     * @return 方法 → {条数, 耗时总和} | method → {count, duration sum}
+     */
+    static synchronized Map<String, long[]> purge(long cutoffMs, long keepRows, int limit) {
+        Map<String, long[]> removed = new HashMap<>();
+        if (store == null) return removed;
+        long overflow = raw.sizeAsLong() - keepRows;
+        long cutoffKey = cutoffMs << seqBits;
+        List<Long> keys = new ArrayList<>();
+        Cursor<Long, byte[]> c = raw.cursor(null);
+        while (c.hasNext() && keys.size() < limit) {
+            long key = c.next();
+            if (key >= cutoffKey && keys.size() >= overflow) break;
+            keys.add(key);
+        }
+        for (Long key : keys) {
+            byte[] v = raw.remove(key);
+            if (v == null) continue;
+            ByteBuffer b = ByteBuffer.wrap(v);
+            int methodId = b.getInt();
+            long duration = b.getLong(16);
+            methodMap(methodId).remove(key);
+            long[] acc = removed.computeIfAbsent(methodNames.get(methodId), k -> new long[2]);
+            acc[0]++;
+            acc[1] += duration;
+        }
+        if (!keys.isEmpty()) store.commit();
+        return removed;
+    }
+
+    /**
+     * 表函数：流式返回原始记录，参数为null表示不限；时间边界直接定位主键范围，只读取区间内的记录。
+     * Table function: streams raw records, null bounds mean unbounded; time bounds seek straight to the key range so only records inside it are read.
+     * 视图 method_time_stat 以 (NULL, NULL) 调用，H2 不会把 WHERE 条件下推到表函数，因此经视图的查询总是遍历全部记录；
+     * 按时间查询应直接调用 MINGSHA_RAW_RECORDS(起始毫秒, 结束毫秒)。
+     * The method_time_stat view calls it with (NULL, NULL) and H2 does not push WHERE conditions into table functions, so queries through the view always walk every record;
+     * time-bounded queries should call MINGSHA_RAW_RECORDS(fromMs, toMs) directly.
+     * @param conn 调用方连接 | caller connection
+     * @param fromMs 起始时间（含）| from time inclusive (ms)
+     * @param toMs 结束时间（含）| to time inclusive (ms)
+     * @return 结果集 | result set
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    public static ResultSet rawRecords(Connection conn, Long fromMs, Long toMs) throws SQLException {
+        // H2 先以 columnlist 连接调用一次仅获取列定义
+        // H2 first calls with a columnlist connection just to learn the columns
+        boolean columnsOnly = "jdbc:columnlist:connection".equals(conn.getMetaData().getURL()) || store == null;
+        long fromKey = fromMs == null ? 0 : fromMs << seqBits;
+        long toKey = toMs == null ? Long.MAX_VALUE : ((toMs + 1) << seqBits) - 1;
+        SimpleResultSet rs = columnsOnly ? new SimpleResultSet() : new SimpleResultSet(new SimpleRowSource() {
+            private Cursor<Long, byte[]> cursor = raw.cursor(fromKey, toKey, false);
+
+            @Override
+            public Object[] readRow() {
+                if (!cursor.hasNext()) return null;
+                long key = cursor.next();
+                MethodTimeRecord r = decode(cursor.getValue());
+                return new Object[] { key, r.className, r.methodName, r.startTime, r.endTime, r.durationNs, r.threadName,
+                        new Timestamp(key >>> seqBits) };
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void reset() {
+                cursor = raw.cursor(fromKey, toKey, false);
+            }
+        });
+        rs.addColumn("ID", Types.BIGINT, 19, 0);
+        rs.addColumn("CLASS_NAME", Types.VARCHAR, 255, 0);
+        rs.addColumn("METHOD_NAME", Types.VARCHAR, 255, 0);
+        rs.addColumn("START_TIME", Types.BIGINT, 19, 0);
+        rs.addColumn("END_TIME", Types.BIGINT, 19, 0);
+        rs.addColumn("DURATION_NS", Types.BIGINT, 19, 0);
+        rs.addColumn("THREAD_NAME", Types.VARCHAR, 128, 0);
+        rs.addColumn("CREATE_TIME", Types.TIMESTAMP, 26, 6);
+        return rs;
+    }
+
+    /**
+     * 为兼容视图腾出主表名：空的物理主表直接删除，仍有数据的改名为 method_time_stat_h2 保留，切回 h2 引擎时恢复。
+     * Free the main table name for the compatibility view: an empty physical main table is dropped, one with rows is renamed to method_time_stat_h2 and restored when switching back to the h2 engine.
+     * @param conn 数据库连接 | database connection
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void retireMainTable(Connection conn) throws SQLException {
+        if (!"BASE TABLE".equals(PartitionManager.tableType(conn, VIEW))) return;
+        try (java.sql.Statement stmt = conn.createStatement()) {
+            boolean empty;
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM (SELECT 1 FROM " + VIEW + " LIMIT 1)")) {
+                empty = !rs.next() || rs.getLong(1) == 0;
+            }
+            if (empty) {
+                stmt.executeUpdate("DROP TABLE " + VIEW);
+            } else if (PartitionManager.tableType(conn, RETIRED) == null) {
+                stmt.executeUpdate("ALTER TABLE " + VIEW + " RENAME TO " + RETIRED);
+                System.out.println("[mingsha-agent][MVStore] 已将原主表改名为 " + RETIRED + " 保留");
+            } else {
+                throw new SQLException("cannot retire " + VIEW + ": " + RETIRED + " already exists");
+            }
+        }
+    }
+
+    /**
+     * 撤销 MVStore 兼容视图并恢复改名保留的物理主表，用于从 mvstore 引擎切回其他布局。
+     * Drop the MVStore compatibility view and restore the retired physical main table, used when switching away from the mvstore engine.
+     * @param conn 数据库连接 | database connection
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void dropView(Connection conn) throws SQLException {
+        try (java.sql.PreparedStatement ps = conn.prepareStatement(
+                "SELECT COUNT(*) FROM INFORMATION_SCHEMA.VIEWS WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = ? AND VIEW_DEFINITION LIKE ?")) {
+            ps.setString(1, VIEW.toUpperCase());
+            ps.setString(2, "%" + FUNCTION + "%");
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || rs.getLong(1) == 0) return;
+            }
+        }
+        try (java.sql.Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP VIEW " + VIEW);
+            if ("BASE TABLE".equals(PartitionManager.tableType(conn, RETIRED))) {
+                stmt.executeUpdate("ALTER TABLE " + RETIRED + " RENAME TO " + VIEW);
+            }
+        }
+    }
+
+    /**
+     * 注册表函数并以主表名 method_time_stat 创建只读视图，须先调用 {@link #retireMainTable}。
+     * Register the table function and create the read-only view under the main table name method_time_stat; {@link #retireMainTable} must run first.
+     * @param stmt 语句 | statement
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void createView(java.sql.Statement stmt) throws SQLException {
+        stmt.executeUpdate("CREATE ALIAS IF NOT EXISTS " + FUNCTION + " FOR '" + MVStoreStorage.class.getName() + ".rawRecords'");
+        stmt.executeUpdate("CREATE OR REPLACE VIEW " + VIEW + " AS SELECT * FROM " + FUNCTION + "(NULL, NULL)");
+    }
+
+    /**
+     * 获取 MVStore 存储概况。
+     * Get MVStore storage overview.
+     * @return 概况字符串 | overview string
+     */
+    public static String info() {
+        MVStore s = store;
+        if (s == null) return "[MVStore 直写存储未启用]";
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== MVStore 直写存储信息 ===\n");
+        sb.append("位置: ").append(location).append('\n');
+        sb.append("总记录数: ").append(raw.sizeAsLong()).append('\n');
+        Long first = raw.firstKey();
+        Long last = raw.lastKey();
+        if (first != null) {
+            sb.append("时间范围: ").append(new Timestamp(first >>> seqBits)).append(" ~ ").append(new Timestamp(last >>> seqBits)).append('\n');
+        }
+        if (s.getFileStore() != null) {
+            sb.append("磁盘占用: ").append(String.format("%.2f", s.getFileStore().size() / 1024.0 / 1024.0)).append(" MB\n");
+        }
+        sb.append("方法字典: ").append(methodNames.size()).append(", 线程字典: ").append(threadNames.size()).append('\n');
+        sb.append("SQL 视图: ").append(VIEW).append("（全量扫描），按时间查询: ").append(FUNCTION).append("(起始毫秒, 结束毫秒)\n");
+        return sb.toString();
+    }
+
+    /**
+     * 提交并关闭 MVStore。
+     * Commit and close the MVStore.
+     */
+    public static synchronized void close() {
+        if (store != null) store.close();
+        store = null;
+        byMethod.clear();
+    }
+}
@@ -0,0 +1,302 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.sql.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字典规范化表结构（db_version 2.0）：类名/方法名与线程名各存一份字典，事实表只保存整型ID。
+ * Dictionary-normalized schema (db_version 2.0): class/method and thread names are stored once in dictionaries, fact tables only keep int ids.
+ * 字典表为 method_dict(id, class_name, method_name, descriptor) 与 thread_dict(id, thread_name)；
+ * 事实表为 method_time_fact 与 method_time_slow_fact，method_time_stat 与 method_time_stat_slow 变为同名兼容视图，已有查询无需修改。
+ * Dictionaries are method_dict(id, class_name, method_name, descriptor) and thread_dict(id, thread_name);
+ * facts live in method_time_fact and method_time_slow_fact, while method_time_stat and method_time_stat_slow become compatibility views so existing queries keep working.
+ * 启用时自动将 1.0 布局的主表与慢查询表迁移进字典与事实表，关闭后再合并回 1.0 单表。
+ * Enabling migrates the 1.0 main and slow tables into dictionaries and facts; disabling merges them back into the 1.0 tables.
+ * 通过 storage.schema=normalized 启用，仅适用于 h2 引擎的单表模式（不分区、单写入线程）。
+ * Enabled by storage.schema=normalized, only for the h2 engine in single-table mode (no partitioning, single writer).
+ *
+ * @author mingsha
+ */
+public class NormalizedSchema {
+    public static final String MODE = "normalized";
+    static final String VERSION = "2.0";
+    static final String METHOD_DICT = "method_dict";
+    static final String THREAD_DICT = "thread_dict";
+    static final String FACT = "method_time_fact";
+    static final String SLOW_FACT = "method_time_slow_fact";
+    private static final String MAIN = H2Storage.TABLE;
+    private static final String SLOW = H2Storage.TABLE + "_slow";
+    private static final String MAIN_SELECT = "SELECT f.id, d.class_name, d.method_name, f.start_time, f.end_time, f.duration_ns, " +
+            "t.thread_name, f.extra_info, f.create_time FROM " + FACT + " f JOIN " + METHOD_DICT + " d ON d.id = f.method_id " +
+            "LEFT JOIN " + THREAD_DICT + " t ON t.id = f.thread_id";
+    private static final String SLOW_SELECT = "SELECT f.id, d.class_name, d.method_name, f.duration_ns, " +
+            "t.thread_name, f.extra_info, f.stack_id, f.create_time FROM " + SLOW_FACT + " f JOIN " + METHOD_DICT + " d ON d.id = f.method_id " +
+            "LEFT JOIN " + THREAD_DICT + " t ON t.id = f.thread_id";
+    private static final Map<String, Integer> methodIds = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> threadIds = new ConcurrentHashMap<>();
+    private static Connection dictConn;
+
+    /**
+     * 判断是否启用规范化表结构。
+     * Check whether the normalized schema is enabled.
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isEnabled() {
+        return MODE.equalsIgnoreCase(AgentConfig.getStorageSchema())
+                && !SegmentStorage.isEnabled() && !MVStoreStorage.isEnabled()
+                && !PartitionManager.isEnabled() && AgentConfig.getWriters() <= 1;
+    }
+
+    /**
+     * 初始化规范化表结构：建字典与事实表，迁移 1.0 布局的旧表，并创建兼容视图。
+     * Initialize the normalized schema: create dictionaries and facts, migrate 1.0 tables and create the compatibility views.
+     * @param conn 数据库连接 | database connection
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static synchronized void init(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + METHOD_DICT + " (" +
+                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                    "class_name VARCHAR(255) NOT NULL, " +
+                    "method_name VARCHAR(255) NOT NULL, " +
+                    "descriptor VARCHAR(512) DEFAULT '' NOT NULL)");
+            stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS uk_method_dict ON " + METHOD_DICT + " (class_name, method_name, descriptor)");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + THREAD_DICT + " (" +
+                    "id INT AUTO_INCREMENT PRIMARY KEY, " +
+                    "thread_name VARCHAR(128) NOT NULL)");
+            stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS uk_thread_dict ON " + THREAD_DICT + " (thread_name)");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + FACT + " (" +
+                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "method_id INT NOT NULL, " +
+                    "thread_id INT, " +
+                    "start_time BIGINT NOT NULL, " +
+                    "end_time BIGINT NOT NULL, " +
+                    "duration_ns BIGINT NOT NULL, " +
+                    "extra_info VARCHAR(512), " +
+                    "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_fact_method ON " + FACT + " (method_id)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_fact_duration ON " + FACT + " (duration_ns)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_fact_create_time ON " + FACT + " (create_time)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_fact_thread ON " + FACT + " (thread_id)");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + SLOW_FACT + " (" +
+                    "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                    "method_id INT NOT NULL, " +
+                    "duration_ns BIGINT NOT NULL, " +
+                    "thread_id INT, " +
+                    "extra_info VARCHAR(512), " +
+                    "stack_id BIGINT, " +
+                    "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            stmt.executeUpdate("ALTER TABLE " + SLOW_FACT + " ADD COLUMN IF NOT EXISTS stack_id BIGINT");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_slow_fact_stack ON " + SLOW_FACT + " (stack_id)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_slow_fact_duration ON " + SLOW_FACT + " (duration_ns)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_slow_fact_create_time ON " + SLOW_FACT + " (create_time)");
+
+            if ("BASE TABLE".equals(PartitionManager.tableType(conn, MAIN))) {
+                migrate(stmt, MAIN, FACT, "start_time, end_time, duration_ns, extra_info, create_time");
+            }
+            if ("BASE TABLE".equals(PartitionManager.tableType(conn, SLOW))) {
+                stmt.executeUpdate("ALTER TABLE " + SLOW + " ADD COLUMN IF NOT EXISTS stack_id BIGINT");
+                migrate(stmt, SLOW, SLOW_FACT, "duration_ns, extra_info, stack_id, create_time");
+            }
+            stmt.executeUpdate("CREATE OR REPLACE VIEW " + MAIN + " AS " + MAIN_SELECT);
+            stmt.executeUpdate("CREATE OR REPLACE VIEW " + SLOW + " AS " + SLOW_SELECT);
+        }
+        methodIds.clear();
+        threadIds.clear();
+        if (dictConn != null) dictConn.close();
+        dictConn = H2Storage.openConnection();
+    }
+
+    /**
+     * 记录规范化表结构版本。
+     * Record the normalized schema version.
+     * @param stmt 语句 | statement
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void recordVersion(Statement stmt) throws SQLException {
+        stmt.executeUpdate("MERGE INTO db_version (version, description) VALUES ('" + VERSION + "', 'Normalized schema with method_dict, thread_dict and int-keyed fact tables')");
+    }
+
+    /**
+     * 将 1.0 布局的旧表迁入字典与事实表，保留原ID，事实表自增列从最大ID之后继续。
+     * Move a 1.0 table into the dictionaries and a fact table keeping ids, the fact identity continues after the max id.
+     */
+    private static void migrate(Statement stmt, String legacy, String fact, String columns) throws SQLException {
+        stmt.executeUpdate("INSERT INTO " + METHOD_DICT + " (class_name, method_name, descriptor) " +
+                "SELECT DISTINCT s.class_name, s.method_name, '' FROM " + legacy + " s WHERE NOT EXISTS (" +
+                "SELECT 1 FROM " + METHOD_DICT + " d WHERE d.class_name = s.class_name AND d.method_name = s.method_name AND d.descriptor = '')");
+        stmt.executeUpdate("INSERT INTO " + THREAD_DICT + " (thread_name) " +
+                "SELECT DISTINCT s.thread_name FROM " + legacy + " s WHERE s.thread_name IS NOT NULL AND NOT EXISTS (" +
+                "SELECT 1 FROM " + THREAD_DICT + " t WHERE t.thread_name = s.thread_name)");
+        String selectColumns = "s." + columns.replace(", ", ", s.");
+        int rows = stmt.executeUpdate("INSERT INTO " + fact + " (id, method_id, thread_id, " + columns + ") " +
+                "SELECT s.id, d.id, t.id, " + selectColumns + " FROM " + legacy + " s " +
+                "JOIN " + METHOD_DICT + " d ON d.class_name = s.class_name AND d.method_name = s.method_name AND d.descriptor = '' " +
+                "LEFT JOIN " + THREAD_DICT + " t ON t.thread_name = s.thread_name ORDER BY s.id");
+        stmt.executeUpdate("DROP TABLE " + legacy);
+        restartIdentity(stmt, fact);
+        System.out.println("[mingsha-agent][规范化] 已将 " + legacy + " 的 " + rows + " 条记录迁移到 " + fact);
+    }
+
+    /**
+     * 撤销规范化布局：兼容视图还原为 1.0 单表并写回全部记录，用于关闭规范化表结构时。
+     * Undo the normalized layout: turn the compatibility views back into 1.0 tables with all records, used when the normalized schema is turned off.
+     * @param conn 数据库连接 | database connection
+     * @param mainDdl 主表建表语句 | main table DDL
+     * @param slowDdl 慢查询表建表语句 | slow table DDL
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static synchronized void denormalize(Connection conn, String mainDdl, String slowDdl) throws SQLException {
+        if (!"BASE TABLE".equals(PartitionManager.tableType(conn, FACT))) return;
+        try (Statement stmt = conn.createStatement()) {
+            if ("VIEW".equals(PartitionManager.tableType(conn, MAIN))) stmt.executeUpdate("DROP VIEW " + MAIN);
+            if ("VIEW".equals(PartitionManager.tableType(conn, SLOW))) stmt.executeUpdate("DROP VIEW " + SLOW);
+            stmt.executeUpdate("ALTER TABLE IF EXISTS " + SLOW_FACT + " ADD COLUMN IF NOT EXISTS stack_id BIGINT");
+            stmt.executeUpdate(mainDdl);
+            stmt.executeUpdate(slowDdl);
+            stmt.executeUpdate("INSERT INTO " + MAIN + " (id, class_name, method_name, start_time, end_time, duration_ns, thread_name, extra_info, create_time) " +
+                    MAIN_SELECT + " ORDER BY f.id");
+            stmt.executeUpdate("INSERT INTO " + SLOW + " (id, class_name, method_name, duration_ns, thread_name, extra_info, stack_id, create_time) " +
+                    SLOW_SELECT + " ORDER BY f.id");
+            restartIdentity(stmt, MAIN);
+            restartIdentity(stmt, SLOW);
+            stmt.executeUpdate("DROP TABLE " + FACT);
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + SLOW_FACT);
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + METHOD_DICT);
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + THREAD_DICT);
+            stmt.executeUpdate("DELETE FROM db_version WHERE version = '" + VERSION + "'");
+        }
+        System.out.println("[mingsha-agent][规范化] 已将事实表合并回 " + MAIN + " 与 " + SLOW);
+    }
+
+    private static void restartIdentity(Statement stmt, String table) throws SQLException {
+        long maxId = 0;
+        try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + table)) {
+            if (rs.next()) maxId = rs.getLong(1);
+        }
+        stmt.executeUpdate("ALTER TABLE " + table + " ALTER COLUMN id RESTART WITH " + (maxId + 1));
+    }
+
+    /**
+     * 写入原始记录事实。
+     * Insert raw record facts.
+     * @param c 数据库连接 | database connection
+     * @param records 采集数据批量 | batch of method time records
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void insertFacts(Connection c, List<MethodTimeRecord> records) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO " + FACT +
+                " (method_id, thread_id, start_time, end_time, duration_ns, extra_info) VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (MethodTimeRecord r : records) {
+                ps.setInt(1, methodId(r.className, r.methodName));
+                setThread(ps, 2, r.threadName);
+                ps.setLong(3, r.startTime);
+                ps.setLong(4, r.endTime);
+                ps.setLong(5, r.durationNs);
+                ps.setString(6, r.extraInfo);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * 写入慢查询事实。
+     * Insert slow query facts.
+     * @param c 数据库连接 | database connection
+     * @param records 慢查询记录 | slow records
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void insertSlow(Connection c, List<MethodTimeRecord> records) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO " + SLOW_FACT +
+                " (method_id, duration_ns, thread_id, extra_info, stack_id) VALUES (?, ?, ?, ?, ?)")) {
+            for (MethodTimeRecord r : records) {
+                ps.setInt(1, methodId(r.className, r.methodName));
+                ps.setLong(2, r.durationNs);
+                setThread(ps, 3, r.threadName);
+                ps.setString(4, r.extraInfo);
+                H2Storage.setStackId(ps, 5, r.stackId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static void setThread(PreparedStatement ps, int index, String threadName) throws SQLException {
+        if (threadName == null) {
+            ps.setNull(index, Types.INTEGER);
+        } else {
+            ps.setInt(index, threadId(threadName));
+        }
+    }
+
+    /**
+     * 获取可按类名/方法名分组的记录来源：事实表对应其兼容视图，其余表原样返回。
+     * Get a record source that can be grouped by class and method name: a fact table maps to its compatibility view, other tables are returned as is.
+     * @param table 表名 | table name
+     * @return 来源表或视图 | source table or view
+     */
+    static String namedSource(String table) {
+        if (FACT.equals(table)) return MAIN;
+        if (SLOW_FACT.equals(table)) return SLOW;
+        return table;
+    }
+
+    private static int methodId(String className, String methodName) throws SQLException {
+        String key = className + "#" + methodName;
+        Integer id = methodIds.get(key);
+        if (id == null) {
+            id = resolve("SELECT id FROM " + METHOD_DICT + " WHERE class_name = ? AND method_name = ? AND descriptor = ''",
+                    "INSERT INTO " + METHOD_DICT + " (class_name, method_name, descriptor) VALUES (?, ?, '')", className, methodName);
+            methodIds.put(key, id);
+        }
+        return id;
+    }
+
+    private static int threadId(String threadName) throws SQLException {
+        Integer id = threadIds.get(threadName);
+        if (id == null) {
+            id = resolve("SELECT id FROM " + THREAD_DICT + " WHERE thread_name = ?",
+                    "INSERT INTO " + THREAD_DICT + " (thread_name) VALUES (?)", threadName);
+            threadIds.put(threadName, id);
+        }
+        return id;
+    }
+
+    /**
+     * 在独立的自动提交连接上查找或新增字典项，字典ID不会随调用方事务回滚而失效。
+     * Look up or add a dictionary entry on a separate auto-commit connection, so ids stay valid even if the caller's transaction rolls back.
+     */
+    private static synchronized int resolve(String selectSql, String insertSql, String... values) throws SQLException {
+        if (dictConn == null) throw new SQLException("normalized schema not initialized");
+        try (PreparedStatement ps = dictConn.prepareStatement(selectSql)) {
+            for (int i = 0; i < values.length; i++) ps.setString(i + 1, values[i]);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) return rs.getInt(1);
+            }
+        }
+        try (PreparedStatement ps = dictConn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < values.length; i++) ps.setString(i + 1, values[i]);
+            ps.executeUpdate();
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (rs.next()) return rs.getInt(1);
+            }
+        }
+        throw new SQLException("dictionary id not generated");
+    }
+
+    /**
+     * 关闭字典连接并清空缓存。
+     * Close the dictionary connection and clear caches.
+     */
+    static synchronized void close() {
+        methodIds.clear();
+        threadIds.clear();
+        try { if (dictConn != null) dictConn.close(); } catch (SQLException ignore) {}
+        dictConn = null;
+    }
+}
@@ -0,0 +1,367 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 主表分区管理：按天、按小时或按条数将原始记录写入独立分区表，并以 UNION ALL 视图对外提供查询。
+ * Main table partition manager: raw records go to day-, hour- or size-based partition tables, exposed through a UNION ALL view.
+ * 视图沿用主表名 method_time_stat，已有查询无需修改；各分区共享同一主键序列。
+ * The view keeps the main table name method_time_stat so existing queries keep working; partitions share one id sequence.
+ * 留存清理通过 DROP TABLE 删除过期或超量的最旧分区，不再对全表执行 DELETE 扫描。
+ * Retention drops expired or surplus oldest partitions with DROP TABLE instead of DELETE scans over the whole table.
+ *
+ * @author mingsha
+ */
+public class PartitionManager {
+    public static final String MODE_NONE = "none";
+    public static final String MODE_DAY = "day";
+    public static final String MODE_HOUR = "hour";
+    public static final String MODE_SIZE = "size";
+    static final String VIEW = "method_time_stat";
+    static final String META = "method_time_stat_partition";
+    static final String SEQUENCE = "method_time_stat_seq";
+    private static final String PREFIX = "method_time_stat_p";
+    private static final String LEGACY = PREFIX + "legacy";
+
+    private static final List<Partition> partitions = new ArrayList<>();
+    private static String mode = MODE_NONE;
+    private static long currentRows;
+
+    /**
+     * 分区元数据。
+     * Partition metadata.
+     */
+    static class Partition {
+        final String name;
+        final long startMs;
+        long endMs;
+
+        Partition(String name, long startMs, long endMs) {
+            this.name = name;
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
+    }
+
+    /**
+     * 判断是否启用分区。
+     * Check whether partitioning is enabled.
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isEnabled() {
+        return !MODE_NONE.equalsIgnoreCase(AgentConfig.getPartitionMode());
+    }
+
+    /**
+     * 初始化分区：建序列与元数据表，必要时将旧的单表迁移为最旧分区，并创建当前分区与视图。
+     * Initialize partitioning: create sequence and metadata table, migrate a legacy single table into the oldest partition, then create the current partition and the view.
+     * @param conn 数据库连接 | database connection
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static synchronized void init(Connection conn) throws SQLException {
+        mode = AgentConfig.getPartitionMode().toLowerCase();
+        partitions.clear();
+        List<String> pending = new ArrayList<>();
+        currentRows = 0;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + SEQUENCE);
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + META + " (" +
+                    "name VARCHAR(64) PRIMARY KEY, " +
+                    "start_ms BIGINT NOT NULL, " +
+                    "end_ms BIGINT NOT NULL, " +
+                    "summary_subtracted BOOLEAN DEFAULT FALSE, " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            stmt.executeUpdate("ALTER TABLE " + META + " ADD COLUMN IF NOT EXISTS summary_subtracted BOOLEAN DEFAULT FALSE");
+            if ("BASE TABLE".equals(tableType(conn, VIEW))) {
+                // 旧的单表布局：整表改名为最旧分区，序列从现有最大ID之后继续
+                // Legacy single-table layout: rename it to the oldest partition, continue the sequence after its max id
+                String legacy = LEGACY;
+                long maxId = 0;
+                try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + VIEW)) {
+                    if (rs.next()) maxId = rs.getLong(1);
+                }
+                stmt.executeUpdate("ALTER TABLE " + VIEW + " RENAME TO " + legacy);
+                stmt.executeUpdate("ALTER SEQUENCE " + SEQUENCE + " RESTART WITH " + (maxId + 1));
+                stmt.executeUpdate("MERGE INTO " + META + " (name, start_ms, end_ms) KEY(name) VALUES ('" + legacy + "', 0, " + System.currentTimeMillis() + ")");
+                System.out.println("[mingsha-agent][分区] 已将旧主表迁移为分区 " + legacy);
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT name, start_ms, end_ms, summary_subtracted FROM " + META + " ORDER BY start_ms, name")) {
+                while (rs.next()) {
+                    if (rs.getBoolean(4)) pending.add(rs.getString(1));
+                    else partitions.add(new Partition(rs.getString(1), rs.getLong(2), rs.getLong(3)));
+                }
+            }
+        }
+        if (!partitions.isEmpty()) {
+            currentRows = countRows(conn, partitions.get(partitions.size() - 1).name);
+        }
+        currentTable(conn, System.currentTimeMillis());
+        rebuildView(conn);
+        // 上次删除在扣减汇总之后、删表之前中断：汇总已扣减，视图重建后只需补完删表
+        // A previous drop stopped after the summary subtraction but before DROP TABLE: the summary is settled, so once the view is rebuilt only the drop remains
+        try (Statement stmt = conn.createStatement()) {
+            for (String name : pending) {
+                dropTable(stmt, name);
+                System.out.println("[mingsha-agent][分区] 已补完中断的分区删除 " + name);
+            }
+        }
+        System.out.println("[mingsha-agent][分区] 分区模式: " + mode + "，已有分区: " + partitions.size());
+    }
+
+    /**
+     * 获取当前写入分区，时间跨界或条数超限时自动滚动新分区。
+     * Get the partition to write into, rolling a new one when the time bucket changes or the size limit is reached.
+     * @param conn 数据库连接 | database connection
+     * @param nowMs 当前时间 | current time (ms)
+     * @return 分区表名 | partition table name
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static synchronized String currentTable(Connection conn, long nowMs) throws SQLException {
+        Partition last = partitions.isEmpty() ? null : partitions.get(partitions.size() - 1);
+        boolean roll;
+        if (last == null || LEGACY.equals(last.name)) {
+            // 迁移来的旧表使用自有自增列，只读不再写入 | the migrated legacy table keeps its own identity, never written again
+            roll = true;
+        } else if (MODE_SIZE.equals(mode)) {
+            roll = currentRows >= AgentConfig.getPartitionMaxRows();
+        } else {
+            roll = nowMs >= last.endMs || nowMs < last.startMs;
+        }
+        if (!roll) return last.name;
+
+        Partition p;
+        if (MODE_SIZE.equals(mode)) {
+            p = new Partition(PREFIX + new SimpleDateFormat("yyyyMMddHHmmssSSS").format(new Date(nowMs)), nowMs, Long.MAX_VALUE);
+            if (last != null && last.name.equals(p.name)) return last.name;
+            if (last != null) {
+                last.endMs = nowMs;
+                updateEnd(conn, last);
+            }
+        } else {
+            long bucketMs = MODE_HOUR.equals(mode) ? 60L * 60 * 1000 : 24L * 60 * 60 * 1000;
+            String pattern = MODE_HOUR.equals(mode) ? "yyyyMMddHH" : "yyyyMMdd";
+            long start = bucketStart(nowMs, bucketMs);
+            p = new Partition(PREFIX + new SimpleDateFormat(pattern).format(new Date(nowMs)), start, start + bucketMs);
+            for (Partition existing : partitions) {
+                if (existing.name.equals(p.name)) return existing.name;
+            }
+        }
+        createRawTable(conn, p.name);
+        try (PreparedStatement ps = conn.prepareStatement("MERGE INTO " + META + " (name, start_ms, end_ms) KEY(name) VALUES (?, ?, ?)")) {
+            ps.setString(1, p.name);
+            ps.setLong(2, p.startMs);
+            ps.setLong(3, p.endMs);
+            ps.executeUpdate();
+        }
+        partitions.add(p);
+        currentRows = 0;
+        rebuildView(conn);
+        System.out.println("[mingsha-agent][分区] 已创建新分区 " + p.name);
+        return p.name;
+    }
+
+    /**
+     * 记录当前分区新增条数，用于按条数分区的滚动判断。
+     * Count rows added to the current partition, used by size-based rolling.
+     * @param rows 新增条数 | added rows
+     */
+    static synchronized void addRows(int rows) {
+        currentRows += rows;
+    }
+
+    /**
+     * 分区留存清理：删除过期分区，再从最旧分区开始删除直至总条数不超过上限；当前分区始终保留。
+     * Partition retention: drop expired partitions, then the oldest ones until the total row count fits; the current partition is always kept.
+     * 删除前先从汇总表中扣除该分区的调用次数与总耗时，并在同一事务中将分区标记为已扣减；
+     * H2 的 DROP TABLE 会隐式提交，无法与扣减同属一个事务，因此以该标记保证扣减按分区名恰好一次，中断的删除由下次初始化补完。
+     * Before dropping, the partition's call count and total duration are subtracted from the summary and the partition is marked as subtracted in the same transaction;
+     * DROP TABLE commits implicitly in H2 and cannot share that transaction, so the mark keeps the subtraction exactly-once per partition name and an interrupted drop is finished by the next init.
+     * @param conn 数据库连接 | database connection
+     * @param days 留存天数 | retention days
+     * @param rows 留存条数 | retention rows
+     * @return 删除分区数 | number of dropped partitions
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static synchronized int retain(Connection conn, int days, long rows) throws SQLException {
+        long cutoff = System.currentTimeMillis() - days * 24L * 60 * 60 * 1000;
+        long[] counts = new long[partitions.size()];
+        long total = 0;
+        for (int i = 0; i < partitions.size(); i++) {
+            counts[i] = countRows(conn, partitions.get(i).name);
+            total += counts[i];
+        }
+        int dropped = 0;
+        while (partitions.size() > 1) {
+            Partition oldest = partitions.get(0);
+            long oldestRows = counts[dropped];
+            boolean expired = oldest.endMs < cutoff;
+            boolean overflow = total - oldestRows >= rows;
+            if (!expired && !overflow) break;
+            partitions.remove(0);
+            rebuildView(conn);
+            subtractOnce(conn, oldest.name);
+            try (Statement stmt = conn.createStatement()) {
+                dropTable(stmt, oldest.name);
+            }
+            total -= oldestRows;
+            dropped++;
+            System.out.println("[mingsha-agent][分区] 已删除分区 " + oldest.name + "（" + oldestRows + " 条）");
+        }
+        return dropped;
+    }
+
+    private static void subtractOnce(Connection conn, String name) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            H2Storage.subtractFromSummary(stmt, name);
+            stmt.executeUpdate("UPDATE " + META + " SET summary_subtracted = TRUE WHERE name = '" + name + "'");
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void dropTable(Statement stmt, String name) throws SQLException {
+        stmt.executeUpdate("DROP TABLE IF EXISTS " + name);
+        stmt.executeUpdate("DELETE FROM " + META + " WHERE name = '" + name + "'");
+    }
+
+    /**
+     * 列出分区表名，按时间从旧到新。
+     * List partition table names, oldest first.
+     * @return 分区表名 | partition table names
+     */
+    static synchronized List<String> partitionNames() {
+        return partitionNamesUnlocked();
+    }
+
+    /**
+     * 撤销分区布局：将所有分区数据合并回单表并删除分区，用于从分区模式切回单表模式。
+     * Undo the partition layout: merge all partitions back into one table, used when switching back to single-table mode.
+     * @param conn 数据库连接 | database connection
+     * @param createTableSql 单表建表语句 | single table DDL
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void mergeBack(Connection conn, String createTableSql) throws SQLException {
+        if (!"VIEW".equals(tableType(conn, VIEW)) || tableType(conn, META) == null) return;
+        List<String> names = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM " + META + " ORDER BY start_ms, name")) {
+            while (rs.next()) names.add(rs.getString(1));
+        }
+        // 无分区元数据说明视图属于写入分片布局，交由 ShardManager 处理
+        // No partition metadata means the view belongs to the writer shard layout, handled by ShardManager
+        if (names.isEmpty()) return;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP VIEW " + VIEW);
+            stmt.executeUpdate(createTableSql);
+            for (String name : names) {
+                stmt.executeUpdate("INSERT INTO " + VIEW + " SELECT * FROM " + name);
+                stmt.executeUpdate("DROP TABLE IF EXISTS " + name);
+            }
+            stmt.executeUpdate("DELETE FROM " + META);
+            long maxId = 0;
+            try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + VIEW)) {
+                if (rs.next()) maxId = rs.getLong(1);
+            }
+            stmt.executeUpdate("ALTER TABLE " + VIEW + " ALTER COLUMN id RESTART WITH " + (maxId + 1));
+        }
+        System.out.println("[mingsha-agent][分区] 已将 " + names.size() + " 个分区合并回单表");
+    }
+
+    /**
+     * 创建一张与主表结构相同、主键取自共享序列的原始记录表（分区表与写入分片表共用）。
+     * Create a raw record table shaped like the main table with ids from the shared sequence (used by partitions and writer shards).
+     * @param conn 数据库连接 | database connection
+     * @param name 表名 | table name
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void createRawTable(Connection conn, String name) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + name + " (" +
+                    "id BIGINT DEFAULT NEXT VALUE FOR " + SEQUENCE + " PRIMARY KEY, " +
+                    "class_name VARCHAR(255) NOT NULL, " +
+                    "method_name VARCHAR(255) NOT NULL, " +
+                    "start_time BIGINT NOT NULL, " +
+                    "end_time BIGINT NOT NULL, " +
+                    "duration_ns BIGINT NOT NULL, " +
+                    "thread_name VARCHAR(128), " +
+                    "extra_info VARCHAR(512), " +
+                    "create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            // ingest 档位下新表只保留主键，二级索引在封存后或按需创建
+            // Under the ingest profile new tables only keep the primary key, secondary indexes come after sealing or on demand
+            if (!IndexManager.isIngest()) IndexManager.createIndexes(stmt, name);
+        }
+    }
+
+    private static void rebuildView(Connection conn) throws SQLException {
+        createUnionView(conn, partitionNamesUnlocked());
+    }
+
+    private static List<String> partitionNamesUnlocked() {
+        List<String> names = new ArrayList<>();
+        for (Partition p : partitions) names.add(p.name);
+        return names;
+    }
+
+    /**
+     * 以主表名创建（或替换）各原始记录表的 UNION ALL 视图。
+     * Create (or replace) the UNION ALL view over raw record tables under the main table name.
+     * @param conn 数据库连接 | database connection
+     * @param tables 表名 | table names
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void createUnionView(Connection conn, List<String> tables) throws SQLException {
+        StringBuilder sql = new StringBuilder("CREATE OR REPLACE VIEW " + VIEW + " AS ");
+        for (int i = 0; i < tables.size(); i++) {
+            if (i > 0) sql.append(" UNION ALL ");
+            sql.append("SELECT * FROM ").append(tables.get(i));
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(sql.toString());
+        }
+    }
+
+    private static void updateEnd(Connection conn, Partition p) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE " + META + " SET end_ms = ? WHERE name = ?")) {
+            ps.setLong(1, p.endMs);
+            ps.setString(2, p.name);
+            ps.executeUpdate();
+        }
+    }
+
+    private static long countRows(Connection conn, String table) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static long bucketStart(long nowMs, long bucketMs) {
+        long offset = java.util.TimeZone.getDefault().getOffset(nowMs);
+        return (nowMs + offset) / bucketMs * bucketMs - offset;
+    }
+
+    /**
+     * 查询表类型（BASE TABLE / VIEW），不存在返回null。
+     * Query table type (BASE TABLE / VIEW), null if absent.
+     */
+    static String tableType(Connection conn, String table) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT TABLE_TYPE FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = ?")) {
+            ps.setString(1, table.toUpperCase());
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 管理查询结果缓存：按规范化 SQL 缓存 db stats 等面板类聚合查询的结果，多人轮询时不再重复扫描全表。
+ * Result cache for management queries: caches dashboard-style aggregate queries such as db stats by normalized SQL, so several operators polling no longer rescan full tables.
+ * 结果记录执行前的存储写入纪元（{@link H2Storage#writeEpoch()}），纪元未变时在 TTL 内一直有效；持续写入时结果在宽限期内仍可复用，限制最大陈旧时间。
+ * Each result records the storage write epoch ({@link H2Storage#writeEpoch()}) taken before it ran and stays valid within the TTL while the epoch is unchanged; under continuous writes a result is still reused within the grace period, bounding staleness.
+ * 同一 SQL 的并发查询合并为一次执行，其余调用方等待同一结果；执行失败的结果不缓存。
+ * Concurrent identical queries are coalesced into one execution with the other callers waiting on its result; failed executions are not cached.
+ *
+ * @author mingsha
+ */
+public class QueryCache {
+    private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder coalesced = new LongAdder();
+
+    /**
+     * 物化的查询结果，行数受 manage.query.maxRows 限制。
+     * A materialized query result, rows capped by manage.query.maxRows.
+     */
+    public static class Result {
+        private final Map<String, Integer> columns = new HashMap<>();
+        private final List<Object[]> rows = new ArrayList<>();
+
+        /**
+         * 获取行数。
+         * Get the row count.
+         * @return 行数 | rows
+         */
+        public int size() {
+            return rows.size();
+        }
+
+        /**
+         * 按列标签（不区分大小写）取值。
+         * Get a value by column label (case-insensitive).
+         * @param row 行号（从0开始）| row index (0-based)
+         * @param label 列标签 | column label
+         * @return 值，可为 null | value, nullable
+         */
+        public Object get(int row, String label) {
+            Integer i = columns.get(label.toUpperCase());
+            if (i == null) throw new IllegalArgumentException("未知列: " + label);
+            return rows.get(row)[i];
+        }
+
+        /**
+         * 按列标签取整数值，null 为0。
+         * Get a value as long, 0 for null.
+         * @param row 行号 | row index
+         * @param label 列标签 | column label
+         * @return 值 | value
+         */
+        public long getLong(int row, String label) {
+            Object v = get(row, label);
+            return v instanceof Number ? ((Number) v).longValue() : v == null ? 0 : Long.parseLong(v.toString());
+        }
+
+        /**
+         * 按列标签取浮点值，null 为0。
+         * Get a value as double, 0 for null.
+         * @param row 行号 | row index
+         * @param label 列标签 | column label
+         * @return 值 | value
+         */
+        public double getDouble(int row, String label) {
+            Object v = get(row, label);
+            return v instanceof Number ? ((Number) v).doubleValue() : v == null ? 0 : Double.parseDouble(v.toString());
+        }
+
+        /**
+         * 按列标签取字符串值。
+         * Get a value as string.
+         * @param row 行号 | row index
+         * @param label 列标签 | column label
+         * @return 值，可为 null | value, nullable
+         */
+        public String getString(int row, String label) {
+            Object v = get(row, label);
+            return v == null ? null : v.toString();
+        }
+    }
+
+    private static class Entry {
+        final long epoch;
+        final long createdMs;
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+
+        Entry(long epoch, long createdMs) {
+            this.epoch = epoch;
+            this.createdMs = createdMs;
+        }
+
+        boolean reusable(long nowMs, long currentEpoch) {
+            if (!future.isDone()) return true;
+            if (future.isCompletedExceptionally()) return false;
+            long age = nowMs - createdMs;
+            return age < AgentConfig.getQueryCacheGraceMs() || (epoch == currentEpoch && age < AgentConfig.getQueryCacheTtlMs());
+        }
+    }
+
+    /**
+     * 执行查询或返回缓存结果；manage.query.cacheTtlMs 为 0 时不缓存也不合并。
+     * Run the query or return a cached result; with manage.query.cacheTtlMs at 0 nothing is cached or coalesced.
+     * @param sql 只读查询 | read-only query
+     * @return 查询结果 | result
+     * @throws SQLException 数据库异常、等待被中断 | SQL exception, or interrupted while waiting
+     */
+    public static Result query(String sql) throws SQLException {
+        if (AgentConfig.getQueryCacheTtlMs() <= 0) return execute(sql);
+        String key = normalize(sql);
+        long now = System.currentTimeMillis();
+        long epoch = H2Storage.writeEpoch();
+        Entry[] created = new Entry[1];
+        Entry e = entries.compute(key, (k, old) -> old != null && old.reusable(now, epoch) ? old : (created[0] = new Entry(epoch, now)));
+        if (e != created[0]) {
+            if (e.future.isDone()) hits.increment();
+            else coalesced.increment();
+            return await(e);
+        }
+        misses.increment();
+        evict();
+        try {
+            e.future.complete(execute(sql));
+        } catch (SQLException | RuntimeException ex) {
+            e.future.completeExceptionally(ex);
+            entries.remove(key, e);
+        }
+        return await(e);
+    }
+
+    private static Result await(Entry e) throws SQLException {
+        try {
+            return e.future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("等待查询结果时被中断", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException(cause.getMessage(), cause);
+        }
+    }
+
+    private static Result execute(String sql) throws SQLException {
+        int maxRows = Math.max(1, AgentConfig.getQueryMaxRows());
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            PreparedStatement ps = lease.prepare(sql, maxRows);
+            try (ResultSet rs = ps.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int cols = meta.getColumnCount();
+                Result r = new Result();
+                for (int i = 0; i < cols; i++) r.columns.putIfAbsent(meta.getColumnLabel(i + 1).toUpperCase(), i);
+                while (rs.next()) {
+                    Object[] row = new Object[cols];
+                    for (int i = 0; i < cols; i++) row[i] = rs.getObject(i + 1);
+                    r.rows.add(row);
+                }
+                return r;
+            }
+        }
+    }
+
+    /**
+     * 超出条目上限时移除最早创建的已完成条目。
+     * Remove the oldest completed entries once the entry cap is exceeded.
+     */
+    private static void evict() {
+        int max = Math.max(1, AgentConfig.getQueryCacheEntries());
+        while (entries.size() > max) {
+            Map.Entry<String, Entry> oldest = null;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (!e.getValue().future.isDone()) continue;
+                if (oldest == null || e.getValue().createdMs < oldest.getValue().createdMs) oldest = e;
+            }
+            if (oldest == null || !entries.remove(oldest.getKey(), oldest.getValue())) return;
+        }
+    }
+
+    /**
+     * 规范化 SQL 作为缓存键：去掉首尾空白与末尾分号，引号外的连续空白合并为一个空格并转为小写。
+     * Normalize SQL into a cache key: trim, drop a trailing semicolon, collapse whitespace and lower-case outside quotes.
+     * @param sql SQL
+     * @return 缓存键 | cache key
+     */
+    static String normalize(String sql) {
+        String s = sql.trim();
+        while (s.endsWith(";")) s = s.substring(0, s.length() - 1).trim();
+        StringBuilder sb = new StringBuilder(s.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                sb.append(c);
+                if (c == quote) quote = 0;
+            } else if (c == '\'' || c == '"') {
+                if (space) sb.append(' ');
+                space = false;
+                quote = c;
+                sb.append(c);
+            } else if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) sb.append(' ');
+                space = false;
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 清空缓存（热加载或存储重建后调用）。
+     * Clear the cache (after hot reload or storage rebuild).
+     */
+    public static void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 获取缓存命中统计。
+     * Get cache hit statistics.
+     * @return 统计字符串 | statistics string
+     */
+    public static String getStats() {
+        long h = hits.sum();
+        long c = coalesced.sum();
+        long m = misses.sum();
+        long total = h + c + m;
+        return String.format("命中率 %.1f%% (命中 %d, 合并 %d, 执行 %d), 条目 %d, 写入纪元 %d",
+                total == 0 ? 0.0 : (h + c) * 100.0 / total, h, c, m, entries.size(), H2Storage.writeEpoch());
+    }
+}
@@ -0,0 +1,213 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 管理查询只读连接池：Telnet 等管理命令共享少量只读连接，不再每条命令新建连接。
+ * Read-only connection pool for management queries: Telnet and other management commands share a few read-only connections instead of opening one per command.
+ * 连接按需创建、数量有上限，耗尽时等待有限时间；每个连接带 LRU 预编译语句缓存，语句统一设置查询超时，
+ * 行数上限通过 {@link PreparedStatement#setMaxRows(int)} 交给数据库执行。连接为读已提交隔离，MVStore 下读取不阻塞写入线程。
+ * Connections are created on demand up to a cap and callers wait a bounded time when exhausted; each connection keeps an LRU prepared statement cache,
+ * statements get the query timeout and the row cap is enforced by the database via {@link PreparedStatement#setMaxRows(int)}. Connections use read committed isolation so reads never block the writer under MVStore.
+ *
+ * @author mingsha
+ */
+public class QueryPool {
+    private static final Object LOCK = new Object();
+    private static final Deque<Lease> idle = new ArrayDeque<>();
+    private static Semaphore permits;
+    private static int size;
+    private static int generation;
+    private static final AtomicLong borrowed = new AtomicLong();
+    private static final AtomicLong opened = new AtomicLong();
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * 借出的连接，关闭时归还连接池。
+     * A borrowed connection, returned to the pool on close.
+     */
+    public static class Lease implements AutoCloseable {
+        private final Connection conn;
+        private final Map<String, PreparedStatement> statements;
+        private final int generation;
+
+        private Lease(Connection conn, int cacheSize, int generation) {
+            this.conn = conn;
+            this.generation = generation;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= cacheSize) return false;
+                    try { eldest.getValue().close(); } catch (SQLException ignore) {}
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * 获取底层连接（只读），用于元数据查询。
+         * Get the underlying read-only connection, for metadata lookups.
+         * @return 连接 | connection
+         */
+        public Connection connection() {
+            return conn;
+        }
+
+        /**
+         * 获取缓存的预编译语句，已设置查询超时、行数上限与抓取行数。
+         * Get a cached prepared statement with the query timeout, row cap and fetch size applied.
+         * @param sql SQL语句 | SQL statement
+         * @param maxRows 最大行数，0 表示不限制 | max rows, 0 for unlimited
+         * @return 预编译语句 | prepared statement
+         * @throws SQLException 数据库异常 | SQL exception
+         */
+        public PreparedStatement prepare(String sql, int maxRows) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null || ps.isClosed()) {
+                cacheMisses.incrementAndGet();
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            } else {
+                cacheHits.incrementAndGet();
+            }
+            ps.setQueryTimeout(Math.max(0, AgentConfig.getQueryTimeoutSeconds()));
+            int rows = Math.max(0, maxRows);
+            int fetch = Math.max(1, AgentConfig.getQueryFetchSize());
+            ps.setMaxRows(rows);
+            // H2 要求抓取行数不超过最大行数 | H2 requires the fetch size not to exceed max rows
+            ps.setFetchSize(rows > 0 ? Math.min(fetch, rows) : fetch);
+            return ps;
+        }
+
+        /**
+         * 归还连接；失效的连接直接关闭。
+         * Return the connection to the pool; broken connections are closed instead.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void closeQuietly() {
+            for (PreparedStatement ps : statements.values()) {
+                try { ps.close(); } catch (SQLException ignore) {}
+            }
+            statements.clear();
+            try { conn.close(); } catch (SQLException ignore) {}
+        }
+    }
+
+    /**
+     * 借出一个只读连接，连接池耗尽时最多等待 {@code manage.query.acquireTimeoutMs}。
+     * Borrow a read-only connection, waiting at most {@code manage.query.acquireTimeoutMs} when the pool is exhausted.
+     * @return 借出的连接 | lease
+     * @throws SQLException 等待超时或建连失败 | on wait timeout or connection failure
+     */
+    public static Lease acquire() throws SQLException {
+        Semaphore p;
+        int gen;
+        synchronized (LOCK) {
+            if (permits == null) {
+                size = Math.max(1, AgentConfig.getQueryPoolSize());
+                permits = new Semaphore(size, true);
+            }
+            p = permits;
+            gen = generation;
+        }
+        try {
+            if (!p.tryAcquire(Math.max(0, AgentConfig.getQueryAcquireTimeoutMs()), TimeUnit.MILLISECONDS)) {
+                throw new SQLException("查询连接池已耗尽（" + size + " 个连接均在使用中）");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("等待查询连接时被中断", e);
+        }
+        try {
+            Lease lease;
+            synchronized (LOCK) {
+                lease = idle.pollFirst();
+            }
+            if (lease != null) {
+                if (!lease.conn.isClosed()) {
+                    borrowed.incrementAndGet();
+                    return lease;
+                }
+                lease.closeQuietly();
+            }
+            Connection c = DriverManager.getConnection(H2Storage.getDbUrl(), H2Storage.USER, H2Storage.PASSWORD);
+            try (Statement stmt = c.createStatement()) {
+                // 结果集按需计算，配合 fetchSize 流式读取 | compute results lazily so fetchSize streams them
+                stmt.execute("SET LAZY_QUERY_EXECUTION TRUE");
+            }
+            c.setReadOnly(true);
+            c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            c.setAutoCommit(true);
+            opened.incrementAndGet();
+            borrowed.incrementAndGet();
+            return new Lease(c, Math.max(0, AgentConfig.getQueryStatementCache()), gen);
+        } catch (SQLException | RuntimeException e) {
+            p.release();
+            throw e;
+        }
+    }
+
+    private static void release(Lease lease) {
+        boolean keep;
+        try {
+            keep = !lease.conn.isClosed();
+        } catch (SQLException e) {
+            keep = false;
+        }
+        synchronized (LOCK) {
+            if (lease.generation != generation || permits == null) {
+                lease.closeQuietly();
+                return;
+            }
+            if (keep) idle.addFirst(lease);
+            permits.release();
+        }
+        if (!keep) lease.closeQuietly();
+    }
+
+    /**
+     * 获取连接池状态。
+     * Get pool statistics.
+     * @return 状态字符串 | stats string
+     */
+    public static String getStats() {
+        synchronized (LOCK) {
+            int inUse = permits == null ? 0 : size - permits.availablePermits();
+            long hits = cacheHits.get();
+            long total = hits + cacheMisses.get();
+            return String.format("连接上限=%d, 使用中=%d, 空闲=%d, 已建连接=%d, 借出次数=%d, 语句缓存命中率=%.1f%%",
+                    permits == null ? Math.max(1, AgentConfig.getQueryPoolSize()) : size, inUse, idle.size(), opened.get(), borrowed.get(),
+                    total == 0 ? 0.0 : hits * 100.0 / total);
+        }
+    }
+
+    /**
+     * 关闭空闲连接并按最新配置重建连接池，借出中的连接归还时关闭。
+     * Close idle connections and rebuild the pool from the current config, borrowed connections are closed when returned.
+     */
+    public static void close() {
+        synchronized (LOCK) {
+            for (Lease l : idle) l.closeQuietly();
+            idle.clear();
+            permits = null;
+            generation++;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 增量分块留存清理：按ID范围小块删除过期数据，每块独立短事务，不阻塞采集写入。
+ * Incremental chunked retention: deletes expired rows in small id ranges, each in its own short transaction, without blocking ingestion.
+ * 使用独立连接；每块持有写锁的时间仅为一次小事务，块大小与间隔根据缓冲队列积压自适应调整。
+ * Uses its own connection; the write lock is held for one short transaction per chunk, chunk size and pause adapt to the buffer queue backlog.
+ * 每块提交时同步写入进度检查点，重启后从检查点继续。
+ * Progress is checkpointed in the same transaction as each chunk so a restart resumes where it stopped.
+ * 删除的调用次数与总耗时从汇总表中扣减，不再全表重算汇总表。
+ * Deleted call counts and durations are subtracted from the summary table instead of rebuilding it from the full table.
+ *
+ * @author mingsha
+ */
+public class RetentionWorker {
+    static final String CHECKPOINT_TABLE = "retention_checkpoint";
+    private static final int MIN_CHUNK_ROWS = 100;
+    private static final long SLOW_CHUNK_NS = 200_000_000L;
+    private static final long FAST_CHUNK_NS = 50_000_000L;
+
+    private static volatile boolean holding;
+    private static volatile int chunkRows;
+    private static volatile long lastRunAt;
+    private static volatile long lastRunMs;
+    private static final AtomicLong deletedRows = new AtomicLong();
+    private static final AtomicLong chunks = new AtomicLong();
+    private static final AtomicLong ingestWaits = new AtomicLong();
+    private static final AtomicLong ingestWaitNs = new AtomicLong();
+    private static final AtomicLong maxIngestWaitNs = new AtomicLong();
+
+    /**
+     * 创建检查点表，并按配置重置块大小。
+     * Create the checkpoint table and reset the chunk size from config.
+     * @param stmt 语句 | statement
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void createTable(Statement stmt) throws SQLException {
+        chunkRows = Math.max(MIN_CHUNK_ROWS, AgentConfig.getRetentionChunkRows());
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + CHECKPOINT_TABLE + " (" +
+                "table_name VARCHAR(64) PRIMARY KEY, " +
+                "next_id BIGINT NOT NULL, " +
+                "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+    }
+
+    /**
+     * 创建定时留存清理线程（建议由健康守护线程注册）。
+     * Create the scheduled retention thread (recommended to be registered by thread guardian).
+     * @param intervalMs 清理间隔（毫秒）| cleanup interval (ms)
+     * @return 清理线程 | cleanup thread
+     */
+    public static Thread createThread(long intervalMs) {
+        return new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    runOnce();
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "mingsha-agent-h2cleaner");
+    }
+
+    /**
+     * 执行一轮留存清理：段存储/分区模式删除整段或整分区，MVStore 与单表模式分块删除；慢查询表始终分块删除。
+     * Run one retention pass: segment and partition modes drop whole segments or partitions, MVStore and single-table modes delete in chunks; the slow table is always chunked.
+     */
+    public static void runOnce() {
+        long start = System.currentTimeMillis();
+        long before = deletedRows.get();
+        int days = AgentConfig.getRetentionDays();
+        long rows = AgentConfig.getRetentionRows();
+        if (chunkRows <= 0) chunkRows = Math.max(MIN_CHUNK_ROWS, AgentConfig.getRetentionChunkRows());
+        String table = H2Storage.TABLE;
+        try (Connection c = H2Storage.openConnection()) {
+            c.setAutoCommit(false);
+            if (SegmentStorage.isEnabled()) {
+                // 删段与汇总扣减在同一次写锁内完成，写入方不会看到只删了一半的状态
+                // Dropping segments and subtracting them from the summary happen under one write lock, so writers never see half of it
+                int dropped = withWriteLock(() -> {
+                    Map<String, long[]> removed = new HashMap<>();
+                    int n = SegmentStorage.retain(days, rows, removed);
+                    deletedRows.addAndGet(subtractRemoved(c, removed));
+                    return n;
+                });
+                if (dropped > 0) System.out.println("[mingsha-agent][清理] 删除过期段 " + dropped + " 个");
+            } else if (MVStoreStorage.isEnabled()) {
+                purgeMVStore(c, days, rows);
+            } else if (H2Storage.isPartitioned()) {
+                int dropped = withWriteLock(() -> PartitionManager.retain(H2Storage.sharedConnection(), days, rows));
+                if (dropped > 0) System.out.println("[mingsha-agent][清理] 删除分区 " + dropped + " 个");
+                // 封存分区补建二级索引，不占用写锁
+                // Index sealed partitions without holding the write lock
+                IndexManager.indexSealed(c, PartitionManager.partitionNames());
+            } else if (H2Storage.isSharded()) {
+                // 分片共享主键序列，按视图计算的截止ID对每个分片分别分块删除
+                // Shards share the id sequence, so the cutoff computed over the view applies to each shard
+                long cutoff = cutoffId(c, table, days, rows);
+                for (String shard : ShardManager.tableNames()) {
+                    purge(c, shard, cutoff, true);
+                }
+            } else if (H2Storage.isNormalized()) {
+                purge(c, NormalizedSchema.FACT, cutoffId(c, NormalizedSchema.FACT, days, rows), true);
+            } else {
+                purge(c, table, cutoffId(c, table, days, rows), true);
+            }
+            // 内存模式下慢查询表同样按条数上限（主表的1/10）清理，防止内存溢出
+            // In memory mode the slow table is also capped by rows (1/10 of the main table) to prevent memory overflow
+            long slowRows = H2Storage.isMemoryMode() ? rows / 10 : Long.MAX_VALUE;
+            String slow = H2Storage.isNormalized() ? NormalizedSchema.SLOW_FACT : table + "_slow";
+            purge(c, slow, cutoffId(c, slow, days, slowRows), false);
+            purgeStacks(c, slow);
+            // 删除过期的分钟耗时直方图 | drop expired minute histograms
+            HistogramStore.purge(c, days);
+            c.commit();
+            IndexManager.expireOnDemand(c);
+            String mode = H2Storage.isMemoryMode() ? "内存模式" : "文件模式";
+            System.out.println("[mingsha-agent][清理] " + mode + "历史数据清理完成，本轮删除 " + (deletedRows.get() - before) + " 条");
+        } catch (SQLException e) {
+            System.err.println("[mingsha-agent][清理] H2历史数据清理异常: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lastRunAt = start;
+            lastRunMs = System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * 计算本轮可删除的最大ID：按时间过期的最大ID与超出条数上限部分的最大ID取较大者。
+     * Compute the largest deletable id: the larger of the newest expired id and the id below the row limit.
+     */
+    private static long cutoffId(Connection c, String table, int days, long rows) throws SQLException {
+        long cutoff = 0;
+        try (Statement stmt = c.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT MAX(id) FROM " + table + " WHERE create_time < DATEADD('DAY', -" + days + ", CURRENT_TIMESTAMP)")) {
+                if (rs.next()) cutoff = rs.getLong(1);
+            }
+            if (rows != Long.MAX_VALUE) {
+                try (ResultSet rs = stmt.executeQuery("SELECT MAX(id) FROM " + table)) {
+                    if (rs.next()) cutoff = Math.max(cutoff, rs.getLong(1) - rows);
+                }
+            }
+        }
+        c.commit();
+        return cutoff;
+    }
+
+    /**
+     * 从检查点开始，按ID范围分块删除至 cutoff。
+     * Delete from the checkpoint up to cutoff in id-range chunks.
+     */
+    private static void purge(Connection c, String table, long cutoff, boolean adjustSummary) throws SQLException, InterruptedException {
+        long next = loadCheckpoint(c, table);
+        try (Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN(id) FROM " + table)) {
+            if (!rs.next() || rs.getObject(1) == null) {
+                c.commit();
+                return;
+            }
+            next = Math.max(next, rs.getLong(1));
+        }
+        c.commit();
+        while (next <= cutoff) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+            final long lo = next;
+            final long hi = Math.min(next + chunkRows - 1, cutoff);
+            long t0 = System.nanoTime();
+            int n = withWriteLock(() -> {
+                try (Statement stmt = c.createStatement()) {
+                    String range = " WHERE id BETWEEN " + lo + " AND " + hi;
+                    // 规范化事实表没有类名/方法名，汇总扣减改从兼容视图读取同一ID范围
+                    // Normalized facts have no class/method names, so the summary subtraction reads the same id range through the view
+                    if (adjustSummary) H2Storage.subtractFromSummary(stmt, NormalizedSchema.namedSource(table) + range);
+                    int deleted = stmt.executeUpdate("DELETE FROM " + table + range);
+                    saveCheckpoint(c, table, hi + 1);
+                    c.commit();
+                    return deleted;
+                } catch (SQLException e) {
+                    c.rollback();
+                    throw e;
+                }
+            });
+            deletedRows.addAndGet(n);
+            chunks.incrementAndGet();
+            next = hi + 1;
+            pace(System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * 删除已无慢查询引用的调用栈，与主表相同按块大小分块、每块在写锁内提交并按积压节流；仍在发生的调用栈随下一次慢调用重新写入。
+     * Drop stacks no longer referenced by slow rows, chunked like the main table with each chunk committed under the write lock and paced by the backlog;
+     * stacks still occurring are written again with the next slow call.
+     */
+    private static void purgeStacks(Connection c, String slow) throws SQLException, InterruptedException {
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+            final int limit = chunkRows;
+            long t0 = System.nanoTime();
+            int n = withWriteLock(() -> {
+                try (Statement stmt = c.createStatement()) {
+                    int deleted = stmt.executeUpdate("DELETE FROM " + H2Storage.STACK_TABLE + " WHERE id IN (SELECT s.id FROM " + H2Storage.STACK_TABLE +
+                            " s WHERE NOT EXISTS (SELECT 1 FROM " + slow + " f WHERE f.stack_id = s.id) LIMIT " + limit + ")");
+                    c.commit();
+                    return deleted;
+                } catch (SQLException e) {
+                    c.rollback();
+                    throw e;
+                }
+            });
+            if (n == 0) return;
+            chunks.incrementAndGet();
+            pace(System.nanoTime() - t0);
+            if (n < limit) return;
+        }
+    }
+
+    /**
+     * MVStore 引擎：从最旧记录开始分块删除，每块在写锁内同步扣减汇总表；MVStore 删除自身持久化，无需检查点。
+     * MVStore engine: delete from the oldest records in chunks, subtracting each chunk from the summary under the write lock; MVStore removals are durable on their own, so no checkpoint is kept.
+     */
+    private static void purgeMVStore(Connection c, int days, long rows) throws SQLException, InterruptedException {
+        long cutoffMs = System.currentTimeMillis() - days * 24L * 60 * 60 * 1000;
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+            long t0 = System.nanoTime();
+            int n = withWriteLock(() -> subtractRemoved(c, MVStoreStorage.purge(cutoffMs, rows, chunkRows)));
+            if (n == 0) return;
+            deletedRows.addAndGet(n);
+            chunks.incrementAndGet();
+            pace(System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * 从汇总表扣减已删除记录（类名#方法名 -> {条数, 总耗时}）并提交，须在写锁内调用。
+     * Subtract removed records (class#method -> {count, duration sum}) from the summary table and commit; must be called under the write lock.
+     * @return 扣减的条数 | number of subtracted rows
+     */
+    private static int subtractRemoved(Connection c, Map<String, long[]> removed) throws SQLException {
+        String sql = "UPDATE " + H2Storage.TABLE + "_summary SET total_calls = GREATEST(total_calls - ?, 0), " +
+                "total_duration_ns = GREATEST(total_duration_ns - ?, 0), " +
+                "avg_duration_ns = CASE WHEN total_calls - ? > 0 THEN (total_duration_ns - ?) / (total_calls - ?) ELSE 0 END " +
+                "WHERE class_name = ? AND method_name = ?";
+        int deleted = 0;
+        try (PreparedStatement ps = c.prepareStatement(sql); Statement stmt = c.createStatement()) {
+            for (Map.Entry<String, long[]> e : removed.entrySet()) {
+                String key = String.valueOf(e.getKey());
+                int sep = key.lastIndexOf('#');
+                long[] v = e.getValue();
+                ps.setLong(1, v[0]);
+                ps.setLong(2, v[1]);
+                ps.setLong(3, v[0]);
+                ps.setLong(4, v[1]);
+                ps.setLong(5, v[0]);
+                ps.setString(6, sep < 0 ? key : key.substring(0, sep));
+                ps.setString(7, sep < 0 ? "" : key.substring(sep + 1));
+                ps.addBatch();
+                deleted += (int) v[0];
+            }
+            if (deleted > 0) {
+                ps.executeBatch();
+                stmt.executeUpdate("DELETE FROM " + H2Storage.TABLE + "_summary WHERE total_calls = 0");
+            }
+            c.commit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        }
+        return deleted;
+    }
+
+    /**
+     * 根据缓冲队列积压和单块耗时调整块大小并休眠：积压越多块越小、间隔越长。
+     * Adapt chunk size and sleep to the queue backlog and chunk latency: the larger the backlog, the smaller the chunk and the longer the pause.
+     */
+    private static void pace(long chunkNs) throws InterruptedException {
+        int capacity = Math.max(1, MethodTimeBuffer.capacity());
+        double lag = MethodTimeBuffer.size() / (double) capacity;
+        int max = Math.max(MIN_CHUNK_ROWS, AgentConfig.getRetentionChunkRows()) * 8;
+        if (lag > 0.5 || chunkNs > SLOW_CHUNK_NS) {
+            chunkRows = Math.max(MIN_CHUNK_ROWS, chunkRows / 2);
+        } else if (lag < 0.1 && chunkNs < FAST_CHUNK_NS) {
+            chunkRows = Math.min(max, chunkRows + chunkRows / 2);
+        }
+        long pause = AgentConfig.getRetentionPauseMs();
+        Thread.sleep(pause + (long) (pause * 20 * lag));
+    }
+
+    private interface LockedAction<T> {
+        T run() throws SQLException;
+    }
+
+    private static <T> T withWriteLock(LockedAction<T> action) throws SQLException {
+        H2Storage.STORAGE_LOCK.writeLock().lock();
+        holding = true;
+        try {
+            return action.run();
+        } finally {
+            holding = false;
+            H2Storage.STORAGE_LOCK.writeLock().unlock();
+            H2Storage.markWritten();
+        }
+    }
+
+    private static long loadCheckpoint(Connection c, String table) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT next_id FROM " + CHECKPOINT_TABLE + " WHERE table_name = ?")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static void saveCheckpoint(Connection c, String table, long nextId) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("MERGE INTO " + CHECKPOINT_TABLE + " (table_name, next_id, updated_at) KEY(table_name) VALUES (?, ?, CURRENT_TIMESTAMP)")) {
+            ps.setString(1, table);
+            ps.setLong(2, nextId);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * 判断留存清理当前是否持有写锁。
+     * Check whether retention currently holds the write lock.
+     * @return true-持有 | true if holding
+     */
+    static boolean isHolding() {
+        return holding;
+    }
+
+    /**
+     * 记录一次采集写入等待留存清理释放写锁的时间。
+     * Record time an ingest batch waited for retention to release the write lock.
+     * @param waitedNs 等待纳秒 | waited nanoseconds
+     */
+    static void recordIngestWait(long waitedNs) {
+        ingestWaits.incrementAndGet();
+        ingestWaitNs.addAndGet(waitedNs);
+        maxIngestWaitNs.accumulateAndGet(waitedNs, Math::max);
+    }
+
+    /**
+     * 获取留存清理统计：删除条数、块数、当前块大小、最近一轮耗时及写入等待时间。
+     * Get retention statistics: deleted rows, chunks, current chunk size, last run time and ingest wait time.
+     * @return 统计字符串 | statistics string
+     */
+    public static String getStats() {
+        return String.format("已删除: %d 条, 块数: %d, 当前块大小: %d, 最近一轮: %s (%d ms), 写入等待: %d 次/共 %d ms/最长 %d ms",
+                deletedRows.get(), chunks.get(), chunkRows,
+                lastRunAt == 0 ? "未运行" : new Timestamp(lastRunAt).toString(), lastRunMs,
+                ingestWaits.get(), ingestWaitNs.get() / 1_000_000, maxIngestWaitNs.get() / 1_000_000);
+    }
+}
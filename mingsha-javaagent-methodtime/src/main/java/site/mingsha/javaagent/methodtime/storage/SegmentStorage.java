@@ -0,0 +1,296 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 列式段存储引擎：原始记录以追加方式写入定长内存映射段文件，替代 H2 主表逐行插入。
+ * Columnar segment storage engine: raw records are appended into fixed-size memory-mapped segment files instead of row-by-row H2 inserts.
+ * 类名/方法名与线程名经字典编码，每个段维护 min/max 索引，扫描时按时间和方法跳过无关段。
+ * Class/method and thread names are dictionary-encoded, each segment keeps a min/max index so scans skip unrelated segments.
+ * 留存清理以整段删除完成，不产生任何 DELETE 扫描。
+ * Retention deletes whole segments, no DELETE scans are involved.
+ * 通过 storage.engine=segment 启用，段目录由 storage.segment.path 指定。
+ * Enabled by storage.engine=segment, the segment directory is given by storage.segment.path.
+ * 扫描持读锁遍历映射段，留存删除与关闭持写锁，避免扫描中途读到已删除或已释放的段。
+ * Scans walk mapped segments under the read lock while retention and close take the write lock, so a scan never reads a segment deleted or released underneath it.
+ *
+ * @author mingsha
+ */
+public class SegmentStorage {
+    public static final String ENGINE = "segment";
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".col";
+    private static final List<ColumnSegment> segments = new CopyOnWriteArrayList<>();
+    private static final ReadWriteLock SEGMENT_LOCK = new ReentrantReadWriteLock();
+    private static File dir;
+    private static int segmentBytes;
+    private static StringDictionary methods;
+    private static StringDictionary threads;
+    private static ColumnSegment active;
+    private static long nextSegmentSeq;
+
+    /**
+     * 扫描回调，返回false时停止扫描。
+     * Scan callback, return false to stop scanning.
+     */
+    public interface RecordVisitor {
+        boolean visit(long timeMs, MethodTimeRecord record);
+    }
+
+    /**
+     * 判断是否配置为段存储引擎。
+     * Check whether the segment engine is configured.
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isEnabled() {
+        return ENGINE.equalsIgnoreCase(AgentConfig.getStorageEngine());
+    }
+
+    /**
+     * 按配置初始化段目录、字典并恢复已有段。
+     * Initialize segment directory and dictionaries from config, recovering existing segments.
+     * @throws IOException IO异常 | IO exception
+     */
+    public static void init() throws IOException {
+        init(new File(AgentConfig.getSegmentPath()), AgentConfig.getSegmentSizeBytes());
+    }
+
+    static synchronized void init(File directory, int sizeBytes) throws IOException {
+        close();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create segment directory: " + directory);
+        }
+        dir = directory;
+        segmentBytes = sizeBytes;
+        nextSegmentSeq = 0;
+        methods = new StringDictionary(new File(dir, "methods.dict"));
+        threads = new StringDictionary(new File(dir, "threads.dict"));
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                try {
+                    segments.add(ColumnSegment.open(f));
+                    nextSegmentSeq = Math.max(nextSegmentSeq, parseSeq(f.getName()) + 1);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("[mingsha-agent][段存储] 跳过损坏的段文件 " + f.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            ColumnSegment last = segments.get(segments.size() - 1);
+            if (!last.isFull()) {
+                last.reopenForAppend();
+                active = last;
+            }
+        }
+        System.out.println("[mingsha-agent][段存储] 段存储初始化完成，目录: " + dir.getAbsolutePath() + "，已有段: " + segments.size());
+    }
+
+    /**
+     * 批量追加原始记录，段写满时自动滚动新段。
+     * Append a batch of raw records, rolling a new segment when the current one is full.
+     * @param records 采集数据批量 | batch of method time records
+     * @throws IOException IO异常 | IO exception
+     */
+    public static synchronized void append(List<MethodTimeRecord> records) throws IOException {
+        if (dir == null) throw new IOException("segment storage not initialized");
+        long now = System.currentTimeMillis();
+        for (MethodTimeRecord r : records) {
+            int methodId = methods.idOf(r.className + "#" + r.methodName);
+            int threadId = threads.idOf(r.threadName);
+            if (active == null || !active.append(now, methodId, threadId, r.startTime, r.durationNs)) {
+                roll(now);
+                active.append(now, methodId, threadId, r.startTime, r.durationNs);
+            }
+        }
+        if (active != null) active.writeHeader();
+    }
+
+    private static void roll(long now) throws IOException {
+        if (active != null) active.seal();
+        File f = new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, nextSegmentSeq++, SEGMENT_SUFFIX));
+        active = ColumnSegment.create(f, segmentBytes, now);
+        segments.add(active);
+    }
+
+    /**
+     * 按时间范围和方法流式扫描原始记录，min/max 索引不命中的段直接跳过。
+     * Stream raw records by time range and method, segments whose min/max index cannot match are skipped.
+     * @param fromMs 起始时间（含）| from time inclusive (ms)
+     * @param toMs 结束时间（含）| to time inclusive (ms)
+     * @param className 类名，为null不限 | class name, null for any
+     * @param methodName 方法名，为null不限 | method name, null for any
+     * @param visitor 回调 | callback
+     * @throws IOException IO异常 | IO exception
+     */
+    public static void scan(long fromMs, long toMs, String className, String methodName, RecordVisitor visitor) throws IOException {
+        SEGMENT_LOCK.readLock().lock();
+        try {
+            scanLocked(fromMs, toMs, className, methodName, visitor);
+        } finally {
+            SEGMENT_LOCK.readLock().unlock();
+        }
+    }
+
+    private static void scanLocked(long fromMs, long toMs, String className, String methodName, RecordVisitor visitor) throws IOException {
+        if (dir == null) return;
+        int methodId = -1;
+        if (className != null && methodName != null) {
+            methodId = methods.find(className + "#" + methodName);
+            if (methodId < 0) return;
+        }
+        for (ColumnSegment seg : segments) {
+            if (!seg.mayContain(fromMs, toMs, methodId)) continue;
+            ByteBuffer b = seg.readView();
+            int n = seg.count();
+            for (int i = 0; i < n; i++) {
+                long t = seg.timeAt(b, i);
+                if (t < fromMs || t > toMs) continue;
+                int m = seg.methodAt(b, i);
+                if (methodId >= 0 && m != methodId) continue;
+                String key = methods.valueOf(m);
+                int sep = key == null ? -1 : key.lastIndexOf('#');
+                long start = seg.startAt(b, i);
+                long duration = seg.durationAt(b, i);
+                MethodTimeRecord r = new MethodTimeRecord(
+                        sep < 0 ? String.valueOf(key) : key.substring(0, sep),
+                        sep < 0 ? "" : key.substring(sep + 1),
+                        start, start + duration, duration, threads.valueOf(seg.threadAt(b, i)), "");
+                if (!visitor.visit(t, r)) return;
+            }
+        }
+    }
+
+    /**
+     * 留存清理：删除整段过期段，再从最旧段开始删除直至总条数不超过上限。
+     * Retention: delete whole expired segments, then delete oldest segments until the total row count fits.
+     * @param days 留存天数 | retention days
+     * 删除前按方法累计被删段的调用次数与总耗时，供调用方从汇总表扣减。
+     * Before deleting, each dropped segment's call count and total duration are accumulated per method so the caller can subtract them from the summary.
+     * @param days 留存天数 | retention days
+     * @param rows 留存条数 | retention rows
+     * @param removed 输出：类名#方法名 -> {条数, 总耗时}，可为null | out: class#method -> {count, duration sum}, may be null
+     * @return 删除段数 | number of deleted segments
+     */
+    public static synchronized int retain(int days, long rows, Map<String, long[]> removed) {
+        SEGMENT_LOCK.writeLock().lock();
+        try {
+            return retainLocked(days, rows, removed);
+        } finally {
+            SEGMENT_LOCK.writeLock().unlock();
+        }
+    }
+
+    private static int retainLocked(int days, long rows, Map<String, long[]> removed) {
+        if (dir == null) return 0;
+        long cutoff = System.currentTimeMillis() - days * 24L * 60 * 60 * 1000;
+        long total = 0;
+        for (ColumnSegment seg : segments) total += seg.count();
+        int deleted = 0;
+        while (!segments.isEmpty()) {
+            ColumnSegment oldest = segments.get(0);
+            if (oldest == active) break;
+            boolean expired = oldest.count() == 0 || oldest.maxTimeMs() < cutoff;
+            boolean overflow = total - oldest.count() >= rows;
+            if (!expired && !overflow) break;
+            if (removed != null) accumulate(oldest, removed);
+            segments.remove(0);
+            total -= oldest.count();
+            if (!oldest.file.delete()) {
+                System.err.println("[mingsha-agent][段存储] 删除段文件失败: " + oldest.file.getName());
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    private static void accumulate(ColumnSegment seg, Map<String, long[]> removed) {
+        try {
+            ByteBuffer b = seg.readView();
+            int n = seg.count();
+            for (int i = 0; i < n; i++) {
+                long[] v = removed.computeIfAbsent(methods.valueOf(seg.methodAt(b, i)), k -> new long[2]);
+                v[0]++;
+                v[1] += seg.durationAt(b, i);
+            }
+        } catch (IOException e) {
+            System.err.println("[mingsha-agent][段存储] 读取待删除段失败，汇总表未扣减: " + seg.file.getName() + ", " + e.getMessage());
+        }
+    }
+
+    /**
+     * 获取段存储概况。
+     * Get segment storage overview.
+     * @return 概况字符串 | overview string
+     */
+    public static String info() {
+        SEGMENT_LOCK.readLock().lock();
+        try {
+            return infoLocked();
+        } finally {
+            SEGMENT_LOCK.readLock().unlock();
+        }
+    }
+
+    private static String infoLocked() {
+        if (dir == null) return "[段存储未启用]";
+        long total = 0;
+        long bytes = 0;
+        for (ColumnSegment seg : segments) {
+            total += seg.count();
+            bytes += seg.file.length();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== 段存储信息 ===\n");
+        sb.append("段目录: ").append(dir.getAbsolutePath()).append('\n');
+        sb.append("段数量: ").append(segments.size()).append('\n');
+        sb.append("总记录数: ").append(total).append('\n');
+        sb.append("磁盘占用: ").append(String.format("%.2f", bytes / 1024.0 / 1024.0)).append(" MB\n");
+        sb.append("方法字典: ").append(methods.size()).append(", 线程字典: ").append(threads.size()).append('\n');
+        for (ColumnSegment seg : segments) {
+            sb.append("  ").append(seg.file.getName())
+              .append(" 条数=").append(seg.count()).append('/').append(seg.capacity)
+              .append(seg.count() > 0 ? " 时间=" + new java.sql.Timestamp(seg.minTimeMs()) + " ~ " + new java.sql.Timestamp(seg.maxTimeMs()) : "")
+              .append(seg == active ? " [写入中]" : "")
+              .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 封存当前段并关闭字典。
+     * Seal the active segment and close dictionaries.
+     */
+    public static synchronized void close() {
+        SEGMENT_LOCK.writeLock().lock();
+        try {
+            if (active != null) active.seal();
+            active = null;
+            segments.clear();
+            if (methods != null) methods.close();
+            if (threads != null) threads.close();
+            dir = null;
+        } finally {
+            SEGMENT_LOCK.writeLock().unlock();
+        }
+    }
+
+    private static long parseSeq(String name) {
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 多写入线程分片：按方法将原始记录分给 N 个写入线程，每个线程使用独立连接写入各自的分片表。
+ * Multi-writer sharding: raw records are split by method across N writer threads, each writing its own shard table on its own connection.
+ * 分片表为 method_time_stat_w0 ~ w{N-1}，主键取自共享序列；主表名为各分片的 UNION ALL 视图，查询自动合并所有分片。
+ * Shard tables are method_time_stat_w0 ~ w{N-1} with ids from the shared sequence; the main table name is a UNION ALL view so queries merge all shards.
+ * 同一方法始终落在同一分片，汇总表的同一行只会被一个写入线程更新。
+ * A method always maps to the same shard, so each summary row is only updated by one writer.
+ * 通过 storage.writers 大于1启用，与分区模式、段存储及 MVStore 引擎互斥。
+ * Enabled by storage.writers greater than 1, exclusive with partitioning, the segment engine and the MVStore engine.
+ *
+ * @author mingsha
+ */
+public class ShardManager {
+    static final String PREFIX = PartitionManager.VIEW + "_w";
+    private static final String LEGACY = PREFIX + "legacy";
+    private static volatile List<String> tables = Collections.emptyList();
+
+    /**
+     * 判断是否启用多写入线程分片。
+     * Check whether multi-writer sharding is enabled.
+     * @return true-启用 | true if enabled
+     */
+    public static boolean isEnabled() {
+        return AgentConfig.getWriters() > 1 && !SegmentStorage.isEnabled() && !MVStoreStorage.isEnabled() && !PartitionManager.isEnabled();
+    }
+
+    /**
+     * 获取实际写入线程数，未启用分片时为1。
+     * Get the effective writer count, 1 when sharding is disabled.
+     * @return 写入线程数 | writer count
+     */
+    public static int writers() {
+        return isEnabled() ? AgentConfig.getWriters() : 1;
+    }
+
+    /**
+     * 获取分片表名。
+     * Get the shard table name.
+     * @param shard 分片号 | shard index
+     * @return 表名 | table name
+     */
+    static String tableOf(int shard) {
+        return PREFIX + shard;
+    }
+
+    /**
+     * 初始化分片：旧的单表改名为只读的历史分片，创建 N 张分片表并重建视图。
+     * Initialize sharding: rename a legacy single table into a read-only historical shard, create N shard tables and rebuild the view.
+     * 写入线程数减少后多出的旧分片保留在视图中，直至被留存清理删空。
+     * Surplus shards left after lowering the writer count stay in the view until retention empties them.
+     * @param conn 数据库连接 | database connection
+     * @param writers 写入线程数 | writer count
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static synchronized void init(Connection conn, int writers) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + PartitionManager.SEQUENCE);
+            if ("BASE TABLE".equals(PartitionManager.tableType(conn, PartitionManager.VIEW))) {
+                // 旧表保留自有自增列，只读不再写入，序列从其最大ID之后继续
+                // The legacy table keeps its own identity and is never written again, the sequence continues after its max id
+                long maxId = 0;
+                try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + PartitionManager.VIEW)) {
+                    if (rs.next()) maxId = rs.getLong(1);
+                }
+                stmt.executeUpdate("ALTER TABLE " + PartitionManager.VIEW + " RENAME TO " + LEGACY);
+                stmt.executeUpdate("ALTER SEQUENCE " + PartitionManager.SEQUENCE + " RESTART WITH " + (maxId + 1));
+                System.out.println("[mingsha-agent][分片] 已将旧主表迁移为历史分片 " + LEGACY);
+            }
+        }
+        for (int i = 0; i < writers; i++) {
+            PartitionManager.createRawTable(conn, tableOf(i));
+        }
+        if (IndexManager.isIngest()) {
+            // 写入中的分片不保留二级索引（含上次运行遗留的按需索引）
+            // Shards being written keep no secondary indexes, including on-demand ones left from a previous run
+            try (Statement stmt = conn.createStatement()) {
+                for (int i = 0; i < writers; i++) IndexManager.dropIndexes(stmt, tableOf(i));
+            }
+        }
+        List<String> all = existingTables(conn);
+        PartitionManager.createUnionView(conn, all);
+        tables = Collections.unmodifiableList(all);
+        System.out.println("[mingsha-agent][分片] 写入线程: " + writers + "，分片表: " + all.size());
+    }
+
+    /**
+     * 列出视图包含的全部分片表（含历史分片）。
+     * List all shard tables in the view (including historical ones).
+     * @return 表名 | table names
+     */
+    static List<String> tableNames() {
+        return tables;
+    }
+
+    /**
+     * 撤销分片布局：将所有分片数据合并回单表，用于从多写入线程切回单写入线程。
+     * Undo the shard layout: merge all shards back into one table, used when switching back to a single writer.
+     * @param conn 数据库连接 | database connection
+     * @param createTableSql 单表建表语句 | single table DDL
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void mergeBack(Connection conn, String createTableSql) throws SQLException {
+        if (!"VIEW".equals(PartitionManager.tableType(conn, PartitionManager.VIEW))) return;
+        List<String> names = existingTables(conn);
+        if (names.isEmpty()) return;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP VIEW " + PartitionManager.VIEW);
+            stmt.executeUpdate(createTableSql);
+            for (String name : names) {
+                stmt.executeUpdate("INSERT INTO " + PartitionManager.VIEW + " SELECT * FROM " + name + " ORDER BY id");
+                stmt.executeUpdate("DROP TABLE IF EXISTS " + name);
+            }
+            long maxId = 0;
+            try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + PartitionManager.VIEW)) {
+                if (rs.next()) maxId = rs.getLong(1);
+            }
+            stmt.executeUpdate("ALTER TABLE " + PartitionManager.VIEW + " ALTER COLUMN id RESTART WITH " + (maxId + 1));
+        }
+        tables = Collections.emptyList();
+        System.out.println("[mingsha-agent][分片] 已将 " + names.size() + " 个分片合并回单表");
+    }
+
+    private static List<String> existingTables(Connection conn) throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_TYPE = 'BASE TABLE' AND TABLE_NAME LIKE ? ESCAPE '\\' ORDER BY TABLE_NAME")) {
+            ps.setString(1, PREFIX.toUpperCase().replace("_", "\\_") + "%");
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) names.add(rs.getString(1).toLowerCase());
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,360 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.LatencyHistogram;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 基线快照：把时间窗口内各方法的分钟直方图合并后按名称保存，用于发布前后对比耗时回归。
+ * Baseline snapshots: the per-minute histograms of every method in a window are merged and saved under a name to compare latency regressions across deploys.
+ * 对比时 p50/p99 使用无分布的分位数置信区间，吞吐使用泊松计数检验，只列出在 99% 置信水平下显著且变化幅度足够大的方法。
+ * Diffs use distribution-free quantile confidence intervals for p50/p99 and a Poisson count test for throughput, listing only methods whose change is significant at 99% and large enough to matter.
+ * 快照不随留存清理删除，需用 agent snapshot drop 手动删除。
+ * Snapshots are not removed by retention and must be dropped with agent snapshot drop.
+ *
+ * @author mingsha
+ */
+public class SnapshotStore {
+    static final String TABLE = "method_time_snapshot";
+    static final String HIST_TABLE = "method_time_snapshot_hist";
+    /** 实时状态的名称 | name of the live state */
+    public static final String LIVE = "live";
+    /** 99% 置信水平的正态分位数 | normal quantile for 99% confidence */
+    static final double Z = 2.58;
+    /** 参与分位数对比的最少调用次数 | minimum calls for a quantile comparison */
+    static final long MIN_CALLS = 30;
+    /** 吞吐变化的最小相对幅度 | minimum relative throughput change */
+    static final double MIN_RATE_CHANGE = 0.2;
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.\\-]{1,64}");
+
+    /**
+     * 快照内容：名称、创建时间、窗口分钟数与各方法直方图。
+     * Snapshot content: name, creation time, window minutes and per-method histograms.
+     */
+    public static class Snapshot {
+        public final String name;
+        public final long createdAt;
+        public final int minutes;
+        public final Map<String, LatencyHistogram> methods;
+
+        Snapshot(String name, long createdAt, int minutes, Map<String, LatencyHistogram> methods) {
+            this.name = name;
+            this.createdAt = createdAt;
+            this.minutes = Math.max(1, minutes);
+            this.methods = methods;
+        }
+
+        double rate(LatencyHistogram h) {
+            return h == null ? 0 : h.calls() / (double) minutes;
+        }
+    }
+
+    /**
+     * 单个方法的对比结果，变化以 对比/基线 的比值表示。
+     * Diff result of one method, changes are ratios of current to baseline.
+     */
+    public static class Change {
+        public final String method;
+        public final LatencyHistogram base;
+        public final LatencyHistogram current;
+        /** 显著变化的指标，1 变慢/增加，-1 变快/减少，0 无显著变化 | direction of significant changes: 1 slower/more, -1 faster/fewer, 0 none */
+        public final int p50;
+        public final int p99;
+        public final int rate;
+        /** 排序分值：显著指标比值对数的最大绝对值 | ranking score: largest absolute log ratio among significant metrics */
+        public final double score;
+        final double baseRate;
+        final double currentRate;
+
+        Change(String method, LatencyHistogram base, LatencyHistogram current, int p50, int p99, int rate,
+               double score, double baseRate, double currentRate) {
+            this.method = method;
+            this.base = base;
+            this.current = current;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.rate = rate;
+            this.score = score;
+            this.baseRate = baseRate;
+            this.currentRate = currentRate;
+        }
+    }
+
+    /**
+     * 创建快照表。
+     * Create the snapshot tables.
+     * @param stmt 语句 | statement
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    static void createTable(Statement stmt) throws SQLException {
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                "name VARCHAR(64) PRIMARY KEY, " +
+                "created_at BIGINT NOT NULL, " +
+                "window_minutes INT NOT NULL, " +
+                "methods INT NOT NULL)");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + HIST_TABLE + " (" +
+                "name VARCHAR(64) NOT NULL, " +
+                "class_name VARCHAR(255) NOT NULL, " +
+                "method_name VARCHAR(255) NOT NULL, " +
+                "calls BIGINT NOT NULL, " +
+                "total_ns BIGINT NOT NULL, " +
+                "max_ns BIGINT NOT NULL, " +
+                "buckets VARCHAR(4096) NOT NULL, " +
+                "PRIMARY KEY (name, class_name, method_name))");
+    }
+
+    /**
+     * 校验快照名称。
+     * Validate a snapshot name.
+     * @param name 名称 | name
+     * @return true-合法 | true if valid
+     */
+    public static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches() && !LIVE.equalsIgnoreCase(name);
+    }
+
+    /**
+     * 保存最近 N 分钟的直方图为命名快照，同名快照被覆盖。
+     * Save the histograms of the last N minutes as a named snapshot, replacing one with the same name.
+     * @param name 名称 | name
+     * @param minutes 窗口分钟数 | window in minutes
+     * @return 保存的方法数 | number of saved methods
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    public static int save(String name, int minutes) throws SQLException {
+        if (!isValidName(name)) throw new IllegalArgumentException("非法快照名称: " + name);
+        Map<String, LatencyHistogram> methods = HistogramStore.queryAll(minutes);
+        try (Connection c = H2Storage.openConnection()) {
+            c.setAutoCommit(false);
+            try {
+                delete(c, name);
+                try (PreparedStatement ps = c.prepareStatement("INSERT INTO " + HIST_TABLE +
+                        " (name, class_name, method_name, calls, total_ns, max_ns, buckets) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                    for (Map.Entry<String, LatencyHistogram> e : methods.entrySet()) {
+                        int dot = e.getKey().lastIndexOf('.');
+                        LatencyHistogram h = e.getValue();
+                        ps.setString(1, name);
+                        ps.setString(2, e.getKey().substring(0, dot));
+                        ps.setString(3, e.getKey().substring(dot + 1));
+                        ps.setLong(4, h.calls());
+                        ps.setLong(5, h.totalNs());
+                        ps.setLong(6, h.maxNs());
+                        ps.setString(7, h.encode());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+                try (PreparedStatement ps = c.prepareStatement("INSERT INTO " + TABLE + " (name, created_at, window_minutes, methods) VALUES (?, ?, ?, ?)")) {
+                    ps.setString(1, name);
+                    ps.setLong(2, System.currentTimeMillis());
+                    ps.setInt(3, Math.max(1, minutes));
+                    ps.setInt(4, methods.size());
+                    ps.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            }
+        }
+        return methods.size();
+    }
+
+    /**
+     * 删除命名快照。
+     * Drop a named snapshot.
+     * @param name 名称 | name
+     * @return true-已删除 | true if dropped
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    public static boolean drop(String name) throws SQLException {
+        try (Connection c = H2Storage.openConnection()) {
+            return delete(c, name) > 0;
+        }
+    }
+
+    private static int delete(Connection c, String name) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM " + HIST_TABLE + " WHERE name = ?")) {
+            ps.setString(1, name);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM " + TABLE + " WHERE name = ?")) {
+            ps.setString(1, name);
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * 列出所有快照。
+     * List all snapshots.
+     * @return 文本 | text
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    public static String list() throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            PreparedStatement ps = lease.prepare("SELECT name, created_at, window_minutes, methods FROM " + TABLE + " ORDER BY created_at", 0);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    sb.append(String.format("%-24s %s 窗口 %d 分钟, %d 个方法\n",
+                            rs.getString(1), fmt.format(new Date(rs.getLong(2))), rs.getInt(3), rs.getInt(4)));
+                }
+            }
+        }
+        return sb.length() == 0 ? "[无快照]\n" : sb.toString();
+    }
+
+    /**
+     * 载入命名快照，名称为 live 时取最近 N 分钟的实时直方图。
+     * Load a named snapshot, or the live histograms of the last N minutes when the name is live.
+     * @param name 名称 | name
+     * @param liveMinutes live 使用的窗口分钟数 | window in minutes used for live
+     * @return 快照，不存在为 null | snapshot, null if absent
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    public static Snapshot load(String name, int liveMinutes) throws SQLException {
+        if (LIVE.equalsIgnoreCase(name)) {
+            return new Snapshot(LIVE, System.currentTimeMillis(), liveMinutes, HistogramStore.queryAll(liveMinutes));
+        }
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            PreparedStatement ps = lease.prepare("SELECT created_at, window_minutes FROM " + TABLE + " WHERE name = ?", 0);
+            ps.setString(1, name);
+            long createdAt;
+            int minutes;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                createdAt = rs.getLong(1);
+                minutes = rs.getInt(2);
+            }
+            Map<String, LatencyHistogram> methods = new LinkedHashMap<>();
+            ps = lease.prepare("SELECT class_name, method_name, calls, total_ns, max_ns, buckets FROM " + HIST_TABLE +
+                    " WHERE name = ? ORDER BY calls DESC", 0);
+            ps.setString(1, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    methods.put(rs.getString(1) + "." + rs.getString(2),
+                            LatencyHistogram.decode(rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getString(6)));
+                }
+            }
+            return new Snapshot(name, createdAt, minutes, methods);
+        }
+    }
+
+    /**
+     * 对比两个快照，返回有显著变化的方法：耗时有显著变化的方法在前，各组内按变化幅度降序。
+     * Diff two snapshots, returning methods with significant changes: latency changes first, each group ordered by magnitude.
+     * @param base 基线 | baseline
+     * @param current 对比对象 | snapshot compared against the baseline
+     * @return 显著变化列表 | significant changes
+     */
+    public static List<Change> diff(Snapshot base, Snapshot current) {
+        Map<String, LatencyHistogram[]> pairs = new LinkedHashMap<>();
+        base.methods.forEach((m, h) -> pairs.computeIfAbsent(m, k -> new LatencyHistogram[2])[0] = h);
+        current.methods.forEach((m, h) -> pairs.computeIfAbsent(m, k -> new LatencyHistogram[2])[1] = h);
+        List<Change> changes = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram[]> e : pairs.entrySet()) {
+            LatencyHistogram a = e.getValue()[0];
+            LatencyHistogram b = e.getValue()[1];
+            int p50 = quantileChange(a, b, 0.5);
+            int p99 = quantileChange(a, b, 0.99);
+            double ra = base.rate(a);
+            double rb = current.rate(b);
+            int rate = rateChange(a == null ? 0 : a.calls(), base.minutes, b == null ? 0 : b.calls(), current.minutes);
+            if (p50 == 0 && p99 == 0 && rate == 0) continue;
+            double score = 0;
+            if (p50 != 0) score = Math.max(score, logRatio(a.quantile(0.5), b.quantile(0.5)));
+            if (p99 != 0) score = Math.max(score, logRatio(a.quantile(0.99), b.quantile(0.99)));
+            // 新出现或消失的方法按 10 倍变化计 | new or vanished methods count as a 10x change
+            if (rate != 0) score = Math.max(score, ra == 0 || rb == 0 ? Math.log(10) : logRatio(ra, rb));
+            changes.add(new Change(e.getKey(), a, b, p50, p99, rate, score, ra, rb));
+        }
+        changes.sort((x, y) -> {
+            boolean lx = x.p50 != 0 || x.p99 != 0;
+            boolean ly = y.p50 != 0 || y.p99 != 0;
+            return lx != ly ? (lx ? -1 : 1) : Double.compare(y.score, x.score);
+        });
+        return changes;
+    }
+
+    /**
+     * 比较分位数置信区间：区间不重叠时为显著变化。
+     * Compare quantile confidence intervals: non-overlapping intervals are a significant change.
+     */
+    static int quantileChange(LatencyHistogram a, LatencyHistogram b, double q) {
+        if (a == null || b == null || a.calls() < MIN_CALLS || b.calls() < MIN_CALLS) return 0;
+        int[] ia = a.quantileInterval(q, Z);
+        int[] ib = b.quantileInterval(q, Z);
+        if (ib[0] > ia[1]) return 1;
+        if (ib[1] < ia[0]) return -1;
+        return 0;
+    }
+
+    /**
+     * 泊松计数检验吞吐变化：z = (rb - ra) / √(a/ta² + b/tb²)，同时要求相对变化不小于 20%。
+     * Poisson count test on throughput: z = (rb - ra) / √(a/ta² + b/tb²), also requiring a relative change of at least 20%.
+     */
+    static int rateChange(long a, int ta, long b, int tb) {
+        double ra = a / (double) ta;
+        double rb = b / (double) tb;
+        double variance = a / ((double) ta * ta) + b / ((double) tb * tb);
+        if (variance == 0) return 0;
+        double z = (rb - ra) / Math.sqrt(variance);
+        if (Math.abs(z) < Z || Math.abs(rb - ra) < MIN_RATE_CHANGE * Math.max(ra, rb)) return 0;
+        return rb > ra ? 1 : -1;
+    }
+
+    private static double logRatio(double a, double b) {
+        return a <= 0 || b <= 0 ? 0 : Math.abs(Math.log(b / a));
+    }
+
+    /**
+     * 输出对比结果表格。
+     * Render the diff as a table.
+     * @param base 基线 | baseline
+     * @param current 对比对象 | snapshot compared against the baseline
+     * @param changes 对比结果 | diff result
+     * @param top 最多输出条数 | maximum rows
+     * @return 文本 | text
+     */
+    public static String render(Snapshot base, Snapshot current, List<Change> changes, int top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("=== %s（%d 分钟, %d 个方法） → %s（%d 分钟, %d 个方法） ===\n",
+                base.name, base.minutes, base.methods.size(), current.name, current.minutes, current.methods.size()));
+        if (changes.isEmpty()) {
+            sb.append("[无显著变化]\n");
+            return sb.toString();
+        }
+        sb.append(String.format("%-48s %23s %23s %25s\n", "方法", "p50 ms", "p99 ms", "次/分钟"));
+        int n = 0;
+        for (Change c : changes) {
+            if (n++ >= top) break;
+            sb.append(String.format("%-48s %23s %23s %25s\n", c.method,
+                    quantileCell(c, 0.5, c.p50), quantileCell(c, 0.99, c.p99),
+                    cell(c.baseRate, c.currentRate, c.rate, "%.1f")));
+        }
+        if (changes.size() > top) sb.append("... 另有 ").append(changes.size() - top).append(" 个方法有显著变化\n");
+        sb.append("↑/↓ 表示 99% 置信水平下的显著增加/减少，* 表示新出现或消失的方法\n");
+        return sb.toString();
+    }
+
+    private static String quantileCell(Change c, double q, int direction) {
+        if (c.base == null || c.current == null) return c.base == null ? "*新增" : "*消失";
+        return cell(c.base.quantile(q) / 1e6, c.current.quantile(q) / 1e6, direction, "%.3f");
+    }
+
+    private static String cell(double a, double b, int direction, String fmt) {
+        String arrow = direction > 0 ? " ↑" : direction < 0 ? " ↓" : "  ";
+        return String.format(fmt, a) + " → " + String.format(fmt, b) + arrow;
+    }
+}
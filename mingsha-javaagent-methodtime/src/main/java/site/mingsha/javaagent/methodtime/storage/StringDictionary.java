@@ -0,0 +1,124 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字符串字典编码，将类名/方法名/线程名映射为紧凑的 int 编号。
+ * String dictionary encoder, maps class/method/thread names to compact int ids.
+ * 字典以追加方式持久化到文本文件（每行 "id\t值"），重启后可恢复相同编号。
+ * The dictionary is persisted append-only to a text file ("id\tvalue" per line) so ids survive restarts.
+ * 编号分配仅由单个写线程调用，读取可并发。
+ * Id assignment is called from a single writer thread, lookups may be concurrent.
+ *
+ * @author mingsha
+ */
+class StringDictionary {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private final File file;
+    private Writer writer;
+
+    /**
+     * 创建字典，若文件存在则加载已有编号。
+     * Create dictionary, load existing ids if the file exists.
+     * @param file 字典文件，为null时仅在内存中维护 | dictionary file, memory only when null
+     * @throws IOException 读取失败 | read failure
+     */
+    StringDictionary(File file) throws IOException {
+        this.file = file;
+        if (file != null && file.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new java.io.FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab <= 0) continue;
+                    int id = Integer.parseInt(line.substring(0, tab));
+                    String value = line.substring(tab + 1);
+                    // 仅接受连续编号，防止截断行导致错位 | only accept contiguous ids to survive a torn last line
+                    if (id != values.size()) break;
+                    values.add(value);
+                    ids.put(value, id);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取值对应的编号，不存在时分配新编号并持久化。
+     * Get id of value, assign and persist a new id when absent.
+     * @param value 字符串值 | string value
+     * @return 编号 | id
+     * @throws IOException 持久化失败 | persist failure
+     */
+    synchronized int idOf(String value) throws IOException {
+        String v = sanitize(value);
+        Integer id = ids.get(v);
+        if (id != null) return id;
+        int newId = values.size();
+        if (file != null) {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+            }
+            writer.write(newId + "\t" + v + "\n");
+            writer.flush();
+        }
+        values.add(v);
+        ids.put(v, newId);
+        return newId;
+    }
+
+    /**
+     * 查找已有编号，不分配新编号。
+     * Look up an existing id without assigning a new one.
+     * @param value 字符串值 | string value
+     * @return 编号，不存在返回-1 | id, -1 if absent
+     */
+    int find(String value) {
+        Integer id = ids.get(sanitize(value));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * 根据编号获取值。
+     * Get value by id.
+     * @param id 编号 | id
+     * @return 值，不存在返回null | value, null if absent
+     */
+    synchronized String valueOf(int id) {
+        return id >= 0 && id < values.size() ? values.get(id) : null;
+    }
+
+    /**
+     * 字典条目数。
+     * Number of dictionary entries.
+     * @return 条目数 | entry count
+     */
+    synchronized int size() {
+        return values.size();
+    }
+
+    /**
+     * 关闭字典文件。
+     * Close the dictionary file.
+     */
+    synchronized void close() {
+        try { if (writer != null) writer.close(); } catch (IOException ignore) {}
+        writer = null;
+    }
+
+    private static String sanitize(String value) {
+        if (value == null) return "";
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
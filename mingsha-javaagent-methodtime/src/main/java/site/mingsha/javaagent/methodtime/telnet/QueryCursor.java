@@ -0,0 +1,238 @@
+package site.mingsha.javaagent.methodtime.telnet;
+
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import site.mingsha.javaagent.methodtime.storage.Exporter;
+import site.mingsha.javaagent.methodtime.storage.QueryPool;
+import java.io.PrintWriter;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Telnet 查询游标：按页执行查询并逐行流式输出，支持 next/prev 翻页与 table/csv/json 输出格式。
+ * Telnet query cursor: runs a query page by page and streams rows out one at a time, with next/prev paging and table/csv/json formats.
+ * 每页通过 OFFSET/FETCH 由数据库定位，执行完即归还连接，会话只保存 SQL 与偏移量，内存与结果集大小无关。
+ * Each page is positioned by the database with OFFSET/FETCH and the connection is returned right after, the session keeps only the SQL and offset so memory does not grow with the result size.
+ * table 格式按列元数据确定固定列宽，无需缓存整页即可对齐输出。
+ * The table format derives fixed column widths from column metadata, so rows align without buffering the page.
+ *
+ * @author mingsha
+ */
+class QueryCursor {
+    static final String FORMAT_TABLE = "table";
+    static final String FORMAT_CSV = "csv";
+    static final String FORMAT_JSON = "json";
+    private static final int MIN_COLUMN_WIDTH = 4;
+    private static final int MAX_COLUMN_WIDTH = 40;
+    private static final Pattern PAGING_CLAUSE = Pattern.compile("\\b(limit|offset|fetch)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern OPTION = Pattern.compile("\\s+--(format|rows)\\s+(\\S+)\\s*$", Pattern.CASE_INSENSITIVE);
+    final String sql;
+    final String format;
+    final int pageSize;
+    private final String pagedSql;
+    private long offset;
+    private boolean hasMore;
+
+    QueryCursor(String sql, String format, int pageSize) {
+        this.sql = sql;
+        this.format = format;
+        this.pageSize = pageSize;
+        // 自带分页子句的查询作为派生表再分页 | queries with their own paging clause are paged as a derived table
+        this.pagedSql = PAGING_CLAUSE.matcher(sql).find()
+                ? "SELECT * FROM (" + sql + ") q OFFSET ? ROWS FETCH NEXT ? ROWS ONLY"
+                : sql + " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+    }
+
+    /**
+     * 解析查询行末尾的 --format 与 --rows 选项。
+     * Parse the trailing --format and --rows options of a query line.
+     * @param line 查询行 | query line
+     * @return 游标 | cursor
+     * @throws IllegalArgumentException 选项值非法 | on an invalid option value
+     */
+    static QueryCursor parse(String line) {
+        String sql = line.trim();
+        String format = FORMAT_TABLE;
+        int maxRows = Math.max(1, AgentConfig.getQueryMaxRows());
+        int rows = maxRows;
+        Matcher m;
+        while ((m = OPTION.matcher(sql)).find()) {
+            String value = m.group(2);
+            if (m.group(1).equalsIgnoreCase("format")) {
+                format = value.toLowerCase();
+                if (!format.equals(FORMAT_TABLE) && !format.equals(FORMAT_CSV) && !format.equals(FORMAT_JSON)) {
+                    throw new IllegalArgumentException("--format " + value + "（可选 table|csv|json）");
+                }
+            } else {
+                rows = Math.max(1, Math.min(maxRows, Integer.parseInt(value)));
+            }
+            sql = sql.substring(0, m.start()).trim();
+        }
+        return new QueryCursor(sql, format, rows);
+    }
+
+    boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * 输出下一页。
+     * Print the next page.
+     * @param out 输出 | output
+     * @param active 可取消语句登记 | cancellable statement registration
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    void next(PrintWriter out, Consumer<Statement> active) throws SQLException {
+        if (!hasMore) {
+            out.println("[已到末页]");
+            return;
+        }
+        offset += pageSize;
+        print(out, active);
+    }
+
+    /**
+     * 输出上一页。
+     * Print the previous page.
+     * @param out 输出 | output
+     * @param active 可取消语句登记 | cancellable statement registration
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    void prev(PrintWriter out, Consumer<Statement> active) throws SQLException {
+        if (offset == 0) {
+            out.println("[已是首页]");
+            return;
+        }
+        offset = Math.max(0, offset - pageSize);
+        print(out, active);
+    }
+
+    /**
+     * 执行当前页并流式输出。
+     * Run the current page and stream it out.
+     * @param out 输出 | output
+     * @param active 执行期间登记可取消的语句，结束后传入 null | registers the cancellable statement while running, null afterwards
+     * @throws SQLException 数据库异常 | SQL exception
+     */
+    void print(PrintWriter out, Consumer<Statement> active) throws SQLException {
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            // 多取一行用于判断是否还有下一页 | fetch one extra row to tell whether another page exists
+            PreparedStatement ps = lease.prepare(pagedSql, pageSize + 1);
+            ps.setLong(1, offset);
+            ps.setInt(2, pageSize + 1);
+            active.accept(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int cols = meta.getColumnCount();
+                String[] names = new String[cols];
+                int[] widths = new int[cols];
+                int[] types = new int[cols];
+                for (int i = 0; i < cols; i++) {
+                    names[i] = meta.getColumnLabel(i + 1);
+                    widths[i] = Math.max(MIN_COLUMN_WIDTH, Math.min(MAX_COLUMN_WIDTH, Math.max(names[i].length(), meta.getColumnDisplaySize(i + 1))));
+                    types[i] = meta.getColumnType(i + 1);
+                }
+                header(out, names, widths);
+                int rows = 0;
+                while (rows < pageSize && rs.next()) {
+                    row(out, rs, names, widths, types);
+                    rows++;
+                }
+                hasMore = rows == pageSize && rs.next();
+                footer(out, rows);
+            }
+        } finally {
+            active.accept(null);
+        }
+    }
+
+    private void header(PrintWriter out, String[] names, int[] widths) {
+        if (format.equals(FORMAT_JSON)) return;
+        for (int i = 0; i < names.length; i++) {
+            if (format.equals(FORMAT_CSV)) {
+                if (i > 0) out.print(',');
+                out.print(Exporter.csvEscape(names[i]));
+            } else {
+                if (i > 0) out.print(' ');
+                pad(out, names[i], widths[i]);
+            }
+        }
+        out.println();
+        if (format.equals(FORMAT_TABLE)) {
+            for (int i = 0; i < widths.length; i++) {
+                if (i > 0) out.print(' ');
+                for (int k = 0; k < widths[i]; k++) out.print('-');
+            }
+            out.println();
+        }
+    }
+
+    private void row(PrintWriter out, ResultSet rs, String[] names, int[] widths, int[] types) throws SQLException {
+        if (format.equals(FORMAT_JSON)) out.print('{');
+        for (int i = 0; i < names.length; i++) {
+            String v = rs.getString(i + 1);
+            if (format.equals(FORMAT_JSON)) {
+                if (i > 0) out.print(',');
+                out.print(Exporter.jsonQuote(names[i]));
+                out.print(':');
+                out.print(v == null ? "null" : types[i] == Types.BOOLEAN ? v.toLowerCase() : isNumeric(types[i]) ? v : Exporter.jsonQuote(v));
+            } else if (format.equals(FORMAT_CSV)) {
+                if (i > 0) out.print(',');
+                out.print(Exporter.csvEscape(v));
+            } else {
+                if (i > 0) out.print(' ');
+                pad(out, v == null ? "NULL" : v, widths[i]);
+            }
+        }
+        out.println(format.equals(FORMAT_JSON) ? "}" : "");
+    }
+
+    private void footer(PrintWriter out, int rows) {
+        if (rows == 0) {
+            out.println(offset == 0 ? "[无数据]" : "[已到末页]");
+            return;
+        }
+        long page = offset / pageSize + 1;
+        out.println("[第 " + page + " 页, 第 " + (offset + 1) + "-" + (offset + rows) + " 行"
+                + (hasMore ? ", 输入 next 查看下一页" : ", 已到末页") + (offset > 0 ? ", prev 查看上一页" : "") + "]");
+    }
+
+    /**
+     * 按固定宽度输出单元格，超长截断并以 ~ 结尾，换行与制表符替换为空格。
+     * Print a cell at a fixed width, truncating overlong values with a trailing ~ and replacing line breaks and tabs with spaces.
+     */
+    private static void pad(PrintWriter out, String v, int width) {
+        int n = Math.min(v.length(), width);
+        boolean cut = v.length() > width;
+        for (int i = 0; i < n; i++) {
+            char ch = v.charAt(i);
+            if (cut && i == n - 1) ch = '~';
+            else if (ch == '\n' || ch == '\r' || ch == '\t') ch = ' ';
+            out.print(ch);
+        }
+        for (int i = n; i < width; i++) out.print(' ');
+    }
+
+    private static boolean isNumeric(int type) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
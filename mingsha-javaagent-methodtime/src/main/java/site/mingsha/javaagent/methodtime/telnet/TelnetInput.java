@@ -0,0 +1,85 @@
+package site.mingsha.javaagent.methodtime.telnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Telnet 输入按行读取，识别 Telnet 协议命令中的中断请求。
+ * Line reader for Telnet input that recognizes interrupt requests among Telnet protocol commands.
+ * telnet 客户端的 Ctrl+C 以 IAC IP 发送且不带换行，nc 等原始客户端发送 0x03，二者都会立即返回 {@link #INTERRUPT}；
+ * 其余协商命令被丢弃，超长行截断以限制内存。
+ * Ctrl+C arrives as IAC IP without a newline from telnet clients and as 0x03 from raw clients like nc, both return {@link #INTERRUPT} at once;
+ * other negotiation commands are dropped and overlong lines are truncated to bound memory.
+ *
+ * @author mingsha
+ */
+class TelnetInput {
+    static final String INTERRUPT = "\u0003";
+    private static final int IAC = 255;
+    private static final int SB = 250;
+    private static final int SE = 240;
+    private static final int IP = 244;
+    private static final int BRK = 243;
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private final InputStream in;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    TelnetInput(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * 读取一行（不含换行符）。
+     * Read one line without the line terminator.
+     * @return 行内容，收到中断时为 {@link #INTERRUPT}，连接结束时为null | the line, {@link #INTERRUPT} on interrupt, null at end of stream
+     * @throws IOException IO异常（含读超时）| IO exception including read timeouts
+     */
+    String readLine() throws IOException {
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (line.size() == 0) return null;
+                return take();
+            }
+            if (b == '\n') return take();
+            if (b == '\r') continue;
+            if (b == 0x03) {
+                line.reset();
+                return INTERRUPT;
+            }
+            if (b == IAC) {
+                int cmd = in.read();
+                if (cmd == IP || cmd == BRK) {
+                    line.reset();
+                    return INTERRUPT;
+                }
+                if (cmd == SB) {
+                    skipSubnegotiation();
+                } else if (cmd >= 251 && cmd <= 254) {
+                    in.read(); // WILL/WONT/DO/DONT 的选项字节 | option byte of WILL/WONT/DO/DONT
+                } else if (cmd == IAC && line.size() < MAX_LINE_BYTES) {
+                    line.write(IAC);
+                }
+                continue;
+            }
+            if (line.size() < MAX_LINE_BYTES) line.write(b);
+        }
+    }
+
+    private void skipSubnegotiation() throws IOException {
+        int prev = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (prev == IAC && b == SE) return;
+            prev = b;
+        }
+    }
+
+    private String take() {
+        String s = new String(line.toByteArray(), Charset.defaultCharset());
+        line.reset();
+        return s;
+    }
+}
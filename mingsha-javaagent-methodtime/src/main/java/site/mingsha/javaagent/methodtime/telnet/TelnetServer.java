@@ -1,63 +1,147 @@
 package site.mingsha.javaagent.methodtime.telnet;
 
+import site.mingsha.javaagent.methodtime.collector.Watch;
 import site.mingsha.javaagent.methodtime.config.AgentConfig;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Telnet 管理服务，支持端口冲突自动切换、最大线程数限制。
- * Telnet management server, supports auto port switch and max thread limit.
+ * Telnet 管理服务，支持端口冲突时有限次切换、并发会话上限与卡住会话回收。
+ * Telnet management server with bounded port fallback, a concurrent session cap and reclaiming of stuck sessions.
  * 提供远程管理、监控、动态配置等能力。
  * Provides remote management, monitoring, dynamic config, etc.
+ * JDK 21+ 上每个会话（及其命令）运行在虚拟线程中，空闲会话几乎不占资源；更低版本使用按需创建的守护线程池。
+ * On JDK 21+ every session (and its commands) runs on a virtual thread so idle sessions cost almost nothing; older JDKs use an on-demand daemon pool.
  *
  * @author mingsha
  */
 public class TelnetServer implements Runnable {
+    private static final long REAPER_INTERVAL_MS = 1000;
     private ServerSocket serverSocket;
     private final ExecutorService pool;
+    private final Semaphore sessions;
+    private final int maxSessions;
     private volatile boolean running = true;
     private int port;
 
     public TelnetServer() {
         this.port = AgentConfig.getTelnetPort();
-        this.pool = Executors.newFixedThreadPool(AgentConfig.getTelnetMaxThreads());
+        this.maxSessions = Math.max(1, AgentConfig.getTelnetMaxThreads());
+        this.sessions = new Semaphore(maxSessions);
+        this.pool = newExecutor("mingsha-agent-telnet");
     }
 
     /**
-     * 启动 Telnet 管理服务，自动处理端口冲突并限制最大线程数。
-     * Start Telnet management server, auto switch port on conflict, limit max threads.
+     * 创建会话执行器：JDK 21+ 通过反射使用每任务一个虚拟线程的执行器，否则使用按需创建、空闲回收的守护线程池。
+     * Create the session executor: a virtual-thread-per-task executor via reflection on JDK 21+, otherwise an on-demand daemon pool that reclaims idle threads.
+     * @param name 线程名前缀 | thread name prefix
+     * @return 执行器 | executor
+     */
+    static ExecutorService newExecutor(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger seq = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, name + "-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 启动 Telnet 管理服务：端口被占用时向后尝试有限个端口，超过会话上限的连接收到提示后关闭。
+     * Start the Telnet server: try a bounded number of following ports when taken, connections beyond the session cap are told so and closed.
      * 监听客户端连接并分发到 TelnetSession。
      * Listen for client connections and dispatch to TelnetSession.
      */
     @Override
     public void run() {
-        while (true) {
+        int retries = Math.max(0, AgentConfig.getTelnetPortRetries());
+        for (int attempt = 0; attempt <= retries && serverSocket == null; attempt++) {
             try {
                 serverSocket = new ServerSocket(port);
-                System.out.println("[mingsha-agent] Telnet 管理端口: " + port);
-                break;
             } catch (IOException e) {
                 port++;
             }
         }
+        if (serverSocket == null) {
+            System.err.println("[mingsha-agent] Telnet 管理端口启动失败: " + AgentConfig.getTelnetPort() + " 起 " + (retries + 1) + " 个端口均被占用");
+            return;
+        }
+        System.out.println("[mingsha-agent] Telnet 管理端口: " + port + ", 最大会话数: " + maxSessions);
+        Thread reaper = new Thread(this::reapStuckSessions, "mingsha-agent-telnet-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
         while (running) {
             try {
                 Socket client = serverSocket.accept();
-                pool.execute(new TelnetSession(client));
-            } catch (IOException ignore) {}
+                if (!sessions.tryAcquire()) {
+                    reject(client);
+                    continue;
+                }
+                pool.execute(() -> {
+                    try {
+                        new TelnetSession(client).run();
+                    } finally {
+                        sessions.release();
+                    }
+                });
+            } catch (IOException | RuntimeException ignore) {}
         }
+        reaper.interrupt();
+    }
+
+    private void reject(Socket client) {
+        try (Socket c = client; PrintWriter out = new PrintWriter(c.getOutputStream(), true)) {
+            out.println("[连接数已达上限] 当前最多 " + maxSessions + " 个管理会话，请稍后重试或调整 manage.telnet.maxThreads");
+        } catch (IOException ignore) {}
+    }
+
+    /**
+     * 定期关闭输出阻塞超时的会话，避免不读取输出的客户端长期占用命令线程与数据库资源；同时注销已到期的观察订阅。
+     * Periodically close sessions whose output is stalled, so clients that stop reading cannot hold command threads and database resources; also drops expired watch subscriptions.
+     */
+    private void reapStuckSessions() {
+        while (running) {
+            try {
+                Thread.sleep(REAPER_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // 兜底注销已到期的观察订阅 | safety net for expired watch subscriptions
+            Watch.expire();
+            long timeout = AgentConfig.getTelnetWriteTimeoutMs();
+            for (TelnetSession s : TelnetSession.activeSessions()) {
+                if (s.writeStalledMs() > timeout) s.close("输出阻塞超过 " + timeout + " ms");
+            }
+        }
+    }
+
+    /**
+     * 获取实际监听端口。
+     * Get the actual listening port.
+     * @return 端口 | port
+     */
+    public int getPort() {
+        return port;
     }
 
     /**
-     * 优雅关闭 Telnet 服务，释放端口和线程池。
-     * Gracefully shutdown Telnet server, release port and thread pool.
+     * 优雅关闭 Telnet 服务，释放端口、会话和线程池。
+     * Gracefully shutdown Telnet server, release port, sessions and thread pool.
      */
     public void shutdown() {
         running = false;
         try { if (serverSocket != null) serverSocket.close(); } catch (IOException ignore) {}
+        for (TelnetSession s : TelnetSession.activeSessions()) s.close("管理服务关闭");
         pool.shutdownNow();
     }
-} 
\ No newline at end of file
+}
@@ -2,10 +2,39 @@
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Pattern;
+import site.mingsha.javaagent.methodtime.collector.HotMethods;
+import site.mingsha.javaagent.methodtime.collector.LatencyHistogram;
+import site.mingsha.javaagent.methodtime.collector.MethodMetrics;
+import site.mingsha.javaagent.methodtime.collector.StackSampler;
+import site.mingsha.javaagent.methodtime.collector.Watch;
+import site.mingsha.javaagent.methodtime.storage.Compensator;
+import site.mingsha.javaagent.methodtime.storage.Exporter;
+import site.mingsha.javaagent.methodtime.storage.FlameGraph;
 import site.mingsha.javaagent.methodtime.storage.H2Storage;
+import site.mingsha.javaagent.methodtime.storage.HistogramStore;
+import site.mingsha.javaagent.methodtime.storage.SnapshotStore;
+import site.mingsha.javaagent.methodtime.storage.RetentionWorker;
+import site.mingsha.javaagent.methodtime.storage.IndexManager;
+import site.mingsha.javaagent.methodtime.storage.MVStoreStorage;
+import site.mingsha.javaagent.methodtime.storage.QueryCache;
+import site.mingsha.javaagent.methodtime.storage.QueryPool;
+import site.mingsha.javaagent.methodtime.storage.SegmentStorage;
+import site.mingsha.javaagent.methodtime.monitor.AgentMetrics;
 import site.mingsha.javaagent.methodtime.monitor.AgentMonitor;
+import site.mingsha.javaagent.methodtime.monitor.BackpressureController;
+import site.mingsha.javaagent.methodtime.monitor.PullServer;
 import site.mingsha.javaagent.methodtime.config.AgentConfig;
 
 /**
@@ -17,7 +46,22 @@
  * @author mingsha
  */
 public class TelnetSession implements Runnable {
+    private static final Set<TelnetSession> SESSIONS = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService COMMANDS = TelnetServer.newExecutor("mingsha-agent-telnet-cmd");
+    private static final String END = new String("end");
+    private static final int MAX_QUEUED = 32;
     private final Socket client;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private final long openedAt = System.currentTimeMillis();
+    private PrintWriter out;
+    private volatile Thread worker;
+    private volatile String currentCommand;
+    private volatile long commandStartedAt;
+    private volatile long lastInputAt = openedAt;
+    private volatile long writeStartedAt;
+    private volatile Statement activeStatement;
+    private QueryCursor cursor;
+    private volatile boolean closed;
     private static final Pattern SELECT_ONLY = Pattern.compile("^\\s*select\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
     private static AgentMonitor monitorInstance;
     
@@ -27,99 +71,353 @@ public class TelnetSession implements Runnable {
      * @param monitor AgentMonitor 实例 | monitor instance
      */
     public static void setMonitorInstance(AgentMonitor monitor) { monitorInstance = monitor; }
+    private static BackpressureController backpressureInstance;
+    public static void setBackpressureInstance(BackpressureController controller) { backpressureInstance = controller; }
+    private static PullServer pullInstance;
+    public static void setPullInstance(PullServer server) { pullInstance = server; }
 
     public TelnetSession(Socket client) {
         this.client = client;
     }
 
     /**
-     * 获取H2数据库连接URL，支持内存模式和文件模式
-     * Get H2 database connection URL, support memory mode and file mode
-     * @return 数据库连接URL | database connection URL
+     * Telnet 会话主循环：当前线程读取输入，命令按顺序在独立的命令线程执行，执行期间可用 Ctrl+C 或 cancel 取消。
+     * Main loop for Telnet session: this thread reads input while commands run in order on a separate command thread, cancellable with Ctrl+C or cancel.
+     * 支持丰富的管理命令、只读SQL、动态配置、导出、异常统计、数据库信息等；无输入且无命令执行超过空闲超时后关闭会话。
+     * Supports rich management commands, read-only SQL, dynamic config, export, error stats, database info, etc.; sessions idle beyond the timeout are closed.
      */
-    private String getH2DbUrl() {
-        String path = AgentConfig.getH2Path();
-        if (path.startsWith("mem:")) {
-            return "jdbc:h2:" + path + ";DB_CLOSE_DELAY=-1";
-        } else {
-            return "jdbc:h2:file:" + path + ";AUTO_SERVER=TRUE";
+    @Override
+    public void run() {
+        SESSIONS.add(this);
+        CountDownLatch done = new CountDownLatch(1);
+        boolean started = false;
+        try {
+            client.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(0, AgentConfig.getTelnetIdleTimeoutMs())));
+            out = new PrintWriter(new WatchedOutputStream(client.getOutputStream()), true);
+            TelnetInput in = new TelnetInput(client.getInputStream());
+            out.println("欢迎使用 mingsha-agent 管理端口，输入 help 查看命令，Ctrl+C 或 cancel 取消正在执行的命令");
+            COMMANDS.execute(() -> runCommands(done));
+            started = true;
+            readInput(in);
+        } catch (IOException | RuntimeException ignore) {
+        } finally {
+            if (started) {
+                if (closed) queue.clear();
+                try {
+                    queue.put(END);
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            SESSIONS.remove(this);
+            try { client.close(); } catch (IOException ignore) {}
         }
     }
 
     /**
-     * Telnet 会话主循环，处理命令输入、SQL 查询、状态与配置管理。
-     * Main loop for Telnet session, handles command input, SQL query, status and config management.
-     * 支持丰富的管理命令、只读SQL、动态配置、导出、异常统计、数据库信息等。
-     * Supports rich management commands, read-only SQL, dynamic config, export, error stats, database info, etc.
+     * 读取输入：取消请求立即处理，其余命令进入队列按顺序执行。
+     * Read input: cancel requests are handled at once, other commands are queued and run in order.
      */
-    @Override
-    public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-             PrintWriter out = new PrintWriter(client.getOutputStream(), true)) {
-            out.println("欢迎使用 mingsha-agent 管理端口，输入 help 查看命令");
+    private void readInput(TelnetInput in) throws IOException {
+        while (!closed) {
             String line;
-            while ((line = in.readLine()) != null) {
-                line = line.trim();
-                if (line.equalsIgnoreCase("help")) {
-                    printHelp(out);
-                } else if (line.equalsIgnoreCase("agent help")) {
-                    printAgentHelp(out);
-                } else if (line.equalsIgnoreCase("db help")) {
-                    printDbHelp(out);
-                } else if (line.equalsIgnoreCase("agent errors")) {
-                    if (monitorInstance != null) {
-                        out.println(monitorInstance.getErrorStats());
-                    } else {
-                        out.println("[异常统计不可用]");
-                    }
-                } else if (line.equalsIgnoreCase("agent reload")) {
-                    try {
-                        AgentConfig.reload();
-                        out.println("[配置已热加载]");
-                    } catch (Exception e) {
-                        out.println("[热加载失败] " + e.getMessage());
-                    }
-                } else if (line.equalsIgnoreCase("agent status")) {
-                    if (monitorInstance != null) {
-                        out.println(monitorInstance.getStatus());
-                    } else {
-                        out.println("[监控信息不可用]");
-                    }
-                } else if (line.equalsIgnoreCase("agent config")) {
-                    printAgentConfig(out);
-                } else if (line.equalsIgnoreCase("agent version")) {
-                    out.println("mingsha-javaagent-methodtime v0.0.1-SNAPSHOT");
-                } else if (line.equalsIgnoreCase("agent info")) {
-                    printAgentInfo(out);
-                } else if (line.startsWith("agent export ")) {
-                    String file = line.substring("agent export ".length()).trim();
-                    if (file.isEmpty()) {
-                        out.println("[用法] agent export <file>");
-                    } else {
-                        out.println(H2Storage.exportAllToCsv(file));
-                    }
-                } else if (line.equalsIgnoreCase("db info")) {
-                    printDatabaseInfo(out);
-                } else if (line.equalsIgnoreCase("db tables")) {
-                    printDatabaseTables(out);
-                } else if (line.equalsIgnoreCase("db schema")) {
-                    printTableSchema(out);
-                } else if (line.equalsIgnoreCase("db stats")) {
-                    printDatabaseStats(out);
-                } else if (line.equalsIgnoreCase("db size")) {
-                    printDatabaseSize(out);
-                } else if (line.startsWith("db query ")) {
-                    String sql = line.substring("db query ".length()).trim();
-                    executeDbQuery(out, sql);
-                } else if (SELECT_ONLY.matcher(line).matches() && isSafeSql(line)) {
-                    executeDbQuery(out, line);
-                } else {
-                    out.println("不支持的命令或SQL被阻断，输入 help 查看支持的命令");
+            try {
+                line = in.readLine();
+            } catch (SocketTimeoutException e) {
+                if (currentCommand != null || !queue.isEmpty()) continue;
+                out.println("[会话空闲超时] 超过 " + AgentConfig.getTelnetIdleTimeoutMs() + " ms 无输入，连接已关闭");
+                return;
+            }
+            if (line == null) return;
+            lastInputAt = System.currentTimeMillis();
+            line = line.trim();
+            if (line.equals(TelnetInput.INTERRUPT) || line.equalsIgnoreCase("cancel")) {
+                cancel();
+            } else if (!queue.offer(line)) {
+                out.println("[命令队列已满] 请等待当前命令完成，或输入 cancel 取消");
+            }
+        }
+    }
+
+    /**
+     * 命令线程：按顺序执行队列中的命令，直到收到结束标记。
+     * Command thread: run queued commands in order until the end marker arrives.
+     */
+    private void runCommands(CountDownLatch done) {
+        worker = Thread.currentThread();
+        try {
+            while (true) {
+                String line;
+                try {
+                    line = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (line == END) break;
+                if (closed) continue;
+                currentCommand = line;
+                commandStartedAt = System.currentTimeMillis();
+                try {
+                    dispatch(line, out);
+                } catch (RuntimeException e) {
+                    out.println("[命令执行异常] " + e.getMessage());
+                } finally {
+                    currentCommand = null;
+                    activeStatement = null;
+                    Thread.interrupted();
                 }
             }
-        } catch (IOException ignore) {}
-        finally {
-            try { client.close(); } catch (IOException ignore) {}
+        } finally {
+            worker = null;
+            done.countDown();
+        }
+    }
+
+    /**
+     * 取消当前命令并清空排队命令：SQL 查询通过 Statement.cancel 中止，段扫描、agent top/watch/trace 与火焰图采样通过中断命令线程中止。
+     * Cancel the running command and drop queued ones: SQL queries stop through Statement.cancel, segment scans, agent top/watch/trace and flame graph sampling through interrupting the command thread.
+     */
+    private void cancel() {
+        int dropped = queue.size();
+        queue.clear();
+        String cmd = currentCommand;
+        if (cmd == null) {
+            out.println(dropped > 0 ? "[已取消排队命令 " + dropped + " 条]" : "[无正在执行的命令]");
+            return;
+        }
+        Statement st = activeStatement;
+        Thread w = worker;
+        if (st != null) {
+            try { st.cancel(); } catch (SQLException ignore) {}
+        } else if (isInterruptible(cmd) && w != null) {
+            w.interrupt();
+        } else {
+            out.println("[当前命令不支持取消，将执行完成] " + cmd + (dropped > 0 ? "，已取消排队命令 " + dropped + " 条" : ""));
+            return;
+        }
+        out.println("[已取消] " + cmd);
+    }
+
+    /**
+     * 是否为通过中断命令线程停止的命令（段扫描与持续刷新的命令）。
+     * Whether the command stops by interrupting the command thread (segment scans and continuously refreshing commands).
+     */
+    private static boolean isInterruptible(String cmd) {
+        return cmd.startsWith("agent scan") || cmd.startsWith("agent top") || cmd.startsWith("agent watch") || cmd.startsWith("agent trace")
+                || cmd.startsWith("agent flamegraph");
+    }
+
+    /**
+     * 分发执行单条命令。
+     * Dispatch a single command.
+     */
+    private void dispatch(String line, PrintWriter out) {
+        if (line.equalsIgnoreCase("help")) {
+            printHelp(out);
+        } else if (line.equalsIgnoreCase("agent help")) {
+            printAgentHelp(out);
+        } else if (line.equalsIgnoreCase("db help")) {
+            printDbHelp(out);
+        } else if (line.equalsIgnoreCase("agent errors")) {
+            if (monitorInstance != null) {
+                out.println(monitorInstance.getErrorStats());
+            } else {
+                out.println("[异常统计不可用]");
+            }
+            out.println("[转存补偿] " + Compensator.getStats());
+        } else if (line.equalsIgnoreCase("agent reload")) {
+            try {
+                AgentConfig.reload();
+                StackSampler.refresh();
+                HotMethods.refresh();
+                MethodMetrics.refresh();
+                QueryPool.close();
+                QueryCache.clear();
+                out.println("[配置已热加载]");
+            } catch (Exception e) {
+                out.println("[热加载失败] " + e.getMessage());
+            }
+        } else if (line.equalsIgnoreCase("agent status")) {
+            if (monitorInstance != null) {
+                out.println(monitorInstance.getStatus());
+            } else {
+                out.println("[监控信息不可用]");
+            }
+            out.println("[查询缓存] " + QueryCache.getStats());
+            if (pullInstance != null) out.println("[拉取端口] " + pullInstance.getStats());
+        } else if (line.equalsIgnoreCase("agent config")) {
+            printAgentConfig(out);
+        } else if (line.equalsIgnoreCase("agent version")) {
+            out.println("mingsha-javaagent-methodtime v0.0.1-SNAPSHOT");
+        } else if (line.equalsIgnoreCase("agent info")) {
+            printAgentInfo(out);
+        } else if (line.equalsIgnoreCase("agent export status")) {
+            out.println(Exporter.status());
+        } else if (line.equalsIgnoreCase("agent export cancel")) {
+            out.println(Exporter.cancel());
+        } else if (line.startsWith("agent export ")) {
+            exportData(out, line.substring("agent export ".length()).trim());
+        } else if (line.equalsIgnoreCase("agent segments")) {
+            out.print(MVStoreStorage.isEnabled() ? MVStoreStorage.info() : SegmentStorage.info());
+            out.flush();
+        } else if (line.startsWith("agent scan ")) {
+            scanSegments(out, line.substring("agent scan ".length()).trim());
+        } else if (line.equalsIgnoreCase("agent backpressure")) {
+            if (backpressureInstance != null) {
+                out.print(backpressureInstance.getStatus());
+                out.flush();
+            } else {
+                out.println("[背压控制不可用]");
+            }
+        } else if (line.equalsIgnoreCase("agent governor")) {
+            if (monitorInstance != null) {
+                out.print(monitorInstance.getGovernor().getStatus());
+                out.flush();
+            } else {
+                out.println("[开销调控不可用]");
+            }
+        } else if (line.equalsIgnoreCase("agent overhead")) {
+            out.print(AgentMetrics.describe());
+            out.flush();
+        } else if (line.equalsIgnoreCase("agent index")) {
+            out.print(IndexManager.info());
+            out.flush();
+        } else if (line.startsWith("agent watch ") || line.startsWith("agent trace ")) {
+            watchMethod(out, line.substring("agent watch ".length()).trim(), line.startsWith("agent trace "));
+        } else if (line.startsWith("agent percentiles ") || line.startsWith("agent histogram ")) {
+            boolean histogram = line.startsWith("agent histogram ");
+            printPercentiles(out, line.substring((histogram ? "agent histogram " : "agent percentiles ").length()).trim(), histogram);
+        } else if (line.startsWith("agent flamegraph ")) {
+            flameGraph(out, line.substring("agent flamegraph ".length()).trim());
+        } else if (line.equalsIgnoreCase("agent snapshot") || line.startsWith("agent snapshot ")) {
+            snapshot(out, line.substring("agent snapshot".length()).trim());
+        } else if (line.equalsIgnoreCase("agent top") || line.startsWith("agent top ")) {
+            printTop(out, line.substring("agent top".length()).trim());
+        } else if (line.equalsIgnoreCase("agent hot") || line.startsWith("agent hot ")) {
+            printHotMethods(out, line.substring("agent hot".length()).trim());
+        } else if (line.equalsIgnoreCase("agent stacks") || line.startsWith("agent stacks ")) {
+            String arg = line.substring("agent stacks".length()).trim();
+            try {
+                out.print(StackSampler.info(arg.isEmpty() ? 5 : Integer.parseInt(arg)));
+                out.flush();
+            } catch (NumberFormatException e) {
+                out.println("[用法] agent stacks [条数]");
+            }
+        } else if (line.equalsIgnoreCase("agent sessions")) {
+            printSessions(out);
+        } else if (line.equalsIgnoreCase("agent retention")) {
+            out.println("[留存清理] " + RetentionWorker.getStats());
+        } else if (line.equalsIgnoreCase("db info")) {
+            printDatabaseInfo(out);
+        } else if (line.equalsIgnoreCase("db tables")) {
+            printDatabaseTables(out);
+        } else if (line.equalsIgnoreCase("db schema")) {
+            printTableSchema(out);
+        } else if (line.equalsIgnoreCase("db stats")) {
+            printDatabaseStats(out);
+        } else if (line.equalsIgnoreCase("db size")) {
+            printDatabaseSize(out);
+        } else if (line.startsWith("db query ")) {
+            executeDbQuery(out, line.substring("db query ".length()));
+        } else if (line.equalsIgnoreCase("next")) {
+            printPage(out, 1);
+        } else if (line.equalsIgnoreCase("prev")) {
+            printPage(out, -1);
+        } else if (SELECT_ONLY.matcher(line).matches()) {
+            executeDbQuery(out, line);
+        } else {
+            out.println("不支持的命令或SQL被阻断，输入 help 查看支持的命令");
+        }
+    }
+
+    /**
+     * 获取当前活动会话。
+     * Get the active sessions.
+     * @return 会话列表 | sessions
+     */
+    static List<TelnetSession> activeSessions() {
+        return new ArrayList<>(SESSIONS);
+    }
+
+    /**
+     * 获取输出已阻塞的时长，未在写出时为0。
+     * Get how long output has been stalled, 0 when not writing.
+     * @return 毫秒 | milliseconds
+     */
+    long writeStalledMs() {
+        long t = writeStartedAt;
+        return t == 0 ? 0 : System.currentTimeMillis() - t;
+    }
+
+    /**
+     * 强制关闭会话，中止正在执行的 SQL。
+     * Force-close the session, aborting a running SQL statement.
+     * @param reason 原因 | reason
+     */
+    void close(String reason) {
+        closed = true;
+        Statement st = activeStatement;
+        if (st != null) {
+            try { st.cancel(); } catch (SQLException ignore) {}
+        }
+        try { client.close(); } catch (IOException ignore) {}
+        System.out.println("[mingsha-agent][Telnet] 已关闭会话 " + client.getRemoteSocketAddress() + ": " + reason);
+    }
+
+    /**
+     * 打印当前会话列表。
+     * Print the active session list.
+     */
+    private void printSessions(PrintWriter out) {
+        long now = System.currentTimeMillis();
+        List<TelnetSession> list = activeSessions();
+        out.println("=== 管理会话 (" + list.size() + "/" + AgentConfig.getTelnetMaxThreads() + ") ===");
+        for (TelnetSession s : list) {
+            String cmd = s.currentCommand;
+            out.println(String.format("%s%s 在线 %d s, 空闲 %d s, 排队 %d%s", s == this ? "* " : "  ", s.client.getRemoteSocketAddress(),
+                    (now - s.openedAt) / 1000, (now - s.lastInputAt) / 1000, s.queue.size(),
+                    cmd == null ? "" : ", 执行中: " + cmd + " (" + (now - s.commandStartedAt) + " ms)"));
+        }
+    }
+
+    /**
+     * 记录正在写出的时间点，供输出阻塞检测使用。
+     * Track when a write started, used to detect stalled output.
+     */
+    private class WatchedOutputStream extends FilterOutputStream {
+        WatchedOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writeStartedAt = System.currentTimeMillis();
+            try {
+                super.out.write(b);
+            } finally {
+                writeStartedAt = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeStartedAt = System.currentTimeMillis();
+            try {
+                super.out.write(b, off, len);
+            } finally {
+                writeStartedAt = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeStartedAt = System.currentTimeMillis();
+            try {
+                super.out.flush();
+            } finally {
+                writeStartedAt = 0;
+            }
         }
     }
 
@@ -140,7 +438,25 @@ private void printHelp(PrintWriter out) {
         out.println("  agent version           - 查看版本信息");
         out.println("  agent errors            - 查看异常统计");
         out.println("  agent reload            - 热加载配置");
-        out.println("  agent export <file>     - 导出数据到CSV");
+        out.println("  agent export <file> [选项] - 流式导出数据(csv/ndjson/bin)");
+        out.println("  agent export status     - 查看后台导出进度");
+        out.println("  agent segments          - 查看段存储/MVStore信息");
+        out.println("  agent scan <分钟> [类名.方法名] [条数] - 流式扫描段存储/MVStore");
+        out.println("  agent index             - 查看索引档位与按需索引");
+        out.println("  agent stacks [条数]     - 查看慢调用栈采集统计");
+        out.println("  agent hot [分钟] [条数] - 查看内存中的热点方法 Top-K");
+        out.println("  agent top [选项]        - 实时刷新的热点方法视图");
+        out.println("  agent watch <类名.方法名> [选项] - 实时输出方法的每次调用");
+        out.println("  agent trace <类名.方法名> [选项] - 同 watch，并输出调用来源栈");
+        out.println("  agent percentiles <类名.方法名> [选项] - 查看方法耗时分位数");
+        out.println("  agent histogram <类名.方法名> [选项] - 查看方法耗时分布直方图");
+        out.println("  agent snapshot save|list|drop|diff - 保存基线快照并对比耗时回归");
+        out.println("  agent flamegraph <文件> [选项] - 生成折叠栈或 SVG/HTML 火焰图");
+        out.println("  agent sessions          - 查看管理会话");
+        out.println("  agent retention         - 查看留存清理统计");
+        out.println("  agent backpressure      - 查看存储背压与采样降级");
+        out.println("  agent overhead          - 查看Agent自身计数器与开销");
+        out.println("  agent governor          - 查看开销调控级别与切换记录");
         out.println();
         out.println("数据库查询:");
         out.println("  db info                 - 查看数据库信息");
@@ -149,7 +465,8 @@ private void printHelp(PrintWriter out) {
         out.println("  db stats                - 查看数据库统计");
         out.println("  db size                 - 查看数据库大小");
         out.println("  db query <sql>          - 执行SQL查询");
-        out.println("  select ...              - 直接执行SELECT查询");
+        out.println("  select ...              - 直接执行SELECT查询，可加 --format table|csv|json --rows N");
+        out.println("  next / prev             - 查询结果翻页");
         out.println();
         out.println("示例:");
         out.println("  select count(*) from method_time_stat");
@@ -167,11 +484,42 @@ private void printAgentHelp(PrintWriter out) {
         out.println("  agent version           - 查看版本信息");
         out.println("  agent errors            - 查看采集/写入/转存异常统计");
         out.println("  agent reload            - 热加载agent-config.yml配置");
-        out.println("  agent export <file>     - 导出全部数据到CSV文件");
+        out.println("  agent export <file> [--minutes N] [--method 类名.方法名] [--format csv|ndjson|bin] [--gzip] [--fetch N] [--bg]");
+        out.println("                          - 按时间范围和方法流式导出，.gz 结尾自动压缩，--bg 在后台执行");
+        out.println("  agent export status     - 查看后台导出进度或最近一次结果");
+        out.println("  agent export cancel     - 取消后台导出");
+        out.println("  agent segments          - 查看段存储的段文件或MVStore的条数与时间范围");
+        out.println("  agent scan <分钟> [类名.方法名] [条数] - 按时间范围和方法流式扫描段存储/MVStore，默认最多100条");
+        out.println("  agent index             - 查看索引档位、封存分区建索引数与按需索引闲置时间");
+        out.println("  agent stacks [条数]     - 查看慢调用栈采集、预算跳过次数及命中最多的调用栈，默认5条");
+        out.println("  agent hot [分钟] [条数] - 按调用次数、总耗时、p99 列出最近 N 分钟（1~15，默认1）的热点方法，默认各10条，不查询数据库");
+        out.println("  agent hot <类名.方法名> [分钟] - 估计任意方法在窗口内的调用次数");
+        out.println("  agent top [--interval 秒] [--window 秒] [--sort calls|time|avg|p99] [--package 前缀] [--limit 条数] [--once]");
+        out.println("                          - 每隔 N 秒重绘热点方法的 calls/s、time/s、平均与 p99，cancel 或 Ctrl+C 退出");
+        out.println("  agent watch <类名.方法名> [--min 毫秒] [--max 毫秒] [--seconds 秒] [--count 条数]");
+        out.println("                          - 实时输出方法每次调用的耗时、线程与出口类型，不经过存储；到期（默认60秒）或达到条数后停止");
+        out.println("  agent trace <类名.方法名> [选项] - 同 watch，并输出每次调用的来源栈");
+        out.println("  agent percentiles <类名.方法名> [--minutes 分钟] [--hours 小时]");
+        out.println("                          - 按分钟直方图汇总输出窗口内（默认60分钟）的调用次数、平均、最大及 p50/p90/p99/p999");
+        out.println("  agent histogram <类名.方法名> [--minutes 分钟] [--hours 小时] - 同 percentiles，并输出文本耗时分布直方图");
+        out.println("  agent snapshot save <名称> [--minutes 分钟] [--hours 小时] - 将窗口内（默认60分钟）各方法的直方图保存为基线快照");
+        out.println("  agent snapshot list     - 列出已保存的快照");
+        out.println("  agent snapshot drop <名称> - 删除快照");
+        out.println("  agent snapshot diff <基线> [<名称>|live] [--minutes 分钟] [--top 条数]");
+        out.println("                          - 对比两个快照或快照与实时数据，按显著的 p50/p99/吞吐变化排序");
+        out.println("  agent flamegraph <文件> [--minutes 分钟] [--count] [--sample 秒] [--interval 毫秒] [--format collapsed|svg|html]");
+        out.println("                          - 由慢调用栈（默认最近60分钟，按耗时加权）或 --sample 实时线程采样生成火焰图，.svg/.html 结尾输出图形，否则输出折叠栈文本");
+        out.println("  agent sessions          - 查看当前管理会话的地址、空闲时间、排队与执行中的命令");
+        out.println("  cancel / Ctrl+C         - 取消正在执行的SQL查询或段扫描，并清空排队命令");
+        out.println("  agent retention         - 查看留存清理删除条数、当前块大小及写入等待时间");
+        out.println("  agent backpressure      - 查看背压级别、实际采样率、批量大小及最近调整记录");
+        out.println("  agent overhead          - 查看异常计数、探针单次耗时（启动校准）、agent 线程 CPU、分配字节与归因 GC 时间");
+        out.println("  agent governor          - 查看探针级别（全量/降采样/仅聚合/关闭探针）、agent 开销、进程 CPU 及最近切换记录");
         out.println();
         out.println("示例:");
         out.println("  agent status");
         out.println("  agent export /tmp/data.csv");
+        out.println("  agent export /tmp/data.ndjson.gz --minutes 60 --format ndjson --bg");
     }
 
     /**
@@ -185,13 +533,16 @@ private void printDbHelp(PrintWriter out) {
         out.println("  db stats                - 查看数据统计信息");
         out.println("  db size                 - 查看数据库文件大小");
         out.println("  db query <sql>          - 执行自定义SQL查询");
-        out.println("  select ...              - 直接执行SELECT查询");
+        out.println("  select ...              - 直接执行SELECT查询，可加 --format table|csv|json --rows N");
+        out.println("  next / prev             - 查询结果翻页（每页最多 manage.query.maxRows 行）");
         out.println();
         out.println("数据库表说明:");
         out.println("  method_time_stat        - 主表：存储所有方法耗时记录");
         out.println("  method_time_stat_summary - 汇总表：按方法统计调用次数、平均耗时等");
         out.println("  method_time_stat_slow   - 慢查询表：存储超过阈值的慢查询记录");
         out.println("  db_version              - 版本表：记录数据库版本信息");
+        out.println("  method_dict/thread_dict - 字典表：storage.schema=normalized 时主表与慢查询表为基于字典的兼容视图");
+        out.println("  stack_dict              - 调用栈字典表：慢查询表 stack_id 对应的截断调用栈");
         out.println();
         out.println("常用查询示例:");
         out.println("  select count(*) from method_time_stat");
@@ -212,21 +563,42 @@ private void printAgentConfig(PrintWriter out) {
         out.println("  采样率: " + AgentConfig.getSamplingRate());
         out.println("  最小耗时阈值: " + AgentConfig.getMinDurationNs() + " ns");
         out.println("  缓冲队列容量: " + AgentConfig.getQueueCapacity());
+        out.println("  热点方法统计: " + (AgentConfig.isHotMethodsEnabled() ? "启用" : "关闭") + ", 摘要容量: " + AgentConfig.getHotMethodsCapacity());
+        out.println("  慢调用栈采集: " + (AgentConfig.isStackCaptureEnabled() ? "启用" : "关闭") + ", 深度: " + AgentConfig.getStackMaxDepth()
+                + ", 每秒预算: " + AgentConfig.getStackBudgetPerSecond() + ", 栈上限: " + AgentConfig.getStackMaxStacks());
         out.println();
         out.println("存储配置:");
         out.println("  批量写入条数: " + AgentConfig.getBatchSize());
         out.println("  转存阈值: " + AgentConfig.getFailoverThreshold());
         out.println("  数据留存天数: " + AgentConfig.getRetentionDays());
         out.println("  数据留存条数: " + AgentConfig.getRetentionRows());
+        out.println("  清理单块条数: " + AgentConfig.getRetentionChunkRows() + ", 块间间隔: " + AgentConfig.getRetentionPauseMs() + " ms");
         out.println("  慢查询阈值: " + AgentConfig.getSlowQueryThresholdNs() + " ns (" + (AgentConfig.getSlowQueryThresholdNs()/1000000) + " ms)");
         out.println("  H2数据库路径: " + AgentConfig.getH2Path());
+        out.println("  存储引擎: " + AgentConfig.getStorageEngine());
+        out.println("  索引档位: " + AgentConfig.getH2Profile());
+        out.println("  表结构: " + AgentConfig.getStorageSchema());
+        out.println("  分区方式: " + AgentConfig.getPartitionMode());
+        out.println("  写入线程数: " + AgentConfig.getWriters());
+        if (SegmentStorage.isEnabled()) {
+            out.println("  段存储目录: " + AgentConfig.getSegmentPath());
+            out.println("  段文件大小: " + AgentConfig.getSegmentSizeBytes() + " bytes");
+        }
+        if (MVStoreStorage.isEnabled()) {
+            out.println("  MVStore文件: " + AgentConfig.getMVStorePath());
+        }
         out.println();
         out.println("管理配置:");
         out.println("  Telnet端口: " + AgentConfig.getTelnetPort());
         out.println("  Telnet最大线程数: " + AgentConfig.getTelnetMaxThreads());
+        out.println("  查询连接池: " + AgentConfig.getQueryPoolSize() + ", 查询超时: " + AgentConfig.getQueryTimeoutSeconds() + " s, 最大行数: " + AgentConfig.getQueryMaxRows());
+        out.println("  HTTP指标端点: " + (AgentConfig.isHttpEnabled() ? "启用, 端口: " + AgentConfig.getHttpPort() : "关闭") + ", 序列上限: " + AgentConfig.getHttpMaxSeries());
+        out.println("  二进制拉取端口: " + (AgentConfig.isPullEnabled() ? "启用, 端口: " + AgentConfig.getPullPort() : "关闭"));
         out.println();
         out.println("监控配置:");
         out.println("  CPU熔断阈值: " + AgentConfig.getCpuFuseThreshold() + "%");
+        out.println("  开销调控: " + (AgentConfig.isGovernorEnabled() ? "启用, 开销上限: " + AgentConfig.getGovernorOverheadPercent() + "%, 降采样系数: "
+                + AgentConfig.getGovernorReducedSamplingRate() + ", 恢复平稳: " + AgentConfig.getGovernorCalmSeconds() + " s" : "关闭"));
         out.println("  健康检查间隔: " + AgentConfig.getHealthCheckIntervalMs() + " ms");
         out.println();
         out.println("日志配置:");
@@ -252,20 +624,386 @@ private void printAgentInfo(PrintWriter out) {
         out.println("  最大内存: " + (rt.maxMemory() / 1024 / 1024) + " MB");
     }
 
+    /**
+     * 打印热点方法，参数：[分钟] [条数] 或 类名.方法名 [分钟]
+     */
+    private void printHotMethods(PrintWriter out, String args) {
+        String[] parts = args.isEmpty() ? new String[0] : args.split("\\s+");
+        try {
+            if (parts.length > 0 && parts[0].contains(".")) {
+                int minutes = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+                out.println(parts[0] + " 最近 " + minutes + " 分钟估计调用次数: " + HotMethods.estimateCalls(parts[0], minutes) + "（Count-Min 估计，只会高估）");
+                return;
+            }
+            int minutes = parts.length > 0 ? Integer.parseInt(parts[0]) : 1;
+            int top = parts.length > 1 ? Integer.parseInt(parts[1]) : 10;
+            out.print(HotMethods.report(minutes, top));
+            out.flush();
+        } catch (NumberFormatException e) {
+            out.println("[用法] agent hot [分钟] [条数] 或 agent hot <类名.方法名> [分钟]");
+        }
+    }
+
+    /**
+     * 持续刷新的热点方法视图，参数：[--interval 秒] [--window 秒] [--sort calls|time|avg|p99] [--package 前缀] [--limit 条数] [--once]
+     */
+    private void printTop(PrintWriter out, String args) {
+        int interval = 2;
+        int window = 60;
+        int limit = 20;
+        String sort = HotMethods.SORT_CALLS;
+        String prefix = null;
+        boolean once = false;
+        String[] parts = args.isEmpty() ? new String[0] : args.split("\\s+");
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                String a = parts[i];
+                if (a.equals("--once")) {
+                    once = true;
+                } else if (i + 1 < parts.length && a.equals("--interval")) {
+                    interval = Math.max(1, Integer.parseInt(parts[++i]));
+                } else if (i + 1 < parts.length && a.equals("--window")) {
+                    window = Math.max(1, Integer.parseInt(parts[++i]));
+                } else if (i + 1 < parts.length && a.equals("--limit")) {
+                    limit = Math.max(1, Integer.parseInt(parts[++i]));
+                } else if (i + 1 < parts.length && a.equals("--package")) {
+                    prefix = parts[++i];
+                } else if (i + 1 < parts.length && a.equals("--sort")
+                        && parts[i + 1].matches("calls|time|avg|p99")) {
+                    sort = parts[++i];
+                } else {
+                    throw new IllegalArgumentException(a);
+                }
+            }
+        } catch (RuntimeException e) {
+            out.println("[用法] agent top [--interval 秒] [--window 秒] [--sort calls|time|avg|p99] [--package 前缀] [--limit 条数] [--once]");
+            return;
+        }
+        while (true) {
+            String view = HotMethods.top(window, sort, prefix, limit);
+            if (once) {
+                out.print(view);
+                out.flush();
+                return;
+            }
+            // 清屏后重绘 | clear the screen and redraw
+            out.print("\u001b[H\u001b[2J");
+            out.print(view);
+            out.println("每 " + interval + " s 刷新，输入 cancel 或 Ctrl+C 退出");
+            if (out.checkError()) return;
+            try {
+                Thread.sleep(interval * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 按分钟直方图汇总输出方法的耗时分位数与分布，不扫描原始记录。
+     * Print a method's latency percentiles and distribution from the per-minute histogram rollups, without scanning raw records.
+     * @param args 类名.方法名 [--minutes 分钟] [--hours 小时] | class.method [--minutes N] [--hours N]
+     * @param histogram 是否输出文本直方图 | whether to print the text histogram
+     */
+    private void printPercentiles(PrintWriter out, String args, boolean histogram) {
+        String[] parts = args.split("\\s+");
+        int minutes = 60;
+        try {
+            if (parts[0].isEmpty() || parts[0].startsWith("--") || !parts[0].contains(".")) throw new IllegalArgumentException(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                if (i + 1 < parts.length && parts[i].equals("--minutes")) {
+                    minutes = Math.max(1, Integer.parseInt(parts[++i]));
+                } else if (i + 1 < parts.length && parts[i].equals("--hours")) {
+                    minutes = Math.max(1, Integer.parseInt(parts[++i])) * 60;
+                } else {
+                    throw new IllegalArgumentException(parts[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            out.println("[用法] agent " + (histogram ? "histogram" : "percentiles") + " <类名.方法名> [--minutes 分钟] [--hours 小时]");
+            return;
+        }
+        if (!HistogramStore.isEnabled()) {
+            out.println("[分钟直方图未启用] 设置 storage.histogram.enabled=true 后开始汇总");
+            return;
+        }
+        try {
+            Map<String, LatencyHistogram> found = HistogramStore.query(parts[0], minutes);
+            if (found.isEmpty()) {
+                out.println("[无数据] 最近 " + minutes + " 分钟内没有 " + parts[0] + " 的调用记录");
+                return;
+            }
+            for (Map.Entry<String, LatencyHistogram> e : found.entrySet()) {
+                LatencyHistogram h = e.getValue();
+                out.println("=== " + e.getKey() + " 最近 " + minutes + " 分钟 ===");
+                out.print(h.percentiles());
+                out.println(String.format("吞吐: %.2f 次/分钟", h.calls() / (double) minutes));
+                if (histogram) out.print(h.render());
+                out.println();
+            }
+            out.flush();
+        } catch (SQLException e) {
+            out.println("[分位数查询失败] " + e.getMessage());
+        }
+    }
+
+    /**
+     * 生成火焰图，参数：文件 [--minutes 分钟] [--count] [--sample 秒] [--interval 毫秒] [--format collapsed|svg|html]
+     */
+    private void flameGraph(PrintWriter out, String args) {
+        FlameGraph.Options options;
+        try {
+            options = FlameGraph.parse(args.split("\\s+"));
+        } catch (RuntimeException e) {
+            out.println("[用法] agent flamegraph <文件> [--minutes 分钟] [--count] [--sample 秒] [--interval 毫秒] [--format collapsed|svg|html]");
+            return;
+        }
+        if (options.sampleSeconds > 0) {
+            out.println("[火焰图] 实时采样 " + options.sampleSeconds + " 秒，间隔 " + options.intervalMs + " ms，输入 cancel 或 Ctrl+C 停止");
+            out.flush();
+        }
+        try {
+            out.println(FlameGraph.generate(options));
+        } catch (InterruptedException e) {
+            out.println("[火焰图已取消]");
+        }
+    }
+
+    /**
+     * 基线快照命令：save 保存、list 列出、drop 删除、diff 对比两个快照或快照与实时数据。
+     * Baseline snapshot commands: save, list, drop, and diff two snapshots or a snapshot against live data.
+     * @param args 子命令与参数 | subcommand and arguments
+     */
+    private void snapshot(PrintWriter out, String args) {
+        String[] parts = args.split("\\s+");
+        String usage = "[用法] agent snapshot save <名称> [--minutes 分钟] [--hours 小时] | list | drop <名称> | diff <基线> [<名称>|live] [--minutes 分钟] [--top 条数]";
+        List<String> names = new ArrayList<>();
+        int minutes = -1;
+        int top = 20;
+        try {
+            for (int i = 1; i < parts.length; i++) {
+                if (i + 1 < parts.length && parts[i].equals("--minutes")) {
+                    minutes = Math.max(1, Integer.parseInt(parts[++i]));
+                } else if (i + 1 < parts.length && parts[i].equals("--hours")) {
+                    minutes = Math.max(1, Integer.parseInt(parts[++i])) * 60;
+                } else if (i + 1 < parts.length && parts[i].equals("--top")) {
+                    top = Math.max(1, Integer.parseInt(parts[++i]));
+                } else if (parts[i].startsWith("--")) {
+                    throw new IllegalArgumentException(parts[i]);
+                } else {
+                    names.add(parts[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            out.println(usage);
+            return;
+        }
+        try {
+            switch (parts[0].toLowerCase()) {
+                case "save":
+                    if (names.size() != 1 || !SnapshotStore.isValidName(names.get(0))) {
+                        out.println("[用法] agent snapshot save <名称> [--minutes 分钟] [--hours 小时]，名称由字母、数字、_ . - 组成且不能为 live");
+                        return;
+                    }
+                    if (!HistogramStore.isEnabled()) {
+                        out.println("[分钟直方图未启用] 设置 storage.histogram.enabled=true 后开始汇总");
+                        return;
+                    }
+                    int window = minutes > 0 ? minutes : 60;
+                    int saved = SnapshotStore.save(names.get(0), window);
+                    out.println("[快照已保存] " + names.get(0) + "：最近 " + window + " 分钟, " + saved + " 个方法");
+                    break;
+                case "list":
+                    out.print(SnapshotStore.list());
+                    out.flush();
+                    break;
+                case "drop":
+                    if (names.size() != 1) {
+                        out.println("[用法] agent snapshot drop <名称>");
+                        return;
+                    }
+                    out.println(SnapshotStore.drop(names.get(0)) ? "[快照已删除] " + names.get(0) : "[快照不存在] " + names.get(0));
+                    break;
+                case "diff":
+                    if (names.isEmpty() || names.size() > 2) {
+                        out.println("[用法] agent snapshot diff <基线> [<名称>|live] [--minutes 分钟] [--top 条数]");
+                        return;
+                    }
+                    SnapshotStore.Snapshot base = SnapshotStore.load(names.get(0), minutes > 0 ? minutes : 60);
+                    if (base == null) {
+                        out.println("[快照不存在] " + names.get(0));
+                        return;
+                    }
+                    // live 默认使用与基线相同的窗口长度 | live defaults to the baseline's window length
+                    String other = names.size() == 2 ? names.get(1) : SnapshotStore.LIVE;
+                    SnapshotStore.Snapshot current = SnapshotStore.load(other, minutes > 0 ? minutes : base.minutes);
+                    if (current == null) {
+                        out.println("[快照不存在] " + other);
+                        return;
+                    }
+                    out.print(SnapshotStore.render(base, current, SnapshotStore.diff(base, current), top));
+                    out.flush();
+                    break;
+                default:
+                    out.println(usage);
+            }
+        } catch (IllegalArgumentException | SQLException e) {
+            out.println("[快照失败] " + e.getMessage());
+        }
+    }
+
+    /**
+     * 实时输出单个方法的每次调用，参数：类名.方法名 [--min 毫秒] [--max 毫秒] [--seconds 秒] [--count 条数]
+     * trace 额外输出每次调用的来源栈。
+     */
+    private void watchMethod(PrintWriter out, String args, boolean trace) {
+        String[] parts = args.split("\\s+");
+        double minMs = 0;
+        double maxMs = -1;
+        int seconds = 60;
+        long count = Long.MAX_VALUE;
+        try {
+            if (parts[0].isEmpty() || parts[0].startsWith("--") || !parts[0].contains(".")) throw new IllegalArgumentException(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                String a = parts[i];
+                if (i + 1 < parts.length && a.equals("--min")) {
+                    minMs = Double.parseDouble(parts[++i]);
+                } else if (i + 1 < parts.length && a.equals("--max")) {
+                    maxMs = Double.parseDouble(parts[++i]);
+                } else if (i + 1 < parts.length && a.equals("--seconds")) {
+                    seconds = Math.max(1, Integer.parseInt(parts[++i]));
+                } else if (i + 1 < parts.length && a.equals("--count")) {
+                    count = Math.max(1, Long.parseLong(parts[++i]));
+                } else {
+                    throw new IllegalArgumentException(a);
+                }
+            }
+        } catch (RuntimeException e) {
+            out.println("[用法] agent " + (trace ? "trace" : "watch") + " <类名.方法名> [--min 毫秒] [--max 毫秒] [--seconds 秒] [--count 条数]");
+            return;
+        }
+        long minNs = (long) (minMs * 1_000_000);
+        long maxNs = maxMs < 0 ? Long.MAX_VALUE : (long) (maxMs * 1_000_000);
+        Watch.Subscription sub = Watch.subscribe(parts[0], minNs, maxNs, trace, seconds);
+        long limit = count;
+        long[] seen = {0};
+        try {
+            if (sub.methods() == 0) {
+                out.println("[提示] 暂无已增强的方法匹配 " + parts[0] + "，类加载后自动开始观察");
+            }
+            out.println("[开始观察] " + parts[0] + "，匹配方法 " + sub.methods() + " 个，最长 "
+                    + Math.min(seconds, Math.max(1, AgentConfig.getWatchMaxSeconds())) + " s，输入 cancel 或 Ctrl+C 停止");
+            Watch.EventVisitor printer = (timeMs, method, durationNs, kind, thread, stack) -> {
+                if (seen[0] >= limit) return;
+                seen[0]++;
+                out.println(String.format("%tT.%<tL %s %.3f ms %s [%s]", timeMs, method, durationNs / 1e6,
+                        kind == Watch.EXIT_THROW ? "throw" : "return", thread));
+                if (stack != null) {
+                    for (String frame : stack.split("\n")) out.println("    at " + frame);
+                }
+            };
+            while (seen[0] < count && !sub.expired() && !out.checkError()) {
+                sub.drain(printer);
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            sub.drain(printer);
+        } finally {
+            Watch.unsubscribe(sub);
+        }
+        out.println("[观察结束] 共 " + seen[0] + " 次调用" + (sub.dropped() > 0 ? "，因输出过慢丢弃 " + sub.dropped() + " 条" : ""));
+    }
+
+    /**
+     * 流式导出数据，参数：文件 [--minutes N] [--method 类名.方法名] [--format 格式] [--gzip] [--fetch N] [--bg]
+     */
+    private void exportData(PrintWriter out, String args) {
+        Exporter.Options options;
+        try {
+            options = Exporter.parse(args.split("\\s+"));
+        } catch (RuntimeException e) {
+            out.println("[用法] agent export <file> [--minutes N] [--method 类名.方法名] [--format csv|ndjson|bin] [--gzip] [--fetch N] [--bg]");
+            return;
+        }
+        if (args.matches(".*(^|\\s)--bg(\\s|$).*")) {
+            out.println(Exporter.exportInBackground(options));
+            return;
+        }
+        out.println(Exporter.export(options, rows -> {
+            out.println("[导出进度] 已导出 " + rows + " 条");
+            out.flush();
+        }));
+    }
+
+    /**
+     * 流式扫描段存储或 MVStore，参数：分钟数 [类名.方法名] [最大条数]
+     */
+    private void scanSegments(PrintWriter out, String args) {
+        if (!SegmentStorage.isEnabled() && !MVStoreStorage.isEnabled()) {
+            out.println("[段存储未启用] 请配置 storage.engine=segment 或 storage.engine=mvstore");
+            return;
+        }
+        String[] parts = args.split("\\s+");
+        String className = null;
+        String methodName = null;
+        int limit = 100;
+        long minutes;
+        try {
+            minutes = Long.parseLong(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].matches("\\d+")) {
+                    limit = Integer.parseInt(parts[i]);
+                } else {
+                    int dot = parts[i].lastIndexOf('.');
+                    if (dot <= 0) throw new IllegalArgumentException(parts[i]);
+                    className = parts[i].substring(0, dot);
+                    methodName = parts[i].substring(dot + 1);
+                }
+            }
+        } catch (RuntimeException e) {
+            out.println("[用法] agent scan <分钟> [类名.方法名] [条数]");
+            return;
+        }
+        long to = System.currentTimeMillis();
+        long from = to - minutes * 60 * 1000;
+        final int max = limit;
+        final int[] rows = {0};
+        out.println("create_time\tclass_name\tmethod_name\tduration_ns\tthread_name");
+        SegmentStorage.RecordVisitor printer = (timeMs, r) -> {
+            out.println(new Timestamp(timeMs) + "\t" + r.className + "\t" + r.methodName + "\t" + r.durationNs + "\t" + r.threadName);
+            return ++rows[0] < max && !Thread.currentThread().isInterrupted();
+        };
+        try {
+            if (MVStoreStorage.isEnabled()) {
+                MVStoreStorage.scan(from, to, className, methodName, printer);
+            } else {
+                SegmentStorage.scan(from, to, className, methodName, printer);
+            }
+        } catch (IOException e) {
+            out.println("[段扫描失败] " + e.getMessage());
+            return;
+        }
+        out.println(rows[0] == 0 ? "[无数据]" : "[共 " + rows[0] + " 条]");
+    }
+
     /**
      * 打印数据库信息
      */
     private void printDatabaseInfo(PrintWriter out) {
-        try (Connection conn = DriverManager.getConnection(getH2DbUrl(), "sa", "")) {
-            DatabaseMetaData meta = conn.getMetaData();
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            DatabaseMetaData meta = lease.connection().getMetaData();
             out.println("=== 数据库信息 ===");
             out.println("数据库产品: " + meta.getDatabaseProductName());
             out.println("数据库版本: " + meta.getDatabaseProductVersion());
             out.println("驱动名称: " + meta.getDriverName());
             out.println("驱动版本: " + meta.getDriverVersion());
-            out.println("连接URL: " + conn.getMetaData().getURL());
+            out.println("连接URL: " + meta.getURL());
             out.println("用户名: " + meta.getUserName());
             out.println("数据库路径: " + AgentConfig.getH2Path());
+            out.println("查询连接池: " + QueryPool.getStats());
         } catch (Exception e) {
             out.println("[数据库信息查询失败] " + e.getMessage());
         }
@@ -275,8 +1013,8 @@ private void printDatabaseInfo(PrintWriter out) {
      * 打印数据库表列表
      */
     private void printDatabaseTables(PrintWriter out) {
-        try (Connection conn = DriverManager.getConnection(getH2DbUrl(), "sa", "")) {
-            DatabaseMetaData meta = conn.getMetaData();
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            DatabaseMetaData meta = lease.connection().getMetaData();
             out.println("=== 数据库表列表 ===");
             ResultSet rs = meta.getTables(null, null, "%", new String[]{"TABLE"});
             while (rs.next()) {
@@ -293,8 +1031,8 @@ private void printDatabaseTables(PrintWriter out) {
      * 打印表结构
      */
     private void printTableSchema(PrintWriter out) {
-        try (Connection conn = DriverManager.getConnection(getH2DbUrl(), "sa", "")) {
-            DatabaseMetaData meta = conn.getMetaData();
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            DatabaseMetaData meta = lease.connection().getMetaData();
             
             // 获取所有表
             ResultSet tables = meta.getTables(null, null, "%", new String[]{"TABLE"});
@@ -326,81 +1064,52 @@ private void printTableSchema(PrintWriter out) {
      * 打印数据库统计信息
      */
     private void printDatabaseStats(PrintWriter out) {
-        try (Connection conn = DriverManager.getConnection(getH2DbUrl(), "sa", "");
-             Statement stmt = conn.createStatement()) {
+        // 聚合结果经 QueryCache 复用，多个会话轮询时不重复扫描全表 | aggregates go through QueryCache so polling sessions do not rescan full tables
+        try {
             out.println("=== 数据库统计信息 ===");
             
             // 主表统计
             out.println("【主表统计】");
-            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) as total FROM method_time_stat");
-            if (rs.next()) {
-                out.println("总记录数: " + rs.getLong("total"));
-            }
-            
-            rs = stmt.executeQuery("SELECT COUNT(*) as today FROM method_time_stat WHERE DATE(create_time) = CURRENT_DATE");
-            if (rs.next()) {
-                out.println("今日记录数: " + rs.getLong("today"));
-            }
-            
-            rs = stmt.executeQuery("SELECT AVG(duration_ns) as avg_duration FROM method_time_stat");
-            if (rs.next()) {
-                double avg = rs.getDouble("avg_duration");
-                out.println("平均耗时: " + String.format("%.2f", avg) + " ns (" + String.format("%.2f", avg/1000000) + " ms)");
-            }
-            
-            rs = stmt.executeQuery("SELECT MAX(duration_ns) as max_duration FROM method_time_stat");
-            if (rs.next()) {
-                long max = rs.getLong("max_duration");
-                out.println("最大耗时: " + max + " ns (" + (max/1000000) + " ms)");
-            }
+            out.println("总记录数: " + QueryCache.query("SELECT COUNT(*) as total FROM method_time_stat").getLong(0, "total"));
+            out.println("今日记录数: " + QueryCache.query("SELECT COUNT(*) as today FROM method_time_stat WHERE DATE(create_time) = CURRENT_DATE").getLong(0, "today"));
+            double avg = QueryCache.query("SELECT AVG(duration_ns) as avg_duration FROM method_time_stat").getDouble(0, "avg_duration");
+            out.println("平均耗时: " + String.format("%.2f", avg) + " ns (" + String.format("%.2f", avg/1000000) + " ms)");
+            long max = QueryCache.query("SELECT MAX(duration_ns) as max_duration FROM method_time_stat").getLong(0, "max_duration");
+            out.println("最大耗时: " + max + " ns (" + (max/1000000) + " ms)");
             
             // 汇总表统计
             out.println();
             out.println("【汇总表统计】");
-            rs = stmt.executeQuery("SELECT COUNT(*) as summary_count FROM method_time_stat_summary");
-            if (rs.next()) {
-                out.println("汇总方法数: " + rs.getLong("summary_count"));
-            }
-            
-            rs = stmt.executeQuery("SELECT SUM(total_calls) as total_calls FROM method_time_stat_summary");
-            if (rs.next()) {
-                out.println("总调用次数: " + rs.getLong("total_calls"));
-            }
+            out.println("汇总方法数: " + QueryCache.query("SELECT COUNT(*) as summary_count FROM method_time_stat_summary").getLong(0, "summary_count"));
+            out.println("总调用次数: " + QueryCache.query("SELECT SUM(total_calls) as total_calls FROM method_time_stat_summary").getLong(0, "total_calls"));
             
-            rs = stmt.executeQuery("SELECT class_name, method_name, total_calls, avg_duration_ns FROM method_time_stat_summary ORDER BY total_calls DESC LIMIT 5");
+            QueryCache.Result rs = QueryCache.query("SELECT class_name, method_name, total_calls, avg_duration_ns FROM method_time_stat_summary ORDER BY total_calls DESC LIMIT 5");
             out.println();
             out.println("调用次数最多的方法 (Top 5):");
-            while (rs.next()) {
-                out.println("  " + rs.getString("class_name") + "." + rs.getString("method_name") + " - " + rs.getLong("total_calls") + " 次");
+            for (int i = 0; i < rs.size(); i++) {
+                out.println("  " + rs.getString(i, "class_name") + "." + rs.getString(i, "method_name") + " - " + rs.getLong(i, "total_calls") + " 次");
             }
             
-            rs = stmt.executeQuery("SELECT class_name, method_name, avg_duration_ns FROM method_time_stat_summary ORDER BY avg_duration_ns DESC LIMIT 5");
+            rs = QueryCache.query("SELECT class_name, method_name, avg_duration_ns FROM method_time_stat_summary ORDER BY avg_duration_ns DESC LIMIT 5");
             out.println();
             out.println("平均耗时最长的方法 (Top 5):");
-            while (rs.next()) {
-                long avg = rs.getLong("avg_duration_ns");
-                out.println("  " + rs.getString("class_name") + "." + rs.getString("method_name") + " - " + avg + " ns (" + (avg/1000000) + " ms)");
+            for (int i = 0; i < rs.size(); i++) {
+                long methodAvg = rs.getLong(i, "avg_duration_ns");
+                out.println("  " + rs.getString(i, "class_name") + "." + rs.getString(i, "method_name") + " - " + methodAvg + " ns (" + (methodAvg/1000000) + " ms)");
             }
             
             // 慢查询表统计
             out.println();
             out.println("【慢查询统计】");
-            rs = stmt.executeQuery("SELECT COUNT(*) as slow_count FROM method_time_stat_slow");
-            if (rs.next()) {
-                out.println("慢查询记录数: " + rs.getLong("slow_count"));
-            }
-            
-            rs = stmt.executeQuery("SELECT COUNT(*) as slow_today FROM method_time_stat_slow WHERE DATE(create_time) = CURRENT_DATE");
-            if (rs.next()) {
-                out.println("今日慢查询数: " + rs.getLong("slow_today"));
-            }
+            out.println("慢查询记录数: " + QueryCache.query("SELECT COUNT(*) as slow_count FROM method_time_stat_slow").getLong(0, "slow_count"));
+            out.println("今日慢查询数: " + QueryCache.query("SELECT COUNT(*) as slow_today FROM method_time_stat_slow WHERE DATE(create_time) = CURRENT_DATE").getLong(0, "slow_today"));
             
-            rs = stmt.executeQuery("SELECT class_name, method_name, duration_ns FROM method_time_stat_slow ORDER BY duration_ns DESC LIMIT 5");
+            rs = QueryCache.query("SELECT class_name, method_name, duration_ns FROM method_time_stat_slow ORDER BY duration_ns DESC LIMIT 5");
             out.println();
             out.println("最慢查询 (Top 5):");
-            while (rs.next()) {
-                long duration = rs.getLong("duration_ns");
-                out.println("  " + rs.getString("class_name") + "." + rs.getString("method_name") + " - " + duration + " ns (" + (duration/1000000) + " ms)");
+            for (int i = 0; i < rs.size(); i++) {
+                long duration = rs.getLong(i, "duration_ns");
+                out.println("  " + rs.getString(i, "class_name") + "." + rs.getString(i, "method_name") + " - " + duration + " ns (" + (duration/1000000) + " ms)");
             }
             
         } catch (Exception e) {
@@ -442,47 +1151,44 @@ private void printDatabaseSize(PrintWriter out) {
     }
 
     /**
-     * 执行数据库查询
+     * 执行数据库查询，第一页立即输出，之后用 next/prev 翻页。
+     * Run a database query, printing the first page right away, later pages via next/prev.
+     * 行末可带 --format table|csv|json 与 --rows N（每页行数，不超过 manage.query.maxRows）。
+     * The line may end with --format table|csv|json and --rows N (rows per page, capped at manage.query.maxRows).
      */
-    private void executeDbQuery(PrintWriter out, String sql) {
-        if (!isSafeSql(sql)) {
+    private void executeDbQuery(PrintWriter out, String line) {
+        QueryCursor c;
+        try {
+            c = QueryCursor.parse(line);
+        } catch (IllegalArgumentException e) {
+            out.println("[参数错误] " + e.getMessage());
+            return;
+        }
+        if (!isSafeSql(c.sql)) {
             out.println("[SQL安全检查失败] 只允许SELECT查询，禁止高危操作");
             return;
         }
-        
-        try (Connection conn = DriverManager.getConnection(getH2DbUrl(), "sa", "");
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            
-            ResultSetMetaData meta = rs.getMetaData();
-            int colCount = meta.getColumnCount();
-            
-            // 输出表头
-            StringBuilder header = new StringBuilder();
-            for (int i = 1; i <= colCount; i++) {
-                header.append(meta.getColumnName(i)).append("\t");
-            }
-            out.println(header.toString());
-            out.println("------\t".repeat(colCount));
-            
-            // 输出数据
-            int row = 0;
-            while (rs.next() && row < 100) { // 最多输出100行
-                StringBuilder sb = new StringBuilder();
-                for (int i = 1; i <= colCount; i++) {
-                    String value = rs.getString(i);
-                    sb.append(value != null ? value : "NULL").append("\t");
-                }
-                out.println(sb.toString());
-                row++;
-            }
-            
-            if (row == 0) {
-                out.println("[无数据]");
-            } else if (row == 100) {
-                out.println("[结果已截断，最多显示100行]");
-            }
-            
+        String indexNote = IndexManager.prepareForQuery(c.sql);
+        if (indexNote != null) out.println("[索引] " + indexNote);
+        cursor = c;
+        printPage(out, 0);
+    }
+
+    /**
+     * 翻页输出当前游标。
+     * Page the current cursor.
+     * @param direction 1-下一页，-1-上一页，0-当前页 | 1 for next, -1 for previous, 0 for current
+     */
+    private void printPage(PrintWriter out, int direction) {
+        QueryCursor c = cursor;
+        if (c == null) {
+            out.println("[没有可翻页的查询] 请先执行 select 查询");
+            return;
+        }
+        try {
+            if (direction > 0) c.next(out, s -> activeStatement = s);
+            else if (direction < 0) c.prev(out, s -> activeStatement = s);
+            else c.print(out, s -> activeStatement = s);
         } catch (Exception e) {
             out.println("[SQL执行异常] " + e.getMessage());
         }
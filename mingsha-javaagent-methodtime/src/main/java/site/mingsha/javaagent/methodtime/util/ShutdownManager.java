@@ -1,6 +1,8 @@
 package site.mingsha.javaagent.methodtime.util;
 
 import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
+import site.mingsha.javaagent.methodtime.monitor.MetricsHttpServer;
+import site.mingsha.javaagent.methodtime.monitor.PullServer;
 import site.mingsha.javaagent.methodtime.storage.H2Storage;
 import site.mingsha.javaagent.methodtime.telnet.TelnetServer;
 import site.mingsha.javaagent.methodtime.config.AgentConfig;
@@ -16,20 +18,40 @@
 public class ShutdownManager {
     private static volatile boolean unloading = false;
     private static TelnetServer telnetServer;
-    private static Thread storageThread;
+    private static Thread[] storageThreads = new Thread[0];
+    private static MetricsHttpServer httpServer;
+    private static PullServer pullServer;
 
     /**
      * 注册 Telnet 服务和存储线程到 JVM shutdown hook，实现无损卸载。
      * Register Telnet server and storage thread to JVM shutdown hook for graceful unload.
      * @param telnet TelnetServer 实例 | TelnetServer instance
-     * @param storage 存储线程 | storage thread
+     * @param storage 存储线程（多写入线程时为全部写入线程）| storage threads (all writers when sharded)
      */
-    public static void register(TelnetServer telnet, Thread storage) {
+    public static void register(TelnetServer telnet, Thread... storage) {
         telnetServer = telnet;
-        storageThread = storage;
+        storageThreads = storage == null ? new Thread[0] : storage;
         Runtime.getRuntime().addShutdownHook(new Thread(ShutdownManager::unload));
     }
 
+    /**
+     * 注册 HTTP 指标端点，卸载时一并关闭。
+     * Register the HTTP metrics endpoint so it is shut down on unload.
+     * @param http 指标端点 | metrics endpoint
+     */
+    public static void registerHttp(MetricsHttpServer http) {
+        httpServer = http;
+    }
+
+    /**
+     * 注册二进制拉取端口，卸载时一并关闭。
+     * Register the binary pull port so it is shut down on unload.
+     * @param pull 拉取端口 | pull port
+     */
+    public static void registerPull(PullServer pull) {
+        pullServer = pull;
+    }
+
     /**
      * 执行无损卸载流程，依次关闭采集、写入、数据库、Telnet 服务。
      * Execute graceful unload: stop collection, flush buffer, commit remaining data, close DB, shutdown Telnet.
@@ -40,9 +62,12 @@ public static void unload() {
         System.out.println("[mingsha-agent] 开始无损卸载...");
         // 1. 停止新数据采集（可通过全局标志实现，略）| stop new data collection (via global flag, omitted)
         // 2. 刷新缓冲区，通知存储线程写入剩余数据 | flush buffer, notify storage thread to write remaining data
-        if (storageThread != null) {
-            storageThread.interrupt();
-            try { storageThread.join(5000); } catch (InterruptedException ignore) {}
+        for (Thread t : storageThreads) {
+            if (t != null) t.interrupt();
+        }
+        for (Thread t : storageThreads) {
+            if (t == null) continue;
+            try { t.join(5000); } catch (InterruptedException ignore) {}
         }
         // 3. 提交剩余数据 | commit remaining data
         H2Storage.batchInsert(MethodTimeBuffer.pollBatch(AgentConfig.getBatchSize()));
@@ -50,6 +75,10 @@ public static void unload() {
         H2Storage.close();
         // 5. 终止Telnet服务 | shutdown Telnet server
         if (telnetServer != null) telnetServer.shutdown();
+        // 6. 关闭HTTP指标端点 | shutdown HTTP metrics endpoint
+        if (httpServer != null) httpServer.shutdown();
+        // 7. 关闭二进制拉取端口 | shutdown binary pull port
+        if (pullServer != null) pullServer.shutdown();
         System.out.println("[mingsha-agent] 卸载完成");
     }
 } 
\ No newline at end of file
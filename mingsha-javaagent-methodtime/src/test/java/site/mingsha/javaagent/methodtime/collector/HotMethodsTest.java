@@ -0,0 +1,67 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import org.junit.jupiter.api.*;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HotMethods 热点方法统计单元测试。
+ * Unit test for HotMethods hot method statistics.
+ * 验证按调用次数、总耗时、p99 排序的 Top-K 以及任意方法调用次数估计。
+ * Verify top-K by calls, total time and p99, and call estimates for any method.
+ *
+ * @author mingsha
+ */
+public class HotMethodsTest {
+    @BeforeEach
+    @AfterEach
+    public void reset() {
+        HotMethods.refresh();
+    }
+
+    /**
+     * 测试三种排序。
+     * Test the three rankings.
+     * 预期：调用最多的是 frequent，总耗时与 p99 最高的是 slow；Count-Min 估计不低于真实次数。
+     * Expect: frequent leads by calls, slow leads by total time and p99; the Count-Min estimate is at least the true count.
+     */
+    @Test
+    public void testRankings() {
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) batch.add(new MethodTimeRecord("Hot", "frequent", 0, 0, 10_000, "t", ""));
+        for (int i = 0; i < 50; i++) batch.add(new MethodTimeRecord("Hot", "slow", 0, 0, 50_000_000, "t", ""));
+        for (int i = 0; i < 300; i++) batch.add(new MethodTimeRecord("Hot", "m" + i, 0, 0, 20_000, "t", ""));
+        HotMethods.record(batch);
+
+        assertEquals("Hot.frequent", HotMethods.topByCalls(1, 1).get(0).key);
+        assertEquals(1000, HotMethods.topByCalls(1, 1).get(0).weight);
+        assertEquals("Hot.slow", HotMethods.topByTime(1, 1).get(0).key);
+        assertEquals("Hot.slow", HotMethods.topByP99(1, 1).get(0).key);
+        assertTrue(HotMethods.estimateCalls("Hot.frequent", 15) >= 1000);
+        assertTrue(HotMethods.report(5, 3).contains("Hot.slow"));
+    }
+
+    /**
+     * 测试实时 top 视图。
+     * Test the live top view.
+     * 预期：按 avg 排序时 slow 在前；包过滤只保留匹配的方法；按 time 排序同样可用。
+     * Expect: sorting by avg puts slow first; the package filter keeps only matching methods; sorting by time works too.
+     */
+    @Test
+    public void testTopView() {
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 200; i++) batch.add(new MethodTimeRecord("com.a.Fast", "run", 0, 0, 10_000, "t", ""));
+        for (int i = 0; i < 10; i++) batch.add(new MethodTimeRecord("com.a.Slow", "run", 0, 0, 5_000_000, "t", ""));
+        for (int i = 0; i < 100; i++) batch.add(new MethodTimeRecord("org.b.Other", "run", 0, 0, 20_000, "t", ""));
+        HotMethods.record(batch);
+
+        String avg = HotMethods.top(30, HotMethods.SORT_AVG, null, 3);
+        assertTrue(avg.indexOf("com.a.Slow.run") < avg.indexOf("com.a.Fast.run"), avg);
+        String filtered = HotMethods.top(30, HotMethods.SORT_CALLS, "com.a.", 10);
+        assertTrue(filtered.contains("com.a.Fast.run"), filtered);
+        assertFalse(filtered.contains("org.b.Other"), filtered);
+        String time = HotMethods.top(300, HotMethods.SORT_TIME, null, 1);
+        assertTrue(time.contains("com.a.Slow.run"), time);
+    }
+}
@@ -0,0 +1,61 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * LatencyHistogram 可合并直方图单元测试。
+ * Unit test for the mergeable LatencyHistogram.
+ * 验证分位数误差、合并以及编码还原。
+ * Verify percentile error, merging and encode/decode round trips.
+ *
+ * @author mingsha
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * 测试分位数与合并。
+     * Test percentiles and merging.
+     * 预期：1~1000ms 均匀分布的 p50/p99 误差不超过 25%，p999 不超过最大值；两半合并后与整体一致。
+     * Expect: p50/p99 of a uniform 1~1000 ms spread are within 25%, p999 never exceeds the max; merging two halves equals the whole.
+     */
+    @Test
+    public void testQuantilesAndMerge() {
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram low = new LatencyHistogram();
+        LatencyHistogram high = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) {
+            long ns = ms * 1_000_000L;
+            all.add(ns);
+            (ms <= 500 ? low : high).add(ns);
+        }
+        assertEquals(500_000_000L, all.quantile(0.5), 125_000_000L);
+        assertEquals(990_000_000L, all.quantile(0.99), 250_000_000L);
+        assertTrue(all.quantile(0.999) <= all.maxNs());
+        low.merge(high);
+        assertEquals(all.calls(), low.calls());
+        assertEquals(all.encode(), low.encode());
+        assertEquals(all.quantile(0.99), low.quantile(0.99));
+        assertEquals(0, new LatencyHistogram().quantile(0.5));
+    }
+
+    /**
+     * 测试编码还原与文本输出。
+     * Test encode/decode and text rendering.
+     * 预期：还原后的分位数一致，非法片段被忽略；直方图输出含条形。
+     * Expect: decoded percentiles match and malformed parts are skipped; the rendering contains bars.
+     */
+    @Test
+    public void testEncodeDecode() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.add(500);
+        h.add(2_000_000);
+        h.add(2_100_000);
+        LatencyHistogram d = LatencyHistogram.decode(h.calls(), h.totalNs(), h.maxNs(), h.encode() + ",x:1,999:5");
+        assertEquals(h.encode(), d.encode());
+        assertEquals(h.quantile(0.9), d.quantile(0.9));
+        assertTrue(d.render().contains("#"), d.render());
+        assertTrue(d.percentiles().startsWith("调用: 3,"), d.percentiles());
+    }
+}
@@ -1,9 +1,7 @@
 package site.mingsha.javaagent.methodtime.collector;
 
 import org.junit.jupiter.api.*;
-import java.lang.reflect.Field;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -15,11 +13,8 @@
 public class MethodTimeBufferTest {
     @BeforeEach
     @AfterEach
-    public void clearQueue() throws Exception {
-        Field queueField = MethodTimeBuffer.class.getDeclaredField("queue");
-        queueField.setAccessible(true);
-        ArrayBlockingQueue<?> queue = (ArrayBlockingQueue<?>) queueField.get(null);
-        queue.clear();
+    public void clearQueue() {
+        MethodTimeBuffer.clearForTest();
     }
 
     @Test
@@ -42,8 +37,10 @@ public void testBufferCapacity() {
         MethodTimeRecord r2 = new MethodTimeRecord("D", "m", 2, 3, 1, "t", "");
         assertTrue(MethodTimeBuffer.offer(r1));
         assertTrue(MethodTimeBuffer.offer(r2));
-        // 队列已满，应该返回false
+        // 队列已满，应该返回false，并计入丢弃数
+        long dropped = MethodTimeBuffer.droppedCount();
         assertFalse(MethodTimeBuffer.offer(new MethodTimeRecord("E", "m", 3, 4, 1, "t", "")));
+        assertEquals(dropped + 1, MethodTimeBuffer.droppedCount());
         MethodTimeBuffer.pollBatch(2);
     }
 
@@ -63,4 +60,24 @@ public void testConcurrentOffer() throws InterruptedException {
         List<MethodTimeRecord> batch = MethodTimeBuffer.pollBatch(threads * perThread);
         assertEquals(threads * perThread, batch.size());
     }
-} 
\ No newline at end of file
+
+    /**
+     * 测试按方法分片：同一方法的记录始终进入同一分片，总容量不变。
+     * Test sharding by method: records of one method always land in the same shard, total capacity unchanged.
+     */
+    @Test
+    public void testShardByMethod() {
+        MethodTimeBuffer.resetQueueForTest(10000);
+        MethodTimeBuffer.configureShards(4);
+        try {
+            assertEquals(4, MethodTimeBuffer.shards());
+            MethodTimeRecord r = new MethodTimeRecord("F", "m", 1, 2, 1, "t", "");
+            int shard = MethodTimeBuffer.shardOf(r, 4);
+            for (int i = 0; i < 3; i++) MethodTimeBuffer.offer(new MethodTimeRecord("F", "m", i, i + 1, 1, "t", ""));
+            assertEquals(3, MethodTimeBuffer.pollBatch(shard, 10).size());
+            assertEquals(0, MethodTimeBuffer.size());
+        } finally {
+            MethodTimeBuffer.configureShards(1);
+        }
+    }
+}
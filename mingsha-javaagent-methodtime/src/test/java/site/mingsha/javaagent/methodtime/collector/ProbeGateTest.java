@@ -0,0 +1,56 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ProbeGate 仅聚合计数单元单元测试。
+ * Unit test for the ProbeGate aggregate-only cells.
+ * 验证每次取出的是自上次取出后的增量，最大耗时按区间复位。
+ * Verify every take returns the delta since the previous one, with the max reset per interval.
+ *
+ * @author mingsha
+ */
+public class ProbeGateTest {
+
+    /**
+     * 测试按区间取出增量。
+     * Test taking per-interval deltas.
+     * 预期：第二个区间的最大耗时只反映该区间的调用，无新调用时返回 null。
+     * Expect: the second interval's max reflects only its own calls, and null is returned when nothing new arrived.
+     */
+    @Test
+    public void testTakeResetsMax() {
+        ProbeGate.Cell cell = new ProbeGate.Cell();
+        cell.add(9_000);
+        cell.add(1_000);
+        long[] first = cell.take();
+        assertEquals(2, first[0]);
+        assertEquals(10_000, first[1]);
+        assertEquals(9_000, first[2]);
+        assertNull(cell.take());
+
+        cell.add(2_000);
+        long[] second = cell.take();
+        assertEquals(1, second[0]);
+        assertEquals(2_000, second[1]);
+        assertEquals(2_000, second[2]);
+    }
+
+    /**
+     * 测试仅聚合增量并入按方法指标。
+     * Test merging aggregate-only deltas into per-method metrics.
+     * 预期：落在各个分桶（含超出最大边界的桶）的调用都被并入，再次并入时没有重复。
+     * Expect: calls in every bucket, including the one above the largest bound, are merged, and nothing is merged twice.
+     */
+    @Test
+    public void testFlush() {
+        int id = Watch.register("com.p.GateService", "run");
+        ProbeGate.flush();
+        ProbeGate.aggregate(id, 1);
+        ProbeGate.aggregate(id, Long.MAX_VALUE / 2);
+        assertEquals(2, ProbeGate.flush());
+        assertEquals(0, ProbeGate.flush());
+    }
+}
@@ -0,0 +1,80 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import org.junit.jupiter.api.*;
+import java.util.List;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SpaceSaving 与 CountMinSketch 单元测试。
+ * Unit test for SpaceSaving and CountMinSketch.
+ * 验证固定容量下重度项必然保留、误差上界成立、直方图分位估计以及 Count-Min 不低估。
+ * Verify heavy hitters survive in fixed capacity, the error bound holds, histogram percentiles, and Count-Min never underestimates.
+ *
+ * @author mingsha
+ */
+public class SpaceSavingTest {
+
+    /**
+     * 测试重度项与误差上界。
+     * Test heavy hitters and the error bound.
+     * 预期：3个重度项在大量长尾键中仍位于前3，且 weight - error 不超过真实次数。
+     * Expect: three heavy keys stay on top among a long tail, and weight - error never exceeds the true count.
+     */
+    @Test
+    public void testHeavyHitters() {
+        SpaceSaving ss = new SpaceSaving(16, false);
+        Random random = new Random(7);
+        int[] heavy = new int[3];
+        for (int i = 0; i < 20000; i++) {
+            int r = random.nextInt(10);
+            if (r < 3) {
+                heavy[r]++;
+                ss.offer("heavy" + r, 1, 1);
+            } else {
+                ss.offer("tail" + random.nextInt(5000), 1, 1);
+            }
+        }
+        List<SpaceSaving.Entry> top = ss.entries();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(top.get(i).key.startsWith("heavy"), top.get(i).key);
+            SpaceSaving.Entry e = top.get(i);
+            int truth = heavy[e.key.charAt(5) - '0'];
+            assertTrue(e.weight >= truth && e.weight - e.error <= truth);
+        }
+        assertEquals(16, top.size());
+    }
+
+    /**
+     * 测试直方图分位估计。
+     * Test histogram percentile estimates.
+     * 预期：p99 落在真实值所在桶的上界，相对误差不超过 25%。
+     * Expect: p99 is the upper bound of the true value's bucket, within 25%.
+     */
+    @Test
+    public void testQuantile() {
+        SpaceSaving ss = new SpaceSaving(4, true);
+        for (int i = 1; i <= 1000; i++) ss.offer("m", 1, i * 1000L);
+        long p99 = ss.entries().get(0).quantile(0.99);
+        assertTrue(p99 >= 990_000 && p99 <= 990_000 * 1.25, "p99 " + p99);
+        for (long ns : new long[] {1, 1023, 1024, 5000, 1L << 40}) {
+            assertTrue(SpaceSaving.upperBound(SpaceSaving.bucket(ns)) >= ns);
+        }
+    }
+
+    /**
+     * 测试 Count-Min 估计。
+     * Test Count-Min estimates.
+     * 预期：估计值不低于真实值，重度键估计准确。
+     * Expect: estimates never fall below the truth and a heavy key is estimated accurately.
+     */
+    @Test
+    public void testCountMin() {
+        CountMinSketch cms = new CountMinSketch(4, 256);
+        for (int i = 0; i < 2000; i++) cms.add("key" + (i % 500), 1);
+        cms.add("hot", 10000);
+        for (int i = 0; i < 500; i++) assertTrue(cms.estimate("key" + i) >= 4);
+        long hot = cms.estimate("hot");
+        assertTrue(hot >= 10000 && hot < 10100, "hot " + hot);
+    }
+}
@@ -0,0 +1,106 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import site.mingsha.javaagent.methodtime.storage.H2Storage;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.Collections;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * StackSampler 慢调用栈采集单元测试。
+ * Unit test for StackSampler slow invocation stack capture.
+ * 验证阈值过滤、按栈哈希去重、每秒预算以及慢查询表 stack_id 与 stack_dict 字典表。
+ * Verify threshold filtering, deduplication by stack hash, the per-second budget, and stack_id in the slow table with the stack_dict dictionary.
+ *
+ * @author mingsha
+ */
+public class StackSamplerTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String ENABLED_KEY = "mingsha.agent.config.collector.stack.enabled";
+    private static final String BUDGET_KEY = "mingsha.agent.config.collector.stack.budgetPerSecond";
+    private static final long SLOW = 10_000_000_000L;
+
+    @BeforeEach
+    public void setup() {
+        System.setProperty(ENABLED_KEY, "true");
+        StackSampler.refresh();
+        StackSampler.reset();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(ENABLED_KEY);
+        System.clearProperty(BUDGET_KEY);
+        StackSampler.refresh();
+        StackSampler.reset();
+    }
+
+    /**
+     * 测试阈值与去重。
+     * Test threshold and deduplication.
+     * 预期：未超过阈值不采集；同一调用点得到相同栈ID，第一帧为调用方法本身；不同调用点得到不同栈ID。
+     * Expect: no capture below the threshold; one call site yields one id whose first frame is the calling method; another call site yields another id.
+     */
+    @Test
+    public void testThresholdAndDedup() {
+        assertEquals(0, StackSampler.capture(1));
+        long[] ids = new long[3];
+        for (int i = 0; i < 2; i++) ids[i] = captureHere();
+        ids[2] = StackSampler.capture(SLOW);
+        assertNotEquals(0, ids[0]);
+        assertEquals(ids[0], ids[1]);
+        assertNotEquals(ids[0], ids[2]);
+        StackSampler.Stack stack = StackSampler.get(ids[0]);
+        assertEquals(2, stack.hits());
+        assertTrue(stack.frames.startsWith(StackSamplerTest.class.getName() + ".captureHere"), stack.frames);
+    }
+
+    /**
+     * 测试每秒预算。
+     * Test the per-second budget.
+     * 预期：同一秒内超出预算的调用返回0。
+     * Expect: calls beyond the budget within one second return 0.
+     */
+    @Test
+    public void testBudget() {
+        System.setProperty(BUDGET_KEY, "3");
+        StackSampler.refresh();
+        int captured = 0;
+        for (int i = 0; i < 10; i++) {
+            if (StackSampler.capture(SLOW) != 0) captured++;
+        }
+        assertTrue(captured <= 6, "captured " + captured);
+        assertTrue(StackSampler.info(1).contains("超出预算"));
+    }
+
+    /**
+     * 测试慢查询表引用调用栈字典。
+     * Test the slow table referencing the stack dictionary.
+     * 预期：慢查询行的 stack_id 可关联到 stack_dict 中的栈帧。
+     * Expect: the stack_id of a slow row joins to its frames in stack_dict.
+     */
+    @Test
+    public void testSlowTableStackId() throws Exception {
+        System.setProperty(PATH_KEY, "mem:stack_test");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:stack_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+        H2Storage.init();
+        long id = captureHere();
+        H2Storage.batchInsert(Collections.singletonList(new MethodTimeRecord("StackClass", "slow", 0, SLOW, SLOW, "main", "", id)));
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:stack_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT s.stack_id, d.frames FROM method_time_stat_slow s JOIN stack_dict d ON d.id = s.stack_id")) {
+            assertTrue(rs.next());
+            assertEquals(id, rs.getLong(1));
+            assertTrue(rs.getString(2).contains("captureHere"));
+        }
+    }
+
+    private long captureHere() {
+        return StackSampler.capture(SLOW);
+    }
+}
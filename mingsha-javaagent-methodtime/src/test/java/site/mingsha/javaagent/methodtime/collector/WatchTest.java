@@ -0,0 +1,95 @@
+package site.mingsha.javaagent.methodtime.collector;
+
+import org.junit.jupiter.api.*;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Watch 单方法实时观察单元测试。
+ * Unit test for Watch live method observation.
+ * 验证开关位、耗时条件、缓冲区溢出丢弃、来源栈与注销后恢复。
+ * Verify the active flags, duration predicate, overflow dropping, caller stacks and reset after unsubscribe.
+ *
+ * @author mingsha
+ */
+public class WatchTest {
+    private static final String BUFFER_KEY = "mingsha.agent.config.manage.watch.bufferSize";
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty(BUFFER_KEY);
+    }
+
+    /**
+     * 测试订阅与耗时条件。
+     * Test subscription and the duration predicate.
+     * 预期：只有被观察的方法开关位为 true；不满足耗时条件的调用不进入缓冲区；注销后开关位恢复。
+     * Expect: only watched methods have the flag set; calls outside the duration predicate never reach the buffer; the flag resets after unsubscribing.
+     */
+    @Test
+    public void testSubscribeAndPredicate() {
+        int watched = Watch.register("com.w.OrderService", "create");
+        int other = Watch.register("com.w.OrderService", "cancel");
+        Watch.Subscription sub = Watch.subscribe("OrderService.create", 1_000_000, Long.MAX_VALUE, false, 30);
+        assertTrue(Watch.active[watched]);
+        assertFalse(Watch.active[other]);
+
+        Watch.onExit(watched, 500_000, Watch.EXIT_RETURN);
+        Watch.onExit(watched, 2_000_000, Watch.EXIT_THROW);
+        Watch.onExit(other, 9_000_000, Watch.EXIT_RETURN);
+        List<String> events = new ArrayList<>();
+        assertEquals(1, sub.drain((t, m, ns, kind, thread, stack) -> events.add(m + ":" + ns + ":" + kind)));
+        assertEquals("com.w.OrderService.create:2000000:1", events.get(0));
+
+        // 订阅后才加载的类同样生效 | classes loaded after subscribing are picked up too
+        int late = Watch.register("com.w.v2.OrderService", "create");
+        assertTrue(Watch.active[late]);
+
+        Watch.unsubscribe(sub);
+        assertFalse(Watch.active[watched]);
+        assertFalse(Watch.active[late]);
+    }
+
+    /**
+     * 测试缓冲区溢出与来源栈。
+     * Test buffer overflow and caller stacks.
+     * 预期：超出容量的旧事件计入丢弃数，只保留最新的事件；trace 订阅带来源栈。
+     * Expect: older events beyond capacity count as dropped and only the newest remain; trace subscriptions carry caller stacks.
+     */
+    @Test
+    public void testOverflowAndStacks() {
+        System.setProperty(BUFFER_KEY, "16");
+        int id = Watch.register("com.w.Pay", "pay");
+        Watch.Subscription sub = Watch.subscribe("com.w.Pay.pay", 0, Long.MAX_VALUE, true, 30);
+        for (int i = 0; i < 40; i++) Watch.onExit(id, i, Watch.EXIT_RETURN);
+        List<Long> durations = new ArrayList<>();
+        List<String> stacks = new ArrayList<>();
+        sub.drain((t, m, ns, kind, thread, stack) -> {
+            durations.add(ns);
+            stacks.add(stack);
+        });
+        Watch.unsubscribe(sub);
+        assertEquals(16, durations.size());
+        assertEquals(24, sub.dropped());
+        assertEquals(39L, durations.get(15));
+        assertTrue(stacks.get(0).contains("WatchTest.testOverflowAndStacks"), stacks.get(0));
+    }
+
+    /**
+     * 测试重复注册与开关位扩容。
+     * Test repeated registration and growing the flag array.
+     * 预期：同一方法再次注册返回原ID；新分配的ID始终落在当前开关位数组内。
+     * Expect: registering a method again returns its id; every newly assigned id lies within the current flag array.
+     */
+    @Test
+    public void testRegisterDedupAndGrow() {
+        int id = Watch.register("com.w.Dedup", "run");
+        assertEquals(id, Watch.register("com.w.Dedup", "run"));
+        for (int i = 0; i < 600; i++) {
+            int n = Watch.register("com.w.Grow", "m" + i);
+            assertTrue(n < Watch.active.length);
+            assertEquals(n, Watch.register("com.w.Grow", "m" + i));
+        }
+    }
+}
@@ -32,7 +32,7 @@ public void testConfigRead() {
         // 动态断言 H2 路径与配置一致
         assertEquals(site.mingsha.javaagent.methodtime.config.AgentConfig.getH2Path(), AgentConfig.getH2Path());
         assertEquals(5005, AgentConfig.getTelnetPort());
-        assertEquals(1, AgentConfig.getTelnetMaxThreads());
+        assertEquals(16, AgentConfig.getTelnetMaxThreads());
         assertEquals(80, AgentConfig.getCpuFuseThreshold());
         assertEquals(5000, AgentConfig.getHealthCheckIntervalMs());
         assertEquals("INFO", AgentConfig.getLogLevel());
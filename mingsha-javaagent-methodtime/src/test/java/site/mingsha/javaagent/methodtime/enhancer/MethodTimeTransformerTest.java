@@ -1,7 +1,14 @@
 package site.mingsha.javaagent.methodtime.enhancer;
 
 import org.junit.jupiter.api.Test;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeBuffer;
+import site.mingsha.javaagent.methodtime.collector.ProbeGate;
+import site.mingsha.javaagent.methodtime.collector.Watch;
+import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
@@ -14,6 +21,9 @@
  * @author mingsha
  */
 public class MethodTimeTransformerTest {
+    private static final String PACKAGES_KEY = "mingsha.agent.config.collector.packages";
+    private static final String MIN_DURATION_KEY = "mingsha.agent.config.collector.minDurationNs";
+
     @Test
     public void testTransformNoMatch() {
         MethodTimeTransformer transformer = new MethodTimeTransformer();
@@ -26,4 +36,114 @@ public void testTransformWithMock() {
         // mock config静态方法可用PowerMockito等高级mock工具，简单场景下只测分支
         assertNull(transformer.transform(null, "not/match/Package", null, null, new byte[0]));
     }
-} 
\ No newline at end of file
+
+    /**
+     * 被增强的目标类。
+     * Target class to enhance.
+     */
+    public static class Target {
+        public static int work(int n) {
+            return n * 2;
+        }
+
+        public static void fail() {
+            throw new IllegalStateException("boom");
+        }
+    }
+
+    /**
+     * 测试增强后的方法接入 agent watch。
+     * Test that enhanced methods feed agent watch.
+     * 预期：增强后的类可正常加载执行；被观察的方法按出口类型上报，未被观察的方法不上报。
+     * Expect: the enhanced class loads and runs; watched methods report with their exit kind, unwatched ones do not.
+     */
+    @Test
+    public void testWatchProbe() throws Exception {
+        String name = Target.class.getName();
+        byte[] original;
+        try (InputStream in = Target.class.getResourceAsStream("/" + name.replace('.', '/') + ".class")) {
+            original = in.readAllBytes();
+        }
+        System.setProperty(PACKAGES_KEY, name);
+        byte[] enhanced;
+        try {
+            enhanced = new MethodTimeTransformer().transform(null, name.replace('.', '/'), null, null, original);
+        } finally {
+            System.clearProperty(PACKAGES_KEY);
+        }
+        assertNotNull(enhanced);
+        Class<?> cls = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass(name, enhanced, 0, enhanced.length);
+            }
+        }.define();
+
+        Watch.Subscription sub = Watch.subscribe("Target.fail", 0, Long.MAX_VALUE, false, 30);
+        try {
+            assertEquals(6, cls.getMethod("work", int.class).invoke(null, 3));
+            InvocationTargetException e = assertThrows(InvocationTargetException.class, () -> cls.getMethod("fail").invoke(null));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            List<String> events = new ArrayList<>();
+            sub.drain((t, m, ns, kind, thread, stack) -> events.add(m + ":" + kind));
+            assertEquals(List.of(name + ".fail:" + Watch.EXIT_THROW), events);
+        } finally {
+            Watch.unsubscribe(sub);
+        }
+    }
+
+    /**
+     * 测试探针在各开销调控级别下的行为。
+     * Test probe behaviour at each overhead governor level.
+     * 预期：全量时入队记录；仅聚合时只累计不入队；关闭时既不入队也不累计，被观察的方法也不上报。
+     * Expect: full enqueues records; aggregate-only accumulates without enqueuing; off does neither and watched methods stay silent.
+     */
+    @Test
+    public void testProbeLevels() throws Exception {
+        String name = Target.class.getName();
+        byte[] original;
+        try (InputStream in = Target.class.getResourceAsStream("/" + name.replace('.', '/') + ".class")) {
+            original = in.readAllBytes();
+        }
+        System.setProperty(PACKAGES_KEY, name);
+        System.setProperty(MIN_DURATION_KEY, "0");
+        byte[] enhanced;
+        try {
+            enhanced = new MethodTimeTransformer().transform(null, name.replace('.', '/'), null, null, original);
+        } finally {
+            System.clearProperty(PACKAGES_KEY);
+            System.clearProperty(MIN_DURATION_KEY);
+        }
+        Class<?> cls = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass(name, enhanced, 0, enhanced.length);
+            }
+        }.define();
+
+        MethodTimeBuffer.pollBatch(Integer.MAX_VALUE >> 8);
+        Watch.Subscription sub = Watch.subscribe("Target.work", 0, Long.MAX_VALUE, false, 30);
+        try {
+            for (int i = 0; i < 3; i++) cls.getMethod("work", int.class).invoke(null, i);
+            assertEquals(3, MethodTimeBuffer.size());
+
+            ProbeGate.level = ProbeGate.AGGREGATE_ONLY;
+            long aggregated = ProbeGate.aggregatedCount();
+            for (int i = 0; i < 5; i++) cls.getMethod("work", int.class).invoke(null, i);
+            assertEquals(3, MethodTimeBuffer.size());
+            assertEquals(aggregated + 5, ProbeGate.aggregatedCount());
+
+            ProbeGate.level = ProbeGate.OFF;
+            List<String> events = new ArrayList<>();
+            sub.drain((t, m, ns, kind, thread, stack) -> events.add(m));
+            events.clear();
+            for (int i = 0; i < 5; i++) cls.getMethod("work", int.class).invoke(null, i);
+            assertEquals(3, MethodTimeBuffer.size());
+            assertEquals(aggregated + 5, ProbeGate.aggregatedCount());
+            sub.drain((t, m, ns, kind, thread, stack) -> events.add(m));
+            assertTrue(events.isEmpty(), events.toString());
+        } finally {
+            ProbeGate.level = ProbeGate.FULL;
+            Watch.unsubscribe(sub);
+            MethodTimeBuffer.pollBatch(Integer.MAX_VALUE >> 8);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * AgentMetrics 指标注册表与 AgentOverhead 自身开销核算单元测试。
+ * Unit test for the AgentMetrics registry and AgentOverhead self-overhead accounting.
+ * 验证并发递增不丢失、同名注册以新实例为准、渲染格式，以及校准与线程扫描的读数。
+ * Verify no lost increments under concurrency, re-registration replacing the old instance, rendering, and calibration and thread scan readings.
+ *
+ * @author mingsha
+ */
+public class AgentMetricsTest {
+
+    /**
+     * 测试并发递增。
+     * Test concurrent increments.
+     * 预期：多线程同时递增后累计值精确。
+     * Expect: the sum is exact after many threads increment at once.
+     */
+    @Test
+    public void testConcurrentIncrements() throws InterruptedException {
+        AgentMetrics.Counter c = AgentMetrics.counter("mingsha_test_concurrent_total", "test");
+        assertSame(c, AgentMetrics.counter("mingsha_test_concurrent_total", "test"));
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread th = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) c.increment();
+            });
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) th.join();
+        assertEquals(800_000, c.sum());
+        assertEquals(800_000, AgentMetrics.value("mingsha_test_concurrent_total"), 0);
+    }
+
+    /**
+     * 测试监控实例重建与渲染。
+     * Test monitor re-creation and rendering.
+     * 预期：新建的 AgentMonitor 替换注册表中的计数器；Prometheus 与 JSON 输出包含计数器与仪表。
+     * Expect: a new AgentMonitor replaces the registered counters; Prometheus and JSON output contain counters and gauges.
+     */
+    @Test
+    public void testMonitorCountersAndRendering() {
+        AgentMonitor old = new AgentMonitor();
+        old.recordWriteError();
+        old.recordWriteError();
+        AgentMonitor monitor = new AgentMonitor();
+        monitor.recordWriteError();
+        assertEquals(1, AgentMetrics.value("mingsha_agent_write_errors_total"), 0);
+        AgentMetrics.gauge("mingsha_test_ratio", "test gauge", () -> 0.25);
+
+        StringBuilder prom = new StringBuilder();
+        AgentMetrics.prometheus(prom);
+        assertTrue(prom.toString().contains("# TYPE mingsha_agent_write_errors_total counter\nmingsha_agent_write_errors_total 1\n"), prom.toString());
+        assertTrue(prom.toString().contains("# TYPE mingsha_test_ratio gauge\nmingsha_test_ratio 0.25\n"));
+        StringBuilder json = new StringBuilder();
+        AgentMetrics.json(json);
+        assertTrue(json.toString().contains("\"mingsha_agent_write_errors_total\":1"), json.toString());
+        assertTrue(AgentMetrics.describe().contains("mingsha_test_ratio"));
+        assertTrue(Double.isNaN(AgentMetrics.value("mingsha_test_missing")));
+
+        AgentMetrics.gauge("mingsha_test_pos_inf", "test", () -> Double.POSITIVE_INFINITY);
+        AgentMetrics.gauge("mingsha_test_neg_inf", "test", () -> Double.NEGATIVE_INFINITY);
+        AgentMetrics.gauge("mingsha_test_nan", "test", () -> Double.NaN);
+        prom.setLength(0);
+        AgentMetrics.prometheus(prom);
+        assertTrue(prom.toString().contains("mingsha_test_pos_inf +Inf\n"));
+        assertTrue(prom.toString().contains("mingsha_test_neg_inf -Inf\n"));
+        assertTrue(prom.toString().contains("mingsha_test_nan NaN\n"));
+        assertFalse(prom.toString().contains("Infinity"));
+    }
+
+    /**
+     * 测试自身开销核算。
+     * Test self-overhead accounting.
+     * 预期：校准得到正的单次耗时，记录路径不低于过滤路径；线程扫描计入 agent 线程的 CPU 与分配量。
+     * Expect: calibration yields positive ns per call with the recorded path no cheaper than the filtered one; the thread scan counts agent thread CPU and allocation.
+     */
+    @Test
+    public void testOverhead() throws InterruptedException {
+        AgentOverhead.install();
+        assertTrue(Double.isNaN(AgentMetrics.value("mingsha_agent_probe_recorded_ns")) || AgentOverhead.recordedNs() > 0);
+        AgentOverhead.ensureCalibrated();
+        double filtered = AgentMetrics.value("mingsha_agent_probe_filtered_ns");
+        double recorded = AgentMetrics.value("mingsha_agent_probe_recorded_ns");
+        assertTrue(filtered > 0, "filtered " + filtered);
+        assertTrue(recorded >= filtered, "recorded " + recorded + " filtered " + filtered);
+        assertTrue(AgentMetrics.value("mingsha_agent_probe_recorded_bytes") > 0);
+
+        Thread worker = new Thread(() -> {
+            long acc = 0;
+            List<byte[]> keep = new ArrayList<>();
+            long end = System.nanoTime() + 50_000_000L;
+            while (System.nanoTime() < end) {
+                keep.add(new byte[1024]);
+                if (keep.size() > 1000) keep.clear();
+                acc += keep.size();
+            }
+            AgentOverhead.sink = acc;
+        }, "mingsha-agent-storage-test");
+        worker.start();
+        Thread.sleep(20);
+        long[] live = AgentOverhead.scan();
+        worker.join();
+        Thread.sleep(600);
+        long[] after = AgentOverhead.scan();
+        assertTrue(after[0] > 0, "storage cpu");
+        assertTrue(after[1] >= after[0]);
+        assertTrue(after[2] >= 1_000_000, "agent allocation " + after[2]);
+        assertTrue(after[2] >= live[2], "exited threads keep their last reading");
+        assertTrue(after[3] >= after[2]);
+        assertTrue(AgentOverhead.gcSeconds() >= 0);
+
+        // 以 _total 结尾的序列一律按计数器输出 | every series ending in _total is exposed as a counter
+        StringBuilder prom = new StringBuilder();
+        AgentMetrics.prometheus(prom);
+        for (String line : prom.toString().split("\n")) {
+            if (line.startsWith("# TYPE ") && line.split(" ")[2].endsWith("_total")) assertTrue(line.endsWith(" counter"), line);
+        }
+    }
+}
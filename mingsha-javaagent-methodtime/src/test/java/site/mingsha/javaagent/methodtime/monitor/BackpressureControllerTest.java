@@ -0,0 +1,55 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import site.mingsha.javaagent.methodtime.collector.Sampler;
+import site.mingsha.javaagent.methodtime.config.AgentConfig;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * BackpressureController 背压控制单元测试。
+ * Unit test for BackpressureController.
+ * 验证写入延迟超限时降级、延迟恢复后按迟滞逐级恢复。
+ * Verify degrading when writer latency exceeds the limit and hysteresis-gated recovery afterwards.
+ *
+ * @author mingsha
+ */
+public class BackpressureControllerTest {
+    private static final String LATENCY_KEY = "mingsha.agent.config.storage.backpressure.latencyMs";
+
+    @BeforeEach
+    public void setup() {
+        System.setProperty(LATENCY_KEY, "100");
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty(LATENCY_KEY);
+        Sampler.setFactor(1.0);
+    }
+
+    /**
+     * 测试降级与迟滞恢复。
+     * Test degrade and hysteresis recovery.
+     * 预期：高延迟时升一级，采样系数减半、批量加倍；延迟恢复后需连续数次平稳评估才回到全量。
+     * Expect: high latency raises one level, halving the sampling factor and doubling the batch; recovery needs several calm evaluations.
+     */
+    @Test
+    public void testDegradeAndRecover() {
+        BackpressureController controller = new BackpressureController();
+        int base = AgentConfig.getBatchSize();
+        controller.recordWrite(1_000_000_000L);
+        controller.tick();
+        assertEquals(1, controller.getLevel());
+        assertEquals(0.5, Sampler.getFactor(), 1e-9);
+        assertEquals(base * 2, controller.getBatchSize());
+
+        for (int i = 0; i < 40; i++) controller.recordWrite(0);
+        controller.tick();
+        assertEquals(1, controller.getLevel(), "must not recover on the first calm tick");
+        for (int i = 0; i < 4; i++) controller.tick();
+        assertEquals(0, controller.getLevel());
+        assertEquals(1.0, Sampler.getFactor(), 1e-9);
+        assertTrue(controller.getStatus().contains("恢复"));
+    }
+}
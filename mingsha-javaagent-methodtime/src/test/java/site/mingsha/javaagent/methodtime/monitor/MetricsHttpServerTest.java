@@ -0,0 +1,115 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import site.mingsha.javaagent.methodtime.collector.MethodMetrics;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * MetricsHttpServer 与 MethodMetrics 单元测试。
+ * Unit test for MetricsHttpServer and MethodMetrics.
+ * 验证 Prometheus/JSON 输出、增量渲染、序列上限与端口冲突切换。
+ * Verify Prometheus/JSON output, incremental rendering, the series cap and port fallback.
+ *
+ * @author mingsha
+ */
+public class MetricsHttpServerTest {
+    private static final String PREFIX = "mingsha.agent.config.manage.http.";
+
+    @BeforeEach
+    public void setup() {
+        System.setProperty(PREFIX + "enabled", "true");
+        MethodMetrics.refresh();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty(PREFIX + "enabled");
+        System.clearProperty(PREFIX + "port");
+        System.clearProperty(PREFIX + "maxSeries");
+        MethodMetrics.refresh();
+    }
+
+    private static MethodTimeRecord record(String cls, String method, long ns) {
+        return new MethodTimeRecord(cls, method, 0, System.nanoTime(), ns, "main", "");
+    }
+
+    private static String get(int port, String path) throws Exception {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        assertEquals(200, c.getResponseCode());
+        try (InputStream in = c.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 测试 Prometheus 与 JSON 输出。
+     * Test Prometheus and JSON output.
+     * 预期：计数器、累计直方图桶与总和正确，端口被占用时切换到下一个端口。
+     * Expect: counters, cumulative buckets and sums are correct, and a taken port falls back to the next one.
+     */
+    @Test
+    public void testEndpoints() throws Exception {
+        MethodMetrics.record(Arrays.asList(
+                record("com.demo.OrderService", "create", 200_000),
+                record("com.demo.OrderService", "create", 3_000_000),
+                record("com.demo.\"Odd\"", "run", 20_000_000_000L)));
+        try (ServerSocket taken = new ServerSocket(0)) {
+            System.setProperty(PREFIX + "port", String.valueOf(taken.getLocalPort()));
+            MetricsHttpServer server = new MetricsHttpServer(new BackpressureController());
+            assertTrue(server.start());
+            try {
+                assertNotEquals(taken.getLocalPort(), server.getPort());
+                String text = get(server.getPort(), "/metrics");
+                assertTrue(text.contains("# TYPE mingsha_method_duration_seconds histogram"), text);
+                assertTrue(text.contains("mingsha_method_calls_total{class=\"com.demo.OrderService\",method=\"create\"} 2\n"), text);
+                assertTrue(text.contains("mingsha_method_duration_seconds_bucket{class=\"com.demo.OrderService\",method=\"create\",le=\"0.0001\"} 0\n"), text);
+                assertTrue(text.contains("mingsha_method_duration_seconds_bucket{class=\"com.demo.OrderService\",method=\"create\",le=\"0.0005\"} 1\n"), text);
+                assertTrue(text.contains("mingsha_method_duration_seconds_bucket{class=\"com.demo.OrderService\",method=\"create\",le=\"+Inf\"} 2\n"), text);
+                assertTrue(text.contains("mingsha_method_duration_seconds_sum{class=\"com.demo.OrderService\",method=\"create\"} 0.0032\n"), text);
+                assertTrue(text.contains("class=\"com.demo.\\\"Odd\\\"\""), text);
+                assertTrue(text.contains("mingsha_buffer_queue_depth "), text);
+                assertTrue(text.contains("mingsha_writer_lag_seconds "), text);
+
+                String json = get(server.getPort(), "/metrics.json");
+                assertTrue(json.startsWith("{\"queue\":{\"depth\":"), json);
+                assertTrue(json.contains("\"method\":\"create\",\"calls\":2,\"sumNs\":3200000,\"maxNs\":3000000"), json);
+                assertTrue(json.contains("\"+Inf\":2"), json);
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 测试增量渲染与序列上限。
+     * Test incremental rendering and the series cap.
+     * 预期：无新调用时复用同一文本片段，有新调用后重新渲染；超过上限的方法合并到 _other_。
+     * Expect: fragments are reused while nothing changes and re-rendered after new calls; methods beyond the cap fold into _other_.
+     */
+    @Test
+    public void testIncrementalAndCap() {
+        System.setProperty(PREFIX + "maxSeries", "2");
+        MethodMetrics.record(Arrays.asList(record("A", "a", 1000), record("B", "b", 1000)));
+        MethodMetrics.Series a = MethodMetrics.all().stream().filter(s -> s.className.equals("A")).findFirst().get();
+        String first = a.histogram();
+        assertSame(first, a.histogram());
+        MethodMetrics.record(Arrays.asList(record("A", "a", 1000)));
+        assertNotSame(first, a.histogram());
+        assertTrue(a.calls().endsWith("} 2\n"), a.calls());
+
+        MethodMetrics.record(Arrays.asList(record("C", "c", 1000), record("D", "d", 1000)));
+        List<MethodMetrics.Series> all = MethodMetrics.all();
+        assertEquals(3, all.size());
+        assertTrue(all.stream().anyMatch(s -> s.className.equals(MethodMetrics.OTHER) && s.count() == 2));
+        assertEquals(2, MethodMetrics.overflowed());
+    }
+}
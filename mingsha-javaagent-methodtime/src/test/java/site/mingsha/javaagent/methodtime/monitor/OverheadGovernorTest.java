@@ -0,0 +1,107 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import site.mingsha.javaagent.methodtime.collector.ProbeGate;
+import site.mingsha.javaagent.methodtime.collector.Sampler;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * OverheadGovernor 开销调控单元测试。
+ * Unit test for OverheadGovernor.
+ * 验证开销超限与 CPU 熔断时逐级降级、切换后的测量窗口不再升级、迟滞恢复与反复时的退避。
+ * Verify stepwise degrading on excess overhead and CPU fuse, no raise in the window right after a change, hysteresis recovery and relapse backoff.
+ *
+ * @author mingsha
+ */
+public class OverheadGovernorTest {
+    private static final String LIMIT_KEY = "mingsha.agent.config.monitor.governor.overheadPercent";
+    private static final String CALM_KEY = "mingsha.agent.config.monitor.governor.calmSeconds";
+    private static final String RATE_KEY = "mingsha.agent.config.monitor.governor.reducedSamplingRate";
+    private static final String ENABLED_KEY = "mingsha.agent.config.monitor.governor.enabled";
+
+    @BeforeEach
+    public void setup() {
+        System.setProperty(LIMIT_KEY, "2");
+        System.setProperty(CALM_KEY, "3");
+        System.setProperty(RATE_KEY, "0.25");
+        ProbeGate.level = ProbeGate.FULL;
+    }
+
+    @AfterEach
+    public void cleanup() {
+        System.clearProperty(LIMIT_KEY);
+        System.clearProperty(CALM_KEY);
+        System.clearProperty(RATE_KEY);
+        System.clearProperty(ENABLED_KEY);
+        ProbeGate.level = ProbeGate.FULL;
+        Sampler.setGovernorFactor(1.0);
+    }
+
+    /**
+     * 测试逐级降级与迟滞恢复。
+     * Test stepwise degrade and hysteresis recovery.
+     * 预期：开销超限每个有效窗口升一级直至关闭探针，切换后的窗口被跳过；平稳数秒后才逐级恢复，降采样级别设置调控系数。
+     * Expect: excess overhead raises one level per valid window up to off, skipping the window after each change; recovery only follows several calm seconds, and the reduced level sets the governor factor.
+     */
+    @Test
+    public void testDegradeAndRecover() {
+        OverheadGovernor governor = new OverheadGovernor();
+        double base = Sampler.getEffectiveRate();
+        governor.evaluate(5, 10);
+        assertEquals(ProbeGate.REDUCED, ProbeGate.level);
+        assertEquals(base * 0.25, Sampler.getEffectiveRate(), 1e-9);
+        governor.evaluate(5, 10);
+        assertEquals(ProbeGate.REDUCED, ProbeGate.level, "the window after a change is skipped");
+        governor.evaluate(5, 10);
+        assertEquals(ProbeGate.AGGREGATE_ONLY, ProbeGate.level);
+        governor.evaluate(0, 10);
+        governor.evaluate(0, 95);
+        assertEquals(ProbeGate.OFF, ProbeGate.level, "CPU at the fuse threshold also raises");
+        governor.evaluate(0, 95);
+        governor.evaluate(0, 95);
+        assertEquals(ProbeGate.OFF, ProbeGate.level);
+
+        governor.evaluate(0.5, 10);
+        governor.evaluate(0.5, 10);
+        assertEquals(ProbeGate.OFF, ProbeGate.level, "must not recover before the calm time");
+        governor.evaluate(0.5, 10);
+        assertEquals(ProbeGate.AGGREGATE_ONLY, ProbeGate.level);
+        governor.evaluate(1.5, 10);
+        for (int i = 0; i < 5; i++) governor.evaluate(1.5, 10);
+        assertEquals(ProbeGate.AGGREGATE_ONLY, ProbeGate.level, "overhead above half the limit is not calm");
+        String status = governor.getStatus();
+        assertTrue(status.contains("全量 -> 降采样"), status);
+        assertTrue(status.contains("关闭探针 -> 仅聚合"), status);
+    }
+
+    /**
+     * 测试反复时的退避与关闭调控。
+     * Test relapse backoff and disabling the governor.
+     * 预期：恢复后很快又升级时下次恢复所需平稳时间加倍；关闭调控后立即回到全量。
+     * Expect: a raise soon after recovery doubles the calm time needed next; disabling the governor returns to full at once.
+     */
+    @Test
+    public void testRelapseBackoffAndDisable() {
+        OverheadGovernor governor = new OverheadGovernor();
+        governor.evaluate(5, 10);
+        governor.evaluate(5, 10);
+        governor.evaluate(5, 10);
+        assertEquals(ProbeGate.AGGREGATE_ONLY, ProbeGate.level);
+        // 切换后的窗口被跳过，随后连续3秒平稳 | the window after the change is skipped, then 3 calm seconds
+        for (int i = 0; i < 4; i++) governor.evaluate(0, 10);
+        assertEquals(ProbeGate.REDUCED, ProbeGate.level);
+        governor.evaluate(5, 10);
+        governor.evaluate(5, 10);
+        assertEquals(ProbeGate.AGGREGATE_ONLY, ProbeGate.level, "relapse");
+        for (int i = 0; i < 6; i++) governor.evaluate(0, 10);
+        assertEquals(ProbeGate.AGGREGATE_ONLY, ProbeGate.level, "calm time doubled after a relapse");
+        governor.evaluate(0, 10);
+        assertEquals(ProbeGate.REDUCED, ProbeGate.level);
+
+        System.setProperty(ENABLED_KEY, "false");
+        governor.evaluate(50, 99);
+        assertEquals(ProbeGate.FULL, ProbeGate.level);
+        assertTrue(governor.getStatus().contains("开销调控已关闭"));
+    }
+}
@@ -0,0 +1,189 @@
+package site.mingsha.javaagent.methodtime.monitor;
+
+import site.mingsha.javaagent.methodtime.collector.MethodMetrics;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * PullServer 二进制拉取协议单元测试。
+ * Unit test for the PullServer binary pull protocol.
+ * 验证全量与增量响应、字典只在新方法出现时下发、纪元变化后返回全量，以及错误请求的处理。
+ * Verify full and incremental responses, dictionary entries only for new methods, a full response after an epoch change, and bad request handling.
+ *
+ * @author mingsha
+ */
+public class PullServerTest {
+    private static final String PREFIX = "mingsha.agent.config.manage.pull.";
+    private PullServer server;
+
+    /**
+     * 解码后的响应。
+     * A decoded response.
+     */
+    static class Response {
+        byte status;
+        long epoch;
+        long cursor;
+        boolean full;
+        int buckets;
+        final Map<Long, String> dictionary = new HashMap<>();
+        final Map<Long, long[]> series = new HashMap<>();
+    }
+
+    @BeforeEach
+    public void setup() {
+        System.setProperty(PREFIX + "enabled", "true");
+        System.setProperty(PREFIX + "port", "19406");
+        System.setProperty(PREFIX + "portRetries", "50");
+        MethodMetrics.refresh();
+        server = new PullServer();
+        assertTrue(server.bind());
+        Thread t = new Thread(server, "pull-test");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        server.shutdown();
+        System.clearProperty(PREFIX + "enabled");
+        System.clearProperty(PREFIX + "port");
+        System.clearProperty(PREFIX + "portRetries");
+        MethodMetrics.refresh();
+    }
+
+    private static MethodTimeRecord record(String cls, String method, long ns) {
+        return new MethodTimeRecord(cls, method, 0, System.nanoTime(), ns, "main", "");
+    }
+
+    private static void request(DataOutputStream out, long epoch, long cursor) throws IOException {
+        out.writeInt(PullServer.REQUEST_LENGTH);
+        out.writeInt(PullServer.MAGIC);
+        out.writeByte(PullServer.OP_PULL);
+        out.writeLong(epoch);
+        out.writeLong(cursor);
+        out.flush();
+    }
+
+    private static long varLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+    }
+
+    private static Response read(DataInputStream socket) throws IOException {
+        byte[] payload = new byte[socket.readInt()];
+        socket.readFully(payload);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Response r = new Response();
+        assertEquals(PullServer.MAGIC, in.readInt());
+        r.status = in.readByte();
+        if (r.status != PullServer.STATUS_OK) return r;
+        r.epoch = in.readLong();
+        r.cursor = in.readLong();
+        in.readLong();
+        r.full = in.readByte() == PullServer.FLAG_FULL;
+        if (r.full) {
+            r.buckets = (int) varLong(in);
+            for (int i = 0; i < r.buckets - 1; i++) varLong(in);
+        }
+        for (long n = varLong(in); n > 0; n--) {
+            long id = varLong(in);
+            byte[] cls = new byte[(int) varLong(in)];
+            in.readFully(cls);
+            byte[] method = new byte[(int) varLong(in)];
+            in.readFully(method);
+            r.dictionary.put(id, new String(cls, StandardCharsets.UTF_8) + "." + new String(method, StandardCharsets.UTF_8));
+        }
+        for (long n = varLong(in); n > 0; n--) {
+            long id = varLong(in);
+            long[] v = new long[3 + 12];
+            v[0] = varLong(in);
+            v[1] = varLong(in);
+            v[2] = varLong(in);
+            for (long k = varLong(in); k > 0; k--) {
+                int bucket = (int) varLong(in);
+                v[3 + bucket] = varLong(in);
+            }
+            r.series.put(id, v);
+        }
+        for (int i = 0; i < 5; i++) varLong(in);
+        assertEquals(0, in.available());
+        return r;
+    }
+
+    /**
+     * 测试全量与增量拉取。
+     * Test full and incremental pulls.
+     * 预期：首次全量含字典与桶；无更新时为空；只有更新的方法下发累计值，新方法附带字典；reload 后纪元变化返回全量。
+     * Expect: the first pull is full with dictionary and buckets; nothing is sent without updates; only updated methods send cumulative values and new methods carry dictionary entries; after a reload the epoch changes and a full response follows.
+     */
+    @Test
+    public void testPull() throws Exception {
+        MethodMetrics.record(Arrays.asList(record("com.demo.A", "a", 200_000), record("com.demo.B", "b", 2_000_000)));
+        try (Socket s = new Socket("127.0.0.1", server.getPort());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            request(out, 0, 0);
+            Response first = read(in);
+            assertTrue(first.full);
+            assertEquals(12, first.buckets);
+            assertEquals(new HashSet<>(Arrays.asList("com.demo.A.a", "com.demo.B.b")), new HashSet<>(first.dictionary.values()));
+            long idA = first.dictionary.entrySet().stream().filter(e -> e.getValue().equals("com.demo.A.a")).findFirst().get().getKey();
+            assertEquals(1, first.series.get(idA)[0]);
+            assertEquals(200_000, first.series.get(idA)[1]);
+            assertEquals(1, first.series.get(idA)[3 + 1]);
+
+            request(out, first.epoch, first.cursor);
+            Response idle = read(in);
+            assertFalse(idle.full);
+            assertTrue(idle.series.isEmpty() && idle.dictionary.isEmpty());
+
+            MethodMetrics.record(Arrays.asList(record("com.demo.A", "a", 300_000), record("com.demo.C", "c", 1)));
+            request(out, idle.epoch, idle.cursor);
+            Response delta = read(in);
+            assertEquals(2, delta.series.size());
+            assertEquals(2, delta.series.get(idA)[0]);
+            assertEquals(500_000, delta.series.get(idA)[1]);
+            assertEquals(Collections.singleton("com.demo.C.c"), new HashSet<>(delta.dictionary.values()));
+
+            MethodMetrics.refresh();
+            MethodMetrics.record(Collections.singletonList(record("com.demo.D", "d", 1)));
+            request(out, delta.epoch, delta.cursor);
+            Response reset = read(in);
+            assertTrue(reset.full);
+            assertNotEquals(delta.epoch, reset.epoch);
+            assertEquals(Collections.singleton("com.demo.D.d"), new HashSet<>(reset.dictionary.values()));
+        }
+    }
+
+    /**
+     * 测试错误请求。
+     * Test a bad request.
+     * 预期：魔数错误时返回错误状态并关闭连接。
+     * Expect: a wrong magic gets an error status and the connection is closed.
+     */
+    @Test
+    public void testBadRequest() throws Exception {
+        try (Socket s = new Socket("127.0.0.1", server.getPort());
+             DataOutputStream out = new DataOutputStream(s.getOutputStream());
+             DataInputStream in = new DataInputStream(s.getInputStream())) {
+            out.writeInt(PullServer.REQUEST_LENGTH);
+            out.writeInt(0x12345678);
+            out.write(new byte[PullServer.REQUEST_LENGTH - 4]);
+            out.flush();
+            assertEquals(PullServer.STATUS_BAD_REQUEST, read(in).status);
+            assertEquals(-1, in.read());
+        }
+        assertTrue(server.getStats().contains("拉取次数: 0"), server.getStats());
+    }
+}
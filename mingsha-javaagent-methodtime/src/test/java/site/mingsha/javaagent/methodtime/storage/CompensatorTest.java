@@ -0,0 +1,95 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import org.junit.jupiter.api.*;
+import java.io.File;
+import java.io.FileWriter;
+import java.sql.*;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compensator 转存补偿单元测试。
+ * Unit test for Compensator spill replay.
+ * 验证按检查点续传、序号去重以及回放完成后删除文件和检查点。
+ * Verify resuming from the checkpoint, dedup by sequence and removal of the file and checkpoint after replay.
+ *
+ * @author mingsha
+ */
+public class CompensatorTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String RATE_KEY = "mingsha.agent.config.storage.compensate.rateLimit";
+    private static final String THRESHOLD_KEY = "mingsha.agent.config.storage.failoverThreshold";
+    private File spill;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:compensate_test");
+        System.setProperty(RATE_KEY, "0");
+        System.setProperty(THRESHOLD_KEY, "0");
+        H2Storage.init();
+        spill = new File(Compensator.FILE_PREFIX + "test" + Compensator.FILE_SUFFIX);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        spill.delete();
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(RATE_KEY);
+        System.clearProperty(THRESHOLD_KEY);
+    }
+
+    /**
+     * 测试从检查点续传回放。
+     * Test resuming replay from a checkpoint.
+     * 预期：检查点之前的记录被跳过，其余记录恰好入库一次，文件与检查点被删除；转存时刻取自文件名。
+     * Expect: records up to the checkpoint are skipped, the rest are stored exactly once, the file and checkpoint are removed; the spill time comes from the file name.
+     */
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        try (FileWriter fw = new FileWriter(spill)) {
+            for (int i = 1; i <= 5; i++) {
+                fw.write("CompensateClass,m" + i + "," + i + "," + (i + 1) + ",1,main,\n");
+            }
+        }
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement()) {
+            // 模拟上次回放前两条后崩溃
+            // Simulate a crash after the first two records were replayed
+            stmt.executeUpdate("INSERT INTO " + Compensator.CHECKPOINT_TABLE + " (file_name, last_seq) VALUES ('" + spill.getName() + "', 2)");
+            assertTrue(Compensator.replayFile(c, spill));
+        }
+
+        assertFalse(spill.exists());
+        assertEquals(3, count("SELECT COUNT(*) FROM method_time_stat WHERE class_name = 'CompensateClass'"));
+        assertEquals(0, count("SELECT COUNT(*) FROM method_time_stat WHERE class_name = 'CompensateClass' AND method_name IN ('m1', 'm2')"));
+        assertEquals(0, count("SELECT COUNT(*) FROM " + Compensator.CHECKPOINT_TABLE));
+        assertEquals(1_700_000_000_000L, Compensator.spillTime(new File(Compensator.FILE_PREFIX + "1700000000000_3" + Compensator.FILE_SUFFIX)));
+    }
+
+    /**
+     * 测试转存阈值不小于队列容量时回放不会停滞。
+     * Test replay does not stall when the failover threshold is at least the queue capacity.
+     * 预期：阈值被限制在队列容量以内，空队列下立即回放完成。
+     * Expect: the threshold is capped below the queue capacity and replay finishes at once with an empty queue.
+     */
+    @Test
+    public void testThresholdAboveCapacity() throws Exception {
+        System.setProperty(THRESHOLD_KEY, String.valueOf(Integer.MAX_VALUE));
+        try (FileWriter fw = new FileWriter(spill)) {
+            fw.write("CapacityClass,m,1,2,1,main,\n");
+        }
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try (Connection c = H2Storage.openConnection()) {
+                assertTrue(Compensator.replayFile(c, spill));
+            }
+        });
+        assertEquals(1, count("SELECT COUNT(*) FROM method_time_stat WHERE class_name = 'CapacityClass'"));
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
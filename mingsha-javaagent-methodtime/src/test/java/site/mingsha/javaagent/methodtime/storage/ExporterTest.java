@@ -0,0 +1,150 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Exporter 流式导出单元测试。
+ * Unit test for the Exporter streaming export.
+ * 验证 CSV 转义与 gzip 压缩、NDJSON 方法过滤、二进制列式格式往返读取以及后台导出。
+ * Verify CSV escaping with gzip, NDJSON method filtering, the binary columnar round trip and background exports.
+ *
+ * @author mingsha
+ */
+public class ExporterTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:export_test");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:export_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+        H2Storage.init();
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            batch.add(new MethodTimeRecord("ExportClass", i % 5 == 0 ? "hot" : "cold", i, i + 7, 7, "t" + (i % 3), ""));
+        }
+        batch.add(new MethodTimeRecord("ExportClass", "odd", 1, 2, 1, "main", "a,\"b\"\nc"));
+        H2Storage.batchInsert(batch);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+    }
+
+    /**
+     * 测试 CSV 导出。
+     * Test the CSV export.
+     * 预期：.gz 文件自动压缩；含逗号、引号和换行的字段按 RFC 4180 转义；记录数与写入一致。
+     * Expect: a .gz file is compressed automatically; fields with commas, quotes and newlines are escaped per RFC 4180; all rows are exported.
+     */
+    @Test
+    public void testCsvGzip() throws Exception {
+        File file = dir.resolve("all.csv.gz").toFile();
+        String result = H2Storage.exportAllToCsv(file.getPath());
+        assertTrue(result.startsWith("[导出成功]"), result);
+        String text;
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(text.startsWith("id,class_name,method_name,"));
+        assertTrue(text.contains(",\"a,\"\"b\"\"\nc\","));
+        // 表头一行，转义字段内含一个换行 | one header line plus the newline inside the quoted field
+        assertEquals(5001, text.split("\n").length - 2);
+    }
+
+    /**
+     * 测试 NDJSON 按方法过滤导出。
+     * Test the NDJSON export filtered by method.
+     * 预期：只导出指定方法的记录，每行一个 JSON 对象。
+     * Expect: only the given method is exported, one JSON object per line.
+     */
+    @Test
+    public void testNdjsonMethodFilter() throws Exception {
+        File file = dir.resolve("hot.ndjson").toFile();
+        Exporter.Options o = Exporter.parse(new String[] {file.getPath(), "--method", "ExportClass.hot", "--format", "json", "--minutes", "10", "--fetch", "128"});
+        assertTrue(Exporter.export(o, null).startsWith("[导出成功]"));
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals(1000, lines.size());
+        assertTrue(lines.stream().allMatch(l -> l.startsWith("{") && l.contains("\"method_name\":\"hot\"")));
+    }
+
+    /**
+     * 测试二进制列式格式。
+     * Test the binary columnar format.
+     * 预期：跨多个块写出后可完整读回，字段值一致。
+     * Expect: rows written across several blocks are read back intact.
+     */
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        File file = dir.resolve("all.bin").toFile();
+        Exporter.Options o = Exporter.parse(new String[] {file.getPath(), "--format", "bin", "--gzip"});
+        assertTrue(Exporter.export(o, null).startsWith("[导出成功]"));
+        List<MethodTimeRecord> rows = new ArrayList<>();
+        Exporter.readBinary(file, (timeMs, r) -> rows.add(r));
+        assertEquals(5001, rows.size());
+        assertEquals(1000, rows.stream().filter(r -> "hot".equals(r.methodName)).count());
+        MethodTimeRecord odd = rows.get(rows.size() - 1);
+        assertEquals("a,\"b\"\nc", odd.extraInfo);
+        assertEquals(2, odd.endTime);
+    }
+
+    /**
+     * 测试后台导出。
+     * Test a background export.
+     * 预期：提交后立即返回，完成后 status 返回成功结果。
+     * Expect: submission returns immediately and status reports success when done.
+     */
+    @Test
+    public void testBackgroundExport() throws Exception {
+        File file = dir.resolve("bg.csv").toFile();
+        assertTrue(Exporter.exportInBackground(Exporter.parse(new String[] {file.getPath()})).startsWith("[后台导出已开始]"));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!Exporter.status().startsWith("[导出成功]") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(Exporter.status().contains(file.getPath()));
+        assertTrue(file.length() > 0);
+        assertThrows(IllegalArgumentException.class, () -> Exporter.parse(new String[] {file.getPath(), "--format", "xml"}));
+    }
+
+    /**
+     * 测试取消后台导出后再同步导出。
+     * Test a synchronous export after cancelling a background export.
+     * 预期：取消只作用于后台任务，之后的同步导出完整导出全部记录。
+     * Expect: the cancel only applies to the background job and the following synchronous export writes every row.
+     */
+    @Test
+    public void testSyncExportAfterCancel() throws Exception {
+        File bg = dir.resolve("cancelled.csv").toFile();
+        Exporter.exportInBackground(Exporter.parse(new String[] {bg.getPath(), "--fetch", "1"}));
+        assertTrue(Exporter.cancel().startsWith("[已请求取消导出]"));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Exporter.status().startsWith("[导出进行中]") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(Exporter.status().startsWith("[导出已取消]"));
+
+        File file = dir.resolve("after.csv").toFile();
+        String result = Exporter.export(new Exporter.Options(file.getPath()), null);
+        assertTrue(result.startsWith("[导出成功]"), result);
+        assertTrue(result.contains("5001 条"), result);
+    }
+}
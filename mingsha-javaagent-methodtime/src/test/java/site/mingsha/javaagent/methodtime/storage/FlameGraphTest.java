@@ -0,0 +1,104 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import site.mingsha.javaagent.methodtime.collector.StackSampler;
+import org.junit.jupiter.api.*;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * FlameGraph 火焰图生成单元测试。
+ * Unit test for FlameGraph generation.
+ * 验证调用树的包含/自身值计算、节点上限截断、折叠栈与 SVG 输出，以及从慢调用栈生成。
+ * Verify inclusive/self value computation, the node cap, collapsed and SVG output, and generation from slow call stacks.
+ *
+ * @author mingsha
+ */
+public class FlameGraphTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String STACK_KEY = "mingsha.agent.config.collector.stack.enabled";
+    private static final String NODES_KEY = "mingsha.agent.config.manage.flamegraph.maxNodes";
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(STACK_KEY);
+        System.clearProperty(NODES_KEY);
+        StackSampler.refresh();
+        StackSampler.reset();
+    }
+
+    /**
+     * 测试包含模式与截断。
+     * Test inclusive mode and truncation.
+     * 预期：父调用 10 包含子调用 8 时父自身值为 2；超出节点上限的路径截断到已有节点并计数。
+     * Expect: a parent of 10 containing a child of 8 has a self value of 2; paths beyond the node cap are cut at existing nodes and counted.
+     */
+    @Test
+    public void testCallTree() throws Exception {
+        FlameGraph.CallTree tree = new FlameGraph.CallTree(true, 4);
+        tree.add(Arrays.asList("main", "parent"), 10);
+        tree.add(Arrays.asList("main", "parent", "child"), 8);
+        tree.add(Arrays.asList("main", "other", "deep"), 5);
+        assertEquals(4, tree.nodes);
+        assertEquals(1, tree.truncated);
+        assertEquals(15, tree.finish());
+        StringWriter w = new StringWriter();
+        assertEquals(3, tree.writeCollapsed(w));
+        assertEquals("main 5\nmain;parent 2\nmain;parent;child 8\n", w.toString());
+
+        FlameGraph.CallTree samples = new FlameGraph.CallTree(false, 100);
+        samples.add(Arrays.asList("main", "parent"), 1);
+        samples.add(Arrays.asList("main", "parent", "child"), 1);
+        assertEquals(2, samples.finish());
+        StringWriter svg = new StringWriter();
+        samples.writeSvg(svg, "t<1>", "samples");
+        assertTrue(svg.toString().startsWith("<svg") && svg.toString().contains("t&lt;1&gt;"), svg.toString());
+        assertTrue(svg.toString().contains("<title>child (1 samples, 50.00%)</title>"), svg.toString());
+        assertEquals("com.demo.Foo.bar", FlameGraph.frameName("app//com.demo.Foo.bar(Foo.java:12)"));
+        assertEquals("java.lang.Thread.run", FlameGraph.frameName("java.base@17/java.lang.Thread.run(Thread.java:833)"));
+    }
+
+    /**
+     * 测试从慢调用栈生成折叠栈文件。
+     * Test generating a collapsed-stack file from slow call stacks.
+     * 预期：输出行以本测试方法所在路径结尾，值为耗时微秒之和。
+     * Expect: the output line ends with this test method's path and its value is the summed duration in microseconds.
+     */
+    @Test
+    public void testFromSlowCalls() throws Exception {
+        System.setProperty(PATH_KEY, "mem:flame_graph_test");
+        System.setProperty(STACK_KEY, "true");
+        StackSampler.refresh();
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:flame_graph_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+        H2Storage.init();
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            long stackId = StackSampler.capture(5_000_000);
+            batch.add(new MethodTimeRecord("FlameGraphTest", "slow", 0, 5_000_000, 5_000_000, "main", "", stackId));
+        }
+        H2Storage.batchInsert(batch);
+
+        Path file = Files.createTempFile("flame", ".collapsed");
+        try {
+            String result = FlameGraph.generate(FlameGraph.parse(new String[] {file.toString(), "--minutes", "5"}));
+            assertTrue(result.startsWith("[火焰图完成]"), result);
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertEquals(1, lines.size());
+            assertTrue(lines.get(0).endsWith(getClass().getName() + ".testFromSlowCalls 15000"), lines.get(0));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        assertThrows(IllegalArgumentException.class, () -> FlameGraph.parse(new String[] {"--minutes"}));
+        assertEquals(FlameGraph.FORMAT_HTML, FlameGraph.parse(new String[] {"/tmp/a.html"}).format);
+    }
+}
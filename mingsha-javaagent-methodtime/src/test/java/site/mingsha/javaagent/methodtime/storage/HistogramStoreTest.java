@@ -0,0 +1,104 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.LatencyHistogram;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * HistogramStore 分钟直方图汇总单元测试。
+ * Unit test for HistogramStore per-minute histogram rollups.
+ * 验证写入后按方法合并分位数、省略包名匹配、重启后在当前分钟行上继续累计，以及补偿回放的累加与回滚。
+ * Verify per-method percentiles after writes, package-less matching, continuing the current minute row after a restart, and additive, rollback-safe replays.
+ *
+ * @author mingsha
+ */
+public class HistogramStoreTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:histogram_store_test");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:histogram_store_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+        H2Storage.init();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+    }
+
+    private static List<MethodTimeRecord> batch(String cls, String method, int n, long ns) {
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < n; i++) batch.add(new MethodTimeRecord(cls, method, 0, ns, ns, "main", ""));
+        return batch;
+    }
+
+    /**
+     * 测试分位数查询与重启后继续累计。
+     * Test percentile queries and accumulation after a restart.
+     * 预期：99 次 1ms + 1 次 100ms 时 p50 约 1ms、p999 为 100ms；重置内存状态后再写入，调用次数在同一分钟行上累加。
+     * Expect: with 99 calls of 1 ms and one of 100 ms p50 is about 1 ms and p999 is 100 ms; after resetting memory state more writes add to the same minute row.
+     */
+    @Test
+    public void testPercentilesAndRestart() throws Exception {
+        H2Storage.batchInsert(batch("com.demo.OrderService", "create", 99, 1_000_000));
+        H2Storage.batchInsert(batch("com.demo.OrderService", "create", 1, 100_000_000));
+        H2Storage.batchInsert(batch("com.demo.OrderService", "cancel", 5, 1_000_000));
+
+        Map<String, LatencyHistogram> found = HistogramStore.query("OrderService.create", 60);
+        assertEquals(Collections.singleton("com.demo.OrderService.create"), found.keySet());
+        LatencyHistogram h = found.get("com.demo.OrderService.create");
+        assertEquals(100, h.calls());
+        assertEquals(1_000_000, h.quantile(0.5), 250_000);
+        assertEquals(100_000_000, h.quantile(0.999));
+
+        HistogramStore.reset();
+        H2Storage.batchInsert(batch("com.demo.OrderService", "create", 50, 1_000_000));
+        assertEquals(150, HistogramStore.query("com.demo.OrderService.create", 1).get("com.demo.OrderService.create").calls());
+        assertTrue(HistogramStore.query("Other.create", 60).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> HistogramStore.query("create", 60));
+    }
+
+    /**
+     * 测试补偿回放与写入线程的当前分钟状态共存。
+     * Test compensation replays alongside the writer's current-minute state.
+     * 预期：回滚的回放不计数；提交的回放累加到已有行并保留在写入线程下一批的覆盖写中；旧转存文件的记录计入其转存分钟。
+     * Expect: a rolled-back replay counts nothing; a committed replay adds onto the row and survives the writer's next overwrite; records of an old spill land in their spill minute.
+     */
+    @Test
+    public void testReplayIsAdditiveAndRollbackSafe() throws Exception {
+        H2Storage.batchInsert(batch("com.demo.PayService", "pay", 10, 1_000_000));
+        long now = System.currentTimeMillis();
+        long old = now - 10 * HistogramStore.MINUTE_MS;
+        try (Connection c = H2Storage.openConnection()) {
+            c.setAutoCommit(false);
+            HistogramStore.replay(c, now, batch("com.demo.PayService", "pay", 5, 1_000_000));
+            c.rollback();
+
+            HistogramStore.Replayed replayed = HistogramStore.replay(c, now, batch("com.demo.PayService", "pay", 5, 1_000_000));
+            HistogramStore.Replayed older = HistogramStore.replay(c, old, batch("com.demo.PayService", "pay", 3, 1_000_000));
+            c.commit();
+            HistogramStore.applyReplayed(replayed);
+            HistogramStore.applyReplayed(older);
+        }
+        H2Storage.batchInsert(batch("com.demo.PayService", "pay", 1, 1_000_000));
+
+        assertEquals(19, HistogramStore.query("PayService.pay", 60).get("com.demo.PayService.pay").calls());
+        try (Connection c = H2Storage.openConnection();
+             PreparedStatement ps = c.prepareStatement("SELECT calls FROM " + HistogramStore.TABLE + " WHERE minute_ts = ?")) {
+            ps.setLong(1, old / HistogramStore.MINUTE_MS);
+            try (ResultSet rs = ps.executeQuery()) {
+                assertTrue(rs.next());
+                assertEquals(3, rs.getLong(1));
+            }
+        }
+    }
+}
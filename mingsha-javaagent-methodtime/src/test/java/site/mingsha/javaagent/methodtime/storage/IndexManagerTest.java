@@ -0,0 +1,72 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * IndexManager 索引档位单元测试。
+ * Unit test for IndexManager index profiles.
+ * 验证 ingest 档位下主表只保留主键、查询时按需建索引、闲置后删除，以及切回 query 档位时补建全部索引。
+ * Verify the ingest profile keeps only the primary key, builds indexes on demand for queries, drops them when idle, and switching back to query rebuilds every index.
+ *
+ * @author mingsha
+ */
+public class IndexManagerTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String PROFILE_KEY = "mingsha.agent.config.storage.h2.profile";
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:index_test");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:index_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(PROFILE_KEY);
+    }
+
+    /**
+     * 测试 ingest 档位的按需索引。
+     * Test on-demand indexes under the ingest profile.
+     * 预期：主表无二级索引；按方法查询后仅创建方法索引，重复查询不再新建；闲置超时后索引被删除；切回 query 档位后四个索引齐全。
+     * Expect: no secondary index at first; a method query creates only the method index and repeating it builds nothing; idle indexes are dropped; query profile restores all four.
+     */
+    @Test
+    public void testOnDemandIndexes() throws Exception {
+        System.setProperty(PROFILE_KEY, IndexManager.PROFILE_INGEST);
+        H2Storage.init();
+        H2Storage.batchInsert(Collections.singletonList(new MethodTimeRecord("IndexClass", "m", 0, 1, 1, "main", "")));
+        assertEquals(0, secondaryIndexes());
+
+        String note = IndexManager.prepareForQuery("SELECT COUNT(*) FROM method_time_stat WHERE class_name = 'IndexClass' AND method_name = 'm'");
+        assertNotNull(note);
+        assertTrue(note.contains("idx_class_method"));
+        assertEquals(1, secondaryIndexes());
+        assertNull(IndexManager.prepareForQuery("SELECT * FROM method_time_stat WHERE method_name = 'm'"));
+        assertNull(IndexManager.prepareForQuery("SELECT * FROM method_time_stat_summary WHERE duration_ns > 0"));
+
+        assertEquals(0, IndexManager.expireOnDemand(H2Storage.sharedConnection()));
+        H2Storage.close();
+
+        System.clearProperty(PROFILE_KEY);
+        H2Storage.init();
+        assertEquals(4, secondaryIndexes());
+    }
+
+    private long secondaryIndexes() throws SQLException {
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_NAME = 'METHOD_TIME_STAT' AND INDEX_TYPE_NAME <> 'PRIMARY KEY'")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 索引档位性能基准：对比 query 与 ingest 档位的写入吞吐（条/秒）与查询延迟。
+ * Index profile benchmark: compares insert throughput (rows/s) and query latency of the query and ingest profiles.
+ * 默认构建不执行，通过 mvn test -Pperformance -Dtest=IngestProfilePerformanceTest 运行。
+ * Not part of the default build, run with mvn test -Pperformance -Dtest=IngestProfilePerformanceTest.
+ *
+ * @author mingsha
+ */
+public class IngestProfilePerformanceTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String PROFILE_KEY = "mingsha.agent.config.storage.h2.profile";
+    private static final int ROWS = 200_000;
+    private static final int BATCH = 500;
+    private static final int METHODS = 200;
+    private static final String[] QUERIES = {
+            "SELECT COUNT(*) FROM method_time_stat WHERE class_name = 'Bench7' AND method_name = 'm7'",
+            "SELECT * FROM method_time_stat WHERE duration_ns > 990000 ORDER BY duration_ns DESC LIMIT 10",
+            "SELECT COUNT(*) FROM method_time_stat WHERE create_time > DATEADD('MINUTE', -1, CURRENT_TIMESTAMP)"
+    };
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(PROFILE_KEY);
+    }
+
+    /**
+     * 分别在两个档位下写入相同数据并执行相同查询，输出吞吐与延迟。
+     * Write the same data and run the same queries under both profiles, printing throughput and latency.
+     */
+    @Test
+    public void testCompareProfiles() throws Exception {
+        long[] query = run(IndexManager.PROFILE_QUERY);
+        long[] ingest = run(IndexManager.PROFILE_INGEST);
+        System.out.printf("[基准] query  档位: 写入 %d 条/秒, 首次查询 %d ms, 重复查询 %d ms%n", query[0], query[1], query[2]);
+        System.out.printf("[基准] ingest 档位: 写入 %d 条/秒, 首次查询(含按需建索引) %d ms, 重复查询 %d ms%n", ingest[0], ingest[1], ingest[2]);
+        assertTrue(query[0] > 0 && ingest[0] > 0);
+    }
+
+    /**
+     * 返回 {写入条/秒, 首次查询总耗时ms, 重复查询总耗时ms}。
+     * Returns {rows per second, first query round ms, repeated query round ms}.
+     */
+    private long[] run(String profile) throws Exception {
+        String db = "perf_" + profile;
+        System.setProperty(PATH_KEY, "mem:" + db);
+        System.setProperty(PROFILE_KEY, profile);
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:" + db + ";DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+        H2Storage.init();
+        Random random = new Random(42);
+        List<List<MethodTimeRecord>> batches = new ArrayList<>();
+        for (int i = 0; i < ROWS / BATCH; i++) {
+            List<MethodTimeRecord> batch = new ArrayList<>(BATCH);
+            for (int j = 0; j < BATCH; j++) {
+                int m = random.nextInt(METHODS);
+                long d = random.nextInt(1_000_000);
+                batch.add(new MethodTimeRecord("Bench" + m, "m" + m, 0, d, d, "worker-" + (j % 8), ""));
+            }
+            batches.add(batch);
+        }
+        long t0 = System.nanoTime();
+        for (List<MethodTimeRecord> batch : batches) H2Storage.batchInsert(batch);
+        long rowsPerSec = ROWS * 1_000_000_000L / (System.nanoTime() - t0);
+        long first = queryRound();
+        long repeated = queryRound();
+        return new long[] { rowsPerSec, first, repeated };
+    }
+
+    private long queryRound() throws SQLException {
+        long t0 = System.nanoTime();
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement()) {
+            for (String sql : QUERIES) {
+                IndexManager.prepareForQuery(sql);
+                try (ResultSet rs = stmt.executeQuery(sql)) {
+                    while (rs.next()) { /* drain */ }
+                }
+            }
+        }
+        return (System.nanoTime() - t0) / 1_000_000;
+    }
+}
@@ -0,0 +1,145 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import org.h2.mvstore.MVStore;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * MVStoreStorage 直写引擎单元测试。
+ * Unit test for the MVStoreStorage direct-write engine.
+ * 验证原始记录绕过主表写入、按方法二级映射扫描、SQL 视图查询以及分块留存扣减汇总表。
+ * Verify raw records bypass the main table, per-method scans through the secondary map, SQL view queries and chunked retention with summary subtraction.
+ *
+ * @author mingsha
+ */
+public class MVStoreStorageTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String ENGINE_KEY = "mingsha.agent.config.storage.engine";
+    private static final String ROWS_KEY = "mingsha.agent.config.storage.retentionRows";
+
+    @TempDir
+    File dir;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:mvstore_test");
+        System.setProperty(ENGINE_KEY, MVStoreStorage.ENGINE);
+        H2Storage.init();
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            batch.add(new MethodTimeRecord("MVClass", i % 3 == 0 ? "hot" : "cold", i, i + 10, 10, "t" + (i % 2), ""));
+        }
+        H2Storage.batchInsert(batch);
+    }
+
+    @AfterEach
+    public void cleanup() throws Exception {
+        // 内存库在关闭后仍保留，清空以免汇总表跨用例累加 | the in-memory database outlives close, wipe it so the summary does not accumulate across tests
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(ENGINE_KEY);
+        System.clearProperty(ROWS_KEY);
+    }
+
+    /**
+     * 测试写入与查询。
+     * Test writes and queries.
+     * 预期：主表名为兼容视图；按方法扫描只返回该方法的记录；视图返回全部记录且可按列过滤；表函数按时间边界取数。
+     * Expect: the main table name is the compatibility view; a method scan returns only that method; the view returns all records and filters by column;
+     * the table function honours time bounds.
+     */
+    @Test
+    public void testAppendScanAndView() throws Exception {
+        try (Connection c = H2Storage.openConnection()) {
+            assertEquals("VIEW", PartitionManager.tableType(c, "method_time_stat"));
+        }
+        long now = System.currentTimeMillis();
+        List<MethodTimeRecord> hot = new ArrayList<>();
+        MVStoreStorage.scan(now - 60_000, now + 1000, "MVClass", "hot", (timeMs, r) -> hot.add(r));
+        assertEquals(10, hot.size());
+        assertTrue(hot.stream().allMatch(r -> "hot".equals(r.methodName) && r.durationNs == 10));
+
+        assertEquals(30, count("SELECT COUNT(*) FROM " + MVStoreStorage.VIEW));
+        assertEquals(15, count("SELECT COUNT(*) FROM " + MVStoreStorage.VIEW + " WHERE thread_name = 't1'"));
+        assertEquals(10, count("SELECT COUNT(*) FROM " + MVStoreStorage.FUNCTION + "(NULL, NULL) WHERE method_name = 'hot'"));
+        assertEquals(30, count("SELECT COUNT(*) FROM " + MVStoreStorage.FUNCTION + "(" + (now - 60_000) + ", " + (now + 1000) + ")"));
+        assertEquals(0, count("SELECT COUNT(*) FROM " + MVStoreStorage.FUNCTION + "(0, 1)"));
+        assertTrue(MVStoreStorage.info().contains("总记录数: 30"));
+    }
+
+    /**
+     * 测试按条数上限分块留存。
+     * Test chunked retention by row limit.
+     * 预期：两批写入后只保留最新的 12 条，汇总表调用次数与总耗时同步扣减。
+     * Expect: after two batches only the newest 12 records remain and summary calls and totals are reduced accordingly.
+     */
+    @Test
+    public void testRetentionSubtractsSummary() throws Exception {
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(new MethodTimeRecord("MVClass", "cold", 100 + i, 120 + i, 20, "t0", ""));
+        }
+        H2Storage.batchInsert(batch);
+        assertEquals(40, count("SELECT SUM(total_calls) FROM method_time_stat_summary WHERE class_name = 'MVClass'"));
+
+        System.setProperty(ROWS_KEY, "12");
+        RetentionWorker.runOnce();
+        assertEquals(12, count("SELECT COUNT(*) FROM " + MVStoreStorage.VIEW));
+        assertEquals(12, count("SELECT SUM(total_calls) FROM method_time_stat_summary WHERE class_name = 'MVClass'"));
+        assertEquals(count("SELECT SUM(duration_ns) FROM " + MVStoreStorage.VIEW),
+                count("SELECT SUM(total_duration_ns) FROM method_time_stat_summary WHERE class_name = 'MVClass'"));
+        assertEquals(count("SELECT COUNT(*) FROM " + MVStoreStorage.VIEW + " WHERE method_name = 'hot'"),
+                count("SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'MVClass' AND method_name = 'hot'"));
+    }
+
+    /**
+     * 测试旧存储单毫秒写入超过序号容量。
+     * Test more records in one millisecond than an old store's sequence space holds.
+     * 预期：沿用 12 位序号的旧存储写入 3 个桶以上的记录，每条记录的时间都不晚于写入完成时刻。
+     * Expect: an old store keeping 12-bit sequences takes over three buckets' worth of records and no record is stamped later than the end of the append.
+     */
+    @Test
+    public void testSequenceOverflowStaysInTime() throws Exception {
+        String file = new File(dir, "legacy.mv").getAbsolutePath();
+        MVStore legacy = new MVStore.Builder().fileName(file).open();
+        legacy.<Long, byte[]>openMap("raw").put(1L << 12, ByteBuffer.allocate(24).putInt(0).putInt(0).putLong(0).putLong(1).array());
+        legacy.<Integer, String>openMap("dict.method.name").put(0, "Legacy#m");
+        legacy.<String, Integer>openMap("dict.method").put("Legacy#m", 0);
+        legacy.<Integer, String>openMap("dict.thread.name").put(0, "t");
+        legacy.<String, Integer>openMap("dict.thread").put("t", 0);
+        legacy.close();
+        MVStoreStorage.init(file);
+
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 3 * 4096 + 1; i++) {
+            batch.add(new MethodTimeRecord("Legacy", "m", i, i + 1, 1, "t", ""));
+        }
+        long before = System.currentTimeMillis();
+        MVStoreStorage.append(batch);
+        long after = System.currentTimeMillis();
+
+        int[] inTime = {0};
+        MVStoreStorage.scan(before, after, null, null, (timeMs, r) -> ++inTime[0] > 0);
+        assertEquals(batch.size(), inTime[0]);
+        // 旧主键 1 << 12 按 12 位序号解读为第 1 毫秒 | the old key 1 << 12 reads as millisecond 1 under 12-bit sequences
+        int[] old = {0};
+        MVStoreStorage.scan(1, 1, null, null, (timeMs, r) -> ++old[0] > 0);
+        assertEquals(1, old[0]);
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
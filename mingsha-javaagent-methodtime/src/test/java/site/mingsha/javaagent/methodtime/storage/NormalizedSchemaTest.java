@@ -0,0 +1,112 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * NormalizedSchema 字典规范化表结构单元测试。
+ * Unit test for the NormalizedSchema dictionary-normalized layout.
+ * 验证 1.0 布局迁移、字典去重写入、兼容视图查询、留存清理，以及关闭后合并回 1.0 单表。
+ * Verify migration from the 1.0 layout, deduplicated dictionary writes, queries through the compatibility views, retention and merging back to the 1.0 tables.
+ *
+ * @author mingsha
+ */
+public class NormalizedSchemaTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String SCHEMA_KEY = "mingsha.agent.config.storage.schema";
+    private static final String ROWS_KEY = "mingsha.agent.config.storage.retentionRows";
+    private static final String SLOW_KEY = "mingsha.agent.config.storage.slowQueryThresholdNs";
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:normalized_test");
+        System.setProperty(SLOW_KEY, "100");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:normalized_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(SCHEMA_KEY);
+        System.clearProperty(ROWS_KEY);
+        System.clearProperty(SLOW_KEY);
+    }
+
+    /**
+     * 测试迁移、写入与合并回单表。
+     * Test migration, writes and merging back.
+     * 预期：旧数据迁入事实表且视图可查；新写入复用字典项；ID 连续不重复；切回 legacy 后全部记录回到单表。
+     * Expect: legacy rows move into facts and stay visible; new writes reuse dictionary entries; ids stay unique; switching back restores every row.
+     */
+    @Test
+    public void testMigrateWriteAndMergeBack() throws Exception {
+        H2Storage.init();
+        H2Storage.batchInsert(Arrays.asList(
+                new MethodTimeRecord("Legacy", "a", 0, 10, 10, "main", ""),
+                new MethodTimeRecord("Legacy", "b", 0, 500, 500, "main", "")));
+        H2Storage.close();
+
+        System.setProperty(SCHEMA_KEY, NormalizedSchema.MODE);
+        H2Storage.init();
+        assertEquals("VIEW", PartitionManager.tableType(H2Storage.sharedConnection(), H2Storage.TABLE));
+        assertEquals("VIEW", PartitionManager.tableType(H2Storage.sharedConnection(), H2Storage.TABLE + "_slow"));
+        assertEquals(2, count("SELECT COUNT(*) FROM " + NormalizedSchema.FACT));
+        assertEquals(1, count("SELECT COUNT(*) FROM method_time_stat_slow WHERE class_name = 'Legacy' AND method_name = 'b'"));
+
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) batch.add(new MethodTimeRecord("Legacy", i % 2 == 0 ? "a" : "c", 0, 200, 200, i % 2 == 0 ? "main" : null, ""));
+        H2Storage.batchInsert(batch);
+
+        assertEquals(22, count("SELECT COUNT(*) FROM method_time_stat"));
+        assertEquals(22, count("SELECT COUNT(DISTINCT id) FROM method_time_stat"));
+        assertEquals(3, count("SELECT COUNT(*) FROM " + NormalizedSchema.METHOD_DICT));
+        assertEquals(1, count("SELECT COUNT(*) FROM " + NormalizedSchema.THREAD_DICT));
+        assertEquals(10, count("SELECT COUNT(*) FROM method_time_stat WHERE method_name = 'c' AND thread_name IS NULL"));
+        assertEquals(21, count("SELECT COUNT(*) FROM method_time_stat_slow"));
+        assertEquals(1, count("SELECT COUNT(*) FROM db_version WHERE version = '" + NormalizedSchema.VERSION + "'"));
+        H2Storage.close();
+
+        System.clearProperty(SCHEMA_KEY);
+        H2Storage.init();
+        assertEquals("BASE TABLE", PartitionManager.tableType(H2Storage.sharedConnection(), H2Storage.TABLE));
+        assertNull(PartitionManager.tableType(H2Storage.sharedConnection(), NormalizedSchema.FACT));
+        assertEquals(22, count("SELECT COUNT(*) FROM method_time_stat"));
+        assertEquals(21, count("SELECT COUNT(*) FROM method_time_stat_slow"));
+        H2Storage.batchInsert(Collections.singletonList(new MethodTimeRecord("Legacy", "d", 0, 1, 1, "main", "")));
+        assertEquals(23, count("SELECT COUNT(DISTINCT id) FROM method_time_stat"));
+    }
+
+    /**
+     * 测试规范化表结构下的留存清理。
+     * Test retention under the normalized schema.
+     * 预期：事实表只保留最新的 5 条，汇总表调用次数经兼容视图同步扣减。
+     * Expect: only the newest 5 facts remain and summary calls are subtracted through the compatibility view.
+     */
+    @Test
+    public void testRetention() throws Exception {
+        System.setProperty(SCHEMA_KEY, NormalizedSchema.MODE);
+        H2Storage.init();
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 12; i++) batch.add(new MethodTimeRecord("Retain", "m", 0, 1, 1, "main", ""));
+        H2Storage.batchInsert(batch);
+
+        System.setProperty(ROWS_KEY, "5");
+        RetentionWorker.runOnce();
+        assertEquals(5, count("SELECT COUNT(*) FROM " + NormalizedSchema.FACT));
+        assertEquals(5, count("SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'Retain'"));
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * PartitionManager 分区表单元测试。
+ * Unit test for PartitionManager partitioned tables.
+ * 验证旧主表迁移、按条数滚动分区、视图查询与按条数 DROP 最旧分区。
+ * Verify legacy table migration, size-based rolling, queries through the view and row-count retention by dropping the oldest partitions.
+ *
+ * @author mingsha
+ */
+public class PartitionManagerTest {
+    private static final String MODE_KEY = "mingsha.agent.config.storage.partition.mode";
+    private static final String ROWS_KEY = "mingsha.agent.config.storage.partition.maxRows";
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private Connection conn;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(MODE_KEY, "size");
+        System.setProperty(ROWS_KEY, "2");
+        conn = DriverManager.getConnection("jdbc:h2:mem:partition_test;DB_CLOSE_DELAY=-1", "sa", "");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+            stmt.executeUpdate("CREATE TABLE method_time_stat (id BIGINT AUTO_INCREMENT PRIMARY KEY, class_name VARCHAR(255) NOT NULL, " +
+                    "method_name VARCHAR(255) NOT NULL, start_time BIGINT NOT NULL, end_time BIGINT NOT NULL, duration_ns BIGINT NOT NULL, " +
+                    "thread_name VARCHAR(128), extra_info VARCHAR(512), create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            stmt.executeUpdate("CREATE TABLE method_time_stat_summary (class_name VARCHAR(255), method_name VARCHAR(255), total_calls BIGINT, " +
+                    "total_duration_ns BIGINT, avg_duration_ns BIGINT)");
+            stmt.executeUpdate("INSERT INTO method_time_stat (class_name, method_name, start_time, end_time, duration_ns) VALUES ('A', 'm', 0, 5, 5)");
+            stmt.executeUpdate("INSERT INTO method_time_stat_summary VALUES ('A', 'm', 5, 25, 5)");
+        }
+    }
+
+    @AfterEach
+    public void cleanup() throws Exception {
+        System.clearProperty(MODE_KEY);
+        System.clearProperty(ROWS_KEY);
+        conn.close();
+    }
+
+    /**
+     * 测试旧表迁移、分区滚动与留存清理。
+     * Test legacy migration, rolling and retention.
+     * 预期：旧数据经视图可查；分区写满后滚动；清理后保留条数不低于上限且汇总表被扣减。
+     * Expect: legacy rows are visible through the view; full partitions roll; retention keeps at least the limit and adjusts the summary.
+     */
+    @Test
+    public void testMigrateRollAndRetain() throws Exception {
+        PartitionManager.init(conn);
+        assertEquals("VIEW", PartitionManager.tableType(conn, "method_time_stat"));
+        assertEquals(1, count("SELECT COUNT(*) FROM method_time_stat"));
+
+        for (int i = 0; i < 4; i++) {
+            String table = PartitionManager.currentTable(conn, System.currentTimeMillis() + i * 10);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("INSERT INTO " + table + " (class_name, method_name, start_time, end_time, duration_ns) VALUES ('A', 'm', 0, 5, 5)");
+            }
+            PartitionManager.addRows(1);
+        }
+        assertEquals(5, count("SELECT COUNT(*) FROM method_time_stat"));
+        assertEquals(5, count("SELECT COUNT(DISTINCT id) FROM method_time_stat"));
+        int before = PartitionManager.partitionNames().size();
+        assertTrue(before >= 3);
+
+        int dropped = PartitionManager.retain(conn, 7, 2);
+        assertTrue(dropped > 0);
+        assertEquals(before - dropped, PartitionManager.partitionNames().size());
+        assertTrue(count("SELECT COUNT(*) FROM method_time_stat") >= 2);
+        assertTrue(count("SELECT total_calls FROM method_time_stat_summary") < 5);
+    }
+
+    /**
+     * 测试扣减汇总后、删表前中断的分区删除由重新初始化补完。
+     * Test a partition drop interrupted after the summary subtraction is finished by the next init.
+     * 预期：已标记扣减的分区被删除且不再出现在视图中，汇总表不会被重复扣减。
+     * Expect: the partition marked as subtracted is dropped and leaves the view, the summary is not subtracted again.
+     */
+    @Test
+    public void testInterruptedDropIsFinishedOnce() throws Exception {
+        PartitionManager.init(conn);
+        PartitionManager.currentTable(conn, System.currentTimeMillis() + 10);
+        String oldest = PartitionManager.partitionNames().get(0);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE " + PartitionManager.META + " SET summary_subtracted = TRUE WHERE name = '" + oldest + "'");
+        }
+
+        PartitionManager.init(conn);
+
+        assertFalse(PartitionManager.partitionNames().contains(oldest));
+        assertNull(PartitionManager.tableType(conn, oldest));
+        assertEquals(0, count("SELECT COUNT(*) FROM method_time_stat"));
+        assertEquals(5, count("SELECT total_calls FROM method_time_stat_summary"));
+    }
+
+    /**
+     * 测试多批写入后删除分区，汇总表与剩余数据一致。
+     * Test dropping a partition after several batches keeps the summary consistent with the remaining rows.
+     * 预期：汇总表按批累加，删除最旧分区后只扣减该分区的调用次数与总耗时。
+     * Expect: the summary accumulates across batches and dropping the oldest partition subtracts only its calls and total duration.
+     */
+    @Test
+    public void testSummaryAfterPartitionDrop() throws Exception {
+        System.setProperty(PATH_KEY, "mem:partition_summary_test");
+        try {
+            H2Storage.init();
+            H2Storage.batchInsert(batch(3, 2));
+            H2Storage.batchInsert(batch(3, 4));
+            try (Connection c = H2Storage.openConnection()) {
+                assertEquals(6, query(c, "SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'P'"));
+                assertTrue(PartitionManager.retain(c, 7, 3) > 0);
+                assertEquals(3, query(c, "SELECT COUNT(*) FROM method_time_stat"));
+                assertEquals(3, query(c, "SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'P'"));
+                assertEquals(12, query(c, "SELECT total_duration_ns FROM method_time_stat_summary WHERE class_name = 'P'"));
+                assertEquals(4, query(c, "SELECT avg_duration_ns FROM method_time_stat_summary WHERE class_name = 'P'"));
+            }
+        } finally {
+            H2Storage.close();
+            System.clearProperty(PATH_KEY);
+        }
+    }
+
+    private static List<MethodTimeRecord> batch(int n, long durationNs) {
+        List<MethodTimeRecord> records = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            records.add(new MethodTimeRecord("P", "m", i, i + durationNs, durationNs, "main", ""));
+        }
+        return records;
+    }
+
+    private static long query(Connection c, String sql) throws SQLException {
+        try (Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
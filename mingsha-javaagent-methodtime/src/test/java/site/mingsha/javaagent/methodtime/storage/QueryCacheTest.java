@@ -0,0 +1,125 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * QueryCache 查询结果缓存单元测试。
+ * Unit test for the QueryCache result cache.
+ * 验证 SQL 规范化、写入纪元失效、宽限期复用以及并发相同查询的合并执行。
+ * Verify SQL normalization, write-epoch invalidation, reuse within the grace period and coalescing of concurrent identical queries.
+ *
+ * @author mingsha
+ */
+public class QueryCacheTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String GRACE_KEY = "mingsha.agent.config.manage.query.cacheGraceMs";
+    private static final AtomicInteger executions = new AtomicInteger();
+
+    /**
+     * 供 H2 别名调用的慢函数，统计实际执行次数。
+     * Slow function called through an H2 alias, counting actual executions.
+     */
+    public static int slow(int ms) throws InterruptedException {
+        executions.incrementAndGet();
+        Thread.sleep(ms);
+        return ms;
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:query_cache_test");
+        System.setProperty(GRACE_KEY, "0");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:query_cache_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+            stmt.executeUpdate("CREATE ALIAS SLOW FOR \"" + QueryCacheTest.class.getName() + ".slow\"");
+        }
+        H2Storage.init();
+        executions.set(0);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(GRACE_KEY);
+    }
+
+    private static List<MethodTimeRecord> batch(int n) {
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < n; i++) batch.add(new MethodTimeRecord("CacheClass", "m", i, i + 5, 5, "main", ""));
+        return batch;
+    }
+
+    /**
+     * 测试 SQL 规范化。
+     * Test SQL normalization.
+     * 预期：空白与大小写差异合并为同一键，引号内内容保持不变。
+     * Expect: whitespace and case differences map to one key while quoted text is kept as is.
+     */
+    @Test
+    public void testNormalize() {
+        assertEquals("select count(*) from t where a = 'X  Y'", QueryCache.normalize("  SELECT  count(*)\n FROM t\tWHERE a = 'X  Y' ;"));
+        assertEquals(QueryCache.normalize("select 1"), QueryCache.normalize("SELECT   1;"));
+    }
+
+    /**
+     * 测试写入纪元失效与宽限期。
+     * Test write-epoch invalidation and the grace period.
+     * 预期：无写入时复用同一结果；写入后重新执行并得到新值；宽限期内即使有写入也复用。
+     * Expect: the same result is reused without writes; after a write it runs again with the new value; within the grace period it is reused despite writes.
+     */
+    @Test
+    public void testEpochInvalidation() throws Exception {
+        H2Storage.batchInsert(batch(10));
+        String sql = "SELECT COUNT(*) AS total FROM method_time_stat";
+        QueryCache.Result first = QueryCache.query(sql);
+        assertEquals(10, first.getLong(0, "total"));
+        assertSame(first, QueryCache.query("select count(*) as total   from method_time_stat"));
+
+        H2Storage.batchInsert(batch(5));
+        QueryCache.Result second = QueryCache.query(sql);
+        assertNotSame(first, second);
+        assertEquals(15, second.getLong(0, "TOTAL"));
+
+        System.setProperty(GRACE_KEY, "60000");
+        H2Storage.batchInsert(batch(5));
+        assertSame(second, QueryCache.query(sql));
+    }
+
+    /**
+     * 测试并发相同查询的合并。
+     * Test coalescing of concurrent identical queries.
+     * 预期：4个线程同时执行同一慢查询，数据库只执行一次，所有线程得到同一结果。
+     * Expect: 4 threads running the same slow query at once cause a single execution and all get the same result.
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<QueryCache.Result>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    return QueryCache.query("SELECT SLOW(300) AS v");
+                }));
+            }
+            start.countDown();
+            QueryCache.Result r = futures.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<QueryCache.Result> f : futures) assertSame(r, f.get(10, TimeUnit.SECONDS));
+            assertEquals(300, r.getLong(0, "v"));
+            assertEquals(1, executions.get());
+            assertTrue(QueryCache.getStats().startsWith("命中率"), QueryCache.getStats());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
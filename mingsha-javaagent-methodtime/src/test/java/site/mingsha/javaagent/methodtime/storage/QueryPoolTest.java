@@ -0,0 +1,97 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * QueryPool 只读连接池单元测试。
+ * Unit test for the QueryPool read-only connection pool.
+ * 验证连接复用与语句缓存、数据库行数上限以及连接池耗尽时的有限等待。
+ * Verify connection reuse with statement caching, the database row cap and the bounded wait on exhaustion.
+ *
+ * @author mingsha
+ */
+public class QueryPoolTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String POOL_KEY = "mingsha.agent.config.manage.query.poolSize";
+    private static final String WAIT_KEY = "mingsha.agent.config.manage.query.acquireTimeoutMs";
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:query_pool_test");
+        System.setProperty(POOL_KEY, "2");
+        System.setProperty(WAIT_KEY, "100");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:query_pool_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+        H2Storage.init();
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            batch.add(new MethodTimeRecord("PoolClass", "m" + (i % 10), i, i + 5, 5, "main", ""));
+        }
+        H2Storage.batchInsert(batch);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(POOL_KEY);
+        System.clearProperty(WAIT_KEY);
+    }
+
+    /**
+     * 测试连接复用与行数上限。
+     * Test connection reuse and the row cap.
+     * 预期：归还后再次借出得到同一连接与同一缓存语句；setMaxRows 限制返回行数。
+     * Expect: borrowing again after returning yields the same connection and cached statement; setMaxRows caps the returned rows.
+     */
+    @Test
+    public void testReuseAndMaxRows() throws Exception {
+        String sql = "SELECT id FROM method_time_stat ORDER BY id";
+        Connection first;
+        PreparedStatement cached;
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            first = lease.connection();
+            cached = lease.prepare(sql, 7);
+            int rows = 0;
+            try (ResultSet rs = cached.executeQuery()) {
+                while (rs.next()) rows++;
+            }
+            assertEquals(7, rows);
+        }
+        try (QueryPool.Lease lease = QueryPool.acquire()) {
+            assertSame(first, lease.connection());
+            PreparedStatement ps = lease.prepare(sql, 0);
+            assertSame(cached, ps);
+            int rows = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) rows++;
+            }
+            assertEquals(500, rows);
+        }
+    }
+
+    /**
+     * 测试连接池耗尽。
+     * Test pool exhaustion.
+     * 预期：连接全部借出时等待超时后抛出异常，归还后可再次借出。
+     * Expect: with every connection borrowed the next acquire times out, and succeeds again after a return.
+     */
+    @Test
+    public void testExhaustion() throws Exception {
+        QueryPool.Lease a = QueryPool.acquire();
+        QueryPool.Lease b = QueryPool.acquire();
+        assertThrows(SQLException.class, QueryPool::acquire);
+        a.close();
+        try (QueryPool.Lease c = QueryPool.acquire()) {
+            assertNotNull(c.connection());
+        }
+        b.close();
+    }
+}
@@ -0,0 +1,177 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RetentionWorker 分块留存清理单元测试。
+ * Unit test for RetentionWorker chunked retention.
+ * 验证按条数分块删除、汇总表扣减与检查点记录。
+ * Verify chunked row-count deletes, summary subtraction and checkpoint recording.
+ *
+ * @author mingsha
+ */
+public class RetentionWorkerTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String ROWS_KEY = "mingsha.agent.config.storage.retentionRows";
+    private static final String CHUNK_KEY = "mingsha.agent.config.storage.retention.chunkRows";
+    private static final String PAUSE_KEY = "mingsha.agent.config.storage.retention.pauseMs";
+    private static final String ENGINE_KEY = "mingsha.agent.config.storage.engine";
+    private static final String SEGMENT_PATH_KEY = "mingsha.agent.config.storage.segment.path";
+    private static final String SEGMENT_SIZE_KEY = "mingsha.agent.config.storage.segment.sizeBytes";
+
+    @TempDir
+    File dir;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:retention_test");
+        System.setProperty(ROWS_KEY, "100");
+        System.setProperty(CHUNK_KEY, "100");
+        System.setProperty(PAUSE_KEY, "0");
+        H2Storage.init();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(ROWS_KEY);
+        System.clearProperty(CHUNK_KEY);
+        System.clearProperty(PAUSE_KEY);
+        System.clearProperty(ENGINE_KEY);
+        System.clearProperty(SEGMENT_PATH_KEY);
+        System.clearProperty(SEGMENT_SIZE_KEY);
+    }
+
+    /**
+     * 测试按条数上限分块清理。
+     * Test chunked cleanup by row limit.
+     * 预期：主表只保留最新的上限条数，汇总表调用次数同步扣减，检查点指向下一个待删ID。
+     * Expect: the main table keeps only the newest rows up to the limit, summary calls are reduced accordingly and the checkpoint points past the deleted ids.
+     */
+    @Test
+    public void testChunkedRowRetention() throws Exception {
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 350; i++) {
+            batch.add(new MethodTimeRecord("RetentionClass", "m", i, i + 2, 2, "main", ""));
+        }
+        H2Storage.batchInsert(batch);
+        long maxId = count("SELECT MAX(id) FROM method_time_stat");
+
+        RetentionWorker.runOnce();
+
+        assertEquals(100, count("SELECT COUNT(*) FROM method_time_stat"));
+        assertEquals(100, count("SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'RetentionClass'"));
+        assertEquals(200, count("SELECT total_duration_ns FROM method_time_stat_summary WHERE class_name = 'RetentionClass'"));
+        assertEquals(maxId - 99, count("SELECT next_id FROM retention_checkpoint WHERE table_name = 'method_time_stat'"));
+        assertTrue(RetentionWorker.getStats().contains("已删除"));
+    }
+
+    /**
+     * 测试多批写入后清理，汇总表与剩余数据一致。
+     * Test cleanup after several batches keeps the summary consistent with the remaining rows.
+     * 预期：汇总表按批累加，清理只扣减被删除的记录，最小/最大耗时保留历史极值。
+     * Expect: the summary accumulates across batches, cleanup subtracts only deleted rows and min/max keep historical extremes.
+     */
+    @Test
+    public void testSummaryAfterTwoBatches() throws Exception {
+        List<MethodTimeRecord> first = new ArrayList<>();
+        List<MethodTimeRecord> second = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            first.add(new MethodTimeRecord("TwoBatchClass", "m", i, i + 2, 2, "main", ""));
+            second.add(new MethodTimeRecord("TwoBatchClass", "m", i, i + 6, 6, "main", ""));
+        }
+        H2Storage.batchInsert(first);
+        H2Storage.batchInsert(second);
+        assertEquals(300, count("SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'TwoBatchClass'"));
+
+        RetentionWorker.runOnce();
+
+        assertEquals(100, count("SELECT COUNT(*) FROM method_time_stat"));
+        assertEquals(100, count("SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'TwoBatchClass'"));
+        assertEquals(600, count("SELECT total_duration_ns FROM method_time_stat_summary WHERE class_name = 'TwoBatchClass'"));
+        assertEquals(6, count("SELECT avg_duration_ns FROM method_time_stat_summary WHERE class_name = 'TwoBatchClass'"));
+        assertEquals(2, count("SELECT min_duration_ns FROM method_time_stat_summary WHERE class_name = 'TwoBatchClass'"));
+        assertEquals(6, count("SELECT max_duration_ns FROM method_time_stat_summary WHERE class_name = 'TwoBatchClass'"));
+    }
+
+    /**
+     * 测试段存储引擎整段删除后扣减汇总表。
+     * Test the summary is reduced after the segment engine drops whole segments.
+     * 预期：汇总表调用次数与总耗时与剩余段中的记录一致。
+     * Expect: summary calls and total duration match the records left in the remaining segments.
+     */
+    @Test
+    public void testSegmentRetentionSubtractsSummary() throws Exception {
+        H2Storage.close();
+        System.setProperty(PATH_KEY, "mem:retention_segment_test");
+        System.setProperty(ENGINE_KEY, SegmentStorage.ENGINE);
+        System.setProperty(SEGMENT_PATH_KEY, dir.getAbsolutePath());
+        System.setProperty(SEGMENT_SIZE_KEY, String.valueOf(ColumnSegment.HEADER_BYTES + ColumnSegment.RECORD_BYTES * 50));
+        H2Storage.init();
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 350; i++) {
+            batch.add(new MethodTimeRecord("SegmentClass", "m", i, i + 2, 2, "main", ""));
+        }
+        H2Storage.batchInsert(batch);
+        assertEquals(350, count("SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'SegmentClass'"));
+
+        RetentionWorker.runOnce();
+
+        int[] left = {0};
+        SegmentStorage.scan(0, Long.MAX_VALUE, null, null, (t, r) -> ++left[0] > 0);
+        assertEquals(100, left[0]);
+        assertEquals(100, count("SELECT total_calls FROM method_time_stat_summary WHERE class_name = 'SegmentClass'"));
+        assertEquals(200, count("SELECT total_duration_ns FROM method_time_stat_summary WHERE class_name = 'SegmentClass'"));
+    }
+
+    /**
+     * 测试分块删除无引用的调用栈。
+     * Test chunked removal of unreferenced stacks.
+     * 预期：无慢查询引用的调用栈分多块删除，被引用的调用栈保留。
+     * Expect: stacks without slow rows are deleted over several chunks, the referenced stack stays.
+     */
+    @Test
+    public void testChunkedStackPurge() throws Exception {
+        // 初始化时块大小取配置值，插入两块以上的孤立调用栈
+        // init resets the chunk size to the configured value, insert more than two chunks' worth of orphan stacks
+        assertEquals(100, stat("当前块大小"));
+        long orphans = 100 * 2 + 1;
+        try (Connection c = H2Storage.openConnection();
+             PreparedStatement ps = c.prepareStatement("INSERT INTO " + H2Storage.STACK_TABLE + " (id, depth, frames) VALUES (?, 1, 'f')");
+             Statement stmt = c.createStatement()) {
+            for (int i = 0; i <= orphans; i++) {
+                ps.setLong(1, i);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            stmt.executeUpdate("INSERT INTO method_time_stat_slow (class_name, method_name, duration_ns, stack_id) VALUES ('S', 'm', 1, 0)");
+        }
+        long chunksBefore = stat("块数");
+
+        RetentionWorker.runOnce();
+
+        assertEquals(1, count("SELECT COUNT(*) FROM " + H2Storage.STACK_TABLE));
+        assertEquals(0, count("SELECT id FROM " + H2Storage.STACK_TABLE));
+        assertTrue(stat("块数") - chunksBefore >= 2);
+    }
+
+    private static long stat(String label) {
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile(label + ": (\\d+)").matcher(RetentionWorker.getStats());
+        assertTrue(m.find());
+        return Long.parseLong(m.group(1));
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
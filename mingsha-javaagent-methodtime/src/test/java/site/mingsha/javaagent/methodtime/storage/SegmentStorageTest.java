@@ -0,0 +1,125 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.File;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SegmentStorage 段存储单元测试。
+ * Unit test for SegmentStorage columnar segment engine.
+ * 验证追加、按方法扫描、段滚动、重启恢复与整段留存清理。
+ * Verify append, scan by method, segment rolling, recovery after restart and whole-segment retention.
+ *
+ * @author mingsha
+ */
+public class SegmentStorageTest {
+    @TempDir
+    File dir;
+
+    @AfterEach
+    public void cleanup() {
+        SegmentStorage.close();
+    }
+
+    /**
+     * 测试追加与按方法扫描。
+     * Test append and scan by method.
+     * 预期：只返回指定方法的记录，字段完整还原。
+     * Expect: only records of the given method are returned with all fields restored.
+     */
+    @Test
+    public void testAppendAndScan() throws Exception {
+        SegmentStorage.init(dir, 64 * 1024);
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        batch.add(new MethodTimeRecord("com.a.Foo", "bar", 10, 30, 20, "main", ""));
+        batch.add(new MethodTimeRecord("com.a.Foo", "baz", 40, 45, 5, "worker-1", ""));
+        SegmentStorage.append(batch);
+
+        List<MethodTimeRecord> found = new ArrayList<>();
+        SegmentStorage.scan(0, Long.MAX_VALUE, "com.a.Foo", "bar", (t, r) -> found.add(r));
+        assertEquals(1, found.size());
+        MethodTimeRecord r = found.get(0);
+        assertEquals("com.a.Foo", r.className);
+        assertEquals("bar", r.methodName);
+        assertEquals(10, r.startTime);
+        assertEquals(30, r.endTime);
+        assertEquals(20, r.durationNs);
+        assertEquals("main", r.threadName);
+
+        found.clear();
+        SegmentStorage.scan(0, Long.MAX_VALUE, "com.a.Foo", "missing", (t, x) -> found.add(x));
+        assertTrue(found.isEmpty());
+    }
+
+    /**
+     * 测试段滚动、重启恢复与按条数整段清理。
+     * Test segment rolling, recovery after restart and row-count retention.
+     * 预期：重启后数据可读，清理后总条数不超过上限且仍保留写入中的段，并按方法返回被删段的条数与总耗时。
+     * Expect: data is readable after restart, retention keeps the total under the limit and the active segment, and reports the dropped count and duration per method.
+     */
+    @Test
+    public void testRollRecoverAndRetain() throws Exception {
+        int size = ColumnSegment.HEADER_BYTES + ColumnSegment.RECORD_BYTES * 10;
+        SegmentStorage.init(dir, size);
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 35; i++) {
+            batch.add(new MethodTimeRecord("C", "m", i, i + 1, 1, "t", ""));
+        }
+        SegmentStorage.append(batch);
+        SegmentStorage.close();
+
+        SegmentStorage.init(dir, size);
+        int[] count = {0};
+        SegmentStorage.scan(0, Long.MAX_VALUE, null, null, (t, r) -> ++count[0] > 0);
+        assertEquals(35, count[0]);
+        assertEquals(4, new File(dir, ".").listFiles((d, n) -> n.endsWith(".col")).length);
+
+        Map<String, long[]> removed = new HashMap<>();
+        assertEquals(2, SegmentStorage.retain(7, 15, removed));
+        assertEquals(20, removed.get("C#m")[0]);
+        assertEquals(20, removed.get("C#m")[1]);
+        count[0] = 0;
+        SegmentStorage.scan(0, Long.MAX_VALUE, null, null, (t, r) -> ++count[0] > 0);
+        assertEquals(15, count[0]);
+    }
+
+    /**
+     * 测试扫描进行中留存清理等待扫描结束。
+     * Test retention waits for an in-flight scan.
+     * 预期：扫描期间删除段的线程被阻塞，扫描读完全部旧段后才执行删除。
+     * Expect: the deleting thread blocks during the scan and only runs after every old segment was read.
+     */
+    @Test
+    public void testRetainWaitsForScan() throws Exception {
+        int size = ColumnSegment.HEADER_BYTES + ColumnSegment.RECORD_BYTES * 10;
+        SegmentStorage.init(dir, size);
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 35; i++) {
+            batch.add(new MethodTimeRecord("C", "m", i, i + 1, 1, "t", ""));
+        }
+        SegmentStorage.append(batch);
+
+        int[] count = {0};
+        int[] deleted = {-1};
+        Thread retainer = new Thread(() -> deleted[0] = SegmentStorage.retain(7, 5, null));
+        SegmentStorage.scan(0, Long.MAX_VALUE, null, null, (t, r) -> {
+            if (count[0]++ == 0) {
+                retainer.start();
+                try {
+                    retainer.join(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                assertTrue(retainer.isAlive());
+            }
+            return true;
+        });
+        retainer.join(5000);
+        assertEquals(35, count[0]);
+        assertEquals(3, deleted[0]);
+    }
+}
@@ -0,0 +1,88 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ShardManager 多写入线程分片单元测试。
+ * Unit test for ShardManager multi-writer sharding.
+ * 验证旧主表迁移、各写入线程并行写入各自分片、视图合并查询以及切回单写入线程时合并回单表。
+ * Verify legacy migration, parallel writers into their own shards, merged queries through the view and merging back on return to a single writer.
+ *
+ * @author mingsha
+ */
+public class ShardManagerTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final String WRITERS_KEY = "mingsha.agent.config.storage.writers";
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:shard_test");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:shard_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+        System.clearProperty(WRITERS_KEY);
+    }
+
+    /**
+     * 测试分片写入与合并回单表。
+     * Test sharded writes and merging back.
+     * 预期：旧数据经视图可查；三个写入线程并行写入后视图条数与ID均不重复；切回单写入线程后数据完整保留在单表中。
+     * Expect: legacy rows are visible; after three parallel writers the view has all rows with unique ids; switching back keeps every row in one table.
+     */
+    @Test
+    public void testShardedWritesAndMergeBack() throws Exception {
+        H2Storage.init();
+        H2Storage.batchInsert(Collections.singletonList(new MethodTimeRecord("Legacy", "m", 0, 1, 1, "main", "")));
+        H2Storage.close();
+
+        System.setProperty(WRITERS_KEY, "3");
+        H2Storage.init();
+        assertEquals("VIEW", tableType());
+        Thread[] writers = new Thread[3];
+        for (int i = 0; i < writers.length; i++) {
+            final int shard = i;
+            writers[i] = new Thread(() -> {
+                List<MethodTimeRecord> batch = new ArrayList<>();
+                for (int j = 0; j < 20; j++) batch.add(new MethodTimeRecord("Shard" + shard, "m", j, j + 1, 1, "w", ""));
+                H2Storage.batchInsert(shard, batch);
+            });
+            writers[i].start();
+        }
+        for (Thread t : writers) t.join();
+        assertEquals(61, count("SELECT COUNT(*) FROM method_time_stat"));
+        assertEquals(61, count("SELECT COUNT(DISTINCT id) FROM method_time_stat"));
+        assertEquals(20, count("SELECT COUNT(*) FROM method_time_stat_w2"));
+        H2Storage.close();
+
+        System.clearProperty(WRITERS_KEY);
+        H2Storage.init();
+        assertEquals("BASE TABLE", tableType());
+        assertEquals(61, count("SELECT COUNT(*) FROM method_time_stat"));
+        H2Storage.batchInsert(Collections.singletonList(new MethodTimeRecord("After", "m", 0, 1, 1, "main", "")));
+        assertEquals(62, count("SELECT COUNT(DISTINCT id) FROM method_time_stat"));
+    }
+
+    private String tableType() throws SQLException {
+        try (Connection c = H2Storage.openConnection()) {
+            return PartitionManager.tableType(c, "method_time_stat");
+        }
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Connection c = H2Storage.openConnection(); Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package site.mingsha.javaagent.methodtime.storage;
+
+import site.mingsha.javaagent.methodtime.collector.LatencyHistogram;
+import site.mingsha.javaagent.methodtime.collector.MethodTimeRecord;
+import org.junit.jupiter.api.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SnapshotStore 基线快照与回归对比单元测试。
+ * Unit test for SnapshotStore baselines and regression diffs.
+ * 验证快照保存/载入/删除，以及 p50/p99/吞吐显著性判断与排序。
+ * Verify snapshot save/load/drop and the significance checks and ranking of p50/p99/throughput.
+ *
+ * @author mingsha
+ */
+public class SnapshotStoreTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:snapshot_store_test");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:snapshot_store_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+        }
+        H2Storage.init();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+    }
+
+    private static LatencyHistogram hist(int n, long ns, long jitterNs) {
+        LatencyHistogram h = new LatencyHistogram();
+        Random random = new Random(n);
+        for (int i = 0; i < n; i++) h.add(ns + (long) (random.nextDouble() * jitterNs));
+        return h;
+    }
+
+    private static SnapshotStore.Snapshot snapshot(String name, Map<String, LatencyHistogram> methods) {
+        return new SnapshotStore.Snapshot(name, System.currentTimeMillis(), 60, methods);
+    }
+
+    /**
+     * 测试快照保存、载入、覆盖与删除。
+     * Test saving, loading, replacing and dropping snapshots.
+     * 预期：载入的直方图与保存时一致，同名再次保存覆盖，live 不能作为名称。
+     * Expect: loaded histograms match the saved ones, saving the same name replaces it, and live is not a valid name.
+     */
+    @Test
+    public void testSaveLoadDrop() throws Exception {
+        List<MethodTimeRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 40; i++) batch.add(new MethodTimeRecord("com.demo.PayService", "pay", 0, 2_000_000, 2_000_000, "main", ""));
+        H2Storage.batchInsert(batch);
+
+        assertEquals(1, SnapshotStore.save("before", 60));
+        assertEquals(1, SnapshotStore.save("before", 60));
+        SnapshotStore.Snapshot s = SnapshotStore.load("before", 60);
+        assertEquals(60, s.minutes);
+        assertEquals(40, s.methods.get("com.demo.PayService.pay").calls());
+        assertEquals(HistogramStore.queryAll(60).get("com.demo.PayService.pay").encode(), s.methods.get("com.demo.PayService.pay").encode());
+        assertTrue(SnapshotStore.list().startsWith("before"), SnapshotStore.list());
+        assertTrue(SnapshotStore.diff(s, SnapshotStore.load("live", 60)).isEmpty());
+
+        assertFalse(SnapshotStore.isValidName("live"));
+        assertThrows(IllegalArgumentException.class, () -> SnapshotStore.save("bad name", 60));
+        assertTrue(SnapshotStore.drop("before"));
+        assertNull(SnapshotStore.load("before", 60));
+        assertFalse(SnapshotStore.drop("before"));
+    }
+
+    /**
+     * 测试显著性判断与排序。
+     * Test significance checks and ranking.
+     * 预期：p50 翻倍的方法排第一；小幅抖动与样本过少的方法不报告；新增方法记为吞吐增加。
+     * Expect: the method whose p50 doubled ranks first; small jitter and methods with too few calls are not reported; a new method counts as a throughput increase.
+     */
+    @Test
+    public void testDiff() {
+        Map<String, LatencyHistogram> before = new LinkedHashMap<>();
+        Map<String, LatencyHistogram> after = new LinkedHashMap<>();
+        before.put("A.slower", hist(2000, 1_000_000, 200_000));
+        after.put("A.slower", hist(2000, 2_000_000, 400_000));
+        before.put("A.stable", hist(3000, 1_000_000, 200_000));
+        after.put("A.stable", hist(3100, 1_000_000, 200_000));
+        before.put("A.rare", hist(10, 1_000_000, 0));
+        after.put("A.rare", hist(12, 9_000_000, 0));
+        after.put("A.added", hist(600, 1_000_000, 0));
+
+        List<SnapshotStore.Change> changes = SnapshotStore.diff(snapshot("before", before), snapshot("after", after));
+        assertEquals(2, changes.size());
+        SnapshotStore.Change first = changes.get(0);
+        assertEquals("A.slower", first.method);
+        assertEquals(1, first.p50);
+        assertEquals(0, first.rate);
+        SnapshotStore.Change added = changes.get(1);
+        assertEquals("A.added", added.method);
+        assertEquals(1, added.rate);
+        assertEquals(0, added.p50);
+
+        String text = SnapshotStore.render(snapshot("before", before), snapshot("after", after), changes, 1);
+        assertTrue(text.contains("A.slower") && text.contains("↑"), text);
+        assertTrue(text.contains("另有 1 个方法"), text);
+    }
+}
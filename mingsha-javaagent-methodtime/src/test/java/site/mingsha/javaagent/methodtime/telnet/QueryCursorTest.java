@@ -0,0 +1,95 @@
+package site.mingsha.javaagent.methodtime.telnet;
+
+import site.mingsha.javaagent.methodtime.storage.H2Storage;
+import org.junit.jupiter.api.*;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * QueryCursor 分页查询单元测试。
+ * Unit test for QueryCursor paging.
+ * 验证 next/prev 翻页、自带 LIMIT 的查询、csv/json 输出与选项解析。
+ * Verify next/prev paging, queries with their own LIMIT, csv/json output and option parsing.
+ *
+ * @author mingsha
+ */
+public class QueryCursorTest {
+    private static final String PATH_KEY = "mingsha.agent.config.storage.h2.path";
+    private static final Statement[] active = new Statement[1];
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(PATH_KEY, "mem:query_cursor_test");
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:query_cursor_test;DB_CLOSE_DELAY=-1", "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.executeUpdate("DROP ALL OBJECTS");
+            stmt.executeUpdate("CREATE TABLE t (id INT PRIMARY KEY, name VARCHAR(20), ok BOOLEAN)");
+            for (int i = 1; i <= 25; i++) {
+                stmt.executeUpdate("INSERT INTO t VALUES (" + i + ", 'n" + i + (i == 3 ? ",\"x\"" : "") + "', " + (i % 2 == 0) + ")");
+            }
+        }
+    }
+
+    @AfterEach
+    public void cleanup() {
+        H2Storage.close();
+        System.clearProperty(PATH_KEY);
+    }
+
+    private static String run(QueryCursor c, int direction) throws SQLException {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        if (direction > 0) c.next(out, s -> active[0] = s);
+        else if (direction < 0) c.prev(out, s -> active[0] = s);
+        else c.print(out, s -> active[0] = s);
+        out.flush();
+        return sw.toString();
+    }
+
+    /**
+     * 测试翻页。
+     * Test paging.
+     * 预期：每页10行，第3页5行后到末页，prev 回到第2页；执行结束后不再登记语句。
+     * Expect: 10 rows per page, the third page has 5 rows and ends, prev returns to page 2; no statement stays registered.
+     */
+    @Test
+    public void testPaging() throws Exception {
+        QueryCursor c = QueryCursor.parse("select id, name from t order by id --rows 10");
+        assertEquals("select id, name from t order by id", c.sql);
+        String page1 = run(c, 0);
+        assertTrue(page1.contains("[第 1 页, 第 1-10 行, 输入 next 查看下一页]"), page1);
+        assertTrue(c.hasMore());
+        run(c, 1);
+        String page3 = run(c, 1);
+        assertTrue(page3.contains("n25"), page3);
+        assertTrue(page3.contains("第 21-25 行, 已到末页"), page3);
+        assertFalse(c.hasMore());
+        assertEquals("[已到末页]\n", run(c, 1).replace("\r", ""));
+        String page2 = run(c, -1);
+        assertTrue(page2.contains("第 11-20 行"), page2);
+        assertNull(active[0]);
+    }
+
+    /**
+     * 测试自带 LIMIT 的查询与输出格式。
+     * Test a query with its own LIMIT and the output formats.
+     * 预期：LIMIT 仍生效；csv 按 RFC 4180 转义；json 中数字与布尔值不加引号。
+     * Expect: the LIMIT still applies; csv escapes per RFC 4180; json leaves numbers and booleans unquoted.
+     */
+    @Test
+    public void testLimitAndFormats() throws Exception {
+        String csv = run(QueryCursor.parse("select id, name from t order by id limit 3 --format csv"), 0);
+        String[] lines = csv.replace("\r", "").split("\n");
+        assertEquals("ID,NAME", lines[0]);
+        assertEquals("3,\"n3,\"\"x\"\"\"", lines[3]);
+        assertTrue(lines[4].contains("第 1-3 行, 已到末页"), csv);
+
+        String json = run(QueryCursor.parse("select id, ok from t where id = 2 --format json"), 0);
+        assertTrue(json.startsWith("{\"ID\":2,\"OK\":true}"), json);
+
+        assertThrows(IllegalArgumentException.class, () -> QueryCursor.parse("select 1 --format xml"));
+    }
+}
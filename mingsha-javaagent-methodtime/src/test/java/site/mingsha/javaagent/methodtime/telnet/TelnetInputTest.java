@@ -0,0 +1,40 @@
+package site.mingsha.javaagent.methodtime.telnet;
+
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayInputStream;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * TelnetInput 单元测试。
+ * Unit test for TelnetInput.
+ * 验证换行处理、协商命令过滤与 Ctrl+C 识别。
+ * Verify line handling, negotiation filtering and Ctrl+C detection.
+ *
+ * @author mingsha
+ */
+public class TelnetInputTest {
+    private static TelnetInput input(int... bytes) {
+        byte[] b = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) b[i] = (byte) bytes[i];
+        return new TelnetInput(new ByteArrayInputStream(b));
+    }
+
+    @Test
+    public void testLinesAndNegotiation() throws Exception {
+        // IAC DO ECHO, "ab\r\n", IAC SB 24 1 IAC SE, "c", EOF
+        TelnetInput in = input(255, 253, 1, 'a', 'b', '\r', '\n', 255, 250, 24, 1, 255, 240, 'c');
+        assertEquals("ab", in.readLine());
+        assertEquals("c", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        // 未换行的部分输入被丢弃 | a partial line before the interrupt is dropped
+        TelnetInput in = input('s', 'e', 'l', 255, 244, 'x', '\n', 3, 'y', '\n');
+        assertSame(TelnetInput.INTERRUPT, in.readLine());
+        assertEquals("x", in.readLine());
+        assertSame(TelnetInput.INTERRUPT, in.readLine());
+        assertEquals("y", in.readLine());
+    }
+}